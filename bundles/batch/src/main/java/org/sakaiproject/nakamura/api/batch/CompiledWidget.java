@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.batch;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The JSON output of a widget (or of the configs of all widgets), serialized and encoded
+ * as UTF-8 once, so it can be written to any number of responses as it is.
+ */
+public class CompiledWidget {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final byte[] content;
+  private final String etag;
+
+  /**
+   * @param json
+   *          The JSON output.
+   */
+  public CompiledWidget(String json) {
+    try {
+      content = json.getBytes("UTF-8");
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(content);
+      char[] hex = new char[hash.length * 2 + 2];
+      hex[0] = '"';
+      for (int i = 0; i < hash.length; i++) {
+        hex[i * 2 + 1] = HEX[(hash[i] >> 4) & 0xf];
+        hex[i * 2 + 2] = HEX[hash[i] & 0xf];
+      }
+      hex[hex.length - 1] = '"';
+      etag = new String(hex);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return The JSON output encoded as UTF-8. This is shared, it must not be modified.
+   */
+  public byte[] getContent() {
+    return content;
+  }
+
+  /**
+   * @return A quoted entity tag that changes when the content does.
+   */
+  public String getETag() {
+    return etag;
+  }
+
+}
@@ -55,6 +55,34 @@ public interface WidgetService {
    */
   public ValueMap getWidget(String path, Locale locale, ResourceResolver resolver);
 
+  /**
+   * The same output as {@link #getWidget(String, Locale, ResourceResolver)}, serialized
+   * once per widget and locale until one of the widget's files changes.
+   *
+   * @param path
+   *          The path to the widget.
+   * @param locale
+   *          The locale that should be outputted. If this is null, the system's default
+   *          locale will be used.
+   * @param resolver
+   *          A ResourceResolver that can be used to retrieve all the widget files.
+   * @return The JSON output for the widget.
+   * @throws IllegalArgumentException
+   *           The path does not point to a valid widget.
+   */
+  public CompiledWidget getCompiledWidget(String path, Locale locale,
+      ResourceResolver resolver);
+
+  /**
+   * The same output as {@link #getWidgetConfigs(ResourceResolver)}, serialized once until
+   * a widget config changes.
+   *
+   * @param resolver
+   *          A {@link ResourceResolver} that can be used to retrieve widgets.
+   * @return A JSON object of all the widget configs, keyed by widget name.
+   */
+  public CompiledWidget getCompiledWidgetConfigs(ResourceResolver resolver);
+
   /**
    * When a resource changes (either on disk or in JCR) this method should be called. This
    * will ensure that the cache is kept up to date.
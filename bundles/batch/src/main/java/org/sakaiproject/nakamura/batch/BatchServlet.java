@@ -17,6 +17,14 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -29,6 +37,10 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -42,18 +54,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@SlingServlet(methods = { "POST" }, generateService = true, paths = { "/system/batch" })
+@SlingServlet(methods = { "POST" }, generateService = true, generateComponent = false, paths = { "/system/batch" })
+@Component(metatype = true, immediate = true)
 @ServiceDocumentation(
     name = "BatchServlet",
     shortDescription = "Bundles multiple requests into a single response.",
@@ -65,11 +92,19 @@ import javax.servlet.http.HttpServletResponse;
     methods = @ServiceMethod(
         name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
+        parameters = {
+          @ServiceParameter(
             name = "requests",
             description = "A JSON string representing a request. <br />Example:" +
                 "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/_user/a/ad/admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+          ),
+          @ServiceParameter(
+            name = "parallel",
+            description = "Optional, if true the GET requests are processed concurrently. " +
+                "Other requests are still processed one at a time, after every request " +
+                "before them. The results are written in the order of the requests either way."
+          )
+        },
         response = {@ServiceResponse(
             code = 200,
             description = "All requests are successful. <br />" +
@@ -96,6 +131,81 @@ public class BatchServlet extends SlingAllMethodsServlet {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  protected static final String PARALLEL_PARAMETER = "parallel";
+
+  @Property(intValue = 10, description = "The number of threads processing the GET requests of parallel batches, shared by all batches.")
+  static final String PARALLEL_THREADS = "sakai.batch.parallel.threads";
+
+  @Property(intValue = 4, description = "The maximum number of GET requests of one parallel batch processed at the same time.")
+  static final String PARALLEL_MAX_PER_BATCH = "sakai.batch.parallel.max_per_batch";
+
+  @Property(longValue = 30000, description = "The time in ms a GET request of a parallel batch is waited for before it is reported as failed.")
+  static final String PARALLEL_TIMEOUT = "sakai.batch.parallel.timeout";
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected transient volatile SlingRequestProcessor requestProcessor;
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  @Reference
+  protected transient JcrResourceResolverFactory resourceResolverFactory;
+
+  /**
+   * A GET request of a parallel batch and its result to come, null if it could not be
+   * started.
+   */
+  private static class PendingRequest {
+    private final RequestInfo requestInfo;
+    private final Future<BatchedResponse> result;
+
+    private PendingRequest(RequestInfo requestInfo, Future<BatchedResponse> result) {
+      this.requestInfo = requestInfo;
+      this.result = result;
+    }
+  }
+
+  private transient ThreadPoolExecutor executor;
+  private int maxPerBatch;
+  private long timeout;
+
+  @Activate
+  protected void activate(Map<?, ?> properties) {
+    executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "batch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    modified(properties);
+  }
+
+  @Modified
+  protected void modified(Map<?, ?> properties) {
+    int threads = Math.max(1, OsgiUtil.toInteger(properties.get(PARALLEL_THREADS), 10));
+    if (threads < executor.getCorePoolSize()) {
+      executor.setCorePoolSize(threads);
+      executor.setMaximumPoolSize(threads);
+    } else {
+      executor.setMaximumPoolSize(threads);
+      executor.setCorePoolSize(threads);
+    }
+    maxPerBatch = Math.max(1, OsgiUtil.toInteger(properties.get(PARALLEL_MAX_PER_BATCH), 4));
+    timeout = OsgiUtil.toLong(properties.get(PARALLEL_TIMEOUT), 30000);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> properties) {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -181,26 +291,164 @@ public class BatchServlet extends SlingAllMethodsServlet {
       return;
     }
 
-    // Loop over the requests and handle each one.
+    // Loop over the requests and handle each one, writing each result as soon as it and
+    // the ones before it are done.
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      PrintWriter writer = response.getWriter();
+      JSONWriter write = new JSONWriter(writer);
       write.object();
       write.key("results");
       write.array();
 
-      for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+      String userId = null;
+      if ("true".equals(request.getParameter(PARALLEL_PARAMETER))) {
+        userId = getParallelUserId(request);
+      }
+      if (userId == null) {
+        for (RequestInfo r : batchedRequests) {
+          doRequest(request, response, r, write);
+          flush(response, writer);
+        }
+      } else {
+        doParallelRequests(request, response, batchedRequests, userId, write, writer);
       }
       write.endArray();
       write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
     } catch (JSONException e) {
       LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
+    }
+  }
+
+  /**
+   * @param request
+   * @return The user the GET requests of the batch can be processed for on other
+   *         threads, or null if they can't be processed in parallel.
+   */
+  private String getParallelUserId(SlingHttpServletRequest request) {
+    if (requestProcessor == null || executor == null || executor.isShutdown()) {
+      return null;
+    }
+    Session session = request.getResourceResolver().adaptTo(Session.class);
+    return session == null ? null : session.getUserID();
+  }
+
+  /**
+   * Process the GET requests of a batch concurrently, each one with its own copy of the
+   * request and a session of the batch, up to the maximum per batch at a time. Any other
+   * request waits for every request before it and is processed on the thread of the
+   * batch, as it may change what the requests after it see. A request that is given up on
+   * is not interrupted, as an interrupt can leave its session in an unknown state. It may
+   * still be running when the batch is answered, so it holds nothing of the batch request
+   * or response, and its session is logged out when it is released.
+   */
+  private void doParallelRequests(final SlingHttpServletRequest request,
+      final SlingHttpServletResponse response, List<RequestInfo> batchedRequests,
+      final String userId, JSONWriter write, PrintWriter writer) throws JSONException {
+    LinkedList<PendingRequest> pending = new LinkedList<PendingRequest>();
+    final BatchSessions sessions = new BatchSessions(slingRepository, userId);
+    try {
+      for (final RequestInfo r : batchedRequests) {
+        if (!r.isSafe()) {
+          while (!pending.isEmpty()) {
+            writeParallelResponse(pending.removeFirst(), write);
+            flush(response, writer);
+          }
+          doRequest(request, response, r, write);
+          flush(response, writer);
+          continue;
+        }
+        if (pending.size() >= maxPerBatch) {
+          writeParallelResponse(pending.removeFirst(), write);
+          flush(response, writer);
+        }
+        final BatchedRequest batchedRequest = new BatchedRequest(request, r);
+        try {
+          Future<BatchedResponse> future = executor.submit(new Callable<BatchedResponse>() {
+            public BatchedResponse call() throws Exception {
+              return processRequest(batchedRequest, sessions);
+            }
+          });
+          pending.add(new PendingRequest(r, future));
+        } catch (RejectedExecutionException e) {
+          pending.add(new PendingRequest(r, null));
+        }
+      }
+      while (!pending.isEmpty()) {
+        writeParallelResponse(pending.removeFirst(), write);
+        flush(response, writer);
+      }
+    } finally {
+      for (PendingRequest p : pending) {
+        if (p.result != null) {
+          p.result.cancel(false);
+        }
+      }
+      sessions.close();
+    }
+  }
+
+  private void writeParallelResponse(PendingRequest pending, JSONWriter write)
+      throws JSONException {
+    RequestInfo requestInfo = pending.requestInfo;
+    Future<BatchedResponse> future = pending.result;
+    if (future == null) {
+      writeFailedRequest(write, requestInfo);
+      return;
+    }
+    try {
+      BatchedResponse response = future.get(timeout, TimeUnit.MILLISECONDS);
+      writeResponse(write, requestInfo, response.getResponseStatus(), response
+          .getResponseHeaders(), response.getDataAsString());
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      writeFailedRequest(write, requestInfo);
+    } catch (ExecutionException e) {
+      LOGGER.warn("Failed to process {}: {}", requestInfo.getUrl(), e.getCause()
+          .getMessage());
+      writeFailedRequest(write, requestInfo);
+    } catch (TimeoutException e) {
+      LOGGER.warn("Gave up waiting for {} after {} ms", requestInfo.getUrl(), timeout);
+      future.cancel(false);
+      writeFailedRequest(write, requestInfo);
+    } catch (UnsupportedEncodingException e) {
+      writeFailedRequest(write, requestInfo);
+    }
+  }
+
+  /**
+   * Process a request as a new Sling request on the current thread, with a session of
+   * the batch that no other request is using.
+   */
+  protected BatchedResponse processRequest(BatchedRequest request, BatchSessions sessions)
+      throws RepositoryException, ServletException, IOException {
+    SlingRequestProcessor processor = requestProcessor;
+    if (processor == null) {
+      throw new ServletException("No request processor");
+    }
+    Session session = sessions.acquire();
+    try {
+      BatchedResponse response = new BatchedResponse();
+      processor.processRequest(request, response, resourceResolverFactory
+          .getResourceResolver(session));
+      return response;
+    } finally {
+      sessions.release(session);
+    }
+  }
+
+  private void flush(SlingHttpServletResponse response, PrintWriter writer) {
+    writer.flush();
+    try {
+      response.flushBuffer();
+    } catch (IOException e) {
+      LOGGER.debug("Failed to flush the batch response: {}", e.getMessage());
     }
   }
 
@@ -246,32 +494,36 @@ public class BatchServlet extends SlingAllMethodsServlet {
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
       RequestInfo requestData) throws JSONException {
     try {
-      String body = responseWrapper.getDataAsString();
-      write.object();
-      write.key("url");
-      write.value(requestData.getUrl());
-      write.key("success");
-      write.value(true);
-      write.key("body");
-      write.value(body);
-      write.key("status");
-      write.value(responseWrapper.getResponseStatus());
-      write.key("headers");
-      write.object();
-      Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
-      Enumeration<String> keys = headers.keys();
-      while (keys.hasMoreElements()) {
-        String k = keys.nextElement();
-        write.key(k);
-        write.value(headers.get(k));
-      }
-      write.endObject();
-      write.endObject();
+      writeResponse(write, requestData, responseWrapper.getResponseStatus(),
+          responseWrapper.getResponseHeaders(), responseWrapper.getDataAsString());
     } catch (UnsupportedEncodingException e) {
       writeFailedRequest(write, requestData);
     }
   }
 
+  private void writeResponse(JSONWriter write, RequestInfo requestData, int status,
+      Dictionary<String, String> headers, String body) throws JSONException {
+    write.object();
+    write.key("url");
+    write.value(requestData.getUrl());
+    write.key("success");
+    write.value(true);
+    write.key("body");
+    write.value(body);
+    write.key("status");
+    write.value(status);
+    write.key("headers");
+    write.object();
+    Enumeration<String> keys = headers.keys();
+    while (keys.hasMoreElements()) {
+      String k = keys.nextElement();
+      write.key(k);
+      write.value(headers.get(k));
+    }
+    write.endObject();
+    write.endObject();
+  }
+
   private void writeFailedRequest(JSONWriter write, RequestInfo requestData)
       throws JSONException {
     write.object();
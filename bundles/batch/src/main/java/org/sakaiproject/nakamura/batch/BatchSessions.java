@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.jcr.api.SlingRepository;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+/**
+ * The sessions the requests of one parallel batch are processed with. The batch logs in
+ * administratively once, and impersonates its user only when every session it already
+ * has is in use. A session is only used by one request at a time, as sessions are not
+ * thread safe, so a batch holds at most as many sessions as it runs requests at once.
+ */
+class BatchSessions {
+
+  private final SlingRepository repository;
+  private final String userId;
+  private final LinkedList<Session> idle = new LinkedList<Session>();
+  private Session adminSession;
+  private boolean closed;
+
+  BatchSessions(SlingRepository repository, String userId) {
+    this.repository = repository;
+    this.userId = userId;
+  }
+
+  /**
+   * @return A session for the user of the batch, that no other request is using.
+   * @throws RepositoryException
+   *           If the batch is over, or the user could not be impersonated.
+   */
+  synchronized Session acquire() throws RepositoryException {
+    if (closed) {
+      throw new RepositoryException("The batch of " + userId + " is over");
+    }
+    if (!idle.isEmpty()) {
+      return idle.removeFirst();
+    }
+    if (adminSession == null) {
+      adminSession = repository.loginAdministrative(null);
+    }
+    return adminSession.impersonate(new SimpleCredentials(userId, new char[0]));
+  }
+
+  /**
+   * Hand a session back for the next request. Once the batch is over, it is logged out
+   * instead.
+   */
+  void release(Session session) {
+    synchronized (this) {
+      if (!closed) {
+        idle.add(session);
+        return;
+      }
+    }
+    session.logout();
+  }
+
+  /**
+   * Log out of every session that is not in use. The ones still in use, by requests the
+   * batch gave up waiting for, are logged out when they are released.
+   */
+  void close() {
+    List<Session> sessions;
+    synchronized (this) {
+      closed = true;
+      sessions = new ArrayList<Session>(idle);
+      idle.clear();
+      if (adminSession != null) {
+        sessions.add(adminSession);
+        adminSession = null;
+      }
+    }
+    for (Session session : sessions) {
+      session.logout();
+    }
+  }
+
+}
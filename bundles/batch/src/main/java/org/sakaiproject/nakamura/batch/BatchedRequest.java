@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.util.RequestInfo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * A batched request that is processed on a thread other than the one of the batch.
+ * Everything it answers is copied from the batch request when it is created, so it does
+ * not use the request of the container, which may be recycled as soon as the batch is
+ * answered, and the attributes its processing sets are not seen by, and do not race
+ * with, the batch request or the other requests of the batch.
+ */
+class BatchedRequest implements HttpServletRequest {
+
+  private static final String[] DATE_FORMATS = { "EEE, dd MMM yyyy HH:mm:ss zzz",
+      "EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy" };
+
+  private final RequestInfo requestInfo;
+  private final String path;
+  private final String queryString;
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+  private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+  private final Map<String, String> headerNames = new LinkedHashMap<String, String>();
+  private final List<Locale> locales = new ArrayList<Locale>();
+  private final Cookie[] cookies;
+  private final String protocol;
+  private final String scheme;
+  private final String serverName;
+  private final int serverPort;
+  private final boolean secure;
+  private final String contextPath;
+  private final String remoteAddr;
+  private final String remoteHost;
+  private final int remotePort;
+  private final String localName;
+  private final String localAddr;
+  private final int localPort;
+  private final String authType;
+  private final String remoteUser;
+  private final Principal userPrincipal;
+  private String characterEncoding;
+
+  /**
+   * Must be created on the thread of the batch request.
+   *
+   * @param request
+   *          The batch request.
+   * @param requestInfo
+   *          The request to process.
+   */
+  BatchedRequest(SlingHttpServletRequest request, RequestInfo requestInfo) {
+    this.requestInfo = requestInfo;
+    String url = requestInfo.getUrl();
+    int i = url.indexOf('?');
+    path = i == -1 ? url : url.substring(0, i);
+    queryString = i == -1 ? null : url.substring(i + 1);
+
+    Enumeration<?> names = request.getAttributeNames();
+    while (names != null && names.hasMoreElements()) {
+      String name = (String) names.nextElement();
+      attributes.put(name, request.getAttribute(name));
+    }
+    names = request.getHeaderNames();
+    while (names != null && names.hasMoreElements()) {
+      String name = (String) names.nextElement();
+      List<String> values = new ArrayList<String>();
+      Enumeration<?> v = request.getHeaders(name);
+      while (v != null && v.hasMoreElements()) {
+        values.add((String) v.nextElement());
+      }
+      headers.put(name.toLowerCase(Locale.ENGLISH), values);
+      headerNames.put(name.toLowerCase(Locale.ENGLISH), name);
+    }
+    Enumeration<?> l = request.getLocales();
+    while (l != null && l.hasMoreElements()) {
+      locales.add((Locale) l.nextElement());
+    }
+    Cookie[] requestCookies = request.getCookies();
+    if (requestCookies == null) {
+      cookies = null;
+    } else {
+      cookies = new Cookie[requestCookies.length];
+      for (int c = 0; c < cookies.length; c++) {
+        cookies[c] = (Cookie) requestCookies[c].clone();
+      }
+    }
+    protocol = request.getProtocol();
+    scheme = request.getScheme();
+    serverName = request.getServerName();
+    serverPort = request.getServerPort();
+    secure = request.isSecure();
+    contextPath = request.getContextPath();
+    remoteAddr = request.getRemoteAddr();
+    remoteHost = request.getRemoteHost();
+    remotePort = request.getRemotePort();
+    localName = request.getLocalName();
+    localAddr = request.getLocalAddr();
+    localPort = request.getLocalPort();
+    authType = request.getAuthType();
+    remoteUser = request.getRemoteUser();
+    userPrincipal = request.getUserPrincipal();
+    characterEncoding = request.getCharacterEncoding();
+  }
+
+  //
+  // Attributes
+  //
+
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getAttributeNames() {
+    return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+  }
+
+  public void setAttribute(String name, Object o) {
+    if (o == null) {
+      attributes.remove(name);
+    } else {
+      attributes.put(name, o);
+    }
+  }
+
+  public void removeAttribute(String name) {
+    attributes.remove(name);
+  }
+
+  //
+  // Parameters, from the batched request only.
+  //
+
+  public String getParameter(String name) {
+    String[] param = requestInfo.getParameters().get(name);
+    if (param != null && param.length > 0) {
+      return param[0];
+    }
+    return null;
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getParameterNames() {
+    return requestInfo.getParameters().keys();
+  }
+
+  public String[] getParameterValues(String name) {
+    return requestInfo.getParameters().get(name);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Map getParameterMap() {
+    return new Hashtable<String, String[]>(requestInfo.getParameters());
+  }
+
+  //
+  // Path
+  //
+
+  public String getMethod() {
+    return (requestInfo.getMethod() == null) ? "GET" : requestInfo.getMethod();
+  }
+
+  public String getPathInfo() {
+    return path;
+  }
+
+  public String getPathTranslated() {
+    return path;
+  }
+
+  public String getQueryString() {
+    return queryString;
+  }
+
+  public String getServletPath() {
+    return "";
+  }
+
+  public String getContextPath() {
+    return contextPath;
+  }
+
+  public String getRequestURI() {
+    return contextPath == null ? path : contextPath + path;
+  }
+
+  public StringBuffer getRequestURL() {
+    StringBuffer url = new StringBuffer();
+    url.append(scheme).append("://").append(serverName);
+    if (!("http".equals(scheme) && serverPort == 80)
+        && !("https".equals(scheme) && serverPort == 443)) {
+      url.append(':').append(serverPort);
+    }
+    return url.append(getRequestURI());
+  }
+
+  //
+  // Headers
+  //
+
+  public String getHeader(String name) {
+    List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getHeaders(String name) {
+    List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+    if (values == null) {
+      values = Collections.emptyList();
+    }
+    return Collections.enumeration(values);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getHeaderNames() {
+    return Collections.enumeration(headerNames.values());
+  }
+
+  public int getIntHeader(String name) {
+    String value = getHeader(name);
+    return value == null ? -1 : Integer.parseInt(value);
+  }
+
+  public long getDateHeader(String name) {
+    String value = getHeader(name);
+    if (value == null) {
+      return -1;
+    }
+    for (String format : DATE_FORMATS) {
+      SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+      dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try {
+        return dateFormat.parse(value).getTime();
+      } catch (ParseException e) {
+        // try the next format
+      }
+    }
+    throw new IllegalArgumentException("Not a date: " + value);
+  }
+
+  public Cookie[] getCookies() {
+    return cookies;
+  }
+
+  public Locale getLocale() {
+    return locales.isEmpty() ? Locale.getDefault() : locales.get(0);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getLocales() {
+    if (locales.isEmpty()) {
+      return Collections.enumeration(Collections.singletonList(Locale.getDefault()));
+    }
+    return Collections.enumeration(locales);
+  }
+
+  //
+  // Body, batched requests have none.
+  //
+
+  public String getCharacterEncoding() {
+    return characterEncoding;
+  }
+
+  public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
+    characterEncoding = env;
+  }
+
+  public int getContentLength() {
+    return -1;
+  }
+
+  public String getContentType() {
+    return null;
+  }
+
+  public ServletInputStream getInputStream() throws IOException {
+    final InputStream in = new ByteArrayInputStream(new byte[0]);
+    return new ServletInputStream() {
+      @Override
+      public int read() throws IOException {
+        return in.read();
+      }
+    };
+  }
+
+  public BufferedReader getReader() throws IOException {
+    return new BufferedReader(new StringReader(""));
+  }
+
+  //
+  // Connection and user
+  //
+
+  public String getProtocol() {
+    return protocol;
+  }
+
+  public String getScheme() {
+    return scheme;
+  }
+
+  public String getServerName() {
+    return serverName;
+  }
+
+  public int getServerPort() {
+    return serverPort;
+  }
+
+  public boolean isSecure() {
+    return secure;
+  }
+
+  public String getRemoteAddr() {
+    return remoteAddr;
+  }
+
+  public String getRemoteHost() {
+    return remoteHost;
+  }
+
+  public int getRemotePort() {
+    return remotePort;
+  }
+
+  public String getLocalName() {
+    return localName;
+  }
+
+  public String getLocalAddr() {
+    return localAddr;
+  }
+
+  public int getLocalPort() {
+    return localPort;
+  }
+
+  public String getAuthType() {
+    return authType;
+  }
+
+  public String getRemoteUser() {
+    return remoteUser;
+  }
+
+  public Principal getUserPrincipal() {
+    return userPrincipal;
+  }
+
+  public boolean isUserInRole(String role) {
+    return false;
+  }
+
+  //
+  // Container services, which a batched request can't reach.
+  //
+
+  public RequestDispatcher getRequestDispatcher(String path) {
+    return null;
+  }
+
+  @Deprecated
+  public String getRealPath(String path) {
+    return null;
+  }
+
+  public HttpSession getSession(boolean create) {
+    return null;
+  }
+
+  public HttpSession getSession() {
+    return null;
+  }
+
+  public String getRequestedSessionId() {
+    return null;
+  }
+
+  public boolean isRequestedSessionIdValid() {
+    return false;
+  }
+
+  public boolean isRequestedSessionIdFromCookie() {
+    return false;
+  }
+
+  public boolean isRequestedSessionIdFromURL() {
+    return false;
+  }
+
+  @Deprecated
+  public boolean isRequestedSessionIdFromUrl() {
+    return false;
+  }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The response of a batched request that is processed on a thread other than the one of
+ * the batch. It only buffers what is written to it, like
+ * {@link org.sakaiproject.nakamura.util.ResponseWrapper}, but without wrapping the
+ * response of the batch, so nothing reaches the response of the container from another
+ * thread.
+ */
+class BatchedResponse implements HttpServletResponse {
+
+  private final ByteArrayOutputStream boas = new ByteArrayOutputStream();
+  private final ServletOutputStream servletOutputStream = new ServletOutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      boas.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      boas.write(b, off, len);
+    }
+  };
+  private final PrintWriter pw;
+  private final Dictionary<String, String> headers = new Hashtable<String, String>();
+  private String type;
+  private String charset;
+  private Locale locale = Locale.getDefault();
+  private int status = 200;
+
+  BatchedResponse() {
+    try {
+      pw = new PrintWriter(new OutputStreamWriter(servletOutputStream, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return The headers set on this response.
+   */
+  Dictionary<String, String> getResponseHeaders() {
+    return headers;
+  }
+
+  /**
+   * @return The data written to this response, as UTF-8.
+   * @throws UnsupportedEncodingException
+   */
+  String getDataAsString() throws UnsupportedEncodingException {
+    pw.flush();
+    return boas.toString("utf-8");
+  }
+
+  /**
+   * @return The status set on this response, 200 if none was.
+   */
+  int getResponseStatus() {
+    return status;
+  }
+
+  public ServletOutputStream getOutputStream() throws IOException {
+    return servletOutputStream;
+  }
+
+  public PrintWriter getWriter() throws IOException {
+    return pw;
+  }
+
+  public String getCharacterEncoding() {
+    return charset;
+  }
+
+  public void setCharacterEncoding(String charset) {
+    this.charset = charset;
+  }
+
+  public String getContentType() {
+    return type;
+  }
+
+  public void setContentType(String type) {
+    this.type = type;
+    headers.put("Content-Type", type);
+  }
+
+  public void setContentLength(int len) {
+    headers.put("Content-Length", Integer.toString(len));
+  }
+
+  public Locale getLocale() {
+    return locale;
+  }
+
+  public void setLocale(Locale locale) {
+    this.locale = locale;
+  }
+
+  public int getBufferSize() {
+    return boas.size();
+  }
+
+  public void setBufferSize(int size) {
+  }
+
+  public void flushBuffer() throws IOException {
+  }
+
+  public void resetBuffer() {
+  }
+
+  public void reset() {
+  }
+
+  public boolean isCommitted() {
+    // Never committed, so processing can keep on writing.
+    return false;
+  }
+
+  //
+  // Status
+  //
+
+  public void setStatus(int sc) {
+    this.status = sc;
+  }
+
+  @Deprecated
+  public void setStatus(int sc, String sm) {
+    this.status = sc;
+  }
+
+  public void sendError(int sc) throws IOException {
+    this.status = sc;
+  }
+
+  public void sendError(int sc, String msg) throws IOException {
+    this.status = sc;
+  }
+
+  public void sendRedirect(String location) throws IOException {
+    this.status = SC_MOVED_TEMPORARILY;
+    headers.put("Location", location);
+  }
+
+  //
+  // Headers
+  //
+
+  public boolean containsHeader(String name) {
+    return headers.get(name) != null;
+  }
+
+  public void setHeader(String name, String value) {
+    headers.put(name, value);
+  }
+
+  public void addHeader(String name, String value) {
+    headers.put(name, value);
+  }
+
+  public void setIntHeader(String name, int value) {
+    headers.put(name, Integer.toString(value));
+  }
+
+  public void addIntHeader(String name, int value) {
+    headers.put(name, Integer.toString(value));
+  }
+
+  public void setDateHeader(String name, long date) {
+    headers.put(name, Long.toString(date));
+  }
+
+  public void addDateHeader(String name, long date) {
+    headers.put(name, Long.toString(date));
+  }
+
+  public void addCookie(Cookie cookie) {
+  }
+
+  public String encodeURL(String url) {
+    return url;
+  }
+
+  public String encodeRedirectURL(String url) {
+    return url;
+  }
+
+  @Deprecated
+  public String encodeUrl(String url) {
+    return url;
+  }
+
+  @Deprecated
+  public String encodeRedirectUrl(String url) {
+    return url;
+  }
+
+}
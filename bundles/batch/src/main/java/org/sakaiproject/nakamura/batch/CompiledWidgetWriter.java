@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.sakaiproject.nakamura.api.batch.CompiledWidget;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes the compiled JSON of widgets to a response. Clients that send the entity tag
+ * they already have get a 304 without a body.
+ */
+final class CompiledWidgetWriter {
+
+  private CompiledWidgetWriter() {
+  }
+
+  /**
+   * @param request
+   *          The request, whose If-None-Match header is checked.
+   * @param response
+   *          The response to write to.
+   * @param widget
+   *          The compiled JSON.
+   * @throws IOException
+   */
+  static void write(SlingHttpServletRequest request, SlingHttpServletResponse response,
+      CompiledWidget widget) throws IOException {
+    String etag = widget.getETag();
+    response.setHeader("ETag", etag);
+    if (matches(request.getHeader("If-None-Match"), etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    // Make sure that we're outputting proper json.
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    byte[] content = widget.getContent();
+    response.setContentLength(content.length);
+    OutputStream out = response.getOutputStream();
+    out.write(content);
+    out.flush();
+  }
+
+  /**
+   * @param ifNoneMatch
+   *          The value of an If-None-Match header, can be null.
+   * @param etag
+   *          The entity tag of the current content.
+   * @return If the header lists the entity tag.
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
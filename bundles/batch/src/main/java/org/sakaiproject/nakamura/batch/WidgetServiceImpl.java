@@ -33,6 +33,7 @@ import org.apache.tika.detect.Detector;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.mime.MediaType;
 import org.apache.tika.parser.AutoDetectParser;
+import org.sakaiproject.nakamura.api.batch.CompiledWidget;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
@@ -46,12 +47,15 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service()
 @Component(immediate = true, metatype = true)
@@ -83,6 +87,71 @@ public class WidgetServiceImpl implements WidgetService {
   static final String CACHE_NAME_WIDGET_CONFIGS = WidgetServiceImpl.class.getName()
       + "_configs";
 
+  /**
+   * The name for the cache that holds the compiled output of all widget config files.
+   */
+  static final String CACHE_NAME_COMPILED_CONFIGS = WidgetServiceImpl.class.getName()
+      + "_compiled_configs";
+
+  /**
+   * The configs as read at some generation.
+   */
+  private static class WidgetConfigs {
+    private final long generation;
+    private final Map<String, ValueMap> configs;
+
+    private WidgetConfigs(long generation, Map<String, ValueMap> configs) {
+      this.generation = generation;
+      this.configs = configs;
+    }
+  }
+
+  /**
+   * Guards the generations and changes below, and installs cached configs and widgets
+   * with the generation they were read at. Nothing is read from the repository while it is
+   * held.
+   */
+  private final Object configsLock = new Object();
+
+  /**
+   * Goes up on every change to the configs.
+   */
+  private long generation;
+
+  /**
+   * The generation of the last change that may have changed any widget, so every config
+   * has to be read again.
+   */
+  private long fullRebuildGeneration;
+
+  /**
+   * The generation of the last config change of each widget path. Only the widgets
+   * changed since the cached configs were read are read again.
+   */
+  private final Map<String, Long> configChanges = new HashMap<String, Long>();
+
+  /**
+   * The generations of the configs and compiled configs in the caches.
+   */
+  private long configsGeneration;
+  private long compiledConfigsGeneration;
+
+  /**
+   * Goes up on every change to the files of a widget.
+   */
+  private long filesGeneration;
+
+  /**
+   * The generation of the last change that may have changed the files of any widget.
+   */
+  private long filesRebuildGeneration;
+
+  /**
+   * The generation of the last change to the files of each widget path. A widget compiled
+   * before its last change is not put in the cache.
+   */
+  private final Map<String, Long> fileChanges = new HashMap<String, Long>();
+
   private static final Logger LOGGER = LoggerFactory.getLogger(WidgetServiceImpl.class);
 
   private List<String> skipDirectories;
@@ -124,6 +193,24 @@ public class WidgetServiceImpl implements WidgetService {
    *      java.util.Locale, org.apache.sling.api.resource.ResourceResolver)
    */
   public ValueMap getWidget(String path, Locale locale, ResourceResolver resolver) {
+    CompiledWidget widget = getCompiledWidget(path, locale, resolver);
+    try {
+      return new JsonValueMap(new String(widget.getContent(), "UTF-8"));
+    } catch (JSONException e) {
+      throw new RuntimeException("Could not parse this widget to JSON.");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Could not parse this widget to JSON.");
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.batch.WidgetService#getCompiledWidget(java.lang.String,
+   *      java.util.Locale, org.apache.sling.api.resource.ResourceResolver)
+   */
+  public CompiledWidget getCompiledWidget(String path, Locale locale,
+      ResourceResolver resolver) {
     if (path == null) {
       throw new IllegalArgumentException("The path cannot be null.");
     }
@@ -138,30 +225,41 @@ public class WidgetServiceImpl implements WidgetService {
     // We use resources rather than Nodes because most of the time the UI will use the
     // FsResource tool for development.
     Resource resource = resolver.getResource(path);
-
-    // Make sure that this is a proper widget.
-    if (!checkValidWidget(resource)) {
+    if (resource == null || resource instanceof NonExistingResource) {
       throw new IllegalArgumentException(
           "The provided path does not point to a valid widget.");
     }
 
-    // Check if we have something in the cache.
-    String widgetName = resource.getName();
-    Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
+    // Check if we have something in the cache. Only valid widgets are put in there, by
+    // path, so a widget that is in there doesn't have to be checked again. The
+    // generation is taken first, as a change removes the widget from the cache before it
+    // gets its generation.
+    String widgetPath = resource.getPath();
+    long current;
+    synchronized (configsLock) {
+      current = filesGeneration;
+    }
+    Cache<Map<String, CompiledWidget>> cache = cacheManagerService.getCache(
         CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE);
 
-    Map<String, ValueMap> widgetCache = cache.get(widgetName);
+    Map<String, CompiledWidget> widgetCache = cache.get(widgetPath);
     if (widgetCache == null) {
-      widgetCache = new HashMap<String, ValueMap>();
+      widgetCache = new ConcurrentHashMap<String, CompiledWidget>();
     } else {
-      ValueMap map = widgetCache.get(locale.toString());
-      if (map != null) {
+      CompiledWidget widget = widgetCache.get(locale.toString());
+      if (widget != null) {
         // The locale for this widget is in the cache.
         // We can just return it.
-        return map;
+        return widget;
       }
     }
 
+    // Make sure that this is a proper widget.
+    if (!checkValidWidget(resource)) {
+      throw new IllegalArgumentException(
+          "The provided path does not point to a valid widget.");
+    }
+
     try {
       // There is nothing in the cache, create it and put it in there.
       StringWriter sw = new StringWriter();
@@ -169,15 +267,19 @@ public class WidgetServiceImpl implements WidgetService {
       writer.object();
       outputWidget(resource, writer, locale);
       writer.endObject();
-      sw.flush();
-      String content = sw.toString();
-      ValueMap map = new JsonValueMap(content);
-
-      // Put the map in the cache.
-      widgetCache.put(locale.toString(), map);
-      cache.put(widgetName, widgetCache);
+      CompiledWidget widget = new CompiledWidget(sw.toString());
+
+      // Put it in the cache, unless the widget changed while it was compiled. It is
+      // compiled again next time.
+      synchronized (configsLock) {
+        Long changed = fileChanges.get(widgetPath);
+        if (current >= filesRebuildGeneration && (changed == null || changed <= current)) {
+          widgetCache.put(locale.toString(), widget);
+          cache.put(widgetPath, widgetCache);
+        }
+      }
 
-      return map;
+      return widget;
     } catch (JSONException e) {
       throw new RuntimeException("Could not parse this widget to JSON.");
     }
@@ -189,24 +291,105 @@ public class WidgetServiceImpl implements WidgetService {
    * @see org.sakaiproject.nakamura.api.batch.WidgetService#getWidgetConfigs(org.apache.sling.api.resource.ResourceResolver)
    */
   public Map<String, ValueMap> getWidgetConfigs(ResourceResolver resolver) {
+    return loadWidgetConfigs(resolver).configs;
+  }
+
+  /**
+   * @return The configs, read again where they changed since they were cached, with the
+   *         generation they are current for.
+   */
+  private WidgetConfigs loadWidgetConfigs(ResourceResolver resolver) {
     // Check the cache to see if we have anything cached already.
     Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
         CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
-    Map<String, ValueMap> configs = cache.get("configs");
+    Map<String, ValueMap> configs;
+    long current;
+    List<String> changed = new ArrayList<String>();
+    synchronized (configsLock) {
+      configs = cache.get("configs");
+      current = generation;
+      if (configs != null && configsGeneration >= fullRebuildGeneration) {
+        if (configsGeneration == current) {
+          // There is something in here, return it.
+          return new WidgetConfigs(current, configs);
+        }
+        for (Map.Entry<String, Long> change : configChanges.entrySet()) {
+          if (change.getValue() > configsGeneration) {
+            changed.add(change.getKey());
+          }
+        }
+      } else {
+        configs = null;
+      }
+    }
+
+    Map<String, ValueMap> validWidgets;
     if (configs != null) {
-      // There is something in here, return it.
-      return configs;
+      // Only read the configs that changed again.
+      validWidgets = new HashMap<String, ValueMap>(configs);
+      for (String widgetPath : changed) {
+        validWidgets.remove(widgetPath.substring(widgetPath.lastIndexOf('/') + 1));
+        Resource widget = resolver.getResource(widgetPath);
+        if (widget != null && !(widget instanceof NonExistingResource)) {
+          processWidget(widget, resolver, validWidgets);
+        }
+      }
+    } else {
+      // We will store all the found widgets in this map.
+      // The key will be the name of widget.
+      validWidgets = new HashMap<String, ValueMap>();
+      for (String folder : widgetFolders) {
+        processWidgetFolder(folder, resolver, validWidgets);
+      }
     }
+    // Stick the map in the cache so it can be retrieved later on, unless configs read at
+    // a later generation got there first. Anything that changed while these were read has
+    // a later generation, so it is read again next time.
+    synchronized (configsLock) {
+      if (current >= configsGeneration) {
+        cache.put("configs", validWidgets);
+        configsGeneration = current;
+      }
+    }
+    return new WidgetConfigs(current, validWidgets);
+  }
 
-    // We will store all the found widgets in this map.
-    // The key will be the name of widget.
-    Map<String, ValueMap> validWidgets = new HashMap<String, ValueMap>();
-    for (String folder : widgetFolders) {
-      processWidgetFolder(folder, resolver, validWidgets);
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.batch.WidgetService#getCompiledWidgetConfigs(org.apache.sling.api.resource.ResourceResolver)
+   */
+  public CompiledWidget getCompiledWidgetConfigs(ResourceResolver resolver) {
+    Cache<CompiledWidget> cache = cacheManagerService.getCache(
+        CACHE_NAME_COMPILED_CONFIGS, CacheScope.INSTANCE);
+    synchronized (configsLock) {
+      CompiledWidget configs = cache.get("compiledconfigs");
+      if (configs != null && compiledConfigsGeneration == generation) {
+        return configs;
+      }
+    }
+
+    try {
+      WidgetConfigs widgetConfigs = loadWidgetConfigs(resolver);
+      StringWriter sw = new StringWriter();
+      ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
+      writer.object();
+      for (Map.Entry<String, ValueMap> entry : widgetConfigs.configs.entrySet()) {
+        writer.key(entry.getKey());
+        writer.valueMap(entry.getValue());
+      }
+      writer.endObject();
+      CompiledWidget configs = new CompiledWidget(sw.toString());
+      synchronized (configsLock) {
+        if (widgetConfigs.generation >= compiledConfigsGeneration) {
+          cache.put("compiledconfigs", configs);
+          compiledConfigsGeneration = widgetConfigs.generation;
+        }
+      }
+      return configs;
+    } catch (JSONException e) {
+      throw new RuntimeException("Could not parse the widget configs to JSON.");
     }
-    // Stick the map in the cache so it can be retrieved later on.
-    cache.put("configs", validWidgets);
-    return validWidgets;
   }
 
   /**
@@ -226,39 +409,64 @@ public class WidgetServiceImpl implements WidgetService {
   public void updateWidget(String path) {
     LOGGER.debug("Update widget at: " + path);
 
-    // Invalidate the files cache.
-    // Find the name of the widget.
-    String widget = null;
+    // Find the widget the path is in.
+    String widgetPath = null;
     for (String folder : getWidgetFolders()) {
-      if (!path.equals(folder) && path.startsWith(folder)) {
-        widget = path.substring(folder.length() + 1);
+      if (!path.equals(folder) && path.startsWith(folder + "/")) {
+        String widget = path.substring(folder.length() + 1);
         int lastIndex = widget.indexOf("/");
         if (lastIndex != -1) {
           widget = widget.substring(0, lastIndex);
         }
+        widgetPath = folder + "/" + widget;
         break;
       }
     }
-    if (widget != null) {
-      // Get the cache for this widget.
-      Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
-          CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE);
 
+    Cache<Map<String, CompiledWidget>> cache = cacheManagerService.getCache(
+        CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE);
+    if (widgetPath != null) {
       if (cache != null) {
         // Remove it from the cache.
         // When it get's hit the next time, the servlet will ask for it and it will be
         // placed back in the cache then.
         if (LOGGER.isDebugEnabled()) {
-          LOGGER.debug("Invalidating cache for '" + widget + "'");
+          LOGGER.debug("Invalidating cache for '" + widgetPath + "'");
         }
-        cache.remove(widget);
+        cache.remove(widgetPath);
+      }
+      synchronized (configsLock) {
+        filesGeneration++;
+        fileChanges.put(widgetPath, filesGeneration);
+      }
+      // Only the config of this widget (or the whole widget) changes the configs. The
+      // events of a config file may be for the nodes below it, like jcr:content.
+      String configPath = widgetPath + "/config.json";
+      if (path.equals(widgetPath) || path.equals(configPath)
+          || path.startsWith(configPath + "/")) {
+        synchronized (configsLock) {
+          generation++;
+          configChanges.put(widgetPath, generation);
+        }
+      }
+    } else {
+      // A widget folder itself changed, any widget may have.
+      if (cache != null) {
+        cache.clear();
+      }
+      synchronized (configsLock) {
+        generation++;
+        fullRebuildGeneration = generation;
+        filesGeneration++;
+        filesRebuildGeneration = filesGeneration;
       }
+      Cache<Map<String, ValueMap>> configCache = cacheManagerService.getCache(
+          CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
+      configCache.clear();
+      Cache<CompiledWidget> compiledConfigsCache = cacheManagerService.getCache(
+          CACHE_NAME_COMPILED_CONFIGS, CacheScope.INSTANCE);
+      compiledConfigsCache.clear();
     }
-
-    // Invalidate the configs cache.
-    Cache<Map<String, ValueMap>> configCache = cacheManagerService.getCache(
-        CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
-    configCache.clear();
   }
 
   // --- Implementation
@@ -326,14 +534,9 @@ public class WidgetServiceImpl implements WidgetService {
    */
   protected void getJsonResource(Resource resource, ExtendedJSONWriter writer)
       throws JSONException {
-    String content = "";
     try {
       InputStream stream = resource.adaptTo(InputStream.class);
-
-      content = IOUtils.readFully(stream, "UTF-8");
-      writer.valueMap(new JsonValueMap(content));
-    } catch (JSONException e) {
-      writer.value(content);
+      writeJson(IOUtils.readFully(stream, "UTF-8"), writer);
     } catch (IOException e) {
       // If everything failed horribly we output an empty object.
       writer.object();
@@ -341,6 +544,21 @@ public class WidgetServiceImpl implements WidgetService {
     }
   }
 
+  /**
+   * Output the content of a JSON file as a JSON object, or as a string if it isn't JSON.
+   *
+   * @param content
+   * @param writer
+   * @throws JSONException
+   */
+  protected void writeJson(String content, ExtendedJSONWriter writer) throws JSONException {
+    try {
+      writer.valueMap(new JsonValueMap(content));
+    } catch (JSONException e) {
+      writer.value(content);
+    }
+  }
+
   /**
    * @param resource
    * @param writer
@@ -366,7 +584,7 @@ public class WidgetServiceImpl implements WidgetService {
           // Output it.
           String content = IOUtils.readFully(bufStream, "UTF-8");
           if ("application/json".equals(type.toString())) {
-            getJsonResource(resource, writer);
+            writeJson(content, writer);
           } else {
             writer.value(content);
           }
@@ -472,22 +690,37 @@ public class WidgetServiceImpl implements WidgetService {
       // List all the subfolders (these should all be widgets.)
       Iterator<Resource> widgets = folderResource.listChildren();
       while (widgets.hasNext()) {
-        Resource widget = widgets.next();
-        String widgetName = widget.getName();
-        // Get the config for this widget.
-        // If none is found or isn't valid JSON then it is ignored.
-        String configPath = widget.getPath() + "/config.json";
-        Resource config = resolver.getResource(configPath);
-        if (config != null && !(config instanceof NonExistingResource)) {
-          // Try to parse it to JSON.
-          try {
-            InputStream stream = config.adaptTo(InputStream.class);
-            JsonValueMap map = new JsonValueMap(stream);
-            validWidgets.put(widgetName, map);
-          } catch (Exception e) {
-            LOGGER.warn("Exception when trying to parse the 'config.json' for {}, Error Message {} ", widgetName, e.getMessage());
-          }
-        }
+        processWidget(widgets.next(), resolver, validWidgets);
+      }
+    }
+  }
+
+  /**
+   * Processes a widget. If it has a valid json config it will be placed in the
+   * validWidgets map.
+   *
+   * @param widget
+   *          The widget to process.
+   * @param resolver
+   *          The {@link ResourceResolver} that can be used to resolve resources.
+   * @param validWidgets
+   *          The hashmap where the widget should be placed in to.
+   */
+  protected void processWidget(Resource widget, ResourceResolver resolver,
+      Map<String, ValueMap> validWidgets) {
+    String widgetName = widget.getName();
+    // Get the config for this widget.
+    // If none is found or isn't valid JSON then it is ignored.
+    String configPath = widget.getPath() + "/config.json";
+    Resource config = resolver.getResource(configPath);
+    if (config != null && !(config instanceof NonExistingResource)) {
+      // Try to parse it to JSON.
+      try {
+        InputStream stream = config.adaptTo(InputStream.class);
+        JsonValueMap map = new JsonValueMap(stream);
+        validWidgets.put(widgetName, map);
+      } catch (Exception e) {
+        LOGGER.warn("Exception when trying to parse the 'config.json' for {}, Error Message {} ", widgetName, e.getMessage());
       }
     }
   }
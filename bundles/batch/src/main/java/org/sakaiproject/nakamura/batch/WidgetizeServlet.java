@@ -24,9 +24,8 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.batch.CompiledWidget;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -36,7 +35,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.io.IOException;
@@ -53,6 +51,7 @@ import javax.servlet.http.HttpServletResponse;
         "There will be a key in the json object called 'bundles'. This key will contain an object that will contain 2 child-objects.<br />The first one will always be 'default' which is the output for the default language bundle of a widget.<br />The other one will be the one specified in the request parameter (or the server default if none has been specified.)<br /> If the language bundle could not be found an empty object will be returned.",
         "Widget files",
         "The servlet will walk down the tree and try to get the content of each resource. It will then try to get the mimetype of this file. If the mimetype is in the list of allowed mimetypes it will be outputted. This list can be modified in the felix admin console." }),
+    @ServiceResponse(code = 304, description = { "The If-None-Match header of the request holds the ETag of the current output of the widget." }),
     @ServiceResponse(code = 403, description = { "The resource where this action is performed on is not a valid widget." }) }
 
 ) })
@@ -87,25 +86,16 @@ public class WidgetizeServlet extends SlingSafeMethodsServlet {
     }
 
     // Get the values.
-    ValueMap map = null;
+    CompiledWidget widget = null;
     try {
-      map = widgetService.getWidget(path, locale, resolver);
+      widget = widgetService.getCompiledWidget(path, locale, resolver);
     } catch (IllegalArgumentException e) {
       response.sendError(HttpServletResponse.SC_FORBIDDEN,
           "The current resource is not a widget.");
       return;
     }
 
-    // Make sure that we're outputting proper json.
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
-
     // Output all the widget info.
-    try {
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
-      writer.valueMap(map);
-    } catch (JSONException e) {
-      throw new ServletException("Could not output proper JSON.", e);
-    }
+    CompiledWidgetWriter.write(request, response, widget);
   }
 }
@@ -24,9 +24,8 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.batch.CompiledWidget;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -34,30 +33,24 @@ import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.io.OutputStream;
 
 import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletResponse;
 
 @ServiceDocumentation(name = "WidgetsServlet", description = "Gives a list of all the known widgets in the system.", shortDescription = "List all the widgets", methods = { @ServiceMethod(parameters = { @ServiceParameter(name = "callback", description = { "Optional parameter that determines the name of the callback function for the json-p output. If this parameter is not found, than normal json will be outputted." }) }, response = {
     @ServiceResponse(code = 200, description = {
         "Will output a JSON object with all the widgets in the system.",
         "This servlet will only check the preconfigured locations. These can be modified in the felix admin console panel. The folder should be the toplevel folder that contains the widgets. Each subfolder should represent a widget and should contain a 'config.json' file.",
         "In the JSON response, each key represents a widgetname and will have the content of the 'config.json' file outputted in it." }),
+    @ServiceResponse(code = 304, description = { "The If-None-Match header of the request holds the ETag of the current list. JSON-P responses carry no ETag." }),
     @ServiceResponse(code = 500, description = { "The servlet is unable to produce a proper JSON output." }) }) }, bindings = { @ServiceBinding(type = BindingType.PATH, bindings = { "/var/widgets" }) })
 @SlingServlet(methods = { "GET" }, paths = { "/var/widgets" }, generateComponent = false, generateService = true)
 @Component(metatype = true, immediate = true)
 public class WidgetsServlet extends SlingSafeMethodsServlet {
 
   private static final long serialVersionUID = -4113451154211163118L;
-  private static final Logger LOGGER = LoggerFactory.getLogger(WidgetsServlet.class);
 
   @Reference
   protected transient WidgetService widgetService;
@@ -75,43 +68,26 @@ public class WidgetsServlet extends SlingSafeMethodsServlet {
     // FsResource)
     ResourceResolver resolver = request.getResourceResolver();
 
-    // We will store all the found widgets in this map.
-    // The key will be the name of widget.
-    Map<String, ValueMap> validWidgets = widgetService.getWidgetConfigs(resolver);
+    // The JSON of all the found widgets, keyed by the name of the widget.
+    CompiledWidget validWidgets = widgetService.getCompiledWidgetConfigs(resolver);
 
     // Depending on the parameter 'callback' we send out json or json-p.
     RequestParameter callbackParam = request.getRequestParameter("callback");
 
-    response.setCharacterEncoding("UTF-8");
-    PrintWriter printWriter = response.getWriter();
-
     if (callbackParam != null) {
+      response.setCharacterEncoding("UTF-8");
       response.setContentType("application/javascript");
-      printWriter.append(callbackParam.getString("UTF-8"));
-      printWriter.append("(");
+      OutputStream out = response.getOutputStream();
+      out.write(callbackParam.getString("UTF-8").getBytes("UTF-8"));
+      out.write('(');
+      out.write(validWidgets.getContent());
+      out.write(')');
+      out.write(';');
+      out.flush();
     } else {
-      // Ensure that we're sending out proper json.
-      response.setContentType("application/json");
-    }
-
-    // Write the whole map
-    ExtendedJSONWriter writer = new ExtendedJSONWriter(printWriter);
-    try {
-      writer.object();
-      for (Entry<String, ValueMap> entry : validWidgets.entrySet()) {
-        writer.key(entry.getKey());
-        writer.valueMap(entry.getValue());
-      }
-      writer.endObject();
-      if (callbackParam != null) {
-        printWriter.append(");");
-      }
-    } catch (JSONException e) {
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to construct proper JSON.");
-      LOGGER.error("Failed to construct proper JSON.", e);
+      // Write the whole map
+      CompiledWidgetWriter.write(request, response, validWidgets);
     }
-
   }
 
 }
\ No newline at end of file
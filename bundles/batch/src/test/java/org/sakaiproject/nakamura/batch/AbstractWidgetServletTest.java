@@ -26,9 +26,14 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -37,9 +42,12 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.ServletOutputStream;
+
 /**
  *
  */
@@ -57,6 +65,7 @@ public abstract class AbstractWidgetServletTest {
   protected String path;
   protected StringWriter stringWriter;
   protected PrintWriter printWriter;
+  protected ByteArrayOutputStream outputStream;
   protected WidgetServiceImpl widgetService;
 
   public void setUp() throws IOException {
@@ -84,6 +93,15 @@ public abstract class AbstractWidgetServletTest {
     stringWriter = new StringWriter();
     printWriter = new PrintWriter(stringWriter);
     when(response.getWriter()).thenReturn(printWriter);
+    // And the output stream.
+    outputStream = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        outputStream.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
 
     // Mock all the test resources as "Sling Resources".
     File file = new File(getClass().getResource("/widgets").getPath());
@@ -91,15 +109,44 @@ public abstract class AbstractWidgetServletTest {
   }
 
   /**
-   *
+   * @return Everything written to the response, as a string.
    */
-  private Resource mockResource(String path, File file) {
-    // Get the inputstream for this file (null if directory.)
-    InputStream in = getStream(file);
+  protected String getOutput() throws IOException {
+    printWriter.flush();
+    return stringWriter.toString() + outputStream.toString("UTF-8");
+  }
 
+  /**
+   * Give each cache its own {@link LocalCache}.
+   */
+  protected void useLocalCaches() {
+    final Map<String, LocalCache> caches = new HashMap<String, LocalCache>();
+    when(
+        cacheManagerService
+            .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenAnswer(
+        new Answer<LocalCache>() {
+          public LocalCache answer(InvocationOnMock invocation) throws Throwable {
+            String name = (String) invocation.getArguments()[0];
+            if (!caches.containsKey(name)) {
+              caches.put(name, new LocalCache());
+            }
+            return caches.get(name);
+          }
+        });
+  }
+
+  /**
+   *
+   */
+  private Resource mockResource(String path, final File file) {
     // Mock the resource
     Resource resource = mock(Resource.class);
-    when(resource.adaptTo(InputStream.class)).thenReturn(in);
+    // Every read gets a new inputstream for this file (null if directory.)
+    when(resource.adaptTo(InputStream.class)).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) throws Throwable {
+        return getStream(file);
+      }
+    });
     when(resource.adaptTo(File.class)).thenReturn(file);
     when(resource.getResourceResolver()).thenReturn(resolver);
     when(resource.getPath()).thenReturn(path);
@@ -107,12 +154,17 @@ public abstract class AbstractWidgetServletTest {
     // Add the resource to the resource resolver.
     when(resolver.getResource(path)).thenReturn(resource);
 
-    // Mock all the children
-    List<Resource> resources = mockFileChildren(path, file);
-    when(resolver.listChildren(resource)).thenReturn(resources.iterator());
+    // Mock all the children, every listing gets a new iterator.
+    final List<Resource> resources = mockFileChildren(path, file);
+    Answer<Iterator<Resource>> children = new Answer<Iterator<Resource>>() {
+      public Iterator<Resource> answer(InvocationOnMock invocation) throws Throwable {
+        return resources.iterator();
+      }
+    };
+    when(resolver.listChildren(resource)).thenAnswer(children);
 
     // If not using ResourceUtil
-    when(resource.listChildren()).thenReturn(resources.iterator());
+    when(resource.listChildren()).thenAnswer(children);
     when(resource.getName()).thenReturn(file.getName());
     return resource;
   }
@@ -17,24 +17,56 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.batch.BatchServlet.PARALLEL_PARAMETER;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.jcr.Credentials;
+import javax.jcr.Session;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -46,6 +78,34 @@ public class BatchServletTest {
   private SlingHttpServletRequest request;
   private SlingHttpServletResponse response;
 
+  /**
+   * What the sub-requests did, in the order they did it.
+   */
+  private List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+  /**
+   * Counted down by every sub-request as it starts.
+   */
+  private CountDownLatch started;
+
+  /**
+   * What each sub-request waits for before it ends.
+   */
+  private Map<String, List<CountDownLatch>> waits = new ConcurrentHashMap<String, List<CountDownLatch>>();
+
+  /**
+   * Counted down when each sub-request ends.
+   */
+  private Map<String, CountDownLatch> ended = new ConcurrentHashMap<String, CountDownLatch>();
+
+  /**
+   * The sessions the parallel requests were given.
+   */
+  private List<Session> userSessions = Collections
+      .synchronizedList(new ArrayList<Session>());
+  private SlingRepository repository;
+  private Session adminSession;
+
   @Before
   public void setUp() throws Exception {
     servlet = new BatchServlet();
@@ -54,6 +114,11 @@ public class BatchServletTest {
 
   }
 
+  @After
+  public void tearDown() {
+    servlet.deactivate(null);
+  }
+
   @Test
   public void testInvalidRequest() throws ServletException, IOException {
     when(request.getParameter(REQUESTS_PARAMETER)).thenReturn("marlformedparameter");
@@ -80,4 +145,236 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testParallelRequestsAreWrittenInOrder() throws Exception {
+    // the first request ends last, the results still come in the order asked.
+    StringWriter output = setUpBatch(true, "GET", "GET", "GET", "POST", "GET", "GET");
+    waitFor("/req/0", ended.get("/req/1"), ended.get("/req/2"));
+    servlet.doPost(request, response);
+
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    assertEquals(6, results.length());
+    for (int i = 0; i < results.length(); i++) {
+      JSONObject result = results.getJSONObject(i);
+      assertEquals("/req/" + i, result.getString("url"));
+      assertEquals("body " + i, result.getString("body"));
+      assertEquals(200, result.getInt("status"));
+    }
+    assertTrue(events.indexOf("end /req/2") < events.indexOf("end /req/0"));
+    // the POST waits for every request before it and comes before every one after it.
+    assertTrue(events.indexOf("end /req/0") < events.indexOf("start /req/3"));
+    assertTrue(events.indexOf("end /req/3") < events.indexOf("start /req/4"));
+    // each result is sent as soon as it is written.
+    verify(response, times(6)).flushBuffer();
+  }
+
+  @Test
+  public void testParallelModeIsOptIn() throws Exception {
+    StringWriter output = setUpBatch(false, "GET", "GET");
+    servlet.doPost(request, response);
+
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    assertEquals("body 1", results.getJSONObject(1).getString("body"));
+    // only the dispatcher of the batch request was used.
+    assertEquals(6, events.size());
+    assertEquals("forward /req/0", events.get(0));
+  }
+
+  @Test
+  public void testParallelBatchLogsInOnce() throws Exception {
+    setUpBatch(true, "GET", "GET", "GET", "GET", "GET", "GET");
+    servlet.modified(properties(2, 30000));
+    servlet.doPost(request, response);
+
+    verify(repository, times(1)).loginAdministrative(null);
+    // one session per request running at once, each used by one request after another.
+    assertTrue(userSessions.size() <= 2);
+    verify(adminSession).logout();
+    for (Session userSession : userSessions) {
+      verify(userSession).logout();
+    }
+  }
+
+  @Test
+  public void testRequestsGivenUpOnAreDetached() throws Exception {
+    when(request.getHeaderNames()).thenReturn(
+        Collections.enumeration(Collections.singletonList("User-Agent")));
+    when(request.getHeaders("User-Agent")).thenReturn(
+        Collections.enumeration(Collections.singletonList("batch-test")));
+    StringWriter output = setUpBatch(true, "GET", "GET");
+    CountDownLatch release = new CountDownLatch(1);
+    waitFor("/req/0", release);
+    servlet.modified(properties(10, 100));
+    servlet.doPost(request, response);
+
+    JSONArray results = new JSONObject(output.toString()).getJSONArray("results");
+    assertFalse(results.getJSONObject(0).getBoolean("success"));
+    assertEquals("body 1", results.getJSONObject(1).getString("body"));
+    // the batch is answered, the request it gave up on still runs on its own copy, and
+    // was not interrupted, or it would never end.
+    assertFalse(events.contains("end /req/0"));
+    release.countDown();
+    assertTrue(ended.get("/req/0").await(10, TimeUnit.SECONDS));
+    assertTrue(events.contains("header /req/0 batch-test"));
+    for (Session userSession : userSessions) {
+      verify(userSession, timeout(10000)).logout();
+    }
+  }
+
+  @Test
+  public void testParallelRequestsRunTogether() throws Exception {
+    int count = 8;
+    String[] methods = new String[count];
+    Arrays.fill(methods, "GET");
+
+    StringWriter serialOutput = setUpBatch(false, methods);
+    servlet.doPost(request, response);
+
+    // each request waits until all of them have started, which only happens if they
+    // all run at once.
+    StringWriter parallelOutput = setUpBatch(true, methods);
+    CountDownLatch all = new CountDownLatch(count);
+    started = all;
+    for (int i = 0; i < count; i++) {
+      waitFor("/req/" + i, all);
+    }
+    servlet.doPost(request, response);
+
+    JSONArray serialResults = new JSONObject(serialOutput.toString())
+        .getJSONArray("results");
+    JSONArray parallelResults = new JSONObject(parallelOutput.toString())
+        .getJSONArray("results");
+    assertEquals(count, parallelResults.length());
+    for (int i = 0; i < count; i++) {
+      assertTrue(parallelResults.getJSONObject(i).getBoolean("success"));
+      assertEquals(serialResults.getJSONObject(i).getString("body"), parallelResults
+          .getJSONObject(i).getString("body"));
+    }
+  }
+
+  /**
+   * Set up a batch of requests to /req/0, /req/1... that each write "body n", once what
+   * they are told to wait for has happened.
+   *
+   * @return The writer the response of the batch is written to.
+   */
+  private StringWriter setUpBatch(boolean parallel, String... methods) throws Exception {
+    servlet = new BatchServlet();
+    if (request == null) {
+      request = mock(SlingHttpServletRequest.class);
+    }
+    response = mock(SlingHttpServletResponse.class);
+    events.clear();
+    userSessions.clear();
+    started = null;
+    waits.clear();
+    ended.clear();
+
+    JSONArray json = new JSONArray();
+    for (int i = 0; i < methods.length; i++) {
+      JSONObject r = new JSONObject();
+      r.put("url", "/req/" + i);
+      r.put("method", methods[i]);
+      json.put(r);
+    }
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json.toString());
+    when(request.getParameter(PARALLEL_PARAMETER)).thenReturn(Boolean.toString(parallel));
+    StringWriter output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+
+    // the batch request.
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Session session = mock(Session.class);
+    when(session.getUserID()).thenReturn("alice");
+    when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    for (int i = 0; i < methods.length; i++) {
+      final String url = "/req/" + i;
+      ended.put(url, new CountDownLatch(1));
+      RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+      doAnswer(new Answer<Void>() {
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+          events.add("forward " + url);
+          process(url, (ServletResponse) invocation.getArguments()[1]);
+          return null;
+        }
+      }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+      when(request.getRequestDispatcher(url)).thenReturn(dispatcher);
+    }
+
+    // the sessions and the processor of the parallel requests.
+    adminSession = mock(Session.class);
+    when(adminSession.impersonate(any(Credentials.class))).thenAnswer(
+        new Answer<Session>() {
+          public Session answer(InvocationOnMock invocation) {
+            Session userSession = mock(Session.class);
+            userSessions.add(userSession);
+            return userSession;
+          }
+        });
+    repository = mock(SlingRepository.class);
+    when(repository.loginAdministrative(null)).thenReturn(adminSession);
+    JcrResourceResolverFactory factory = mock(JcrResourceResolverFactory.class);
+    ResourceResolver userResourceResolver = mock(ResourceResolver.class);
+    when(factory.getResourceResolver(any(Session.class))).thenReturn(userResourceResolver);
+    // not a mock, mock answers are run one at a time.
+    SlingRequestProcessor processor = new SlingRequestProcessor() {
+      public void processRequest(HttpServletRequest request,
+          HttpServletResponse response, ResourceResolver resourceResolver)
+          throws ServletException, IOException {
+        String url = request.getPathInfo();
+        events.add("header " + url + " " + request.getHeader("user-agent"));
+        try {
+          process(url, response);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new ServletException(e);
+        } catch (TimeoutException e) {
+          throw new ServletException(e);
+        }
+      }
+    };
+    servlet.slingRepository = repository;
+    servlet.resourceResolverFactory = factory;
+    servlet.requestProcessor = processor;
+
+    servlet.activate(properties(10, 30000));
+    return output;
+  }
+
+  private Map<String, Object> properties(int maxPerBatch, long timeout) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(BatchServlet.PARALLEL_THREADS, 10);
+    properties.put(BatchServlet.PARALLEL_MAX_PER_BATCH, maxPerBatch);
+    properties.put(BatchServlet.PARALLEL_TIMEOUT, timeout);
+    return properties;
+  }
+
+  /**
+   * Make a sub-request wait for each of the latches before it ends.
+   */
+  private void waitFor(String url, CountDownLatch... latches) {
+    waits.put(url, Arrays.asList(latches));
+  }
+
+  private void process(String url, ServletResponse response) throws IOException,
+      InterruptedException, TimeoutException {
+    events.add("start " + url);
+    CountDownLatch started = this.started;
+    if (started != null) {
+      started.countDown();
+    }
+    List<CountDownLatch> latches = waits.get(url);
+    if (latches != null) {
+      for (CountDownLatch latch : latches) {
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+          throw new TimeoutException(url + " waited too long");
+        }
+      }
+    }
+    response.getWriter().write("body " + url.substring(url.lastIndexOf('/') + 1));
+    events.add("end " + url);
+    ended.get(url).countDown();
+  }
+
 }
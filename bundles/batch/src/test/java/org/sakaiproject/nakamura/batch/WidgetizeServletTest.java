@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.batch;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -27,11 +30,19 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.batch.CompiledWidget;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -40,6 +51,8 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class WidgetizeServletTest extends AbstractWidgetServletTest {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(WidgetizeServletTest.class);
+
   private WidgetizeServlet servlet;
 
   @Before
@@ -67,8 +80,7 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
     
     servlet.doGet(request, response);
 
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getOutput());
 
     // Assert the responses
     verify(response).setCharacterEncoding("UTF-8");
@@ -125,4 +137,109 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
 
   }
 
+  @Test
+  public void testNotModified() throws Exception {
+    useLocalCaches();
+    Resource twitterResource = resolver.getResource("/widgets/twitter");
+    when(request.getResource()).thenReturn(twitterResource);
+
+    servlet.doGet(request, response);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(Mockito.eq("ETag"), etag.capture());
+    assertTrue(getOutput().length() > 0);
+
+    // The client sends the tag back, nothing gets written.
+    outputStream.reset();
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    servlet.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(0, outputStream.size());
+  }
+
+  @Test
+  public void testInvalidateWidget() throws Exception {
+    useLocalCaches();
+    Locale locale = new Locale("nl", "NL");
+    CompiledWidget widget = widgetService.getCompiledWidget("/widgets/twitter", locale,
+        resolver);
+    assertSame(widget, widgetService.getCompiledWidget("/widgets/twitter", locale,
+        resolver));
+
+    // A change to another widget leaves this one alone.
+    widgetService.updateWidget("/widgets/badwidget/badwidget.html");
+    assertSame(widget, widgetService.getCompiledWidget("/widgets/twitter", locale,
+        resolver));
+
+    // A change to one of its files compiles it again.
+    widgetService.updateWidget("/widgets/twitter/css/twitter.css");
+    CompiledWidget compiled = widgetService.getCompiledWidget("/widgets/twitter", locale,
+        resolver);
+    assertNotSame(widget, compiled);
+    assertEquals(widget.getETag(), compiled.getETag());
+  }
+
+  @Test
+  public void testChangeWhileCompilingWidget() throws Exception {
+    useLocalCaches();
+    Locale locale = new Locale("nl", "NL");
+    final String bundlePath = "/widgets/twitter/bundles/default.json";
+    final Resource bundle = resolver.getResource(bundlePath);
+    final AtomicInteger reads = new AtomicInteger();
+    when(resolver.getResource(bundlePath)).thenAnswer(new Answer<Resource>() {
+      public Resource answer(InvocationOnMock invocation) {
+        if (reads.incrementAndGet() == 1) {
+          // the bundle changes after the widget was started.
+          widgetService.updateWidget(bundlePath + "/jcr:content");
+        }
+        return bundle;
+      }
+    });
+
+    CompiledWidget widget = widgetService.getCompiledWidget("/widgets/twitter", locale,
+        resolver);
+    assertEquals(1, reads.get());
+    // what was compiled before the change is not served from the cache.
+    CompiledWidget compiled = widgetService.getCompiledWidget("/widgets/twitter", locale,
+        resolver);
+    assertNotSame(widget, compiled);
+    assertEquals(2, reads.get());
+    assertSame(compiled, widgetService.getCompiledWidget("/widgets/twitter", locale,
+        resolver));
+    assertEquals(2, reads.get());
+  }
+
+  @Test
+  public void testThroughput() throws Exception {
+    useLocalCaches();
+    Resource twitterResource = resolver.getResource("/widgets/twitter");
+    when(request.getResource()).thenReturn(twitterResource);
+    int requests = 200;
+
+    long start = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      widgetService.updateWidget("/widgets/twitter/twitter.html");
+      outputStream.reset();
+      servlet.doGet(request, response);
+    }
+    long uncached = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      outputStream.reset();
+      servlet.doGet(request, response);
+    }
+    long compiled = System.nanoTime() - start;
+
+    when(request.getHeader("If-None-Match")).thenReturn("*");
+    start = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      servlet.doGet(request, response);
+    }
+    long notModified = System.nanoTime() - start;
+
+    LOGGER.info("{} widgetize requests: compiled every time {}ms, compiled once {}ms, "
+        + "not modified {}ms", new Object[] { requests, uncached / 1000000,
+        compiled / 1000000, notModified / 1000000 });
+  }
+
 }
@@ -17,27 +17,38 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.batch.CompiledWidget;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  *
@@ -66,8 +77,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
         cache);
 
     servlet.doGet(request, response);
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getOutput());
     assertNotNull(json.get("twitter"));
     assertNull(json.opt("badwidget"));
   }
@@ -88,8 +98,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
     when(cache.get("configs")).thenReturn(map);
 
     servlet.doGet(request, response);
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getOutput());
     assertNotNull(json.get("foo"));
     assertTrue(json.getJSONObject("foo").getBoolean("bar"));
   }
@@ -108,9 +117,70 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
     when(callbackParam.getString("UTF-8")).thenReturn("parseWidgets");
     when(request.getRequestParameter("callback")).thenReturn(callbackParam);
     servlet.doGet(request, response);
-    printWriter.flush();
-    String content = stringWriter.toString();
+    String content = getOutput();
     assertTrue(content.startsWith("parseWidgets("));
     assertTrue(content.endsWith(");"));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testNotModified() throws Exception {
+    useLocalCaches();
+    servlet.doGet(request, response);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(Mockito.eq("ETag"), etag.capture());
+    assertNotNull(new JSONObject(getOutput()).get("twitter"));
+
+    outputStream.reset();
+    when(request.getHeader("If-None-Match")).thenReturn("\"foo\", " + etag.getValue());
+    servlet.doGet(request, response);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals(0, outputStream.size());
+  }
+
+  @Test
+  public void testInvalidateConfig() throws Exception {
+    useLocalCaches();
+    CompiledWidget configs = widgetService.getCompiledWidgetConfigs(resolver);
+    assertSame(configs, widgetService.getCompiledWidgetConfigs(resolver));
+
+    // Only a change to a config changes the list.
+    widgetService.updateWidget("/widgets/twitter/twitter.html");
+    assertSame(configs, widgetService.getCompiledWidgetConfigs(resolver));
+
+    widgetService.updateWidget("/widgets/twitter/config.json");
+    CompiledWidget updated = widgetService.getCompiledWidgetConfigs(resolver);
+    assertNotSame(configs, updated);
+    assertEquals(configs.getETag(), updated.getETag());
+    assertNotNull(widgetService.getWidgetConfigs(resolver).get("twitter"));
+
+    // The events of a config file can be for the nodes below it.
+    widgetService.updateWidget("/widgets/twitter/config.json/jcr:content");
+    assertNotSame(updated, widgetService.getCompiledWidgetConfigs(resolver));
+  }
+
+  @Test
+  public void testChangeWhileReadingConfigs() throws Exception {
+    useLocalCaches();
+    final String configPath = "/widgets/twitter/config.json";
+    final Resource config = resolver.getResource(configPath);
+    final AtomicInteger reads = new AtomicInteger();
+    when(resolver.getResource(configPath)).thenAnswer(new Answer<Resource>() {
+      public Resource answer(InvocationOnMock invocation) {
+        if (reads.incrementAndGet() == 1) {
+          // the config changes after the list of widgets was started.
+          widgetService.updateWidget(configPath + "/jcr:content");
+        }
+        return config;
+      }
+    });
+
+    CompiledWidget configs = widgetService.getCompiledWidgetConfigs(resolver);
+    assertEquals(1, reads.get());
+    // what was read before the change is not served as current.
+    CompiledWidget updated = widgetService.getCompiledWidgetConfigs(resolver);
+    assertNotSame(configs, updated);
+    assertEquals(2, reads.get());
+    assertSame(updated, widgetService.getCompiledWidgetConfigs(resolver));
+    assertEquals(2, reads.get());
+  }
+}
@@ -39,6 +39,20 @@ public interface CalendarConstants {
 
   public static final String SAKAI_CALENDAR_PROPERTY_PREFIX = "sakai:vcal-";
 
+  /**
+   * The property on a calendar that holds the number of components a bulk import has
+   * saved. It is only there while an import is running, or after one failed part way.
+   */
+  public static final String SAKAI_CALENDAR_IMPORT_COMMITTED = "sakai:calendar-import-committed";
+
+  /**
+   * The property on a calendar that holds the UID of the last component a bulk import has
+   * saved, a resumed import carries on after it. A component without a UID is recorded
+   * by a digest of its content. It is only there while an import is running, or after one
+   * failed part way.
+   */
+  public static final String SAKAI_CALENDAR_IMPORT_LAST = "sakai:calendar-import-last";
+
   /*
    * Signup related constants*******
    */
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.calendar;
+
+/**
+ * Is told how far a bulk import of a calendar has come.
+ */
+public interface CalendarImportListener {
+
+  /**
+   * Called each time a chunk of components has been saved, and once more when the whole
+   * calendar has been imported.
+   * 
+   * @param path
+   *          The path of the calendar.
+   * @param committed
+   *          The number of components of the calendar that have been saved so far.
+   * @param finished
+   *          If the import is done.
+   */
+  void imported(String path, long committed, boolean finished);
+
+}
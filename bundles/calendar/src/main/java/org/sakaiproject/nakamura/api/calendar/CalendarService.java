@@ -22,6 +22,8 @@ import net.fortuna.ical4j.model.component.VEvent;
 
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.util.Date;
 
 import javax.jcr.Node;
 import javax.jcr.Session;
@@ -61,6 +63,45 @@ public interface CalendarService {
    */
   Calendar export(Node node, String[] types) throws CalendarException;
 
+  /**
+   * Writes the components under a {@link Node node} that start in a date range as
+   * iCalendar data. Unlike {@link #export(Node, String[])} no {@link Calendar calendar} is
+   * built, each component is written as soon as its node is read.
+   * 
+   * @param node
+   *          The JCR node that is a parent of all the underlying event nodes.
+   * @param types
+   *          An array of Strings that should be used to match the subnodes. eg: valarm,
+   *          vavailability, vevent, .. {@see Component Component}
+   * @param start
+   *          Only components that start at or after this date are written. Can be null.
+   * @param end
+   *          Only components that start before this date are written. Can be null.
+   * @param writer
+   *          Where the iCalendar data is written to.
+   * @throws CalendarException
+   *           Failed to export a JCR representation to iCalendar data. If this happens
+   *           before anything is written the code of the exception is 500.
+   */
+  void export(Node node, String[] types, Date start, Date end, Writer writer)
+      throws CalendarException;
+
+  /**
+   * Gets the last time anything under a {@link Node node} was added, changed or removed.
+   * This is cheap compared to an export. A calendar is only tracked once this has been
+   * asked for it, so the first time the current time is returned.
+   * 
+   * @param node
+   *          The JCR node that is a parent of all the underlying event nodes.
+   * @param types
+   *          An array of Strings that should be used to match the subnodes. eg: valarm,
+   *          vavailability, vevent, .. {@see Component Component}
+   * @return The time in milliseconds, or -1 if it is not known.
+   * @throws CalendarException
+   *           Failed to look for the last modification.
+   */
+  long getLastModified(Node node, String[] types) throws CalendarException;
+
   /**
    * Creates a JCR based representation of a {@link Calendar calendar}.
    * 
@@ -168,4 +209,35 @@ public interface CalendarService {
    */
   Node store(Reader calendar, Session session, String path) throws CalendarException;
 
+  /**
+   * Creates a JCR based representation of a large calendar from the specified
+   * {@link Reader reader}, with the same structure as {@link #store(Reader, Session,
+   * String)}. Unlike the store methods the calendar is never held in memory as a whole:
+   * each component is stored as soon as it has been parsed and the session is saved
+   * every few components. While the import runs the calendar node holds the number of
+   * components that have been saved in
+   * {@link CalendarConstants#SAKAI_CALENDAR_IMPORT_COMMITTED}, and the last of them in
+   * {@link CalendarConstants#SAKAI_CALENDAR_IMPORT_LAST}.
+   *
+   * @param calendar
+   *          The calendar to create in JCR {@link Node nodes}.
+   * @param session
+   *          The session that allows access to the JCR repository. Its pending changes
+   *          are saved along with the first chunk.
+   * @param path
+   *          The path in JCR where the calendar should be created.
+   * @param resume
+   *          If an earlier import to the same path failed part way, skip the components
+   *          up to the last one it saved, found by its UID. The import fails if the
+   *          calendar data does not hold that component.
+   * @param listener
+   *          Told each time a chunk has been saved. Can be null.
+   * @return The top calendar {@link Node node}.
+   * @throws CalendarException
+   *           Something went wrong trying to create the JCR based representation. The
+   *           components saved before the failure are kept.
+   */
+  Node importCalendar(Reader calendar, Session session, String path, boolean resume,
+      CalendarImportListener listener) throws CalendarException;
+
 }
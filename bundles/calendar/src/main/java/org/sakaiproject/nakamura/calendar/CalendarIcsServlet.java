@@ -17,10 +17,7 @@
  */
 package org.sakaiproject.nakamura.calendar;
 
-import net.fortuna.ical4j.data.CalendarOutputter;
-import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
-import net.fortuna.ical4j.model.ValidationException;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -28,6 +25,7 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.sakaiproject.nakamura.api.calendar.CalendarException;
 import org.sakaiproject.nakamura.api.calendar.CalendarService;
@@ -36,12 +34,25 @@ import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
 
 import javax.jcr.Node;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 @ServiceDocumentation(
     bindings = {
@@ -60,10 +71,17 @@ import javax.servlet.ServletException;
                 "This servlet will generate the underlying JCR node structure into a valid ical format.",
                 "If no selector is specified it will output components of type VEvent.",
                 "More components can be looked for by adding in the type as a selecter.",
-                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics"
+                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics",
+                "The output is written while the nodes are read. It carries an ETag and a Last-Modified header when the calendar knows when it was last modified."
+            },
+            parameters = {
+                @ServiceParameter(name = "start", description = "Only output the components that start on or after this day. This has to be in the following format: <i>yyyyMMdd</i>."),
+                @ServiceParameter(name = "end", description = "Only output the components that start before this day. This has to be in the following format: <i>yyyyMMdd</i>.")
             },
             response = {
                 @ServiceResponse(code = 200, description = "Generates a calendar feed of the underlying JCR node structure."),
+                @ServiceResponse(code = 304, description = "Nothing changed since the ETag in If-None-Match or the date in If-Modified-Since."),
+                @ServiceResponse(code = 400, description = "The start or end parameter isn't a valid day."),
                 @ServiceResponse(code = 500, description = "Something went wrong trying the serialize the underlying node structure, the failure is placed in the HTML.")
             }
         ) 
@@ -79,6 +97,10 @@ import javax.servlet.ServletException;
 public class CalendarIcsServlet extends SlingSafeMethodsServlet {
 
   private static final long serialVersionUID = -3279889579407055346L;
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalendarIcsServlet.class);
+
+  protected static final String START_DAY_PARAM = "start";
+  protected static final String END_DAY_PARAM = "end";
 
   @Reference
   protected transient CalendarService calendarService;
@@ -92,27 +114,100 @@ public class CalendarIcsServlet extends SlingSafeMethodsServlet {
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
-    
-    response.setContentType("text/calendar");
-    response.setCharacterEncoding("UTF-8");
 
     Node node = request.getResource().adaptTo(Node.class);
+    String[] types = getSelectors(request);
+    Date start;
+    Date end;
+    try {
+      start = getDay(request, START_DAY_PARAM);
+      end = getDay(request, END_DAY_PARAM);
+    } catch (ParseException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "The start and end parameters should be in the yyyyMMdd format.");
+      return;
+    }
+
     try {
-      String[] types = getSelectors(request);
-      // Construct the Calendar from the node structure.
-      Calendar iCal = calendarService.export(node, types);
+      // Subscribed clients ask for the same feed over and over, don't export it again if
+      // nothing changed.
+      long lastModified = calendarService.getLastModified(node, types);
+      if (lastModified > 0) {
+        String etag = getETag(request, types, start, end, lastModified);
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (isNotModified(request, etag, lastModified)) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+      }
 
-      // Output the calendar, we don't do any validation.
-      CalendarOutputter outputter = new CalendarOutputter(false);
-      outputter.output(iCal, response.getOutputStream());
+      response.setContentType("text/calendar");
+      response.setCharacterEncoding("UTF-8");
+
+      // Output the calendar while the nodes are read.
+      Writer writer = new BufferedWriter(new OutputStreamWriter(
+          response.getOutputStream(), "UTF-8"));
+      calendarService.export(node, types, start, end, writer);
     } catch (CalendarException e) {
-      e.printStackTrace();
-      response.sendError(e.getCode(), e.getMessage());
-    } catch (ValidationException e) {
-      e.printStackTrace();
-      response.sendError(500, "Failed to output proper ical.");
+      LOGGER.warn("Failed to export the calendar at {}: {}", request.getResource()
+          .getPath(), e.getMessage());
+      if (!response.isCommitted()) {
+        response.sendError(e.getCode(), e.getMessage());
+      }
+    }
+
+  }
+
+  /**
+   * @param request
+   * @param name
+   *          The name of the parameter.
+   * @return The day in the parameter, or null if there is none.
+   * @throws ParseException
+   *           The parameter isn't in the yyyyMMdd format.
+   */
+  protected Date getDay(SlingHttpServletRequest request, String name)
+      throws ParseException {
+    RequestParameter param = request.getRequestParameter(name);
+    if (param == null) {
+      return null;
     }
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+    format.setLenient(false);
+    return format.parse(param.getString());
+  }
 
+  /**
+   * @return An entity tag for the export of a calendar that was last modified at a time.
+   */
+  protected String getETag(SlingHttpServletRequest request, String[] types, Date start,
+      Date end, long lastModified) {
+    String key = request.getResource().getPath() + Arrays.toString(types) + ":"
+        + (start == null ? "" : start.getTime()) + "-"
+        + (end == null ? "" : end.getTime());
+    return "\"" + Long.toHexString(lastModified) + "-" + Integer.toHexString(key.hashCode())
+        + "\"";
+  }
+
+  /**
+   * @return If the client has the current export already.
+   */
+  protected boolean isNotModified(SlingHttpServletRequest request, String etag,
+      long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : StringUtils.split(ifNoneMatch, ',')) {
+        tag = tag.trim();
+        if ("*".equals(tag) || etag.equals(tag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+    // HTTP dates are in seconds.
+    return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
   }
 
   /**
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.sakaiproject.nakamura.api.calendar.CalendarException;
+import org.sakaiproject.nakamura.api.calendar.CalendarImportListener;
+import org.sakaiproject.nakamura.api.calendar.CalendarService;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.doc.ServiceSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import javax.jcr.Session;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+@ServiceDocumentation(
+    bindings = {
+        @ServiceBinding(
+            type = BindingType.TYPE,
+            bindings = {"sakai/calendar"},
+            selectors = {
+                @ServiceSelector(name = "import", description = "Imports icalendar data into this calendar.")
+            }
+        )
+    },
+    methods = {
+        @ServiceMethod(
+            name = "POST",
+            description = {
+                "Imports the components of an icalendar file into the calendar, each one is stored as soon as it has been read.",
+                "The components are saved in chunks. If the import fails part way the saved chunks are kept, and posting the file again with resume=true carries on after the last component that was saved, found by its UID.",
+                "eg: curl -F calendar=@calendar.ics http://localhost:8080/path/to/calendar.import.html"
+            },
+            parameters = {
+                @ServiceParameter(name = "calendar", description = "The icalendar data, as a file upload or as a plain parameter."),
+                @ServiceParameter(name = "resume", description = "Skip the components up to the last one an earlier, failed import saved. Defaults to false.")
+            },
+            response = {
+                @ServiceResponse(code = 200, description = "The whole calendar has been imported."),
+                @ServiceResponse(code = 400, description = "There is no calendar parameter."),
+                @ServiceResponse(code = 409, description = "The import was to resume after a component the calendar does not hold."),
+                @ServiceResponse(code = 500, description = "The import failed, the message says how many components were saved.")
+            }
+        )
+    },
+    name = "CalendarImportServlet",
+    description = "Imports icalendar data into a calendar",
+    shortDescription = "Imports icalendar data into a calendar"
+)
+@SlingServlet(methods = { "POST" }, resourceTypes = { "sakai/calendar" }, selectors = { "import" }, generateComponent = true, generateService = true)
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Imports ical data into a JCR node structure.") })
+public class CalendarImportServlet extends SlingAllMethodsServlet {
+
+  private static final long serialVersionUID = 6227482961385037151L;
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalendarImportServlet.class);
+
+  protected static final String CALENDAR_PARAM = "calendar";
+  protected static final String RESUME_PARAM = "resume";
+
+  @Reference
+  protected transient CalendarService calendarService;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingAllMethodsServlet#doPost(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    RequestParameter calendar = request.getRequestParameter(CALENDAR_PARAM);
+    if (calendar == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "The calendar parameter is required.");
+      return;
+    }
+    RequestParameter resume = request.getRequestParameter(RESUME_PARAM);
+
+    String path = request.getResource().getPath();
+    Session session = request.getResourceResolver().adaptTo(Session.class);
+    Reader reader = new BufferedReader(new InputStreamReader(calendar.getInputStream(),
+        "UTF-8"));
+    try {
+      calendarService.importCalendar(reader, session, path, resume != null
+          && Boolean.parseBoolean(resume.getString()), new CalendarImportListener() {
+        public void imported(String path, long committed, boolean finished) {
+          LOGGER.debug("Saved {} components of the import to {}", committed, path);
+        }
+      });
+    } catch (CalendarException e) {
+      LOGGER.warn("Failed to import the calendar at {}: {}", path, e.getMessage());
+      response.sendError(e.getCode(), e.getMessage());
+    } finally {
+      reader.close();
+    }
+  }
+
+}
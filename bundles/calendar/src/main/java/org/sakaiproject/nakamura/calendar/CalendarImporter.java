@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_IMPORT_COMMITTED;
+import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_IMPORT_LAST;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.ComponentList;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.CalendarComponent;
+
+import org.sakaiproject.nakamura.api.calendar.CalendarException;
+import org.sakaiproject.nakamura.api.calendar.CalendarImportListener;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Calendar;
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Imports a calendar into JCR while it is being parsed. The builder is only used for the
+ * component that is being parsed: as soon as a top level component ends it is stored and
+ * dropped from the calendar, so memory use does not grow with the size of the calendar.
+ * The session is saved every chunk of components. The number of components saved and the
+ * UID of the last of them are kept on the calendar node, so an import that failed can be
+ * resumed after that component, even if the calendar changed in between.
+ */
+class CalendarImporter extends CalendarBuilder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalendarImporter.class);
+
+  /**
+   * Thrown out of the parser callbacks, which can't throw a {@link RepositoryException}.
+   */
+  private static class StoreFailedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private StoreFailedException(RepositoryException cause) {
+      super(cause);
+    }
+  }
+
+  private final CalendarServiceImpl calendarService;
+  private final Node calendarNode;
+  private final Session session;
+  private final PrivateEventAcl privateEventAcl;
+  private final int chunkSize;
+  private final CalendarImportListener listener;
+  private String resumeAfter;
+  private long stored;
+  private long committed;
+
+  /**
+   * @param calendarService
+   *          Stores the components.
+   * @param calendarNode
+   *          The node the components are stored under.
+   * @param chunkSize
+   *          The number of components stored between saves.
+   * @param committed
+   *          The number of components an earlier import saved.
+   * @param resumeAfter
+   *          The key of the last component an earlier import saved, the components up to
+   *          it are skipped. Null to store every component.
+   * @param listener
+   *          Told when a chunk has been saved, can be null.
+   * @throws RepositoryException
+   */
+  CalendarImporter(CalendarServiceImpl calendarService, Node calendarNode, int chunkSize,
+      long committed, String resumeAfter, CalendarImportListener listener)
+      throws RepositoryException {
+    this.calendarService = calendarService;
+    this.calendarNode = calendarNode;
+    this.session = calendarNode.getSession();
+    this.privateEventAcl = new PrivateEventAcl(session);
+    this.chunkSize = Math.max(1, chunkSize);
+    this.resumeAfter = resumeAfter;
+    this.listener = listener;
+    this.committed = committed;
+  }
+
+  /**
+   * Parses the calendar and stores all of it. The properties of the calendar are set on
+   * the calendar node once all the components are stored.
+   * 
+   * @param reader
+   *          The iCalendar data.
+   * @throws IOException
+   * @throws ParserException
+   * @throws RepositoryException
+   * @throws CalendarException
+   *           If the import was to resume after a component the calendar does not hold.
+   */
+  void importCalendar(Reader reader) throws IOException, ParserException,
+      RepositoryException, CalendarException {
+    net.fortuna.ical4j.model.Calendar calendar;
+    try {
+      calendar = build(reader);
+    } catch (StoreFailedException e) {
+      throw (RepositoryException) e.getCause();
+    } catch (ParserException e) {
+      // The parser wraps whatever the callbacks throw.
+      if (e.getCause() instanceof StoreFailedException) {
+        throw (RepositoryException) e.getCause().getCause();
+      }
+      throw e;
+    }
+    if (resumeAfter != null) {
+      throw new CalendarException(HttpServletResponse.SC_CONFLICT, "The calendar does not "
+          + "hold the component " + resumeAfter + " the earlier import stopped after, "
+          + "import it again without resuming.");
+    }
+
+    @SuppressWarnings("rawtypes")
+    Iterator it = calendar.getProperties().iterator();
+    while (it.hasNext()) {
+      Property p = (Property) it.next();
+      calendarNode.setProperty(p.getName(), p.getValue());
+    }
+    calendarNode.setProperty(CalendarServiceImpl.JCR_LASTMODIFIED, Calendar.getInstance());
+    if (calendarNode.hasProperty(SAKAI_CALENDAR_IMPORT_COMMITTED)) {
+      calendarNode.getProperty(SAKAI_CALENDAR_IMPORT_COMMITTED).remove();
+    }
+    if (calendarNode.hasProperty(SAKAI_CALENDAR_IMPORT_LAST)) {
+      calendarNode.getProperty(SAKAI_CALENDAR_IMPORT_LAST).remove();
+    }
+    session.save();
+    committed += stored;
+    LOGGER.info("Imported {} components to {}", committed, calendarNode.getPath());
+    if (listener != null) {
+      listener.imported(calendarNode.getPath(), committed, true);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.fortuna.ical4j.data.CalendarBuilder#endComponent(java.lang.String)
+   */
+  @Override
+  public void endComponent(String name) {
+    boolean topLevel = subComponent == null;
+    super.endComponent(name);
+    if (!topLevel) {
+      return;
+    }
+
+    // The builder added it to the calendar, take it off again.
+    ComponentList components = calendar.getComponents();
+    CalendarComponent component = (CalendarComponent) components
+        .remove(components.size() - 1);
+    if (resumeAfter != null) {
+      if (resumeAfter.equals(getKey(component))) {
+        // The rest was not saved yet.
+        resumeAfter = null;
+      }
+      return;
+    }
+    try {
+      calendarService.storeEvent(calendarNode, component, privateEventAcl);
+      stored++;
+      if (stored >= chunkSize) {
+        committed += stored;
+        stored = 0;
+        calendarNode.setProperty(SAKAI_CALENDAR_IMPORT_COMMITTED, committed);
+        calendarNode.setProperty(SAKAI_CALENDAR_IMPORT_LAST, getKey(component));
+        session.save();
+        LOGGER.debug("Saved {} components to {}", committed, calendarNode.getPath());
+        if (listener != null) {
+          listener.imported(calendarNode.getPath(), committed, false);
+        }
+      }
+    } catch (RepositoryException e) {
+      throw new StoreFailedException(e);
+    }
+  }
+
+  /**
+   * @param component
+   *          A top level component of the calendar.
+   * @return The UID of the component, with its RECURRENCE-ID if it overrides an
+   *         occurrence. A component without a UID, like a VTIMEZONE, is known by a digest
+   *         of its content.
+   */
+  static String getKey(CalendarComponent component) {
+    Property uid = component.getProperty(Property.UID);
+    if (uid != null) {
+      Property recurrenceId = component.getProperty(Property.RECURRENCE_ID);
+      if (recurrenceId != null) {
+        return uid.getValue() + ";" + recurrenceId.getValue();
+      }
+      return uid.getValue();
+    }
+    try {
+      return component.getName() + ":" + StringUtils.sha1Hash(component.toString());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return The number of components that have been saved, including the ones an earlier
+   *         import saved.
+   */
+  long getCommitted() {
+    return committed;
+  }
+}
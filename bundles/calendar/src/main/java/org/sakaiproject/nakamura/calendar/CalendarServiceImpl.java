@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.calendar;
 
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_IMPORT_COMMITTED;
+import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_IMPORT_LAST;
 import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_PROPERTY_PREFIX;
 import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_RT;
 import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SIGNUP_NODE_NAME;
@@ -35,13 +37,21 @@ import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.property.Clazz;
 import net.fortuna.ical4j.model.property.DateProperty;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.jackrabbit.api.security.principal.PrincipalManager;
-import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.calendar.CalendarException;
+import org.sakaiproject.nakamura.api.calendar.CalendarImportListener;
 import org.sakaiproject.nakamura.api.calendar.CalendarService;
-import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.DateUtils;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
@@ -52,11 +62,13 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.URISyntaxException;
-import java.security.Principal;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -72,12 +84,61 @@ import javax.jcr.query.QueryResult;
 /**
  *
  */
-@org.apache.felix.scr.annotations.Component(immediate = true)
-@Service(value = CalendarService.class)
-public class CalendarServiceImpl implements CalendarService {
+@org.apache.felix.scr.annotations.Component(immediate = true, metatype = true)
+@Services(value = { @Service(value = CalendarService.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = { @org.apache.felix.scr.annotations.Property(name = EventConstants.EVENT_TOPIC, value = {
+    SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+    SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+public class CalendarServiceImpl implements CalendarService, EventHandler {
 
   public static final Logger LOGGER = LoggerFactory.getLogger(CalendarServiceImpl.class);
 
+  static final String JCR_LASTMODIFIED = "jcr:lastModified";
+
+  private static final int DEFAULT_IMPORT_CHUNK_SIZE = 500;
+
+  @org.apache.felix.scr.annotations.Property(intValue = DEFAULT_IMPORT_CHUNK_SIZE, description = "The number of components a bulk import stores between two saves.")
+  static final String IMPORT_CHUNK_SIZE = "sakai.calendar.import.chunk.size";
+
+  private int importChunkSize = DEFAULT_IMPORT_CHUNK_SIZE;
+
+  private static final int DEFAULT_MAX_WATCHED_CALENDARS = 10000;
+
+  @org.apache.felix.scr.annotations.Property(intValue = DEFAULT_MAX_WATCHED_CALENDARS, description = "The number of calendars whose last change is tracked for the ETag and Last-Modified of their export. The least recently exported is dropped first.")
+  static final String MAX_WATCHED_CALENDARS = "sakai.calendar.watched.max";
+
+  private int maxWatchedCalendars = DEFAULT_MAX_WATCHED_CALENDARS;
+
+  /**
+   * The last change under each calendar that was asked when it was last modified. A
+   * calendar is watched from the first time it is asked, and that time counts as its
+   * first change, as what happened to it before is not known. Guarded by itself.
+   */
+  private final Map<String, Long> calendarChanges = new LinkedHashMap<String, Long>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > maxWatchedCalendars;
+    }
+  };
+
+  /**
+   * The last time handed out as a change, so each change gets a later one.
+   */
+  private long lastChange;
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> properties) {
+    importChunkSize = OsgiUtil.toInteger(properties.get(IMPORT_CHUNK_SIZE),
+        DEFAULT_IMPORT_CHUNK_SIZE);
+    maxWatchedCalendars = Math.max(1, OsgiUtil.toInteger(properties
+        .get(MAX_WATCHED_CALENDARS), DEFAULT_MAX_WATCHED_CALENDARS));
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -103,19 +164,7 @@ public class CalendarServiceImpl implements CalendarService {
       Session session = node.getSession();
 
       // Do a query under this node for all the sakai/calendar-event nodes.
-      StringBuilder sb = new StringBuilder("/jcr:root");
-      sb.append(path);
-      sb.append("//*[");
-      for (int i = 0; i < types.length; i++) {
-        String type = types[i];
-        sb.append("@sling:resourceType='");
-        sb.append(SAKAI_CALENDAR_RT).append("-").append(type.toLowerCase()).append("'");
-        if (i < (types.length - 1)) {
-          sb.append(" or ");
-        }
-      }
-      sb.append("]");
-      String queryString = sb.toString();
+      String queryString = getQuery(path, types, null, null);
 
       // Perform the query
       QueryManager qm = session.getWorkspace().getQueryManager();
@@ -170,6 +219,147 @@ public class CalendarServiceImpl implements CalendarService {
     return c;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.calendar.CalendarService#export(javax.jcr.Node,
+   *      java.lang.String[], java.util.Date, java.util.Date, java.io.Writer)
+   */
+  public void export(Node node, String[] types, Date start, Date end, Writer writer)
+      throws CalendarException {
+    NodeIterator nodes;
+    try {
+      // Only the components in the range, this is done on the DTSTART index.
+      String queryString = getQuery(node.getPath(), types, start, end);
+      QueryManager qm = node.getSession().getWorkspace().getQueryManager();
+      nodes = qm.createQuery(queryString, Query.XPATH).execute().getNodes();
+    } catch (RepositoryException e) {
+      LOGGER.error("Caught a repositoryException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    }
+
+    try {
+      IcsWriter ics = new IcsWriter(writer);
+      ics.startCalendar();
+      int prefixLength = SAKAI_CALENDAR_RT.length() + 1;
+      while (nodes.hasNext()) {
+        Node resultNode = nodes.nextNode();
+        // The type of the component is in the resource type, eg: sakai/calendar-vevent
+        String type = resultNode.getProperty(SLING_RESOURCE_TYPE_PROPERTY).getString()
+            .substring(prefixLength).toUpperCase();
+        ics.writeComponent(type, resultNode);
+      }
+      ics.endCalendar();
+    } catch (RepositoryException e) {
+      LOGGER.error("Caught a repositoryException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    } catch (IOException e) {
+      // Most likely the client went away.
+      LOGGER.debug("Caught an IOException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.calendar.CalendarService#getLastModified(javax.jcr.Node,
+   *      java.lang.String[])
+   */
+  public long getLastModified(Node node, String[] types) throws CalendarException {
+    try {
+      long lastModified = -1;
+      if (node.hasProperty(JCR_LASTMODIFIED)) {
+        lastModified = node.getProperty(JCR_LASTMODIFIED).getDate().getTimeInMillis();
+      }
+      String path = node.getPath();
+      synchronized (calendarChanges) {
+        Long changed = calendarChanges.get(path);
+        if (changed == null) {
+          changed = nextChange();
+          calendarChanges.put(path, changed);
+        }
+        return Math.max(lastModified, changed);
+      }
+    } catch (RepositoryException e) {
+      LOGGER.error(
+          "Caught a repositoryException when trying to check if a calendar is modified", e);
+      throw new CalendarException(500, e.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * Moves the last change of the watched calendar a resource is in, or is, forward. This
+   * sees every change, including the removal of components and edits that do not set
+   * jcr:lastModified.
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      return;
+    }
+    synchronized (calendarChanges) {
+      if (calendarChanges.isEmpty()) {
+        return;
+      }
+      for (String p = path; p.length() > 0; p = p.substring(0, p.lastIndexOf('/'))) {
+        if (calendarChanges.containsKey(p)) {
+          calendarChanges.put(p, nextChange());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The current time, or a ms after the last change if that is not later.
+   */
+  private long nextChange() {
+    lastChange = Math.max(System.currentTimeMillis(), lastChange + 1);
+    return lastChange;
+  }
+
+  /**
+   * Builds the query for the components of a calendar.
+   * 
+   * @param path
+   *          The path of the calendar.
+   * @param types
+   *          The types of the components.
+   * @param start
+   *          The date the components should start at or after. Can be null.
+   * @param end
+   *          The date the components should start before. Can be null.
+   * @return An XPath query.
+   */
+  protected String getQuery(String path, String[] types, Date start, Date end) {
+    StringBuilder sb = new StringBuilder("/jcr:root");
+    sb.append(ISO9075.encodePath(path));
+    sb.append("//*[(");
+    for (int i = 0; i < types.length; i++) {
+      String type = types[i];
+      sb.append("@sling:resourceType='");
+      sb.append(SAKAI_CALENDAR_RT).append("-").append(type.toLowerCase()).append("'");
+      if (i < (types.length - 1)) {
+        sb.append(" or ");
+      }
+    }
+    sb.append(")");
+    if (start != null) {
+      sb.append(" and @").append(SAKAI_CALENDAR_PROPERTY_PREFIX).append(Property.DTSTART);
+      sb.append(" >= xs:dateTime('").append(DateUtils.iso8601jcr(start)).append("')");
+    }
+    if (end != null) {
+      sb.append(" and @").append(SAKAI_CALENDAR_PROPERTY_PREFIX).append(Property.DTSTART);
+      sb.append(" < xs:dateTime('").append(DateUtils.iso8601jcr(end)).append("')");
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -182,6 +372,7 @@ public class CalendarServiceImpl implements CalendarService {
     try {
       calendarNode = JcrUtils.deepGetOrCreateNode(session, path);
       calendarNode.setProperty(SLING_RESOURCE_TYPE_PROPERTY, SAKAI_CALENDAR_RT);
+      calendarNode.setProperty(JCR_LASTMODIFIED, java.util.Calendar.getInstance());
 
       // Store all the properties of the calendar on the node.
       @SuppressWarnings("rawtypes")
@@ -198,9 +389,10 @@ public class CalendarServiceImpl implements CalendarService {
       ComponentList list = calendar.getComponents();
       @SuppressWarnings("unchecked")
       Iterator<CalendarComponent> events = list.iterator();
+      PrivateEventAcl privateEventAcl = new PrivateEventAcl(session);
       while (events.hasNext()) {
         CalendarComponent component = events.next();
-        storeEvent(calendarNode, component);
+        storeEvent(calendarNode, component, privateEventAcl);
       }
 
       // Save the entire thing.
@@ -223,6 +415,19 @@ public class CalendarServiceImpl implements CalendarService {
    */
   protected void storeEvent(Node calendarNode, CalendarComponent component)
       throws RepositoryException {
+    storeEvent(calendarNode, component, new PrivateEventAcl(calendarNode.getSession()));
+  }
+
+  /**
+   * @param calendarNode
+   * @param component
+   * @param privateEventAcl
+   *          Applied if the component is private, this can be shared by all the components
+   *          of a calendar.
+   * @throws RepositoryException
+   */
+  void storeEvent(Node calendarNode, CalendarComponent component,
+      PrivateEventAcl privateEventAcl) throws RepositoryException {
 
     // Get the start date.
     CalendarSubPathProducer producer = new CalendarSubPathProducer(component);
@@ -232,6 +437,7 @@ public class CalendarServiceImpl implements CalendarService {
     Node eventNode = JcrUtils.deepGetOrCreateNode(calendarNode.getSession(), path);
     eventNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
         SAKAI_CALENDAR_RT + "-" + producer.getType());
+    eventNode.setProperty(JCR_LASTMODIFIED, java.util.Calendar.getInstance());
 
     @SuppressWarnings("unchecked")
     Iterator<Property> it = component.getProperties().iterator();
@@ -247,7 +453,7 @@ public class CalendarServiceImpl implements CalendarService {
       }
     }
 
-    handlePrivacy(eventNode, component);
+    handlePrivacy(eventNode, component, privateEventAcl);
 
     // If this is an event, we add a signup node.
     if (component instanceof VEvent && !eventNode.hasNode(SIGNUP_NODE_NAME)) {
@@ -263,34 +469,17 @@ public class CalendarServiceImpl implements CalendarService {
    */
   protected void handlePrivacy(Node eventNode, CalendarComponent component)
       throws RepositoryException {
+    handlePrivacy(eventNode, component, new PrivateEventAcl(eventNode.getSession()));
+  }
+
+  private void handlePrivacy(Node eventNode, CalendarComponent component,
+      PrivateEventAcl privateEventAcl) throws RepositoryException {
     // Default = public.
     if (component.getProperty(Clazz.CLASS) != null) {
       Clazz c = (Clazz) component.getProperty(Clazz.CLASS);
       if (c == Clazz.PRIVATE) {
-        Session session = eventNode.getSession();
-        PrincipalManager principalManager = AccessControlUtil
-            .getPrincipalManager(session);
-        Principal user = principalManager.getPrincipal(session.getUserID());
-        Principal everyone = principalManager.getEveryone();
-        Principal anon = new Principal() {
-          public String getName() {
-            return UserConstants.ANON_USERID;
-          }
-        };
-
-        String[] granted = new String[] { "jcr:read", "jcr:write",
-            "jcr:removeChildNodes", "jcr:modifyProperties", "jcr:addChildNodes",
-            "jcr:removeNode" };
-
-        // Grant access to the current user.
-        AccessControlUtil.replaceAccessControlEntry(session, eventNode.getPath(), user,
-            granted, null, null, null);
-
-        // Deny everybody else
-        AccessControlUtil.replaceAccessControlEntry(session, eventNode.getPath(),
-            everyone, null, new String[] { "jcr:all" }, null, null);
-        AccessControlUtil.replaceAccessControlEntry(session, eventNode.getPath(), anon,
-            null, new String[] { "jcr:all" }, null, null);
+        // Grant access to the current user, deny everybody else.
+        privateEventAcl.apply(eventNode.getPath());
       }
     }
   }
@@ -352,4 +541,69 @@ public class CalendarServiceImpl implements CalendarService {
     }
   }
 
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.calendar.CalendarService#importCalendar(java.io.Reader,
+   *      javax.jcr.Session, java.lang.String, boolean,
+   *      org.sakaiproject.nakamura.api.calendar.CalendarImportListener)
+   */
+  public Node importCalendar(Reader reader, Session session, String path, boolean resume,
+      CalendarImportListener listener) throws CalendarException {
+    CalendarImporter importer = null;
+    try {
+      Node calendarNode = JcrUtils.deepGetOrCreateNode(session, path);
+      calendarNode.setProperty(SLING_RESOURCE_TYPE_PROPERTY, SAKAI_CALENDAR_RT);
+      long committed = 0;
+      String resumeAfter = null;
+      if (resume && calendarNode.hasProperty(SAKAI_CALENDAR_IMPORT_LAST)) {
+        resumeAfter = calendarNode.getProperty(SAKAI_CALENDAR_IMPORT_LAST).getString();
+        if (calendarNode.hasProperty(SAKAI_CALENDAR_IMPORT_COMMITTED)) {
+          committed = calendarNode.getProperty(SAKAI_CALENDAR_IMPORT_COMMITTED).getLong();
+        }
+        LOGGER.info("Resuming the import to {} after {} ", path, resumeAfter);
+      }
+      calendarNode.setProperty(SAKAI_CALENDAR_IMPORT_COMMITTED, committed);
+
+      importer = new CalendarImporter(this, calendarNode, importChunkSize, committed,
+          resumeAfter, listener);
+      importer.importCalendar(reader);
+      return calendarNode;
+    } catch (CalendarException e) {
+      LOGGER.warn("Failed to resume the import to {}: {}", path, e.getMessage());
+      discardChanges(session);
+      throw e;
+    } catch (RepositoryException e) {
+      LOGGER.error("Caught a repositoryException when trying to import a calendar", e);
+      throw importFailed(session, path, importer, e);
+    } catch (IOException e) {
+      LOGGER.error("Caught an IOException when trying to import a calendar", e);
+      throw importFailed(session, path, importer, e);
+    } catch (ParserException e) {
+      LOGGER.error("Caught a ParserException when trying to import a calendar", e);
+      throw importFailed(session, path, importer, e);
+    }
+  }
+
+  /**
+   * Drops the chunk that was being stored when an import failed, the chunks before it
+   * stay saved.
+   */
+  private CalendarException importFailed(Session session, String path,
+      CalendarImporter importer, Exception e) {
+    long committed = importer == null ? 0 : importer.getCommitted();
+    discardChanges(session);
+    return new CalendarException(500, "Failed to import the calendar at " + path
+        + " after " + committed + " components were saved: " + e.getMessage());
+  }
+
+  private void discardChanges(Session session) {
+    try {
+      session.refresh(false);
+    } catch (RepositoryException re) {
+      LOGGER.warn("Failed to discard the changes of a failed import", re);
+    }
+  }
+
 }
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_PROPERTY_PREFIX;
+
+import org.sakaiproject.nakamura.util.DateUtils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Writes iCalendar data (RFC 2445) straight from calendar nodes, one component at a
+ * time, without building an ical4j model. Lines are folded and text values are escaped
+ * the way ical4j's outputter does it.
+ */
+class IcsWriter {
+
+  private static final String CRLF = "\r\n";
+  private static final int MAX_LINE_LENGTH = 75;
+
+  /**
+   * The properties with a text value, these are escaped.
+   */
+  private static final Set<String> TEXT_PROPERTIES = new HashSet<String>(Arrays
+      .asList(new String[] { "COMMENT", "CONTACT", "DESCRIPTION", "LOCATION", "PRODID",
+          "RELATED-TO", "SUMMARY", "TZID", "TZNAME", "UID" }));
+
+  private final Writer writer;
+  private final StringBuilder line = new StringBuilder();
+
+  /**
+   * @param writer
+   *          Where the iCalendar data is written to.
+   */
+  IcsWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Starts the calendar.
+   * 
+   * @throws IOException
+   */
+  void startCalendar() throws IOException {
+    writer.write("BEGIN:VCALENDAR" + CRLF);
+    writer.write("PRODID:-//The Sakai Foundation//Sakai Nakamura//EN" + CRLF);
+    writer.write("VERSION:2.0" + CRLF);
+  }
+
+  /**
+   * Ends the calendar and flushes the writer.
+   * 
+   * @throws IOException
+   */
+  void endCalendar() throws IOException {
+    writer.write("END:VCALENDAR" + CRLF);
+    writer.flush();
+  }
+
+  /**
+   * Writes a component with all the sakai:vcal-* properties of a node.
+   * 
+   * @param type
+   *          The type of the component, eg: VEVENT.
+   * @param node
+   *          The node of the component.
+   * @throws RepositoryException
+   * @throws IOException
+   */
+  void writeComponent(String type, Node node) throws RepositoryException, IOException {
+    writer.write("BEGIN:");
+    writer.write(type);
+    writer.write(CRLF);
+    PropertyIterator props = node.getProperties(SAKAI_CALENDAR_PROPERTY_PREFIX + "*");
+    while (props.hasNext()) {
+      Property p = props.nextProperty();
+      // Get the name of the property but strip out the sakai:vcal-*
+      String name = p.getName().substring(SAKAI_CALENDAR_PROPERTY_PREFIX.length());
+      boolean text = TEXT_PROPERTIES.contains(name) || name.startsWith("X-");
+
+      line.setLength(0);
+      line.append(name).append(':');
+      if (p.isMultiple()) {
+        Value[] values = p.getValues();
+        for (int i = 0; i < values.length; i++) {
+          if (i > 0) {
+            line.append(',');
+          }
+          appendValue(values[i], text);
+        }
+      } else {
+        appendValue(p.getValue(), text);
+      }
+      writeLine();
+    }
+    writer.write("END:");
+    writer.write(type);
+    writer.write(CRLF);
+  }
+
+  /**
+   * @param v
+   * @param text
+   *          If the value should be escaped.
+   * @throws RepositoryException
+   */
+  private void appendValue(Value v, boolean text) throws RepositoryException {
+    if (v.getType() == PropertyType.DATE) {
+      line.append(DateUtils.rfc2445(v.getDate().getTime()));
+      return;
+    }
+    String value = v.getString();
+    if (!text) {
+      line.append(value);
+      return;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\\':
+      case ';':
+      case ',':
+        line.append('\\').append(c);
+        break;
+      case '\r':
+        if (i + 1 < value.length() && value.charAt(i + 1) == '\n') {
+          i++;
+        }
+        line.append("\\n");
+        break;
+      case '\n':
+        line.append("\\n");
+        break;
+      default:
+        line.append(c);
+      }
+    }
+  }
+
+  /**
+   * Writes the current line, folded at 75 characters.
+   * 
+   * @throws IOException
+   */
+  private void writeLine() throws IOException {
+    int pos = 0;
+    int max = MAX_LINE_LENGTH;
+    while (line.length() - pos > max) {
+      int end = pos + max;
+      // Don't split a surrogate pair.
+      if (Character.isHighSurrogate(line.charAt(end - 1))) {
+        end--;
+      }
+      writer.append(line, pos, end);
+      writer.write(CRLF + " ");
+      pos = end;
+      // The space a continuation starts with is part of the line.
+      max = MAX_LINE_LENGTH - 1;
+    }
+    writer.append(line, pos, line.length());
+    writer.write(CRLF);
+  }
+}
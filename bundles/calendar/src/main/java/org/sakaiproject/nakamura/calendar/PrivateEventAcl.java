@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import org.apache.jackrabbit.api.security.principal.PrincipalManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.ACLUtils;
+
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * The access control of a private event: the user that stores it gets full access,
+ * everybody else and anonymous are denied everything. The principals are looked up the
+ * first time it is applied and reused for every event after that, and each event gets
+ * its entries in a single policy write.
+ */
+class PrivateEventAcl {
+
+  private static final String[] GRANTED = new String[] { ACLUtils.READ_GRANTED,
+      ACLUtils.WRITE_GRANTED, ACLUtils.REMOVE_CHILD_NODES_GRANTED,
+      ACLUtils.MODIFY_PROPERTIES_GRANTED, ACLUtils.ADD_CHILD_NODES_GRANTED,
+      ACLUtils.REMOVE_NODE_GRANTED };
+  private static final String[] DENIED = new String[] { ACLUtils.ALL_DENIED };
+
+  private final Session session;
+  private Map<Principal, String[]> privilegeSpecs;
+
+  /**
+   * @param session
+   *          The session the events are stored with.
+   */
+  PrivateEventAcl(Session session) {
+    this.session = session;
+  }
+
+  /**
+   * Replaces the entries of the user, everyone and anonymous on a node.
+   * 
+   * @param path
+   *          The path of the event node.
+   * @throws RepositoryException
+   */
+  void apply(String path) throws RepositoryException {
+    if (privilegeSpecs == null) {
+      PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(session);
+      Principal anon = new Principal() {
+        public String getName() {
+          return UserConstants.ANON_USERID;
+        }
+      };
+      Map<Principal, String[]> specs = new LinkedHashMap<Principal, String[]>();
+      specs.put(principalManager.getPrincipal(session.getUserID()), GRANTED);
+      specs.put(principalManager.getEveryone(), DENIED);
+      specs.put(anon, DENIED);
+      privilegeSpecs = specs;
+    }
+    ACLUtils.addEntry(path, privilegeSpecs, session);
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import net.fortuna.ical4j.data.CalendarOutputter;
+import net.fortuna.ical4j.model.Calendar;
+
+import org.apache.jackrabbit.commons.iterator.NodeIteratorAdapter;
+import org.apache.jackrabbit.commons.iterator.PropertyIteratorAdapter;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.calendar.CalendarService;
+import org.sakaiproject.nakamura.util.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class CalendarIcsServletTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CalendarIcsServletTest.class);
+
+  private CalendarIcsServlet servlet;
+  private CalendarServiceImpl service;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private ByteArrayOutputStream out;
+  private Node calendarNode;
+  private QueryManager queryManager;
+  private List<Node> events;
+
+  @Before
+  public void setUp() throws Exception {
+    service = new CalendarServiceImpl();
+    servlet = new CalendarIcsServlet();
+    servlet.calendarService = service;
+
+    // A calendar whose query returns the events.
+    events = new ArrayList<Node>();
+    calendarNode = mock(Node.class);
+    when(calendarNode.getPath()).thenReturn("/_user/j/ja/jack/calendar");
+    Session session = mock(Session.class);
+    Workspace workspace = mock(Workspace.class);
+    queryManager = mock(QueryManager.class);
+    when(calendarNode.getSession()).thenReturn(session);
+    when(session.getWorkspace()).thenReturn(workspace);
+    when(workspace.getQueryManager()).thenReturn(queryManager);
+    when(queryManager.createQuery(anyString(), any(String.class))).thenAnswer(
+        new Answer<Query>() {
+          public Query answer(InvocationOnMock invocation) throws Throwable {
+            Query query = mock(Query.class);
+            QueryResult result = mock(QueryResult.class);
+            when(query.execute()).thenReturn(result);
+            when(result.getNodes()).thenReturn(new NodeIteratorAdapter(events));
+            return query;
+          }
+        });
+
+    Resource resource = mock(Resource.class);
+    when(resource.adaptTo(Node.class)).thenReturn(calendarNode);
+    when(resource.getPath()).thenReturn("/_user/j/ja/jack/calendar");
+    RequestPathInfo pathInfo = mock(RequestPathInfo.class);
+    when(pathInfo.getSelectors()).thenReturn(new String[0]);
+    request = mock(SlingHttpServletRequest.class);
+    when(request.getResource()).thenReturn(resource);
+    when(request.getRequestPathInfo()).thenReturn(pathInfo);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+
+    out = new ByteArrayOutputStream();
+    response = mock(SlingHttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+    });
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    java.util.Calendar start = java.util.Calendar.getInstance();
+    start.setTimeInMillis(1272373200000L);
+    events.add(createEvent("DD45F1DB-34ED-4BBE-A2B2-970E0668F7BC", start,
+        "Foo, bar; baz", "A description that is long enough to be folded over "
+            + "more than one line of the output."));
+
+    servlet.doGet(request, response);
+
+    verify(response).setContentType("text/calendar");
+    String ics = out.toString("UTF-8");
+    assertTrue(ics.startsWith("BEGIN:VCALENDAR\r\n"));
+    assertTrue(ics.contains("BEGIN:VEVENT\r\n"));
+    assertTrue(ics.contains("UID:DD45F1DB-34ED-4BBE-A2B2-970E0668F7BC\r\n"));
+    assertTrue(ics.contains("SUMMARY:Foo\\, bar\\; baz\r\n"));
+    assertTrue(ics.contains("DTSTART:" + DateUtils.rfc2445(start.getTime()) + "\r\n"));
+    assertTrue(ics.endsWith("END:VEVENT\r\nEND:VCALENDAR\r\n"));
+    for (String line : ics.split("\r\n")) {
+      assertTrue(line.length() <= 75);
+    }
+    assertTrue(ics.contains("\r\n "));
+  }
+
+  @Test
+  public void testRange() throws Exception {
+    RequestParameter startParam = mock(RequestParameter.class);
+    when(startParam.getString()).thenReturn("20100401");
+    RequestParameter endParam = mock(RequestParameter.class);
+    when(endParam.getString()).thenReturn("20100501");
+    when(request.getRequestParameter("start")).thenReturn(startParam);
+    when(request.getRequestParameter("end")).thenReturn(endParam);
+
+    servlet.doGet(request, response);
+
+    ArgumentCaptor<String> query = ArgumentCaptor.forClass(String.class);
+    verify(queryManager, org.mockito.Mockito.atLeastOnce()).createQuery(query.capture(),
+        any(String.class));
+    String statement = query.getAllValues().get(query.getAllValues().size() - 1);
+    assertTrue(statement.contains("@sakai:vcal-DTSTART >= xs:dateTime('2010-04-01T"));
+    assertTrue(statement.contains("@sakai:vcal-DTSTART < xs:dateTime('2010-05-01T"));
+  }
+
+  @Test
+  public void testBadRange() throws Exception {
+    RequestParameter startParam = mock(RequestParameter.class);
+    when(startParam.getString()).thenReturn("yesterday");
+    when(request.getRequestParameter("start")).thenReturn(startParam);
+
+    servlet.doGet(request, response);
+    verify(response).sendError(org.mockito.Matchers.eq(HttpServletResponse.SC_BAD_REQUEST),
+        anyString());
+  }
+
+  @Test
+  public void testNotModified() throws Exception {
+    CalendarService calendarService = mock(CalendarService.class);
+    when(calendarService.getLastModified(any(Node.class), any(String[].class)))
+        .thenReturn(1272373200000L);
+    servlet.calendarService = calendarService;
+
+    servlet.doGet(request, response);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(org.mockito.Matchers.eq("ETag"), etag.capture());
+    verify(response).setDateHeader("Last-Modified", 1272373200000L);
+    verify(calendarService).export(any(Node.class), any(String[].class),
+        any(Date.class), any(Date.class), any(Writer.class));
+
+    // The same ETag.
+    SlingHttpServletResponse second = mock(SlingHttpServletResponse.class);
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    servlet.doGet(request, second);
+    verify(second).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    // Not modified since.
+    SlingHttpServletResponse third = mock(SlingHttpServletResponse.class);
+    when(request.getHeader("If-None-Match")).thenReturn(null);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(1272373200000L);
+    servlet.doGet(request, third);
+    verify(third).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(second, never()).getOutputStream();
+    verify(third, never()).getOutputStream();
+  }
+
+  @Test
+  public void testLastModifiedMovesOnEveryChange() throws Exception {
+    String[] types = new String[] { "vevent" };
+    long first = service.getLastModified(calendarNode, types);
+    assertTrue(first > 0);
+    assertEquals(first, service.getLastModified(calendarNode, types));
+
+    // Removing a component sets no jcr:lastModified, the validator still moves.
+    service.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_REMOVED,
+        "/_user/j/ja/jack/calendar/2010/04/28/event"));
+    long removed = service.getLastModified(calendarNode, types);
+    assertTrue(removed > first);
+
+    // A change to the calendar node itself.
+    service.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/_user/j/ja/jack/calendar"));
+    long changed = service.getLastModified(calendarNode, types);
+    assertTrue(changed > removed);
+
+    // Changes elsewhere leave it alone.
+    service.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_ADDED,
+        "/_user/j/ja/jack/calendars/2010/04/28/event"));
+    service.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_ADDED,
+        "/_user/j/ji/jill/calendar/2010/04/28/event"));
+    assertEquals(changed, service.getLastModified(calendarNode, types));
+  }
+
+  private Event createEvent(String topic, String path) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, properties);
+  }
+
+  @Test
+  public void testExportThroughput() throws Exception {
+    java.util.Calendar start = java.util.Calendar.getInstance();
+    start.setTimeInMillis(1272373200000L);
+    for (int i = 0; i < 2000; i++) {
+      java.util.Calendar eventStart = (java.util.Calendar) start.clone();
+      eventStart.add(java.util.Calendar.HOUR, i);
+      events.add(createEvent("event-" + i, eventStart, "Lecture " + i,
+          "Room " + (i % 100) + ", bring your notes."));
+    }
+
+    // Build the calendar and output it.
+    Runtime runtime = Runtime.getRuntime();
+    long startTime = System.nanoTime();
+    Calendar calendar = service.export(calendarNode, new String[] { "vevent" });
+    long model = runtime.totalMemory() - runtime.freeMemory();
+    StringWriter modelWriter = new StringWriter();
+    new CalendarOutputter(false).output(calendar, modelWriter);
+    long modelTime = System.nanoTime() - startTime;
+    calendar = null;
+
+    // Stream it.
+    CountingWriter counter = new CountingWriter();
+    startTime = System.nanoTime();
+    service.export(calendarNode, new String[] { "vevent" }, null, null, counter);
+    long streamTime = System.nanoTime() - startTime;
+    assertFalse(counter.count == 0);
+
+    LOGGER.info("Exported 2000 events: model and outputter {} ms ({} KB heap in use "
+        + "with the model), streaming {} ms, {} KB of ics", new Object[] {
+        modelTime / 1000000, model / 1024, streamTime / 1000000, counter.count / 1024 });
+  }
+
+  /**
+   * Counts the characters written, without holding them.
+   */
+  private static class CountingWriter extends Writer {
+    private long count;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      count += len;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private Node createEvent(String uid, java.util.Calendar start, String summary,
+      String description) throws Exception {
+    java.util.Calendar end = (java.util.Calendar) start.clone();
+    end.add(java.util.Calendar.HOUR, 1);
+    final List<Property> properties = new ArrayList<Property>();
+    properties.add(createProperty("sakai:vcal-UID", uid));
+    properties.add(createProperty("sakai:vcal-DTSTART", start));
+    properties.add(createProperty("sakai:vcal-DTEND", end));
+    properties.add(createProperty("sakai:vcal-SUMMARY", summary));
+    properties.add(createProperty("sakai:vcal-DESCRIPTION", description));
+    Property resourceType = createProperty("sling:resourceType", "sakai/calendar-vevent");
+    Node event = mock(Node.class);
+    when(event.getProperties(anyString())).thenAnswer(new Answer<PropertyIterator>() {
+      public PropertyIterator answer(InvocationOnMock invocation) {
+        return new PropertyIteratorAdapter(properties);
+      }
+    });
+    when(event.getProperty("sling:resourceType")).thenReturn(resourceType);
+    return event;
+  }
+
+  private Property createProperty(String name, Object value) throws Exception {
+    Value v = mock(Value.class);
+    if (value instanceof java.util.Calendar) {
+      when(v.getType()).thenReturn(PropertyType.DATE);
+      when(v.getDate()).thenReturn((java.util.Calendar) value);
+    } else {
+      when(v.getType()).thenReturn(PropertyType.STRING);
+    }
+    when(v.getString()).thenReturn(value.toString());
+    Property property = mock(Property.class);
+    when(property.getName()).thenReturn(name);
+    when(property.getValue()).thenReturn(v);
+    when(property.getString()).thenReturn(value.toString());
+    when(property.isMultiple()).thenReturn(false);
+    return property;
+  }
+}
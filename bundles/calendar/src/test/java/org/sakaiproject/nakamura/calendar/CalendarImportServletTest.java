@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.calendar.CalendarException;
+import org.sakaiproject.nakamura.api.calendar.CalendarImportListener;
+import org.sakaiproject.nakamura.api.calendar.CalendarService;
+
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+
+import javax.jcr.Session;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class CalendarImportServletTest {
+
+  private static final String PATH = "/_user/j/ja/jack/calendar";
+
+  private CalendarImportServlet servlet;
+  private CalendarService calendarService;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private Session session;
+
+  @Before
+  public void setUp() throws Exception {
+    calendarService = mock(CalendarService.class);
+    servlet = new CalendarImportServlet();
+    servlet.calendarService = calendarService;
+
+    session = mock(Session.class);
+    ResourceResolver resolver = mock(ResourceResolver.class);
+    when(resolver.adaptTo(Session.class)).thenReturn(session);
+    Resource resource = mock(Resource.class);
+    when(resource.getPath()).thenReturn(PATH);
+    request = mock(SlingHttpServletRequest.class);
+    when(request.getResource()).thenReturn(resource);
+    when(request.getResourceResolver()).thenReturn(resolver);
+    response = mock(SlingHttpServletResponse.class);
+  }
+
+  @Test
+  public void testImport() throws Exception {
+    RequestParameter calendar = createParameter("BEGIN:VCALENDAR\nEND:VCALENDAR\n");
+    when(request.getRequestParameter(CalendarImportServlet.CALENDAR_PARAM)).thenReturn(
+        calendar);
+
+    servlet.doPost(request, response);
+
+    verify(calendarService).importCalendar(any(Reader.class), eq(session), eq(PATH),
+        eq(false), any(CalendarImportListener.class));
+    verify(response, never()).sendError(anyInt(), anyString());
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    RequestParameter calendar = createParameter("BEGIN:VCALENDAR\nEND:VCALENDAR\n");
+    when(request.getRequestParameter(CalendarImportServlet.CALENDAR_PARAM)).thenReturn(
+        calendar);
+    RequestParameter resume = createParameter("true");
+    when(request.getRequestParameter(CalendarImportServlet.RESUME_PARAM)).thenReturn(
+        resume);
+
+    servlet.doPost(request, response);
+
+    verify(calendarService).importCalendar(any(Reader.class), eq(session), eq(PATH),
+        eq(true), any(CalendarImportListener.class));
+  }
+
+  @Test
+  public void testNoCalendar() throws Exception {
+    servlet.doPost(request, response);
+
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    verify(calendarService, never()).importCalendar(any(Reader.class),
+        any(Session.class), anyString(), anyBoolean(), any(CalendarImportListener.class));
+  }
+
+  @Test
+  public void testFailedImport() throws Exception {
+    RequestParameter calendar = createParameter("BEGIN:VCALENDAR\n");
+    when(request.getRequestParameter(CalendarImportServlet.CALENDAR_PARAM)).thenReturn(
+        calendar);
+    CalendarException e = new CalendarException(500, "Failed after 500 components");
+    when(calendarService.importCalendar(any(Reader.class), eq(session), eq(PATH),
+        eq(false), any(CalendarImportListener.class))).thenThrow(e);
+
+    servlet.doPost(request, response);
+
+    verify(response).sendError(500, "Failed after 500 components");
+  }
+
+  private RequestParameter createParameter(String value) throws Exception {
+    RequestParameter param = mock(RequestParameter.class);
+    when(param.getString()).thenReturn(value);
+    when(param.getInputStream()).thenReturn(
+        new ByteArrayInputStream(value.getBytes("UTF-8")));
+    return param;
+  }
+}
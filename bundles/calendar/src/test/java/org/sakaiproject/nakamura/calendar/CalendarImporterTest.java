@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_IMPORT_COMMITTED;
+import static org.sakaiproject.nakamura.api.calendar.CalendarConstants.SAKAI_CALENDAR_IMPORT_LAST;
+
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.RecurrenceId;
+import net.fortuna.ical4j.model.property.Summary;
+import net.fortuna.ical4j.model.property.Uid;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
+import org.apache.jackrabbit.api.security.principal.PrincipalManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.calendar.CalendarException;
+import org.sakaiproject.nakamura.api.calendar.CalendarImportListener;
+
+import java.io.StringReader;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.security.AccessControlEntry;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.AccessControlPolicy;
+import javax.jcr.security.Privilege;
+
+/**
+ *
+ */
+public class CalendarImporterTest {
+
+  private static final String PATH = "/path/to/store/calendar";
+
+  private CalendarServiceImpl service;
+  private JackrabbitSession session;
+  private Node calendarNode;
+  private List<Node> eventNodes;
+  private AccessControlManager accessControlManager;
+  private PrincipalManager principalManager;
+  private List<String> progress;
+  private CalendarImportListener listener;
+
+  @Before
+  public void setUp() throws Exception {
+    service = new CalendarServiceImpl();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(CalendarServiceImpl.IMPORT_CHUNK_SIZE, 2);
+    service.activate(properties);
+
+    session = mock(JackrabbitSession.class);
+    when(session.getUserID()).thenReturn("jack");
+    calendarNode = mock(Node.class);
+    when(calendarNode.getPath()).thenReturn(PATH);
+    when(calendarNode.getSession()).thenReturn(session);
+    when(session.itemExists(anyString())).thenReturn(true);
+    when(session.getItem(PATH)).thenReturn(calendarNode);
+
+    // Every event gets a node of its own.
+    eventNodes = new ArrayList<Node>();
+    final Node signupNode = mock(Node.class);
+    when(session.getItem(org.mockito.Matchers.startsWith(PATH + "/"))).thenAnswer(
+        new Answer<Node>() {
+          public Node answer(InvocationOnMock invocation) throws Throwable {
+            final String path = (String) invocation.getArguments()[0];
+            Node eventNode = mock(Node.class, new Answer<Object>() {
+              public Object answer(InvocationOnMock invocation) throws Throwable {
+                String name = invocation.getMethod().getName();
+                if ("getPath".equals(name)) {
+                  return path;
+                } else if ("addNode".equals(name)) {
+                  return signupNode;
+                } else if ("hasNode".equals(name)) {
+                  return false;
+                }
+                return null;
+              }
+            });
+            eventNodes.add(eventNode);
+            return eventNode;
+          }
+        });
+
+    // Access control.
+    principalManager = mock(PrincipalManager.class);
+    Principal jack = mock(Principal.class);
+    when(jack.getName()).thenReturn("jack");
+    Principal everyone = mock(Principal.class);
+    when(everyone.getName()).thenReturn("everyone");
+    when(principalManager.getPrincipal("jack")).thenReturn(jack);
+    when(principalManager.getEveryone()).thenReturn(everyone);
+    when(session.getPrincipalManager()).thenReturn(principalManager);
+    accessControlManager = mock(AccessControlManager.class);
+    when(session.getAccessControlManager()).thenReturn(accessControlManager);
+    Privilege privilege = mock(Privilege.class);
+    when(accessControlManager.privilegeFromName(anyString())).thenReturn(privilege);
+    when(accessControlManager.getPolicies(anyString())).thenAnswer(
+        new Answer<AccessControlPolicy[]>() {
+          public AccessControlPolicy[] answer(InvocationOnMock invocation)
+              throws Throwable {
+            JackrabbitAccessControlList acl = mock(JackrabbitAccessControlList.class);
+            when(acl.getAccessControlEntries()).thenReturn(new AccessControlEntry[0]);
+            return new AccessControlPolicy[] { acl };
+          }
+        });
+
+    progress = new ArrayList<String>();
+    listener = new CalendarImportListener() {
+      public void imported(String path, long committed, boolean finished) {
+        progress.add(committed + (finished ? " done" : ""));
+      }
+    };
+  }
+
+  @Test
+  public void testImportInChunks() throws Exception {
+    service.importCalendar(new StringReader(createCalendar(5, false)), session, PATH,
+        false, listener);
+
+    assertEquals(5, eventNodes.size());
+    verify(session, times(3)).save();
+    verify(calendarNode).setProperty(SAKAI_CALENDAR_IMPORT_COMMITTED, 2L);
+    verify(calendarNode).setProperty(SAKAI_CALENDAR_IMPORT_COMMITTED, 4L);
+    verify(calendarNode).setProperty("X-WR-CALNAME", "Lectures");
+    assertEquals("[2, 4, 5 done]", progress.toString());
+  }
+
+  @Test
+  public void testPrivateEvents() throws Exception {
+    service.importCalendar(new StringReader(createCalendar(3, true)), session, PATH,
+        false, null);
+
+    // The principals are looked up once, one write per event.
+    verify(principalManager, times(1)).getEveryone();
+    for (Node eventNode : eventNodes) {
+      verify(accessControlManager, times(1)).setPolicy(eq(eventNode.getPath()),
+          any(AccessControlPolicy.class));
+    }
+  }
+
+  @Test
+  public void testImportRecordsLastComponent() throws Exception {
+    service.importCalendar(new StringReader(createCalendar(5, false)), session, PATH,
+        false, listener);
+
+    verify(calendarNode).setProperty(SAKAI_CALENDAR_IMPORT_LAST, "event-1");
+    verify(calendarNode).setProperty(SAKAI_CALENDAR_IMPORT_LAST, "event-3");
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    Property last = expectResume(3L, "event-2");
+
+    service.importCalendar(new StringReader(createCalendar(6, false)), session, PATH,
+        true, listener);
+
+    // The first three were stored by the failed import.
+    assertEquals(3, eventNodes.size());
+    assertTrue(eventNodes.get(0).getPath().endsWith("-event-3"));
+    verify(last).remove();
+    assertEquals("[5, 6 done]", progress.toString());
+  }
+
+  @Test
+  public void testResumeChangedCalendar() throws Exception {
+    expectResume(3L, "event-2");
+
+    // An event was added in front since the failed import, counting would skip event-2.
+    StringBuilder calendar = new StringBuilder(createCalendar(6, false));
+    calendar.insert(calendar.indexOf("BEGIN:VEVENT"), createEvent(10, false));
+    service.importCalendar(new StringReader(calendar.toString()), session, PATH, true,
+        listener);
+
+    assertEquals(3, eventNodes.size());
+    assertTrue(eventNodes.get(0).getPath().endsWith("-event-3"));
+  }
+
+  @Test
+  public void testResumeMissingComponent() throws Exception {
+    expectResume(3L, "event-2");
+    try {
+      service.importCalendar(new StringReader(createCalendar(2, false)), session, PATH,
+          true, listener);
+      fail("Should have thrown an exception.");
+    } catch (CalendarException e) {
+      assertEquals(409, e.getCode());
+      assertTrue(e.getMessage().contains("event-2"));
+    }
+    assertEquals(0, eventNodes.size());
+    verify(session, never()).save();
+    verify(session).refresh(false);
+  }
+
+  @Test
+  public void testKeyOfRecurrence() throws Exception {
+    VEvent event = new VEvent();
+    event.getProperties().add(new Uid("event-1"));
+    assertEquals("event-1", CalendarImporter.getKey(event));
+    event.getProperties().add(new RecurrenceId(new DateTime(1272373200000L)));
+    assertTrue(CalendarImporter.getKey(event).startsWith("event-1;2010"));
+
+    // Without a UID the content tells components apart.
+    VEvent other = new VEvent();
+    other.getProperties().add(new Summary("Lecture"));
+    assertTrue(CalendarImporter.getKey(other).startsWith("VEVENT:"));
+    assertFalse(CalendarImporter.getKey(other).equals(CalendarImporter.getKey(new VEvent())));
+  }
+
+  private Property expectResume(long committedCount, String lastKey) throws Exception {
+    Property committed = mock(Property.class);
+    when(committed.getLong()).thenReturn(committedCount);
+    when(calendarNode.hasProperty(SAKAI_CALENDAR_IMPORT_COMMITTED)).thenReturn(true);
+    when(calendarNode.getProperty(SAKAI_CALENDAR_IMPORT_COMMITTED)).thenReturn(committed);
+    Property last = mock(Property.class);
+    when(last.getString()).thenReturn(lastKey);
+    when(calendarNode.hasProperty(SAKAI_CALENDAR_IMPORT_LAST)).thenReturn(true);
+    when(calendarNode.getProperty(SAKAI_CALENDAR_IMPORT_LAST)).thenReturn(last);
+    return last;
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    doThrow(new RepositoryException("Disk full")).when(session).getItem(
+        PATH + getSubPath(2));
+    try {
+      service.importCalendar(new StringReader(createCalendar(5, false)), session, PATH,
+          false, listener);
+      fail("Should have thrown an exception.");
+    } catch (CalendarException e) {
+      assertEquals(500, e.getCode());
+      assertTrue(e.getMessage().contains("after 2 components"));
+    }
+    verify(session).refresh(false);
+    assertEquals("[2]", progress.toString());
+  }
+
+  private String getSubPath(int i) {
+    Calendar start = Calendar.getInstance();
+    start.setTimeInMillis(1272373200000L + i * 3600000L);
+    return CalendarSubPathProducer.format.format(start) + "-event-" + i;
+  }
+
+  private String createCalendar(int events, boolean privateEvents) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("BEGIN:VCALENDAR\r\n");
+    sb.append("VERSION:2.0\r\n");
+    sb.append("PRODID:-//Test//Test//EN\r\n");
+    sb.append("X-WR-CALNAME:Lectures\r\n");
+    for (int i = 0; i < events; i++) {
+      sb.append(createEvent(i, privateEvents));
+    }
+    sb.append("END:VCALENDAR\r\n");
+    return sb.toString();
+  }
+
+  private String createEvent(int i, boolean privateEvent) {
+    StringBuilder sb = new StringBuilder();
+    Calendar start = Calendar.getInstance(java.util.TimeZone.getTimeZone("GMT"));
+    start.setTimeInMillis(1272373200000L + i * 3600000L);
+    sb.append("BEGIN:VEVENT\r\n");
+    sb.append("UID:event-").append(i).append("\r\n");
+    sb.append(String.format("DTSTART:%1$tY%1$tm%1$tdT%1$tH%1$tM%1$tSZ\r\n", start));
+    sb.append("SUMMARY:Lecture ").append(i).append("\r\n");
+    if (privateEvent) {
+      sb.append("CLASS:PRIVATE\r\n");
+    }
+    sb.append("END:VEVENT\r\n");
+    return sb.toString();
+  }
+}
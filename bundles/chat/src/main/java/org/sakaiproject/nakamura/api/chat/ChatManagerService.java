@@ -17,8 +17,26 @@
  */
 package org.sakaiproject.nakamura.api.chat;
 
+import java.util.Collection;
+
 public interface ChatManagerService {
 
+  /**
+   * The topic of the event that tells the other servers of a cluster the chat messages
+   * of some users were updated, so they can wake up the requests waiting for them.
+   */
+  public static final String TOPIC_CHAT_UPDATE = "org/sakaiproject/nakamura/chat/update";
+
+  /**
+   * The list of user IDs in the update event.
+   */
+  public static final String EVENT_USERS = "users";
+
+  /**
+   * The time of the update in the update event.
+   */
+  public static final String EVENT_TIME = "time";
+
   /**
    * Adds a time for a user. Even if he/she is not in the cache already.
    * 
@@ -29,6 +47,17 @@ public interface ChatManagerService {
    */
   public void put(String userID, long time);
 
+  /**
+   * Adds the same time for a number of users, like {@link #put(String, long)} does for
+   * one.
+   * 
+   * @param userIDs
+   *          The IDs of the users.
+   * @param time
+   *          The timestamp (milliseconds)
+   */
+  public void putAll(Collection<String> userIDs, long time);
+
   /**
    * Gets the last time a user had his chat messages updated.
    * 
@@ -49,4 +78,25 @@ public interface ChatManagerService {
    * Flush the entire cache.
    */
   public void clear();
+
+  /**
+   * Adds a listener that is called the next time the chat messages of a user are
+   * updated, on this server or on another server of the cluster. Listeners are only held
+   * in memory and their number is bounded.
+   * 
+   * @param userID
+   *          The ID of the user.
+   * @param listener
+   * @return false if there are too many listeners already, the listener was not added.
+   */
+  public boolean addListener(String userID, ChatUpdateListener listener);
+
+  /**
+   * Removes a listener that hasn't been called.
+   * 
+   * @param userID
+   *          The ID of the user the listener was added for.
+   * @param listener
+   */
+  public void removeListener(String userID, ChatUpdateListener listener);
 }
@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.chat;
+
+/**
+ * Waits for the chat messages of a user to be updated.
+ */
+public interface ChatUpdateListener {
+
+  /**
+   * Called once, when the chat messages of the user the listener was added for get
+   * updated. The listener is removed before it is called.
+   * 
+   * @param userID
+   *          The ID of the user.
+   * @param time
+   *          The timestamp of the update (milliseconds)
+   */
+  public void chatUpdated(String userID, long time);
+}
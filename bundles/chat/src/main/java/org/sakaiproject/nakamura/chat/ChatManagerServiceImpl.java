@@ -17,30 +17,64 @@
  */
 package org.sakaiproject.nakamura.chat;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.chat.ChatUpdateListener;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
 /**
  * The <code>ChatManagerServiceImpl</code>
  */
-@Component(immediate = true, label = "ChatManagerServiceImpl", description = "Implementation of the Chat Manager Service")
+@Component(immediate = true, metatype = true, label = "ChatManagerServiceImpl", description = "Implementation of the Chat Manager Service")
 @Service(value = ChatManagerService.class)
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = "service.description", value = "Chat Manager Implementation") })
-@Reference(name = "CacheManagerService", referenceInterface = CacheManagerService.class)
+@References(value = {
+    @Reference(name = "CacheManagerService", referenceInterface = CacheManagerService.class),
+    @Reference(name = "EventAdmin", referenceInterface = EventAdmin.class) })
 public class ChatManagerServiceImpl implements ChatManagerService {
 
   private static final String CHAT_CACHE = "chat";
 
+  @Property(intValue = 20000, description = "The maximum number of requests waiting for a chat update on this server.")
+  static final String MAX_LISTENERS = "sakai.chat.max.listeners";
+
   private CacheManagerService cacheManagerService;
+  private EventAdmin eventAdmin;
+
+  /**
+   * The listeners waiting for an update, by user ID. Guarded by itself.
+   */
+  private final Map<String, List<ChatUpdateListener>> listeners = new HashMap<String, List<ChatUpdateListener>>();
+  private int listenerCount;
+  private int maxListeners = 20000;
+
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> properties) {
+    maxListeners = OsgiUtil.toInteger(properties.get(MAX_LISTENERS), 20000);
+  }
 
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
@@ -51,6 +85,14 @@ public class ChatManagerServiceImpl implements ChatManagerService {
     this.cacheManagerService = cacheManagerService;
   }
 
+  protected void bindEventAdmin(EventAdmin eventAdmin) {
+    this.eventAdmin = eventAdmin;
+  }
+
+  protected void unbindEventAdmin(EventAdmin eventAdmin) {
+    this.eventAdmin = null;
+  }
+
   /**
    * Gets the cache.
    * 
@@ -88,7 +130,66 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#put(java.lang.String, long)
    */
   public void put(String userID, long time) {
-    getCachedMap().put(userID, time);
+    putAll(Collections.singletonList(userID), time);
+  }
+
+  /**
+   * 
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#putAll(java.util.Collection,
+   *      long)
+   */
+  public void putAll(Collection<String> userIDs, long time) {
+    Cache<Long> cache = getCachedMap();
+    for (String userID : userIDs) {
+      cache.put(userID, time);
+    }
+
+    notifyListeners(userIDs, time);
+
+    // The requests waiting on the other servers are woken up by their servers.
+    EventAdmin eventAdmin = this.eventAdmin;
+    if (eventAdmin != null) {
+      Hashtable<String, Object> properties = new Hashtable<String, Object>();
+      properties.put(EVENT_USERS, new ArrayList<String>(userIDs));
+      properties.put(EVENT_TIME, time);
+      eventAdmin.postEvent(new Event(TOPIC_CHAT_UPDATE, properties));
+    }
+  }
+
+  /**
+   * Wakes up everybody on this server who is waiting for some users.
+   * 
+   * @param userIDs
+   *          The IDs of the users.
+   * @param time
+   *          The time their chat messages were updated.
+   */
+  void notifyListeners(Collection<String> userIDs, long time) {
+    Map<String, List<ChatUpdateListener>> waiting = null;
+    synchronized (listeners) {
+      if (listenerCount == 0) {
+        return;
+      }
+      for (String userID : userIDs) {
+        List<ChatUpdateListener> userListeners = listeners.remove(userID);
+        if (userListeners != null) {
+          if (waiting == null) {
+            waiting = new HashMap<String, List<ChatUpdateListener>>();
+          }
+          waiting.put(userID, userListeners);
+          listenerCount -= userListeners.size();
+        }
+      }
+    }
+    if (waiting != null) {
+      for (Map.Entry<String, List<ChatUpdateListener>> entry : waiting.entrySet()) {
+        for (ChatUpdateListener listener : entry.getValue()) {
+          listener.chatUpdated(entry.getKey(), time);
+        }
+      }
+    }
   }
 
   /**
@@ -101,4 +202,55 @@ public class ChatManagerServiceImpl implements ChatManagerService {
     getCachedMap().remove(userID);
   }
 
+  /**
+   * 
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#addListener(java.lang.String,
+   *      org.sakaiproject.nakamura.api.chat.ChatUpdateListener)
+   */
+  public boolean addListener(String userID, ChatUpdateListener listener) {
+    synchronized (listeners) {
+      if (listenerCount >= maxListeners) {
+        return false;
+      }
+      List<ChatUpdateListener> waiting = listeners.get(userID);
+      if (waiting == null) {
+        waiting = new ArrayList<ChatUpdateListener>(1);
+        listeners.put(userID, waiting);
+      }
+      waiting.add(listener);
+      listenerCount++;
+      return true;
+    }
+  }
+
+  /**
+   * 
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#removeListener(java.lang.String,
+   *      org.sakaiproject.nakamura.api.chat.ChatUpdateListener)
+   */
+  public void removeListener(String userID, ChatUpdateListener listener) {
+    synchronized (listeners) {
+      List<ChatUpdateListener> waiting = listeners.get(userID);
+      if (waiting != null && waiting.remove(listener)) {
+        listenerCount--;
+        if (waiting.isEmpty()) {
+          listeners.remove(userID);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The number of listeners waiting for an update.
+   */
+  int getListenerCount() {
+    synchronized (listeners) {
+      return listenerCount;
+    }
+  }
+
 }
@@ -18,7 +18,10 @@
 
 package org.sakaiproject.nakamura.chat;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -28,6 +31,7 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
@@ -46,15 +50,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Calendar;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
 
 /**
  * Handler for chat messages.
  */
-@Component(label = "ChatMessageHandler", description = "Handler for internally delivered chat messages.", immediate = true)
+@Component(label = "ChatMessageHandler", description = "Handler for internally delivered chat messages.", immediate = true, metatype = true)
 @Services(value = { @Service(value = MessageTransport.class),
     @Service(value = MessageProfileWriter.class) })
 @Properties(value = {
@@ -77,39 +88,68 @@ public class ChatMessageHandler implements MessageTransport, MessageProfileWrite
   @Reference
   protected transient ProfileService profileService;
 
+  @Property(intValue = 5, description = "The maximum number of administrative sessions kept for delivering chat messages.")
+  static final String SESSION_POOL_SIZE = "sakai.chat.session.pool.size";
+
+  /**
+   * The idle administrative sessions. Guarded by itself.
+   */
+  private final LinkedList<Session> sessions = new LinkedList<Session>();
+  private int sessionPoolSize = 5;
+
   /**
    * Default constructor
    */
   public ChatMessageHandler() {
   }
 
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> properties) {
+    sessionPoolSize = OsgiUtil.toInteger(properties.get(SESSION_POOL_SIZE), 5);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> properties) {
+    synchronized (sessions) {
+      for (Session session : sessions) {
+        session.logout();
+      }
+      sessions.clear();
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
+   * All the copies of the message are created in one batch that is saved once.
+   *
    * @see org.sakaiproject.nakamura.api.message.MessageTransport#send(org.sakaiproject.nakamura.api.message.MessageRoutes,
    *      org.osgi.service.event.Event, javax.jcr.Node)
    */
   public void send(MessageRoutes routes, Event event, Node originalMessage) {
+    Session session = null;
     try {
+      session = borrowSession();
 
-      Session session = slingRepository.loginAdministrative(null); // usage checked and Ok
-      // KERN-577
-
+      Set<String> updated = new LinkedHashSet<String>();
+      String messageId = null;
       for (MessageRoute route : routes) {
         if (CHAT_TRANSPORT.equals(route.getTransport())) {
-          LOG.info("Started handling a message.");
           String rcpt = route.getRcpt();
+          LOG.debug("Delivering a chat message to {}", rcpt);
+          if (messageId == null) {
+            messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)
+                .getString();
+          }
           // the path were we want to save messages in.
-          String messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)
-              .getString();
           String toPath = messagingService.getFullPathToMessage(rcpt, messageId, session);
 
           // Copy the node into the user his folder.
-          JcrUtils.deepGetOrCreateNode(session, toPath.substring(0, toPath
+          Node parent = JcrUtils.deepGetOrCreateNode(session, toPath.substring(0, toPath
               .lastIndexOf("/")));
-          session.save();
-          session.getWorkspace().copy(originalMessage.getPath(), toPath);
-          Node n = JcrUtils.deepGetOrCreateNode(session, toPath);
+          Node n = copyNode(originalMessage, parent, toPath.substring(toPath
+              .lastIndexOf("/") + 1));
 
           // Add some extra properties on the just created node.
           n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
@@ -120,26 +160,129 @@ public class ChatMessageHandler implements MessageTransport, MessageProfileWrite
               MessageConstants.STATE_NOTIFIED);
           n.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
               MessageConstants.SAKAI_MESSAGE_RT);
-          session.save();
+          updated.add(rcpt);
+        }
+      }
+
+      if (updated.isEmpty()) {
+        return;
+      }
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+
+      Calendar cal = originalMessage.getProperty(MessageConstants.PROP_SAKAI_CREATED)
+          .getDate();
+      String from = originalMessage.getProperty(MessageConstants.PROP_SAKAI_FROM)
+          .getString();
 
-          long time = System.currentTimeMillis();
-          Calendar cal = originalMessage.getProperty(MessageConstants.PROP_SAKAI_CREATED)
-              .getDate();
-          time = cal.getTimeInMillis();
+      // Set the rcpts and the from in the cache.
+      updated.add(from);
+      chatManagerService.putAll(updated, cal.getTimeInMillis());
 
-          String from = originalMessage.getProperty(MessageConstants.PROP_SAKAI_FROM)
-              .getString();
+    } catch (RepositoryException e) {
+      LOG.error(e.getMessage(), e);
+      discardChanges(session);
+    } finally {
+      returnSession(session);
+    }
+  }
+
+  /**
+   * Copies a node and everything under it in the session, without saving it. Unlike
+   * {@link javax.jcr.Workspace#copy(String, String)} this doesn't write anything to the
+   * repository until the session is saved.
+   *
+   * @param source
+   *          The node to copy.
+   * @param parent
+   *          The node the copy is created under.
+   * @param name
+   *          The name of the copy.
+   * @return The copy.
+   * @throws RepositoryException
+   */
+  protected Node copyNode(Node source, Node parent, String name)
+      throws RepositoryException {
+    Node copy;
+    if (parent.hasNode(name)) {
+      copy = parent.getNode(name);
+    } else {
+      copy = parent.addNode(name, source.getPrimaryNodeType().getName());
+    }
+    for (NodeType mixin : source.getMixinNodeTypes()) {
+      copy.addMixin(mixin.getName());
+    }
+    PropertyIterator properties = source.getProperties();
+    while (properties.hasNext()) {
+      javax.jcr.Property p = properties.nextProperty();
+      if (p.getDefinition().isProtected()) {
+        continue;
+      }
+      if (p.isMultiple()) {
+        copy.setProperty(p.getName(), p.getValues());
+      } else {
+        copy.setProperty(p.getName(), p.getValue());
+      }
+    }
+    NodeIterator children = source.getNodes();
+    while (children.hasNext()) {
+      Node child = children.nextNode();
+      copyNode(child, copy, child.getName());
+    }
+    return copy;
+  }
 
-          // Set the rcpt in the cache.
-          chatManagerService.put(rcpt, time);
-          // Set the from in the cache
-          chatManagerService.put(from, time);
+  /**
+   * @return An idle administrative session, or a new one if there is none.
+   * @throws RepositoryException
+   */
+  private Session borrowSession() throws RepositoryException {
+    synchronized (sessions) {
+      if (!sessions.isEmpty()) {
+        return sessions.removeFirst();
+      }
+    }
+    return slingRepository.loginAdministrative(null); // usage checked and Ok
+    // KERN-577
+  }
 
+  /**
+   * Keeps a session for the next message, or logs it out if enough are kept already.
+   * 
+   * @param session
+   *          The session, can be null.
+   */
+  private void returnSession(Session session) {
+    if (session == null) {
+      return;
+    }
+    if (session.isLive()) {
+      synchronized (sessions) {
+        if (sessions.size() < sessionPoolSize) {
+          sessions.addFirst(session);
+          return;
         }
       }
+    }
+    session.logout();
+  }
 
+  /**
+   * Drops the unsaved changes of a session, so it can be used again.
+   * 
+   * @param session
+   *          The session, can be null.
+   */
+  private void discardChanges(Session session) {
+    if (session == null) {
+      return;
+    }
+    try {
+      session.refresh(false);
     } catch (RepositoryException e) {
-      LOG.error(e.getMessage(), e);
+      LOG.warn("Unable to discard the changes of a chat delivery, dropping the session.", e);
+      session.logout();
     }
   }
 
@@ -18,6 +18,10 @@
 package org.sakaiproject.nakamura.chat;
 
 import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -26,7 +30,12 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+import org.mortbay.util.ajax.WaitingContinuation;
 import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.chat.ChatUpdateListener;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -39,23 +48,39 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import javax.servlet.ServletException;
 
 /**
- * Will check if a user has any chat updates.
+ * Will check if a user has any chat updates. When asked to, a request without an update
+ * is suspended until there is one or a timeout expires.
  */
-@SlingServlet(selectors = { "chatupdate" }, resourceTypes = { "sakai/messagestore" }, generateComponent = true, methods = { "GET" })
+@SlingServlet(selectors = { "chatupdate" }, resourceTypes = { "sakai/messagestore" }, generateComponent = false, methods = { "GET" })
+@Component(metatype = true, immediate = true)
 @Reference(referenceInterface = ChatManagerService.class, name = "ChatManagerService")
 @ServiceDocumentation(name = "ChatServlet", shortDescription = "Check for new chat messages.", description = "Provides a mechanism to check if the currently logged in user has new chat messages awaiting.", bindings = @ServiceBinding(type = BindingType.TYPE, bindings = "sakai/messagestore", selectors = @ServiceSelector(name = "chatupdate")), methods = { @ServiceMethod(name = "GET", response = {
     @ServiceResponse(code = 200, description = "Normal retrieval."),
     @ServiceResponse(code = 500, description = "Something went wrong trying to look for an update.") }, description = "GETs to this servlet will produce a JSON object with 3 keys. \n"
-    + "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in millisecnds.</li><li>pulltime: The current time in a JCR formatted date.<li></ul>", parameters = @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servet. If this variable is ommitted it uses the current time.")) })
+    + "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in millisecnds.</li><li>pulltime: The current time in a JCR formatted date.<li></ul>", parameters = {
+    @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servet. If this variable is ommitted it uses the current time."),
+    @ServiceParameter(name = "wait", description = "If true and there is no update, the response is held back until there is one or the wait timeout expires. Without it, or when too many requests are waiting already, the servlet answers right away.") }) })
 public class ChatServlet extends SlingSafeMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(ChatServlet.class);
   private static final long serialVersionUID = -4011626674940239621L;
   private transient ChatManagerService chatManagerService;
 
+  @Property(longValue = 30000, description = "The maximum time in ms a request asking to wait is held back when there is no chat update.")
+  static final String WAIT_TIMEOUT = "sakai.chat.wait.timeout";
+
+  private long waitTimeout = 30000;
+
+  @Property(intValue = 50, description = "The maximum number of requests that wait for a chat update while holding a request thread, on connectors that can't suspend a request without one. Requests beyond it are answered right away.")
+  static final String WAIT_MAX_THREADS = "sakai.chat.wait.max_threads";
+
+  private transient volatile Semaphore waitPermits = new Semaphore(50);
+
   // We use this format rather than ISO8601 because Jackrabbit uses a subset (8601:2000)
   // See jsr170.pdf - 6.2.5.1
   private final static FastDateFormat dateFormat;
@@ -71,6 +96,32 @@ public class ChatServlet extends SlingSafeMethodsServlet {
     this.chatManagerService = null;
   }
 
+  @Activate
+  @Modified
+  protected void activate(Map<?, ?> properties) {
+    waitTimeout = OsgiUtil.toLong(properties.get(WAIT_TIMEOUT), 30000);
+    // Requests waiting already give their permit back to the semaphore they took it from.
+    waitPermits = new Semaphore(Math.max(0, OsgiUtil.toInteger(properties
+        .get(WAIT_MAX_THREADS), 50)));
+  }
+
+  /**
+   * Resumes a suspended request when the chat messages of its user get updated.
+   */
+  private static class ContinuationListener implements ChatUpdateListener {
+    private final Continuation continuation;
+    private volatile long updated;
+
+    private ContinuationListener(Continuation continuation) {
+      this.continuation = continuation;
+    }
+
+    public void chatUpdated(String userID, long time) {
+      updated = time;
+      continuation.resume();
+    }
+  }
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -106,7 +157,13 @@ public class ChatServlet extends SlingSafeMethodsServlet {
       }
     }
 
-    LOGGER.info("Returned time = {}, update = {}", time, hasUpdate);
+    if (!hasUpdate && waitTimeout > 0
+        && "true".equals(request.getParameter("wait"))) {
+      hasUpdate = waitForUpdate(request, userID, time);
+      requestTime = System.currentTimeMillis();
+    }
+
+    LOGGER.debug("Returned time = {}, update = {}", time, hasUpdate);
 
     Calendar cal = Calendar.getInstance();
     cal.setTimeInMillis(time);
@@ -132,8 +189,64 @@ public class ChatServlet extends SlingSafeMethodsServlet {
       LOGGER.warn("Unable to parse JSON for user {} and time {}", userID, time);
       response.sendError(500, "Unable to parse JSON.");
     }
+  }
+
+  /**
+   * Suspends the request until the chat messages of the user are updated after a time or
+   * the wait timeout expires. On the Jetty NIO connectors the suspended request gives
+   * back its thread (suspend throws a RetryRequest which has to go up to Jetty) and this
+   * servlet is called again when it is resumed or expires. On other connectors the
+   * thread waits, so only so many of those wait at a time and the others are answered
+   * right away.
+   * 
+   * @param request
+   * @param userID
+   * @param time
+   *          The last time the user retrieved.
+   * @return If there is an update.
+   */
+  private boolean waitForUpdate(SlingHttpServletRequest request, String userID,
+      long time) {
+    Continuation continuation = ContinuationSupport.getContinuation(request, null);
+    ContinuationListener listener = (ContinuationListener) continuation.getObject();
+    if (listener == null) {
+      Semaphore permits = null;
+      if (continuation instanceof WaitingContinuation) {
+        permits = waitPermits;
+        if (!permits.tryAcquire()) {
+          // Too many threads are waiting already, the client will just poll again.
+          return false;
+        }
+      }
+      try {
+        listener = new ContinuationListener(continuation);
+        if (!chatManagerService.addListener(userID, listener)) {
+          // Too many requests are suspended already, the client will just poll again.
+          return false;
+        }
+        continuation.setObject(listener);
+        // An update could have come in before the listener was added.
+        if (!hasUpdate(userID, time)) {
+          continuation.suspend(waitTimeout);
+        }
+      } finally {
+        if (permits != null) {
+          permits.release();
+        }
+      }
+    }
+    chatManagerService.removeListener(userID, listener);
+    // An update on another server may wake the request before the cache has it here.
+    return listener.updated > time || hasUpdate(userID, time);
+  }
 
-    // Make sure the connection is not keep-alive.
-    response.setHeader("Connection", "close");
+  /**
+   * @param userID
+   * @param time
+   * @return If the chat messages of the user were updated after a time.
+   */
+  private boolean hasUpdate(String userID, long time) {
+    Long lastUpdate = chatManagerService.get(userID);
+    return lastUpdate != null && time < lastUpdate;
   }
 }
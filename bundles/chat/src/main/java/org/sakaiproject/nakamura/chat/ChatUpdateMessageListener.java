@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Wakes up the requests on this server that wait for chat updates made on the other
+ * servers of the cluster. The updates reach JMS as events that the OSGi JMS bridge sends
+ * on.
+ */
+@Component(immediate = true)
+public class ChatUpdateMessageListener implements MessageListener {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ChatUpdateMessageListener.class);
+
+  /**
+   * The property the OSGi JMS bridge puts the ID of the server that sent a message in.
+   */
+  static final String CLUSTER_SERVER_ID = "clusterServerId";
+
+  @Reference
+  protected ConnectionFactoryService connFactoryService;
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
+  @Reference
+  protected ChatManagerService chatManagerService;
+
+  private Connection connection;
+  private String serverId;
+
+  protected void activate(ComponentContext componentContext) {
+    serverId = clusterTrackingService.getCurrentServerId();
+    try {
+      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic dest = session.createTopic(ChatManagerService.TOPIC_CHAT_UPDATE);
+      MessageConsumer consumer = session.createConsumer(dest);
+      consumer.setMessageListener(this);
+      connection.start();
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (JMSException e1) {
+        }
+      }
+    }
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  @SuppressWarnings("unchecked")
+  public void onMessage(Message message) {
+    try {
+      // The requests on this server were woken up when the update was made.
+      String fromServer = message.getStringProperty(CLUSTER_SERVER_ID);
+      if (serverId != null && serverId.equals(fromServer)) {
+        return;
+      }
+      List<String> userIDs = (List<String>) message
+          .getObjectProperty(ChatManagerService.EVENT_USERS);
+      long time = message.getLongProperty(ChatManagerService.EVENT_TIME);
+      if (userIDs != null) {
+        ((ChatManagerServiceImpl) chatManagerService).notifyListeners(userIDs, time);
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+}
@@ -43,11 +43,15 @@ import java.util.ArrayList;
 import java.util.Calendar;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
-import javax.jcr.Workspace;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
 
 /**
  *
@@ -123,10 +127,35 @@ public class ChatMessageHandlerTest {
     expect(originalMessage.getProperty(MessageConstants.PROP_SAKAI_FROM))
         .andReturn(fromProp);
 
-    replay(propId, fromProp, createdProp, originalMessage);
+    NodeType nodeType = createMock(NodeType.class);
+    expect(nodeType.getName()).andReturn("nt:unstructured").anyTimes();
+    expect(originalMessage.getPrimaryNodeType()).andReturn(nodeType);
+    expect(originalMessage.getMixinNodeTypes()).andReturn(new NodeType[0]);
+
+    // One property that is copied and a protected one that isn't.
+    Property primaryType = createMock(Property.class);
+    PropertyDefinition protectedDefinition = createMock(PropertyDefinition.class);
+    expect(protectedDefinition.isProtected()).andReturn(true);
+    expect(primaryType.getDefinition()).andReturn(protectedDefinition);
+    Property body = createMock(Property.class);
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(definition.isProtected()).andReturn(false);
+    expect(body.getDefinition()).andReturn(definition);
+    expect(body.isMultiple()).andReturn(false);
+    expect(body.getName()).andReturn("sakai:body");
+    Value bodyValue = createMock(Value.class);
+    expect(body.getValue()).andReturn(bodyValue);
+    PropertyIterator properties = createMock(PropertyIterator.class);
+    expect(properties.hasNext()).andReturn(true).times(2).andReturn(false);
+    expect(properties.nextProperty()).andReturn(primaryType).andReturn(body);
+    expect(originalMessage.getProperties()).andReturn(properties);
+    NodeIterator children = createMock(NodeIterator.class);
+    expect(children.hasNext()).andReturn(false);
+    expect(originalMessage.getNodes()).andReturn(children);
+
+    replay(propId, fromProp, createdProp, originalMessage, nodeType, primaryType,
+        protectedDefinition, body, definition, bodyValue, properties, children);
 
-    expect(adminSession.itemExists("/_user/message/johndoe/12345")).andReturn(
-        false);
     expect(adminSession.itemExists("/_user/message/johndoe")).andReturn(true)
         .anyTimes();
 
@@ -134,15 +163,11 @@ public class ChatMessageHandlerTest {
 
     Node msgStore = createMock(Node.class);
     expect(msgStore.hasNode("12345")).andReturn(false).anyTimes();
-    expect(msgStore.addNode("12345")).andReturn(messageNode).anyTimes();
+    expect(msgStore.addNode("12345", "nt:unstructured")).andReturn(messageNode);
     expect(adminSession.getItem("/_user/message/johndoe")).andReturn(msgStore)
         .anyTimes();
-    adminSession.save();
-
-    Workspace workSpace = createMock(Workspace.class);
-    workSpace.copy(fromPath, "/_user/message/johndoe/12345");
-    expect(adminSession.getWorkspace()).andReturn(workSpace);
 
+    expect(messageNode.setProperty("sakai:body", bodyValue)).andReturn(null);
     expect(messageNode.setProperty(MessageConstants.PROP_SAKAI_READ, false))
         .andReturn(null);
     expect(messageNode.setProperty(MessageConstants.PROP_SAKAI_TO, rcpt))
@@ -157,7 +182,10 @@ public class ChatMessageHandlerTest {
         messageNode.setProperty(
             JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
             MessageConstants.SAKAI_MESSAGE_RT)).andReturn(null);
+    // Everything is saved at once.
+    expect(adminSession.hasPendingChanges()).andReturn(true);
     adminSession.save();
+    expect(adminSession.isLive()).andReturn(true);
 
     replay(messageNode, msgStore, adminSession);
 
@@ -170,6 +198,7 @@ public class ChatMessageHandlerTest {
 
     assertEquals(time, chatManagerService.get("jack"));
     assertEquals(time, chatManagerService.get("johndoe"));
+    verify(messageNode, msgStore, adminSession, properties);
   }
 
   public class MessageRoutesTest extends ArrayList<MessageRoute> implements
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.message.AbstractMessageRoute;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageRoute;
+import org.sakaiproject.nakamura.api.message.MessageRoutes;
+import org.sakaiproject.nakamura.api.message.MessagingService;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+
+/**
+ * Measures the delivery of chat messages to a growing number of recipients.
+ */
+public class ChatMessageHandlerThroughputTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ChatMessageHandlerThroughputTest.class);
+
+  private String messageId = "12345";
+  private ChatManagerServiceImpl chatManagerService;
+
+  @Before
+  public void setUp() {
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache("chat", CacheScope.CLUSTERREPLICATED)).andReturn(
+        new MapCacheImpl<Object>()).anyTimes();
+    replay(cacheManagerService);
+    chatManagerService = new ChatManagerServiceImpl();
+    chatManagerService.bindCacheManagerService(cacheManagerService);
+  }
+
+  @Test
+  public void testDeliveryThroughput() throws Exception {
+    // A repository where a save takes a millisecond.
+    final AtomicInteger saves = new AtomicInteger();
+    Session session = createNiceMock(Session.class);
+    Node msgStore = createNiceMock(Node.class);
+    Node messageNode = createNiceMock(Node.class);
+    expect(session.itemExists((String) anyObject())).andStubReturn(true);
+    expect(session.getItem((String) anyObject())).andStubReturn(msgStore);
+    expect(session.hasPendingChanges()).andStubReturn(true);
+    expect(session.isLive()).andStubReturn(true);
+    session.save();
+    expectLastCall().andStubAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        saves.incrementAndGet();
+        Thread.sleep(1);
+        return null;
+      }
+    });
+    expect(msgStore.addNode((String) anyObject(), (String) anyObject())).andStubReturn(
+        messageNode);
+
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session);
+    MessagingService messaging = createNiceMock(MessagingService.class);
+    expect(
+        messaging.getFullPathToMessage((String) anyObject(), (String) anyObject(),
+            (Session) anyObject())).andStubAnswer(new IAnswer<String>() {
+      public String answer() throws Throwable {
+        Object[] args = getCurrentArguments();
+        return "/_user/message/" + args[0] + "/" + args[1];
+      }
+    });
+
+    Node originalMessage = createNiceMock(Node.class);
+    Property idProp = createNiceMock(Property.class);
+    expect(idProp.getString()).andStubReturn(messageId);
+    Property fromProp = createNiceMock(Property.class);
+    expect(fromProp.getString()).andStubReturn("jack");
+    Property createdProp = createNiceMock(Property.class);
+    expect(createdProp.getDate()).andStubReturn(Calendar.getInstance());
+    NodeType nodeType = createNiceMock(NodeType.class);
+    expect(nodeType.getName()).andStubReturn("nt:unstructured");
+    expect(originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)).andStubReturn(
+        idProp);
+    expect(originalMessage.getProperty(MessageConstants.PROP_SAKAI_FROM))
+        .andStubReturn(fromProp);
+    expect(originalMessage.getProperty(MessageConstants.PROP_SAKAI_CREATED))
+        .andStubReturn(createdProp);
+    expect(originalMessage.getPrimaryNodeType()).andStubReturn(nodeType);
+    expect(originalMessage.getMixinNodeTypes()).andStubReturn(new NodeType[0]);
+    PropertyIterator properties = createNiceMock(PropertyIterator.class);
+    expect(originalMessage.getProperties()).andStubReturn(properties);
+    NodeIterator children = createNiceMock(NodeIterator.class);
+    expect(originalMessage.getNodes()).andStubReturn(children);
+    replay(session, msgStore, messageNode, repository, messaging, originalMessage,
+        idProp, fromProp, createdProp, nodeType, properties, children);
+
+    ChatMessageHandler handler = new ChatMessageHandler();
+    handler.chatManagerService = chatManagerService;
+    handler.messagingService = messaging;
+    handler.slingRepository = repository;
+
+    int sends = 50;
+    for (int recipients : new int[] { 1, 10, 50 }) {
+      MessageRoutes routes = new Routes();
+      for (int i = 0; i < recipients; i++) {
+        routes.add(new AbstractMessageRoute("chat:user" + i) {
+        });
+      }
+      saves.set(0);
+      long start = System.nanoTime();
+      for (int i = 0; i < sends; i++) {
+        handler.send(routes, null, originalMessage);
+      }
+      long time = System.nanoTime() - start;
+      assertEquals(sends, saves.get());
+      LOGGER.info("{} chat messages to {} recipients: {} ms, {} saves", new Object[] {
+          sends, recipients, time / 1000000, saves.get() });
+    }
+    assertNotNull(chatManagerService.get("user49"));
+
+    // The one session was used for everything.
+    verify(repository);
+  }
+
+  private static class Routes extends ArrayList<MessageRoute> implements MessageRoutes {
+    private static final long serialVersionUID = 1L;
+  }
+
+}
@@ -95,7 +95,6 @@ public class ChatServletTest {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
     expect(response.getWriter()).andReturn(printWriter);
-    response.setHeader("Connection", "close");
     replay(request, response);
 
     chatServlet.doGet(request, response);
@@ -114,12 +113,12 @@ public class ChatServletTest {
     RequestParameter param = createMock(RequestParameter.class);
     expect(param.getString()).andReturn("100");
     expect(request.getRequestParameter("t")).andReturn(param);
+    expect(request.getParameter("wait")).andReturn(null);
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     PrintWriter printWriter = new PrintWriter(baos);
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
     expect(response.getWriter()).andReturn(printWriter);
-    response.setHeader("Connection", "close");
     replay(param, request, response);
 
     // User1 gets a message at 50
@@ -145,7 +144,6 @@ public class ChatServletTest {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
     expect(response.getWriter()).andReturn(printWriter);
-    response.setHeader("Connection", "close");
     replay(param, request, response);
 
     // User1 gets a message at 50
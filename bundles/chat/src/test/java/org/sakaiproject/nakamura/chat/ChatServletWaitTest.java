@@ -0,0 +1,413 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.json.JSONObject;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.mortbay.util.ajax.Continuation;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Tests the requests that wait for a chat update.
+ */
+public class ChatServletWaitTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatServletWaitTest.class);
+  private static final String CONTINUATION = "org.mortbay.jetty.ajax.Continuation";
+
+  private ChatManagerServiceImpl chatManagerService;
+  private ChatServlet chatServlet;
+
+  /**
+   * What Jetty's NIO connectors throw to give back the thread of a suspended request.
+   */
+  private static class RetryRequest extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Behaves like the continuation of the Jetty NIO connectors, without the retries.
+   */
+  private static class RetryContinuation implements Continuation {
+    private Object object;
+    private boolean pending;
+    private boolean resumed;
+    private boolean isNew = true;
+
+    public synchronized boolean suspend(long timeout) {
+      if (!isNew) {
+        // The request is dispatched again.
+        boolean r = resumed;
+        resumed = false;
+        pending = false;
+        return r;
+      }
+      isNew = false;
+      pending = true;
+      throw new RetryRequest();
+    }
+
+    public synchronized void resume() {
+      resumed = true;
+    }
+
+    public synchronized void reset() {
+      pending = false;
+      resumed = false;
+    }
+
+    public synchronized boolean isNew() {
+      return isNew;
+    }
+
+    public synchronized boolean isPending() {
+      return pending;
+    }
+
+    public synchronized boolean isResumed() {
+      return resumed;
+    }
+
+    public Object getObject() {
+      return object;
+    }
+
+    public void setObject(Object object) {
+      this.object = object;
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache("chat", CacheScope.CLUSTERREPLICATED)).andReturn(
+        new MapCacheImpl<Object>()).anyTimes();
+    replay(cacheManagerService);
+
+    chatManagerService = new ChatManagerServiceImpl();
+    chatManagerService.bindCacheManagerService(cacheManagerService);
+    chatManagerService.activate(new HashMap<String, Object>());
+
+    chatServlet = new ChatServlet();
+    chatServlet.bindChatManagerService(chatManagerService);
+    chatServlet.activate(new HashMap<String, Object>());
+  }
+
+  /**
+   * @return A request on a connector that waits on the request thread.
+   */
+  private SlingHttpServletRequest createRequest(String user, long t) {
+    return createRequest(user, t, null);
+  }
+
+  private SlingHttpServletRequest createRequest(String user, long t,
+      Continuation continuation) {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getRemoteUser()).andReturn(user).anyTimes();
+    RequestParameter param = createMock(RequestParameter.class);
+    expect(param.getString()).andReturn(Long.toString(t)).anyTimes();
+    expect(request.getRequestParameter("t")).andReturn(param).anyTimes();
+    expect(request.getParameter("wait")).andReturn("true").anyTimes();
+    expect(request.getAttribute(CONTINUATION)).andReturn(continuation).anyTimes();
+    replay(param, request);
+    return request;
+  }
+
+  private SlingHttpServletResponse createResponse(StringWriter writer) throws Exception {
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    expect(response.getWriter()).andReturn(new PrintWriter(writer, true));
+    replay(response);
+    return response;
+  }
+
+  @Test
+  public void testResumedByUpdate() throws Exception {
+    chatManagerService.put("jack", 50);
+    final SlingHttpServletRequest request = createRequest("jack", 100);
+    final StringWriter writer = new StringWriter();
+    final SlingHttpServletResponse response = createResponse(writer);
+
+    long start = System.currentTimeMillis();
+    Thread poller = startPoller(request, response);
+    while (chatManagerService.getListenerCount() == 0) {
+      Thread.sleep(5);
+    }
+    // Somebody else getting a message leaves the request waiting.
+    chatManagerService.put("jill", 200);
+    Thread.sleep(50);
+    assertTrue(poller.isAlive());
+
+    chatManagerService.put("jack", 200);
+    poller.join(5000);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(true, new JSONObject(writer.toString()).get("update"));
+    assertEquals(0, chatManagerService.getListenerCount());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ChatServlet.WAIT_TIMEOUT, 50L);
+    chatServlet.activate(properties);
+    chatManagerService.put("jack", 50);
+
+    StringWriter writer = new StringWriter();
+    long start = System.currentTimeMillis();
+    chatServlet.doGet(createRequest("jack", 100), createResponse(writer));
+    assertTrue(System.currentTimeMillis() - start >= 50);
+    assertEquals(false, new JSONObject(writer.toString()).get("update"));
+    assertEquals(0, chatManagerService.getListenerCount());
+  }
+
+  @Test
+  public void testTooManyWaiting() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ChatManagerServiceImpl.MAX_LISTENERS, 0);
+    chatManagerService.activate(properties);
+    chatManagerService.put("jack", 50);
+
+    // Nothing can wait, the request is answered right away.
+    StringWriter writer = new StringWriter();
+    chatServlet.doGet(createRequest("jack", 100), createResponse(writer));
+    assertEquals(false, new JSONObject(writer.toString()).get("update"));
+  }
+
+  @Test
+  public void testIdlePollers() throws Exception {
+    int users = 1000;
+    int pollersPerUser = 10;
+    for (int i = 0; i < users; i++) {
+      chatManagerService.put("user" + i, 50);
+    }
+
+    List<SlingHttpServletRequest> requests = new ArrayList<SlingHttpServletRequest>();
+    List<RetryContinuation> continuations = new ArrayList<RetryContinuation>();
+    for (int i = 0; i < users * pollersPerUser; i++) {
+      RetryContinuation continuation = new RetryContinuation();
+      continuations.add(continuation);
+      requests.add(createRequest("user" + (i % users), 100, continuation));
+    }
+
+    long start = System.nanoTime();
+    for (SlingHttpServletRequest request : requests) {
+      try {
+        chatServlet.doGet(request, null);
+        fail("The request should have been suspended.");
+      } catch (RetryRequest e) {
+        // Suspended, the thread is free again.
+      }
+    }
+    long suspended = System.nanoTime() - start;
+    // None of them holds a thread, so the thread budget doesn't apply.
+    assertEquals(users * pollersPerUser, chatManagerService.getListenerCount());
+
+    // A message for one user only resumes the requests of that user.
+    start = System.nanoTime();
+    chatManagerService.put("user42", 200);
+    long resumed = System.nanoTime() - start;
+    for (int i = 0; i < continuations.size(); i++) {
+      assertEquals(i % users == 42, continuations.get(i).isResumed());
+    }
+    assertEquals((users - 1) * pollersPerUser, chatManagerService.getListenerCount());
+
+    // They are dispatched again and see the update.
+    for (int i = 42; i < requests.size(); i += users) {
+      StringWriter writer = new StringWriter();
+      chatServlet.doGet(requests.get(i), createResponse(writer));
+      assertEquals(true, new JSONObject(writer.toString()).get("update"));
+    }
+
+    LOGGER.info("Suspended {} idle pollers in {} ms, resumed the {} of one user in {} us",
+        new Object[] { users * pollersPerUser, suspended / 1000000, pollersPerUser,
+            resumed / 1000 });
+  }
+
+  @Test
+  public void testUpdatePublishedToCluster() throws Exception {
+    EventAdmin eventAdmin = createMock(EventAdmin.class);
+    Capture<Event> event = new Capture<Event>();
+    eventAdmin.postEvent(EasyMock.capture(event));
+    replay(eventAdmin);
+    chatManagerService.bindEventAdmin(eventAdmin);
+
+    chatManagerService.putAll(Arrays.asList("jack", "jill"), 200);
+    verify(eventAdmin);
+    assertEquals(ChatManagerService.TOPIC_CHAT_UPDATE, event.getValue().getTopic());
+    assertEquals(Arrays.asList("jack", "jill"), event.getValue().getProperty(
+        ChatManagerService.EVENT_USERS));
+    assertEquals(200L, event.getValue().getProperty(ChatManagerService.EVENT_TIME));
+  }
+
+  @Test
+  public void testResumedByOtherServer() throws Exception {
+    ChatUpdateMessageListener messageListener = createMessageListener("server-1");
+    chatManagerService.put("jack", 50);
+    final StringWriter writer = new StringWriter();
+    Thread poller = startPoller(createRequest("jack", 100), createResponse(writer));
+    while (chatManagerService.getListenerCount() == 0) {
+      Thread.sleep(5);
+    }
+
+    // The update this server sent itself already woke up its requests.
+    messageListener.onMessage(createUpdateMessage("server-1", "jack", 200));
+    assertEquals(1, chatManagerService.getListenerCount());
+
+    // An update on another server wakes the request, even before the cache has it.
+    messageListener.onMessage(createUpdateMessage("server-2", "jack", 200));
+    poller.join(5000);
+    assertFalse(poller.isAlive());
+    assertEquals(true, new JSONObject(writer.toString()).get("update"));
+    assertEquals(0, chatManagerService.getListenerCount());
+  }
+
+  private ChatUpdateMessageListener createMessageListener(String serverId)
+      throws Exception {
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn(serverId).anyTimes();
+    ConnectionFactoryService connFactoryService = createMock(ConnectionFactoryService.class);
+    ConnectionFactory connectionFactory = createMock(ConnectionFactory.class);
+    Connection connection = createNiceMock(Connection.class);
+    Session session = createMock(Session.class);
+    Topic topic = createMock(Topic.class);
+    MessageConsumer consumer = createNiceMock(MessageConsumer.class);
+    expect(connFactoryService.getDefaultConnectionFactory()).andReturn(connectionFactory);
+    expect(connectionFactory.createConnection()).andReturn(connection);
+    expect(connection.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(session);
+    expect(session.createTopic(ChatManagerService.TOPIC_CHAT_UPDATE)).andReturn(topic);
+    expect(session.createConsumer(topic)).andReturn(consumer);
+    replay(clusterTrackingService, connFactoryService, connectionFactory, connection,
+        session, topic, consumer);
+
+    ChatUpdateMessageListener messageListener = new ChatUpdateMessageListener();
+    messageListener.clusterTrackingService = clusterTrackingService;
+    messageListener.connFactoryService = connFactoryService;
+    messageListener.chatManagerService = chatManagerService;
+    messageListener.activate(null);
+    return messageListener;
+  }
+
+  private Message createUpdateMessage(String serverId, String user, long time)
+      throws Exception {
+    Message message = createMock(Message.class);
+    expect(message.getStringProperty(ChatUpdateMessageListener.CLUSTER_SERVER_ID))
+        .andReturn(serverId).anyTimes();
+    expect(message.getObjectProperty(ChatManagerService.EVENT_USERS)).andReturn(
+        Arrays.asList(user)).anyTimes();
+    expect(message.getLongProperty(ChatManagerService.EVENT_TIME)).andReturn(time)
+        .anyTimes();
+    replay(message);
+    return message;
+  }
+
+  @Test
+  public void testThreadBudget() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ChatServlet.WAIT_MAX_THREADS, 1);
+    chatServlet.activate(properties);
+    chatManagerService.put("jack", 50);
+    chatManagerService.put("jill", 50);
+
+    // jack's request takes the only thread that may wait.
+    final SlingHttpServletRequest request = createRequest("jack", 100);
+    final StringWriter writer = new StringWriter();
+    final SlingHttpServletResponse response = createResponse(writer);
+    Thread poller = startPoller(request, response);
+    while (chatManagerService.getListenerCount() == 0) {
+      Thread.sleep(5);
+    }
+
+    // jill's request is answered right away.
+    StringWriter jillWriter = new StringWriter();
+    long start = System.currentTimeMillis();
+    chatServlet.doGet(createRequest("jill", 100), createResponse(jillWriter));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(false, new JSONObject(jillWriter.toString()).get("update"));
+    assertEquals(1, chatManagerService.getListenerCount());
+
+    // Once jack's request is answered, the thread can wait again.
+    chatManagerService.put("jack", 200);
+    poller.join(5000);
+    assertEquals(true, new JSONObject(writer.toString()).get("update"));
+    Thread jillPoller = startPoller(createRequest("jill", 100),
+        createResponse(new StringWriter()));
+    while (chatManagerService.getListenerCount() == 0) {
+      Thread.sleep(5);
+    }
+    chatManagerService.put("jill", 200);
+    jillPoller.join(5000);
+    assertEquals(0, chatManagerService.getListenerCount());
+  }
+
+  private Thread startPoller(final SlingHttpServletRequest request,
+      final SlingHttpServletResponse response) {
+    Thread poller = new Thread() {
+      @Override
+      public void run() {
+        try {
+          chatServlet.doGet(request, response);
+        } catch (Exception e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+    };
+    poller.start();
+    return poller;
+  }
+}
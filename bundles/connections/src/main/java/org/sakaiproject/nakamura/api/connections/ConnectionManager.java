@@ -59,4 +59,14 @@ public interface ConnectionManager {
    */
   List<String> getConnectedUsers(String user, ConnectionState state);
 
+  /**
+   * Get the state of the connection between two users, as seen by the first user.
+   *
+   * @param user the id of the user who owns the connection
+   * @param otherUser the id of the user at the other end of the connection
+   * @return the state of the connection, NONE if the users are not connected
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  ConnectionState getConnectionState(String user, String otherUser);
+
 }
@@ -38,11 +38,13 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.scheduler.Scheduler;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
@@ -53,12 +55,14 @@ import org.sakaiproject.nakamura.api.connections.ConnectionOperation;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -78,12 +82,18 @@ import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
 
 /**
- * Service for doing operations with connections.
+ * Service for doing operations with connections. The connection graph is held as an
+ * adjacency list per user in a cache, loaded from the contact store the first time a
+ * user is looked up and kept up to date as connections change state. The service is
+ * also run by the Sling Scheduler to check the cached graph against the store.
  */
 @Component(immediate = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
-@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
-@Service(value = ConnectionManager.class)
-public class ConnectionManagerImpl implements ConnectionManager {
+@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 3600L) })
+@Services(value = { @Service(value = ConnectionManager.class),
+    @Service(value = Runnable.class) })
+public class ConnectionManagerImpl implements ConnectionManager, Runnable {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ConnectionManagerImpl.class);
@@ -97,6 +107,38 @@ public class ConnectionManagerImpl implements ConnectionManager {
   @Reference
   protected ProfileService profileService;
 
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  /**
+   * The name of the cache holding the adjacency list of each user.
+   */
+  private static final String CONNECTION_GRAPH_CACHE = "connections.graph";
+
+  private Cache<UserConnections> connectionGraph;
+
+  /**
+   * Guards updates to the connection graph. The version is incremented whenever the
+   * graph is updated so that an adjacency list loaded from the store while a connection
+   * was changing is not cached.
+   */
+  private final Object graphLock = new Object();
+  private long graphVersion;
+
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+    // invalidated across the cluster, each instance reloads from the store.
+    connectionGraph = cacheManagerService.getCache(CONNECTION_GRAPH_CACHE,
+        CacheScope.CLUSTERINVALIDATED);
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    if (this.cacheManagerService == cacheManagerService) {
+      connectionGraph = null;
+      this.cacheManagerService = null;
+    }
+  }
+
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
   static {
@@ -267,6 +309,7 @@ public class ConnectionManagerImpl implements ConnectionManager {
       if (adminSession.hasPendingChanges()) {
         adminSession.save();
       }
+      updateConnectionGraph(thisUserId, otherUserId, sp);
 
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
@@ -334,41 +377,179 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.nakamura.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(String user, ConnectionState state) {
-    ArrayList<String> l = new ArrayList<String>();
+    return getUserConnections(user).getConnectedUsers(state);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getConnectionState(java.lang.String,
+   *      java.lang.String)
+   */
+  public ConnectionState getConnectionState(String user, String otherUser) {
+    return getUserConnections(user).getState(otherUser);
+  }
+
+  /**
+   * Get the adjacency list of a user from the connection graph, loading it from the
+   * contact store if it is not cached.
+   *
+   * @param user
+   *          the id of the user.
+   * @return the connections of the user.
+   * @throws IllegalStateException
+   *           if the contact store could not be read.
+   */
+  protected UserConnections getUserConnections(String user) {
+    Cache<UserConnections> graph = connectionGraph;
+    if (graph != null) {
+      UserConnections connections = graph.get(user);
+      if (connections != null) {
+        return connections;
+      }
+    }
+    long version;
+    synchronized (graphLock) {
+      version = graphVersion;
+    }
+    UserConnections connections = loadUserConnections(user);
+    if (graph != null) {
+      synchronized (graphLock) {
+        if (version == graphVersion && !graph.containsKey(user)) {
+          graph.put(user, connections);
+        }
+      }
+    }
+    return connections;
+  }
+
+  /**
+   * Apply a state transition to the connection graph. Users whose connections are not
+   * cached are left alone, they will be loaded from the store when next needed.
+   *
+   * @param thisUserId
+   *          the user performing the operation.
+   * @param otherUserId
+   *          the other user.
+   * @param sp
+   *          the states of the connection after the transition.
+   */
+  protected void updateConnectionGraph(String thisUserId, String otherUserId,
+      StatePair sp) {
+    Cache<UserConnections> graph = connectionGraph;
+    if (graph == null) {
+      return;
+    }
+    synchronized (graphLock) {
+      graphVersion++;
+      UserConnections thisConnections = graph.get(thisUserId);
+      if (thisConnections != null) {
+        graph.put(thisUserId, thisConnections.withState(otherUserId, sp.getThisState()));
+      }
+      UserConnections otherConnections = graph.get(otherUserId);
+      if (otherConnections != null) {
+        graph.put(otherUserId, otherConnections.withState(thisUserId, sp
+            .getOtherState()));
+      }
+    }
+  }
+
+  /**
+   * Load the adjacency list of a user from the contact store.
+   *
+   * @param user
+   *          the id of the user.
+   * @return the connections of the user.
+   * @throws IllegalStateException
+   *           if the contact store could not be read.
+   */
+  protected UserConnections loadUserConnections(String user) {
+    Map<String, ConnectionState> connections = new HashMap<String, ConnectionState>();
     // search string should look something like this
-    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\" and @sakai:state=\"ACCEPTED\"]"
+    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\"]"
     try {
       Session adminSession = slingRepository.loginAdministrative(null);
       try {
         UserManager um = AccessControlUtil.getUserManager(adminSession);
         Authorizable au = um.getAuthorizable(user);
-        // this will generate the bigstore path
-        String connectionPath = ConnectionUtils.getConnectionPathBase(au);
-        // create the search query string
-        String search = "/jcr:root" + ISO9075.encodePath(connectionPath)
-            + "//element(*)[@" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY
-            + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"";
-        if (state != null) {
-          search += " and @" + ConnectionConstants.SAKAI_CONNECTION_STATE + "=\""
-              + state.name() + "\"]";
-        } else {
-          search += "]";
-        }
-        QueryManager qm = adminSession.getWorkspace().getQueryManager();
-        Query query = qm.createQuery(search, Query.XPATH);
-        QueryResult result = query.execute();
-        NodeIterator nodeIterator = result.getNodes();
-        while (nodeIterator.hasNext()) {
-          Node node = nodeIterator.nextNode();
-          l.add(node.getName());
+        if (au != null) {
+          // this will generate the bigstore path
+          String connectionPath = ConnectionUtils.getConnectionPathBase(au);
+          // create the search query string
+          String search = "/jcr:root" + ISO9075.encodePath(connectionPath)
+              + "//element(*)[@" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY
+              + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"]";
+          QueryManager qm = adminSession.getWorkspace().getQueryManager();
+          Query query = qm.createQuery(search, Query.XPATH);
+          QueryResult result = query.execute();
+          NodeIterator nodeIterator = result.getNodes();
+          while (nodeIterator.hasNext()) {
+            Node node = nodeIterator.nextNode();
+            connections.put(node.getName(), getConnectionState(node));
+          }
         }
       } finally {
         adminSession.logout();
       }
+    } catch (ConnectionException e) {
+      throw new IllegalStateException(e.getMessage(), e);
     } catch (RepositoryException e) {
       throw new IllegalStateException(e.getMessage(), e);
     }
-    return l;
+    return new UserConnections(user, connections);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Invoked as a task by the Sling Scheduler, once an hour, to check the cached
+   * connection graph against the contact store.
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    try {
+      checkConsistency();
+    } catch (IllegalStateException e) {
+      LOGGER.warn("Unable to check the connection graph: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Compare every cached adjacency list with the contact store, replacing those that
+   * differ.
+   *
+   * @return the number of adjacency lists that were out of date.
+   */
+  protected int checkConsistency() {
+    Cache<UserConnections> graph = connectionGraph;
+    if (graph == null) {
+      return 0;
+    }
+    int repaired = 0;
+    for (UserConnections cached : graph.list()) {
+      String user = cached.getUserId();
+      long version;
+      synchronized (graphLock) {
+        version = graphVersion;
+      }
+      UserConnections stored = loadUserConnections(user);
+      if (!stored.equals(cached)) {
+        synchronized (graphLock) {
+          if (version == graphVersion) {
+            graph.put(user, stored);
+          } else {
+            // the graph changed while loading, let the next lookup reload.
+            graph.remove(user);
+          }
+        }
+        repaired++;
+      }
+    }
+    if (repaired > 0) {
+      LOGGER.warn("Repaired {} out of date entries in the connection graph", repaired);
+    }
+    return repaired;
   }
 
   protected Node getOrCreateConnectionNode(Session session, Authorizable fromUser,
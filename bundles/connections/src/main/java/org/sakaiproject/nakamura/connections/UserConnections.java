@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The adjacency list of one user in the connection graph: the state of every connection
+ * the user has, keyed by the id of the other user. Instances are immutable so that they
+ * can be shared between threads and placed in a replicated cache; a state change
+ * produces a new instance.
+ */
+public class UserConnections implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String userId;
+  private final HashMap<String, ConnectionState> connections;
+
+  /**
+   * @param userId
+   *          the user who owns the connections.
+   * @param connections
+   *          the state of each connection, keyed by the id of the other user.
+   */
+  public UserConnections(String userId, Map<String, ConnectionState> connections) {
+    this.userId = userId;
+    this.connections = new HashMap<String, ConnectionState>(connections);
+  }
+
+  /**
+   * @return the user who owns the connections.
+   */
+  public String getUserId() {
+    return userId;
+  }
+
+  /**
+   * @param otherUserId
+   *          the other user.
+   * @return the state of the connection to the other user, NONE if there is no
+   *         connection.
+   */
+  public ConnectionState getState(String otherUserId) {
+    ConnectionState state = connections.get(otherUserId);
+    if (state == null) {
+      return ConnectionState.NONE;
+    }
+    return state;
+  }
+
+  /**
+   * @param state
+   *          the state to match or null to match every connection.
+   * @return the ids of the users connected to with the given state.
+   */
+  public List<String> getConnectedUsers(ConnectionState state) {
+    List<String> users = new ArrayList<String>();
+    for (Entry<String, ConnectionState> connection : connections.entrySet()) {
+      if (state == null || state == connection.getValue()) {
+        users.add(connection.getKey());
+      }
+    }
+    return users;
+  }
+
+  /**
+   * @return the number of connections, in any state.
+   */
+  public int size() {
+    return connections.size();
+  }
+
+  /**
+   * @param otherUserId
+   *          the other user.
+   * @param state
+   *          the new state of the connection.
+   * @return a copy of these connections with the state of the connection to the other
+   *         user replaced.
+   */
+  public UserConnections withState(String otherUserId, ConnectionState state) {
+    UserConnections updated = new UserConnections(userId, connections);
+    updated.connections.put(otherUserId, state);
+    return updated;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return userId.hashCode() * 31 + connections.hashCode();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (obj instanceof UserConnections) {
+      UserConnections uc = (UserConnections) obj;
+      return userId.equals(uc.userId) && connections.equals(uc.connections);
+    }
+    return false;
+  }
+
+}
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.connections;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -36,10 +37,16 @@ import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.Node;
@@ -53,6 +60,9 @@ import javax.jcr.Value;
  */
 public class ConnectionManagerImplTest {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ConnectionManagerImplTest.class);
+
   private ConnectionManagerImpl connectionManager;
   private LockManager lockManager;
   private ProfileService profileService;
@@ -270,4 +280,148 @@ public class ConnectionManagerImplTest {
     verify(contactNode).setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, ConnectionConstants.SAKAI_CONTACT_RT);
     verify(contactNode).setProperty("jcr:reference", "bob-iden-tifi-er", PropertyType.REFERENCE);
   }
+
+  @Test
+  public void testConnectionGraphLoadedOnce() {
+    Map<String, Map<String, ConnectionState>> store = createStore();
+    CountingConnectionManager cm = createCountingConnectionManager(store);
+
+    List<String> accepted = cm.getConnectedUsers("alice", ConnectionState.ACCEPTED);
+    assertEquals(1, accepted.size());
+    assertEquals("bob", accepted.get(0));
+    assertEquals(2, cm.getConnectedUsers("alice", null).size());
+    assertEquals(ConnectionState.INVITED, cm.getConnectionState("alice", "charlie"));
+    assertEquals(ConnectionState.NONE, cm.getConnectionState("alice", "dave"));
+    assertEquals(1, cm.loads);
+  }
+
+  @Test
+  public void testConnectionGraphUpdatedByTransition() {
+    Map<String, Map<String, ConnectionState>> store = createStore();
+    CountingConnectionManager cm = createCountingConnectionManager(store);
+    cm.getConnectedUsers("alice", null);
+    cm.getConnectedUsers("charlie", null);
+
+    store.get("alice").put("charlie", ConnectionState.ACCEPTED);
+    store.get("charlie").put("alice", ConnectionState.ACCEPTED);
+    cm.updateConnectionGraph("charlie", "alice", new StatePairFinal(
+        ConnectionState.ACCEPTED, ConnectionState.ACCEPTED));
+
+    assertEquals(ConnectionState.ACCEPTED, cm.getConnectionState("alice", "charlie"));
+    assertEquals(ConnectionState.ACCEPTED, cm.getConnectionState("charlie", "alice"));
+    assertEquals(2, cm.getConnectedUsers("alice", ConnectionState.ACCEPTED).size());
+    assertEquals(2, cm.loads);
+    assertEquals(0, cm.checkConsistency());
+  }
+
+  @Test
+  public void testConsistencyCheckRepairsGraph() {
+    Map<String, Map<String, ConnectionState>> store = createStore();
+    CountingConnectionManager cm = createCountingConnectionManager(store);
+    cm.getConnectedUsers("alice", null);
+
+    // a change made to the store behind the back of the connection manager.
+    store.get("alice").put("bob", ConnectionState.NONE);
+    assertEquals(ConnectionState.ACCEPTED, cm.getConnectionState("alice", "bob"));
+
+    assertEquals(1, cm.checkConsistency());
+    assertEquals(ConnectionState.NONE, cm.getConnectionState("alice", "bob"));
+    assertEquals(0, cm.checkConsistency());
+  }
+
+  @Test
+  public void testConnectionGraphBenchmark() {
+    int users = 20;
+    int degree = 5000;
+    Map<String, Map<String, ConnectionState>> store = new HashMap<String, Map<String, ConnectionState>>();
+    for (int u = 0; u < users; u++) {
+      Map<String, ConnectionState> connections = new HashMap<String, ConnectionState>();
+      for (int c = 0; c < degree; c++) {
+        connections.put("contact" + c, c % 2 == 0 ? ConnectionState.ACCEPTED
+            : ConnectionState.PENDING);
+      }
+      store.put("user" + u, connections);
+    }
+    CountingConnectionManager cm = createCountingConnectionManager(store);
+
+    long start = System.currentTimeMillis();
+    int found = 0;
+    for (int i = 0; i < 1000; i++) {
+      found += cm.getConnectedUsers("user" + (i % users), ConnectionState.ACCEPTED).size();
+    }
+    long listing = System.currentTimeMillis() - start;
+    assertEquals(1000 * degree / 2, found);
+    assertEquals(users, cm.loads);
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < 100000; i++) {
+      assertTrue(cm.getConnectionState("user" + (i % users), "contact" + (i % degree)) != ConnectionState.NONE);
+    }
+    long lookups = System.currentTimeMillis() - start;
+
+    StatePair accepted = new StatePairFinal(ConnectionState.ACCEPTED,
+        ConnectionState.ACCEPTED);
+    start = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      cm.updateConnectionGraph("user" + (i % users), "contact" + (i % degree), accepted);
+    }
+    long updates = System.currentTimeMillis() - start;
+    assertEquals(users, cm.loads);
+
+    LOGGER.info("Connection graph of {} users with {} connections each:", users, degree);
+    LOGGER.info("  1000 connection listings took {} ms", listing);
+    LOGGER.info("  100000 state lookups took {} ms", lookups);
+    LOGGER.info("  1000 transitions took {} ms", updates);
+  }
+
+  private Map<String, Map<String, ConnectionState>> createStore() {
+    Map<String, Map<String, ConnectionState>> store = new HashMap<String, Map<String, ConnectionState>>();
+    Map<String, ConnectionState> alice = new HashMap<String, ConnectionState>();
+    alice.put("bob", ConnectionState.ACCEPTED);
+    alice.put("charlie", ConnectionState.INVITED);
+    store.put("alice", alice);
+    Map<String, ConnectionState> bob = new HashMap<String, ConnectionState>();
+    bob.put("alice", ConnectionState.ACCEPTED);
+    store.put("bob", bob);
+    Map<String, ConnectionState> charlie = new HashMap<String, ConnectionState>();
+    charlie.put("alice", ConnectionState.PENDING);
+    store.put("charlie", charlie);
+    return store;
+  }
+
+  private CountingConnectionManager createCountingConnectionManager(
+      Map<String, Map<String, ConnectionState>> store) {
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(
+        cacheManagerService.getCache(Matchers.anyString(), Matchers
+            .eq(CacheScope.CLUSTERINVALIDATED))).thenReturn(
+        new MapCacheImpl<Object>());
+    CountingConnectionManager cm = new CountingConnectionManager(store);
+    cm.bindCacheManagerService(cacheManagerService);
+    return cm;
+  }
+
+  /**
+   * A connection manager that loads connections from a map rather than the contact
+   * store, counting the loads.
+   */
+  private static class CountingConnectionManager extends ConnectionManagerImpl {
+    private final Map<String, Map<String, ConnectionState>> store;
+    private int loads;
+
+    CountingConnectionManager(Map<String, Map<String, ConnectionState>> store) {
+      this.store = store;
+    }
+
+    @Override
+    protected UserConnections loadUserConnections(String user) {
+      loads++;
+      Map<String, ConnectionState> connections = store.get(user);
+      if (connections == null) {
+        connections = new HashMap<String, ConnectionState>();
+      }
+      return new UserConnections(user, connections);
+    }
+  }
+
 }
@@ -22,14 +22,10 @@ import static javax.jcr.security.Privilege.JCR_REMOVE_CHILD_NODES;
 import static javax.jcr.security.Privilege.JCR_REMOVE_NODE;
 import static javax.jcr.security.Privilege.JCR_WRITE;
 
-import org.apache.jackrabbit.api.security.user.Authorizable;
-import org.apache.jackrabbit.api.security.user.UserManager;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
-import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -38,10 +34,10 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
@@ -147,8 +143,26 @@ public class Post {
   public void outputPostAsJSON(ExtendedJSONWriter writer,
       PresenceService presenceService, ProfileService profileService)
       throws JSONException, RepositoryException {
-    boolean canEdit = checkEdit();
-    boolean canDelete = checkDelete();
+    outputPostAsJSON(writer, new PostOutputContext(node.getSession(), presenceService,
+        profileService));
+  }
+
+  /**
+   * Writes this post and all the replies on it.
+   *
+   * @param writer
+   * @param context
+   *          Shared by all the posts that are written out for a request.
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public void outputPostAsJSON(ExtendedJSONWriter writer, PostOutputContext context)
+      throws JSONException, RepositoryException {
+    Set<String> privileges = context.getPrivileges(node);
+    boolean canEdit = privileges.contains(JCR_WRITE)
+        && privileges.contains(JCR_MODIFY_PROPERTIES);
+    boolean canDelete = canEdit && privileges.contains(JCR_REMOVE_NODE)
+        && privileges.contains(JCR_REMOVE_CHILD_NODES);
 
     // If this post has been marked as deleted, we dont show it.
     // we do however show the children of it.
@@ -160,7 +174,7 @@ public class Post {
     if (isDeleted && !canDelete) {
       // This post has been deleted and we dont have sufficient rights to edit, so we just
       // show the replies.
-      outputChildrenAsJSON(writer, presenceService, profileService);
+      outputChildrenAsJSON(writer, context);
     } else {
       writer.object();
 
@@ -175,8 +189,6 @@ public class Post {
       writer.key("canDelete");
       writer.value(canDelete);
 
-      Session session = node.getSession();
-      UserManager um = AccessControlUtil.getUserManager(session);
       // Show profile of editters.
       if (node.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
 
@@ -187,10 +199,7 @@ public class Post {
         writer.array();
         for (int i = 0; i < edittedBy.length; i++) {
           writer.object();
-          Authorizable au = um.getAuthorizable(edittedBy[i]);
-          ValueMap profile = profileService.getCompactProfileMap(au, session);
-          writer.valueMapInternals(profile);
-          PresenceUtils.makePresenceJSON(writer, edittedBy[i], presenceService, true);
+          context.writeProfile(writer, edittedBy[i]);
           writer.endObject();
         }
         writer.endArray();
@@ -203,10 +212,7 @@ public class Post {
       writer.array();
       for (String sender : senders) {
         writer.object();
-        Authorizable au = um.getAuthorizable(sender);
-        ValueMap profile = profileService.getCompactProfileMap(au, session);
-        writer.valueMapInternals(profile);
-        PresenceUtils.makePresenceJSON(writer, sender, presenceService, true);
+        context.writeProfile(writer, sender);
         writer.endObject();
       }
       writer.endArray();
@@ -215,7 +221,7 @@ public class Post {
       // All the replies on this post.
       writer.key("replies");
       writer.array();
-      outputChildrenAsJSON(writer, presenceService, profileService);
+      outputChildrenAsJSON(writer, context);
       writer.endArray();
 
       writer.endObject();
@@ -225,9 +231,15 @@ public class Post {
   public void outputChildrenAsJSON(ExtendedJSONWriter writer,
       PresenceService presenceService, ProfileService profileService)
       throws JSONException, RepositoryException {
-    LOG.info("this post {} has {} children", getPostId(), getChildren().size());
+    outputChildrenAsJSON(writer, new PostOutputContext(node.getSession(),
+        presenceService, profileService));
+  }
+
+  public void outputChildrenAsJSON(ExtendedJSONWriter writer, PostOutputContext context)
+      throws JSONException, RepositoryException {
+    LOG.debug("this post {} has {} children", getPostId(), getChildren().size());
     for (Post p : children) {
-      p.outputPostAsJSON(writer, presenceService, profileService);
+      p.outputPostAsJSON(writer, context);
     }
   }
 
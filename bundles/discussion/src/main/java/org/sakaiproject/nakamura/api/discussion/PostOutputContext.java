@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.discussion;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+/**
+ * What the posts of a discussion need while they are written out as JSON. The same users
+ * write and edit post after post, so their profiles and presence are looked up once and
+ * reused for the rest of the output. An instance should only be used for one request.
+ */
+public class PostOutputContext {
+
+  public static final Logger LOG = LoggerFactory.getLogger(PostOutputContext.class);
+
+  private final Session session;
+  private final PresenceService presenceService;
+  private final ProfileService profileService;
+  private UserManager userManager;
+  private AccessControlManager accessControlManager;
+  private final Map<String, ValueMap> profiles = new HashMap<String, ValueMap>();
+  private final Map<String, String[]> presence = new HashMap<String, String[]>();
+
+  /**
+   * @param session
+   *          The session of the request.
+   * @param presenceService
+   * @param profileService
+   */
+  public PostOutputContext(Session session, PresenceService presenceService,
+      ProfileService profileService) {
+    this.session = session;
+    this.presenceService = presenceService;
+    this.profileService = profileService;
+  }
+
+  /**
+   * Gets the privileges the current user has on a post in one evaluation, aggregate
+   * privileges are expanded.
+   *
+   * @param node
+   *          The post.
+   * @return The names of the privileges.
+   */
+  public Set<String> getPrivileges(Node node) {
+    try {
+      if (accessControlManager == null) {
+        accessControlManager = AccessControlUtil.getAccessControlManager(session);
+      }
+      Privilege[] privileges = accessControlManager.getPrivileges(node.getPath());
+      if (privileges == null) {
+        return Collections.emptySet();
+      }
+      Set<String> names = new HashSet<String>();
+      for (Privilege privilege : privileges) {
+        names.add(privilege.getName());
+        Privilege[] aggregates = privilege.getAggregatePrivileges();
+        if (aggregates != null) {
+          for (Privilege aggregate : aggregates) {
+            names.add(aggregate.getName());
+          }
+        }
+      }
+      return names;
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to check the rights of the user on the post.");
+      return Collections.emptySet();
+    }
+  }
+
+  /**
+   * Writes the compact profile and the presence of a user into the current JSON object.
+   *
+   * @param writer
+   * @param userId
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public void writeProfile(ExtendedJSONWriter writer, String userId)
+      throws JSONException, RepositoryException {
+    ValueMap profile;
+    if (profiles.containsKey(userId)) {
+      profile = profiles.get(userId);
+    } else {
+      if (userManager == null) {
+        userManager = AccessControlUtil.getUserManager(session);
+      }
+      Authorizable au = userManager.getAuthorizable(userId);
+      profile = profileService.getCompactProfileMap(au, session);
+      profiles.put(userId, profile);
+    }
+    writer.valueMapInternals(profile);
+
+    // The same keys as PresenceUtils.makePresenceJSON.
+    String[] statusAndLocation = presence.get(userId);
+    if (statusAndLocation == null) {
+      statusAndLocation = new String[] { presenceService.getStatus(userId),
+          presenceService.getLocation(userId) };
+      presence.put(userId, statusAndLocation);
+    }
+    writer.key("user");
+    writer.value(userId);
+    writer.key(PresenceService.PRESENCE_STATUS_PROP);
+    writer.value(statusAndLocation[0]);
+    writer.key(PresenceService.PRESENCE_LOCATION_PROP);
+    writer.value(statusAndLocation[1]);
+  }
+}
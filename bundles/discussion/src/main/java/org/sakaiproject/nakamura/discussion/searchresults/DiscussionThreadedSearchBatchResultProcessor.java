@@ -17,6 +17,9 @@
  */
 package org.sakaiproject.nakamura.discussion.searchresults;
 
+import static org.sakaiproject.nakamura.api.search.SearchConstants.DEFAULT_PAGED_ITEMS;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
+
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -24,9 +27,8 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.discussion.Post;
-import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.discussion.PostOutputContext;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.Aggregator;
@@ -44,12 +46,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
 /**
@@ -69,6 +70,12 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
   @Property(value = "DiscussionThreaded")
   static final String SEARCH_BATCHPROCESSOR = "sakai.search.batchprocessor";
 
+  /**
+   * If true, the page and items parameters count whole threads, and the total is the
+   * number of threads instead of the number of posts.
+   */
+  static final String PARAMS_PAGE_THREADS = "pagethreads";
+
   @Reference
   protected transient PresenceService presenceService;
 
@@ -84,35 +91,30 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
       RepositoryException {
 
     Session session = request.getResourceResolver().adaptTo(Session.class);
-    List<Node> allNodes = new ArrayList<Node>();
+    ThreadBuilder builder = new ThreadBuilder();
     for (; iterator.hasNext();) {
       Node node = RowUtils.getNode(iterator.nextRow(), session);
       if (aggregator != null) {
         aggregator.add(node);
       }
-      allNodes.add(node);
-    }
-
-    List<Post> basePosts = new ArrayList<Post>();
-    for (int i = 0; i < allNodes.size(); i++) {
-      Node n = allNodes.get(i);
-
-      if (n.hasProperty(DiscussionConstants.PROP_REPLY_ON)) {
-        String replyon = n.getProperty(DiscussionConstants.PROP_REPLY_ON).getString();
-        // This post is a reply on another post.
-        // Find that post and add it.
-        addPost(basePosts, n, replyon);
-
-      } else {
-        // This post is not a reply to another post, thus it is a basepost.
-        basePosts.add(new Post(n));
-      }
+      builder.add(node);
     }
 
     // The posts are sorted, now return them as json.
+    // A page holds whole threads, only if the client asks for it.
+    List<Post> threads = builder.getThreads();
+    if (isPagingThreads(request)) {
+      long nitems = SearchUtil.longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+          DEFAULT_PAGED_ITEMS);
+      int start = (int) SearchUtil.getPaging(request, threads.size());
+      int end = (int) Math.min(threads.size(), start + nitems);
+      threads = threads.subList(start, end);
+    }
 
-    for (Post p : basePosts) {
-      p.outputPostAsJSON((ExtendedJSONWriter) writer, presenceService, profileService);
+    PostOutputContext context = new PostOutputContext(session, presenceService,
+        profileService);
+    for (Post p : threads) {
+      p.outputPostAsJSON((ExtendedJSONWriter) writer, context);
     }
   }
 
@@ -129,6 +131,20 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
       QueryResult qr = query.execute();
       RowIterator iterator = qr.getRows();
 
+      if (isPagingThreads(request)) {
+        // The total has to count threads, which are only known once every post is read.
+        Session session = request.getResourceResolver().adaptTo(Session.class);
+        List<Row> rows = new ArrayList<Row>();
+        ThreadBuilder builder = new ThreadBuilder();
+        while (iterator.hasNext()) {
+          Row row = iterator.nextRow();
+          rows.add(row);
+          builder.add(RowUtils.getNode(row, session));
+        }
+        return searchServiceFactory.getSearchResultSet(searchServiceFactory
+            .getRowIteratorFromList(rows), builder.getThreads().size());
+      }
+
       // Get the hits
       long hits = SearchUtil.getHits(qr);
 
@@ -140,26 +156,10 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
   }
 
   /**
-   * Adds the post to the list at the correct place.
-   *
-   * @param basePosts
-   * @param n
-   * @return
-   * @throws ValueFormatException
-   * @throws PathNotFoundException
-   * @throws RepositoryException
+   * @return If the page and items parameters count threads.
    */
-  private void addPost(List<Post> basePosts, Node n, String replyon)
-      throws ValueFormatException, PathNotFoundException, RepositoryException {
-    String postid = n.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
-    for (Post p : basePosts) {
-      if (p.getPostId().equals(replyon)) {
-        p.getChildren().add(new Post(n));
-        break;
-      } else {
-        p.addPost(n, postid, replyon);
-      }
-    }
+  private boolean isPagingThreads(SlingHttpServletRequest request) {
+    return "true".equals(request.getParameter(PARAMS_PAGE_THREADS));
   }
 
 }
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion.searchresults;
+
+import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
+import org.sakaiproject.nakamura.api.discussion.Post;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Assembles the posts of a discussion into threads. Posts are looked up by their id, so
+ * building the threads takes time in proportion to the number of posts, whatever order
+ * they come in. A reply that comes before the post it is on waits for that post. A reply
+ * whose post never comes, because it was removed or the user can't read it, starts a
+ * thread of its own after all the other threads.
+ */
+class ThreadBuilder {
+
+  private final Map<String, Post> posts = new HashMap<String, Post>();
+  private final List<Post> threads = new ArrayList<Post>();
+  private final Map<String, List<Post>> waiting = new LinkedHashMap<String, List<Post>>();
+
+  /**
+   * @param node
+   *          A post.
+   * @throws RepositoryException
+   */
+  void add(Node node) throws RepositoryException {
+    Post post = new Post(node);
+
+    String postId = post.getPostId();
+    if (postId != null && !posts.containsKey(postId)) {
+      posts.put(postId, post);
+      List<Post> replies = waiting.remove(postId);
+      if (replies != null) {
+        post.getChildren().addAll(replies);
+      }
+    }
+
+    if (node.hasProperty(DiscussionConstants.PROP_REPLY_ON)) {
+      // This post is a reply on another post.
+      String replyon = node.getProperty(DiscussionConstants.PROP_REPLY_ON).getString();
+      Post parent = posts.get(replyon);
+      if (parent != null && parent != post) {
+        parent.getChildren().add(post);
+      } else {
+        List<Post> replies = waiting.get(replyon);
+        if (replies == null) {
+          replies = new ArrayList<Post>();
+          waiting.put(replyon, replies);
+        }
+        replies.add(post);
+      }
+    } else {
+      // This post is not a reply to another post, thus it is a basepost.
+      threads.add(post);
+    }
+  }
+
+  /**
+   * @return The first post of every thread, the threads of replies whose post is missing
+   *         come last.
+   */
+  List<Post> getThreads() {
+    List<Post> all = new ArrayList<Post>(threads);
+    for (List<Post> orphans : waiting.values()) {
+      all.addAll(orphans);
+    }
+    return all;
+  }
+}
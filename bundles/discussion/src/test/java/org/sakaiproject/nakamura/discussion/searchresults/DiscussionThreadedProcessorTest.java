@@ -18,14 +18,17 @@
 package org.sakaiproject.nakamura.discussion.searchresults;
 
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 import static org.junit.Assert.assertEquals;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.testing.jcr.MockNode;
@@ -34,6 +37,7 @@ import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.api.search.SearchServiceFactory;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
@@ -52,6 +56,8 @@ import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
 import javax.jcr.lock.LockException;
 import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
 import javax.jcr.query.RowIterator;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.version.VersionException;
@@ -102,6 +108,7 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     ResourceResolver resolver = createMock(ResourceResolver.class);
     expect(resolver.adaptTo(Session.class)).andReturn(session);
     expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getParameter("pagethreads")).andReturn(null);
 
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     Writer w = new PrintWriter(baos);
@@ -171,4 +178,106 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     assertEquals("b", json.getJSONArray("replies").getJSONObject(0).getJSONObject("post")
         .get("sakai:id"));
   }
+
+  @Test
+  public void testPagesThreads() throws Exception {
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    ProfileService profileService = createMock(ProfileService.class);
+    processor.profileService = profileService;
+    expect(session.getAccessControlManager()).andReturn(
+        createNiceMock(AccessControlManager.class)).anyTimes();
+    Authorizable adminUser = createAuthorizable("admin", false, true);
+    expect(profileService.getCompactProfileMap(adminUser, session)).andReturn(
+        ValueMap.EMPTY).anyTimes();
+    UserManager um = createUserManager(null, true, adminUser);
+    expect(session.getUserManager()).andReturn(um).anyTimes();
+    expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(
+        new MockNode("/_user/a/ad/admin/public/authprofile")).anyTimes();
+
+    // 3 threads, the second one has a reply.
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(createPost(session, "a", null));
+    nodes.add(createPost(session, "b", null));
+    nodes.add(createPost(session, "c", "b"));
+    nodes.add(createPost(session, "d", null));
+
+    // The second page of one thread each.
+    SlingHttpServletRequest request = createPagingRequest(session, "1", "1");
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+    writer.array();
+
+    replay();
+    processor.writeNodes(request, writer, null, new MockRowIterator(nodes));
+    writer.endArray();
+    w.flush();
+
+    JSONArray json = new JSONArray(baos.toString("UTF-8"));
+    assertEquals(1, json.length());
+    assertEquals("b", json.getJSONObject(0).getJSONObject("post").get("sakai:id"));
+    assertEquals(1, json.getJSONObject(0).getJSONArray("replies").length());
+  }
+
+  @Test
+  public void testTotalCountsThreads() throws Exception {
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(createPost(session, "a", null));
+    nodes.add(createPost(session, "b", "a"));
+    nodes.add(createPost(session, "c", null));
+    nodes.add(createPost(session, "d", "c"));
+    nodes.add(createPost(session, "e", "d"));
+
+    SlingHttpServletRequest request = createPagingRequest(session, "1", "0");
+    Query query = createMock(Query.class);
+    QueryResult result = createMock(QueryResult.class);
+    expect(query.execute()).andReturn(result);
+    expect(result.getRows()).andReturn(new MockRowIterator(nodes));
+
+    // 5 posts, but only 2 threads.
+    SearchServiceFactory searchServiceFactory = createMock(SearchServiceFactory.class);
+    processor.searchServiceFactory = searchServiceFactory;
+    RowIterator rows = createMock(RowIterator.class);
+    SearchResultSet rs = createMock(SearchResultSet.class);
+    expect(searchServiceFactory.getRowIteratorFromList(isA(List.class))).andReturn(rows);
+    expect(searchServiceFactory.getSearchResultSet(rows, 2)).andReturn(rs);
+
+    replay();
+    assertEquals(rs, processor.getSearchResultSet(request, query));
+  }
+
+  private MockNode createPost(Session session, String id, String replyOn)
+      throws RepositoryException {
+    MockNode node = new MockNode("/msg/" + id);
+    node.setSession(session);
+    node.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+    node.setProperty(MessageConstants.PROP_SAKAI_FROM, "admin");
+    if (replyOn != null) {
+      node.setProperty(DiscussionConstants.PROP_REPLY_ON, replyOn);
+    }
+    expect(session.getItem(node.getPath())).andReturn(node).anyTimes();
+    return node;
+  }
+
+  private SlingHttpServletRequest createPagingRequest(Session session, String items,
+      String page) {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
+    expect(request.getParameter("pagethreads")).andReturn("true").anyTimes();
+    expect(request.getRequestParameter("items")).andReturn(createParameter(items))
+        .anyTimes();
+    expect(request.getRequestParameter("page")).andReturn(createParameter(page))
+        .anyTimes();
+    return request;
+  }
+
+  private RequestParameter createParameter(String value) {
+    RequestParameter parameter = createMock(RequestParameter.class);
+    expect(parameter.getString()).andReturn(value).anyTimes();
+    return parameter;
+  }
 }
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion.searchresults;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.testing.jcr.MockNode;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
+import org.sakaiproject.nakamura.api.discussion.Post;
+import org.sakaiproject.nakamura.api.discussion.PostOutputContext;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+/**
+ *
+ */
+public class ThreadBuilderTest extends AbstractEasyMockTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ThreadBuilderTest.class);
+
+  @Test
+  public void testRepliesBeforeTheirPost() throws Exception {
+    ThreadBuilder builder = new ThreadBuilder();
+    builder.add(createPost("d", "b", "admin"));
+    builder.add(createPost("b", "a", "admin"));
+    builder.add(createPost("a", null, "admin"));
+    builder.add(createPost("c", "a", "admin"));
+
+    List<Post> threads = builder.getThreads();
+    assertEquals(1, threads.size());
+    Post a = threads.get(0);
+    assertEquals("a", a.getPostId());
+    assertEquals(2, a.getChildren().size());
+    assertEquals("b", a.getChildren().get(0).getPostId());
+    assertEquals("c", a.getChildren().get(1).getPostId());
+    assertEquals("d", a.getChildren().get(0).getChildren().get(0).getPostId());
+  }
+
+  @Test
+  public void testOrphans() throws Exception {
+    ThreadBuilder builder = new ThreadBuilder();
+    builder.add(createPost("x", "removed", "admin"));
+    builder.add(createPost("a", null, "admin"));
+    builder.add(createPost("y", "x", "admin"));
+
+    List<Post> threads = builder.getThreads();
+    assertEquals(2, threads.size());
+    assertEquals("a", threads.get(0).getPostId());
+    Post x = threads.get(1);
+    assertEquals("x", x.getPostId());
+    assertEquals("y", x.getChildren().get(0).getPostId());
+  }
+
+  @Test
+  public void testFiveThousandPosts() throws Exception {
+    int nposts = 5000;
+    int nusers = 20;
+
+    // The profile and presence of every user are looked up once, the privileges of every
+    // post are evaluated once.
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    UserManager userManager = createNiceMock(UserManager.class);
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    ProfileService profileService = createMock(ProfileService.class);
+    expect(profileService.getCompactProfileMap((Authorizable) anyObject(), isA(Session.class)))
+        .andReturn(ValueMap.EMPTY).times(nusers);
+    PresenceService presenceService = createMock(PresenceService.class);
+    expect(presenceService.getStatus(isA(String.class))).andReturn("online").times(nusers);
+    expect(presenceService.getLocation(isA(String.class))).andReturn(null).times(nusers);
+    AccessControlManager accessControlManager = createMock(AccessControlManager.class);
+    expect(session.getAccessControlManager()).andReturn(accessControlManager).anyTimes();
+    Privilege read = createNiceMock(Privilege.class);
+    expect(read.getName()).andReturn(Privilege.JCR_READ).anyTimes();
+    expect(accessControlManager.getPrivileges(isA(String.class))).andReturn(
+        new Privilege[] { read }).times(nposts);
+
+    // 50 threads, every reply is on a random earlier post of its thread.
+    Random random = new Random(42);
+    List<Node> nodes = new ArrayList<Node>();
+    List<List<String>> threadIds = new ArrayList<List<String>>();
+    for (int i = 0; i < nposts; i++) {
+      String postId = "post" + i;
+      String replyon = null;
+      List<String> thread;
+      if (i < 50) {
+        thread = new ArrayList<String>();
+        threadIds.add(thread);
+      } else {
+        thread = threadIds.get(random.nextInt(50));
+        replyon = thread.get(random.nextInt(thread.size()));
+      }
+      thread.add(postId);
+      nodes.add(createPost(postId, replyon, "user" + (i % nusers)));
+    }
+    replay();
+
+    long start = System.nanoTime();
+    List<Post> listSearched = new ArrayList<Post>();
+    for (Node node : nodes) {
+      addPostByListSearch(listSearched, node);
+    }
+    long listSearchTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    ThreadBuilder builder = new ThreadBuilder();
+    for (Node node : nodes) {
+      builder.add(node);
+    }
+    List<Post> threads = builder.getThreads();
+    long builderTime = System.nanoTime() - start;
+    assertEquals(50, threads.size());
+    assertEquals(nposts, count(threads));
+    assertEquals(count(listSearched), count(threads));
+
+    start = System.nanoTime();
+    StringWriter out = new StringWriter();
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(out);
+    PostOutputContext context = new PostOutputContext(session, presenceService,
+        profileService);
+    writer.array();
+    for (Post thread : threads) {
+      thread.outputPostAsJSON(writer, context);
+    }
+    writer.endArray();
+    long renderTime = System.nanoTime() - start;
+    verify();
+
+    LOGGER.info("Threaded {} posts: list search {} ms, by post id {} ms, "
+        + "written out in {} ms with {} profile lookups", new Object[] { nposts,
+        listSearchTime / 1000000, builderTime / 1000000, renderTime / 1000000, nusers });
+  }
+
+  /**
+   * How the posts used to be threaded.
+   */
+  private void addPostByListSearch(List<Post> basePosts, Node n) throws Exception {
+    if (!n.hasProperty(DiscussionConstants.PROP_REPLY_ON)) {
+      basePosts.add(new Post(n));
+      return;
+    }
+    String replyon = n.getProperty(DiscussionConstants.PROP_REPLY_ON).getString();
+    String postid = n.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
+    for (Post p : basePosts) {
+      if (p.getPostId().equals(replyon)) {
+        p.getChildren().add(new Post(n));
+        break;
+      } else {
+        p.addPost(n, postid, replyon);
+      }
+    }
+  }
+
+  private int count(List<Post> posts) {
+    int count = posts.size();
+    for (Post post : posts) {
+      count += count(post.getChildren());
+    }
+    return count;
+  }
+
+  private Node createPost(String postId, String replyon, String from) throws Exception {
+    MockNode node = new MockNode("/msg/" + postId);
+    node.setProperty(MessageConstants.PROP_SAKAI_ID, postId);
+    node.setProperty(MessageConstants.PROP_SAKAI_FROM, from);
+    if (replyon != null) {
+      node.setProperty(DiscussionConstants.PROP_REPLY_ON, replyon);
+    }
+    return node;
+  }
+}
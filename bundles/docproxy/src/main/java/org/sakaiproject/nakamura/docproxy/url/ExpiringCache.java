@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The SF licenses this file to you under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.url;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache whose entries expire a fixed time after they are put. The least
+ * recently used entry is dropped when the cache is full. All methods are thread safe.
+ *
+ * @param <V>
+ *          The type of the values.
+ */
+class ExpiringCache<V> {
+
+  private static class Expiring<V> {
+    private final V value;
+    private final long expires;
+
+    private Expiring(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  private final long ttl;
+  private final Map<String, Expiring<V>> entries;
+
+  /**
+   * @param ttl
+   *          The time an entry is held for, in ms. Nothing is held if this is not
+   *          positive.
+   * @param maxSize
+   *          The maximum number of entries held.
+   */
+  ExpiringCache(long ttl, final int maxSize) {
+    this.ttl = ttl;
+    entries = new LinkedHashMap<String, Expiring<V>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Expiring<V>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param key
+   *          The key of the entry.
+   * @return The value, or null if it is not held or has expired.
+   */
+  synchronized V get(String key) {
+    Expiring<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expires < System.currentTimeMillis()) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  /**
+   * @param key
+   *          The key of the entry.
+   * @param value
+   *          The value to hold.
+   */
+  synchronized void put(String key, V value) {
+    if (ttl > 0) {
+      entries.put(key, new Expiring<V>(value, System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * Drop every entry whose key starts with a prefix.
+   *
+   * @param prefix
+   *          The prefix.
+   */
+  synchronized void removeStartingWith(String prefix) {
+    for (Iterator<String> keys = entries.keySet().iterator(); keys.hasNext();) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * Drop every entry.
+   */
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * @return The number of entries held, some of which may have expired.
+   */
+  synchronized int size() {
+    return entries.size();
+  }
+}
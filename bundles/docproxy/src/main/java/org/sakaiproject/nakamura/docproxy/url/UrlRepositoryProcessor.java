@@ -21,9 +21,12 @@ import java.io.InputStream;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.Map.Entry;
 
 import javax.jcr.Node;
@@ -39,11 +42,14 @@ import javax.xml.stream.events.XMLEvent;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
@@ -94,15 +100,66 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
   protected static final String REMOVE_URL = "remove.url";
   private String removeUrl;
 
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+  @Property(intValue = DEFAULT_MAX_CONNECTIONS_PER_HOST)
+  static final String MAX_CONNECTIONS_PER_HOST = "max.connections.per.host";
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 100;
+  @Property(intValue = DEFAULT_MAX_CONNECTIONS)
+  static final String MAX_CONNECTIONS = "max.connections";
+
+  public static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
+  @Property(intValue = DEFAULT_CONNECTION_TIMEOUT)
+  static final String CONNECTION_TIMEOUT = "connection.timeout";
+
+  public static final int DEFAULT_SOCKET_TIMEOUT = 30000;
+  @Property(intValue = DEFAULT_SOCKET_TIMEOUT)
+  static final String SOCKET_TIMEOUT = "socket.timeout";
+
+  public static final int DEFAULT_CACHE_TTL = 60;
+  @Property(intValue = DEFAULT_CACHE_TTL)
+  static final String CACHE_TTL = "cache.ttl";
+
+  private static final int MAX_CACHED_METADATA = 1000;
+  private static final int MAX_CACHED_SEARCHES = 200;
+  private static final int MAX_CACHED_HMACS = 1000;
+
   private XMLInputFactory xmlInputFactory;
 
   private HttpClient client;
 
+  private MultiThreadedHttpConnectionManager connectionManager;
+
+  /**
+   * The metadata of documents, keyed by path and user.
+   */
+  private ExpiringCache<ExternalDocumentResultMetadata> metadataCache;
+
+  /**
+   * The results of searches, keyed by user and search properties.
+   */
+  private ExpiringCache<List<ExternalDocumentResult>> searchCache;
+
+  /**
+   * The HMAC of each user, which only changes with the shared key.
+   */
+  private final Map<String, String> hmacs = new LinkedHashMap<String, String>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_CACHED_HMACS;
+    }
+  };
+
   /**
    * Default constructor. Used by OSGi.
    */
   public UrlRepositoryProcessor() {
-    client = new HttpClient();
+    createClient(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS,
+        DEFAULT_CONNECTION_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+    createCaches(DEFAULT_CACHE_TTL);
   }
 
   @Activate
@@ -124,6 +181,60 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
 
     hmacHeader = OsgiUtil.toString(props.get(HMAC_HEADER), DEFAULT_HMAC_HEADER);
     sharedKey = OsgiUtil.toString(props.get(SHARED_KEY), null);
+    synchronized (hmacs) {
+      hmacs.clear();
+    }
+
+    connectionManager.shutdown();
+    createClient(OsgiUtil.toInteger(props.get(MAX_CONNECTIONS_PER_HOST),
+        DEFAULT_MAX_CONNECTIONS_PER_HOST), OsgiUtil.toInteger(props.get(MAX_CONNECTIONS),
+        DEFAULT_MAX_CONNECTIONS), OsgiUtil.toInteger(props.get(CONNECTION_TIMEOUT),
+        DEFAULT_CONNECTION_TIMEOUT), OsgiUtil.toInteger(props.get(SOCKET_TIMEOUT),
+        DEFAULT_SOCKET_TIMEOUT));
+    createCaches(OsgiUtil.toInteger(props.get(CACHE_TTL), DEFAULT_CACHE_TTL));
+  }
+
+  @Deactivate
+  protected void deactivate(ComponentContext context) {
+    connectionManager.shutdown();
+    metadataCache.clear();
+    searchCache.clear();
+  }
+
+  /**
+   * Create a client whose connections are pooled per host and shared by all threads.
+   *
+   * @param maxConnectionsPerHost
+   *          The maximum number of connections open to one host.
+   * @param maxConnections
+   *          The maximum number of connections open in total.
+   * @param connectionTimeout
+   *          The time to wait for a connection to open or be freed in the pool, in ms.
+   * @param socketTimeout
+   *          The time to wait for data, in ms.
+   */
+  private void createClient(int maxConnectionsPerHost, int maxConnections,
+      int connectionTimeout, int socketTimeout) {
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = connectionManager.getParams();
+    params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+    params.setMaxTotalConnections(maxConnections);
+    params.setConnectionTimeout(connectionTimeout);
+    params.setSoTimeout(socketTimeout);
+    client = new HttpClient(connectionManager);
+    client.getParams().setConnectionManagerTimeout(connectionTimeout);
+  }
+
+  /**
+   * @param ttl
+   *          The time metadata and search results are held for, in seconds. Nothing is
+   *          held if this is 0.
+   */
+  private void createCaches(int ttl) {
+    metadataCache = new ExpiringCache<ExternalDocumentResultMetadata>(ttl * 1000L,
+        MAX_CACHED_METADATA);
+    searchCache = new ExpiringCache<List<ExternalDocumentResult>>(ttl * 1000L,
+        MAX_CACHED_SEARCHES);
   }
 
   /*
@@ -150,7 +261,12 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
       method.addParameter(entry.getKey(), entry.getValue().toString());
     }
     method.setRequestEntity(new InputStreamRequestEntity(documentStream));
-    executeMethod(method, node);
+    try {
+      executeMethod(method, node);
+    } finally {
+      method.releaseConnection();
+      invalidate(path);
+    }
     return null;
   }
 
@@ -163,8 +279,8 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public ExternalDocumentResult getDocument(Node node, String path)
       throws DocProxyException {
+    GetMethod method = new GetMethod(documentUrl + path);
     try {
-      GetMethod method = new GetMethod(documentUrl + path);
       executeMethod(method, node);
       ExternalDocumentResult result = parseDocument(method.getResponseBodyAsStream());
       return result;
@@ -172,6 +288,8 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
       throw new DocProxyException(500, e.getMessage());
     } catch (IOException e) {
       throw new DocProxyException(500, e.getMessage());
+    } finally {
+      method.releaseConnection();
     }
   }
 
@@ -184,16 +302,23 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public ExternalDocumentResultMetadata getDocumentMetadata(Node node, String path)
       throws DocProxyException {
+    String key = path + "\n" + getUserId(node);
+    ExternalDocumentResultMetadata result = metadataCache.get(key);
+    if (result != null) {
+      return result;
+    }
+    GetMethod method = new GetMethod(metadataUrl + path);
     try {
-      GetMethod method = new GetMethod(metadataUrl + path);
       executeMethod(method, node);
-      ExternalDocumentResultMetadata result = parseDocument(method
-          .getResponseBodyAsStream());
+      result = parseDocument(method.getResponseBodyAsStream());
+      metadataCache.put(key, result);
       return result;
     } catch (IOException e) {
       throw new DocProxyException(500, e.getMessage());
     } catch (XMLStreamException e) {
       throw new DocProxyException(500, e.getMessage());
+    } finally {
+      method.releaseConnection();
     }
   }
 
@@ -206,18 +331,33 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public Iterator<ExternalDocumentResult> search(Node node,
       Map<String, Object> searchProperties) throws DocProxyException {
+    // the same search by the same user gets the same results, whatever the order of the
+    // properties.
+    StringBuilder key = new StringBuilder(getUserId(node));
+    for (Entry<String, Object> entry : new TreeMap<String, Object>(searchProperties)
+        .entrySet()) {
+      key.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+    }
+    List<ExternalDocumentResult> results = searchCache.get(key.toString());
+    if (results != null) {
+      return results.iterator();
+    }
+    PostMethod method = new PostMethod(searchUrl);
     try {
-      PostMethod method = new PostMethod(searchUrl);
       for (Entry<String, Object> entry : searchProperties.entrySet()) {
         method.addParameter(entry.getKey(), entry.getValue().toString());
       }
       executeMethod(method, node);
-      List<ExternalDocumentResult> results = parseSearch(method.getResponseBodyAsStream());
+      results = Collections.unmodifiableList(parseSearch(method
+          .getResponseBodyAsStream()));
+      searchCache.put(key.toString(), results);
       return results.iterator();
     } catch (XMLStreamException e) {
       throw new DocProxyException(500, e.getMessage());
     } catch (IOException e) {
       throw new DocProxyException(500, e.getMessage());
+    } finally {
+      method.releaseConnection();
     }
   }
 
@@ -230,11 +370,29 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public void removeDocument(Node node, String path) throws DocProxyException {
     DeleteMethod method = new DeleteMethod(removeUrl + path);
-    executeMethod(method, node);
+    try {
+      executeMethod(method, node);
+    } finally {
+      method.releaseConnection();
+      invalidate(path);
+    }
   }
 
   /**
-   * Execute an http method and return the status code.
+   * Drop what is held about a document for every user, and every search result, as the
+   * document may have been added to or removed from them.
+   *
+   * @param path
+   *          The path of the document that changed.
+   */
+  private void invalidate(String path) {
+    metadataCache.removeStartingWith(path + "\n");
+    searchCache.clear();
+  }
+
+  /**
+   * Execute an http method and return the status code. The caller must release the
+   * connection of the method.
    * 
    * @param method
    * @return
@@ -450,8 +608,30 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
   private void addHmac(HttpMethod method, Node node) throws RepositoryException,
       SignatureException {
     String currentUserId = node.getSession().getUserID();
-    String hmac = Signature.calculateRFC2104HMAC(currentUserId, sharedKey);
+    String hmac;
+    synchronized (hmacs) {
+      hmac = hmacs.get(currentUserId);
+    }
+    if (hmac == null) {
+      hmac = Signature.calculateRFC2104HMAC(currentUserId, sharedKey);
+      synchronized (hmacs) {
+        hmacs.put(currentUserId, hmac);
+      }
+    }
     String hmacHeaderValue = hmac + ";" + currentUserId;
     method.addRequestHeader(hmacHeader, hmacHeaderValue);
   }
+
+  /**
+   * @param node
+   * @return The id of the user of the session of the node.
+   * @throws DocProxyException
+   */
+  private String getUserId(Node node) throws DocProxyException {
+    try {
+      return node.getSession().getUserID();
+    } catch (RepositoryException e) {
+      throw new DocProxyException(500, e.getMessage());
+    }
+  }
 }
@@ -19,8 +19,16 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.jcr.Node;
 
@@ -161,4 +169,99 @@ public class UrlRepositoryProcessorTest {
     long streamLength = output.length();
     processor.updateDocument(node, docPath1, props, bais, streamLength);
   }
+
+  @Test
+  public void testMetadataIsCachedPerUser() throws Exception {
+    assertEquals(docResult1, processor.getDocumentMetadata(node, docPath1));
+    assertEquals(docResult1, processor.getDocumentMetadata(node, docPath1));
+    assertEquals(1, metadataHandler.getRequestCount());
+
+    // another user is asked for again, the endpoint may answer differently.
+    Node otherNode = mock(Node.class, Answers.RETURNS_DEEP_STUBS.get());
+    when(otherNode.getSession().getUserID()).thenReturn("zach");
+    processor.getDocumentMetadata(otherNode, docPath1);
+    assertEquals(2, metadataHandler.getRequestCount());
+
+    // removing the document drops it for every user.
+    processor.removeDocument(node, docPath1);
+    processor.getDocumentMetadata(node, docPath1);
+    processor.getDocumentMetadata(otherNode, docPath1);
+    assertEquals(4, metadataHandler.getRequestCount());
+  }
+
+  @Test
+  public void testSearchIsCached() throws Exception {
+    HashMap<String, Object> props = new LinkedHashMap<String, Object>();
+    props.put("key1", "value1");
+    props.put("key2", "value2");
+    assertEquals(5, count(processor.search(node, props)));
+
+    HashMap<String, Object> reordered = new LinkedHashMap<String, Object>();
+    reordered.put("key2", "value2");
+    reordered.put("key1", "value1");
+    assertEquals(5, count(processor.search(node, reordered)));
+    assertEquals(1, searchHandler.getRequestCount());
+
+    props.put("key2", "value3");
+    processor.search(node, props);
+    assertEquals(2, searchHandler.getRequestCount());
+
+    // an update may change what is found.
+    processor.updateDocument(node, docPath2, new HashMap<String, Object>(),
+        new ByteArrayInputStream(new byte[0]), 0);
+    processor.search(node, reordered);
+    assertEquals(3, searchHandler.getRequestCount());
+  }
+
+  @Test
+  public void testCacheCanBeDisabled() throws Exception {
+    Properties props = new Properties();
+    props.put(UrlRepositoryProcessor.METADATA_URL, "http://"
+        + server.getServiceHostName() + ":" + server.getServicePort() + "/metadata?p=");
+    props.put(UrlRepositoryProcessor.SHARED_KEY, "superSecretSharedKey");
+    props.put(UrlRepositoryProcessor.CACHE_TTL, "0");
+    ComponentContext context = mock(ComponentContext.class);
+    when(context.getProperties()).thenReturn(props);
+    processor.activate(context);
+
+    processor.getDocumentMetadata(node, docPath1);
+    processor.getDocumentMetadata(node, docPath1);
+    assertEquals(2, metadataHandler.getRequestCount());
+  }
+
+  @Test
+  public void testConcurrentRequests() throws Exception {
+    int threads = 16;
+    docHandler.setParties(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Callable<ExternalDocumentResult>> tasks = new ArrayList<Callable<ExternalDocumentResult>>();
+      for (int i = 0; i < threads; i++) {
+        tasks.add(new Callable<ExternalDocumentResult>() {
+          public ExternalDocumentResult call() throws Exception {
+            return processor.getDocument(node, docPath1);
+          }
+        });
+      }
+      List<Future<ExternalDocumentResult>> results = executor.invokeAll(tasks);
+      for (Future<ExternalDocumentResult> result : results) {
+        assertEquals(docResult1, result.get());
+      }
+      assertEquals(threads, docHandler.getRequestCount());
+      // every request was held until all of them had arrived, which a single
+      // connection could never do.
+      assertEquals(threads, docHandler.getMaxInFlight());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private int count(Iterator<ExternalDocumentResult> results) {
+    int count = 0;
+    while (results.hasNext()) {
+      results.next();
+      count++;
+    }
+    return count;
+  }
 }
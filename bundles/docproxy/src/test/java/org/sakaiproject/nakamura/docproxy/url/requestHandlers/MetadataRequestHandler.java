@@ -27,12 +27,19 @@ import org.sakaiproject.nakamura.docproxy.url.UrlDocumentResult;
 
 import java.io.IOException;
 import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MetadataRequestHandler implements HttpRequestHandler {
   private static final String START_ELEMENT_PATTERN = "<document contentLength=\"%s\" contentType=\"%s\" uri=\"%s\">\n";
   private static final String DOCUMENT_ELEMENT_PATTERN = "<document contentLength=\"%s\" contentType=\"%s\" uri=\"%s\" />\n";
 
   private UrlDocumentResult doc;
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private volatile CountDownLatch gate;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
 
   public MetadataRequestHandler(UrlDocumentResult doc) {
     this.doc = doc;
@@ -40,6 +47,25 @@ public class MetadataRequestHandler implements HttpRequestHandler {
 
   public void handle(HttpRequest request, HttpResponse response, HttpContext context)
       throws HttpException, IOException {
+    requestCount.incrementAndGet();
+    int current = inFlight.incrementAndGet();
+    try {
+      int max = maxInFlight.get();
+      while (current > max && !maxInFlight.compareAndSet(max, current)) {
+        max = maxInFlight.get();
+      }
+      CountDownLatch gate = this.gate;
+      if (gate != null) {
+        gate.countDown();
+        try {
+          gate.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    } finally {
+      inFlight.decrementAndGet();
+    }
     response.setStatusCode(200);
     response.setHeader("Content-type", "text/xml");
 
@@ -72,4 +98,25 @@ public class MetadataRequestHandler implements HttpRequestHandler {
   public UrlDocumentResult getDocument() {
     return doc;
   }
+
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * @return The most requests that were being answered at the same time.
+   */
+  public int getMaxInFlight() {
+    return maxInFlight.get();
+  }
+
+  /**
+   * Hold each request until this many requests have arrived, or 10 seconds have passed.
+   *
+   * @param parties
+   *          The number of requests to wait for.
+   */
+  public void setParties(int parties) {
+    this.gate = new CountDownLatch(parties);
+  }
 }
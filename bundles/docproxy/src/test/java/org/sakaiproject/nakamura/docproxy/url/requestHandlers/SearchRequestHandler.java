@@ -27,6 +27,7 @@ import org.sakaiproject.nakamura.docproxy.url.UrlDocumentResult;
 
 import java.io.IOException;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -36,6 +37,7 @@ public class SearchRequestHandler implements HttpRequestHandler {
   private static final String DOCUMENT_ELEMENT_PATTERN = "<document contentLength=\"%s\" contentType=\"%s\" uri=\"%s\" />\n";
 
   private UrlDocumentResult[] docs;
+  private final AtomicInteger requestCount = new AtomicInteger();
 
   public SearchRequestHandler(UrlDocumentResult... docs) {
     this.docs = docs;
@@ -49,6 +51,7 @@ public class SearchRequestHandler implements HttpRequestHandler {
    */
   public void handle(HttpRequest request, HttpResponse response, HttpContext context)
       throws HttpException, IOException {
+    requestCount.incrementAndGet();
     response.setStatusCode(200);
     response.setHeader("Content-type", "text/xml");
 
@@ -83,4 +86,7 @@ public class SearchRequestHandler implements HttpRequestHandler {
     response.setEntity(entity);
   }
 
+  public int getRequestCount() {
+    return requestCount.get();
+  }
 }
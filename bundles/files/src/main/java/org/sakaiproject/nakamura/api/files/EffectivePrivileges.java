@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.files;
+
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.AccessControlException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+/**
+ * The privileges a session has on paths, as a bitmap per path. All the privileges on a
+ * path are evaluated at once and remembered, so an instance should live no longer than
+ * the request it was created for.
+ */
+public class EffectivePrivileges {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(EffectivePrivileges.class);
+
+  /**
+   * jcr:read
+   */
+  public static final int READ = 1;
+
+  /**
+   * jcr:modifyProperties, which is what the set_property action checks.
+   */
+  public static final int MODIFY_PROPERTIES = 2;
+
+  /**
+   * jcr:removeNode on the path and jcr:removeChildNodes on its parent, which is what the
+   * remove action checks.
+   */
+  public static final int REMOVE_NODE = 4;
+
+  /**
+   * jcr:removeChildNodes, only used to evaluate {@link #REMOVE_NODE} on the children.
+   */
+  private static final int REMOVE_CHILD_NODES = 8;
+
+  private final Session session;
+  private final Map<String, Integer> privileges = new HashMap<String, Integer>();
+  private final Map<String, Integer> declared = new HashMap<String, Integer>();
+  private AccessControlManager accessControlManager;
+  private boolean checkPermissions;
+
+  /**
+   * @param session
+   *          the session whose privileges are evaluated.
+   */
+  public EffectivePrivileges(Session session) {
+    this.session = session;
+  }
+
+  /**
+   * @param path
+   *          an absolute path.
+   * @return the privileges the session has on the path, a combination of {@link #READ},
+   *         {@link #MODIFY_PROPERTIES} and {@link #REMOVE_NODE}. 0 if the path can't be
+   *         found.
+   */
+  public int getPrivileges(String path) {
+    Integer granted = privileges.get(path);
+    if (granted == null) {
+      granted = evaluate(path);
+      privileges.put(path, granted);
+    }
+    return granted;
+  }
+
+  /**
+   * @param path
+   *          an absolute path.
+   * @param required
+   *          the privileges to check, a combination of {@link #READ},
+   *          {@link #MODIFY_PROPERTIES} and {@link #REMOVE_NODE}.
+   * @return true if the session has all the required privileges on the path.
+   */
+  public boolean isGranted(String path, int required) {
+    return (getPrivileges(path) & required) == required;
+  }
+
+  private int evaluate(String path) {
+    AccessControlManager acm = getAccessControlManager();
+    if (acm == null) {
+      int granted = 0;
+      if (hasPermission(path, "read")) {
+        granted |= READ;
+      }
+      if (hasPermission(path, "set_property")) {
+        granted |= MODIFY_PROPERTIES;
+      }
+      if (hasPermission(path, "remove")) {
+        granted |= REMOVE_NODE;
+      }
+      return granted;
+    }
+    int granted = getDeclared(acm, path);
+    if ((granted & REMOVE_NODE) != 0) {
+      // a node can only be removed if its parent allows its children to be removed.
+      String parent = null;
+      int i = path.lastIndexOf('/');
+      if (i > 0) {
+        parent = path.substring(0, i);
+      } else if (i == 0 && path.length() > 1) {
+        parent = "/";
+      }
+      if (parent == null || (getDeclared(acm, parent) & REMOVE_CHILD_NODES) == 0) {
+        granted &= ~REMOVE_NODE;
+      }
+    }
+    return granted & (READ | MODIFY_PROPERTIES | REMOVE_NODE);
+  }
+
+  /**
+   * @return the privileges held on the path itself, remembered so that the parent of
+   *         many children is only evaluated once.
+   */
+  private int getDeclared(AccessControlManager acm, String path) {
+    Integer granted = declared.get(path);
+    if (granted == null) {
+      try {
+        Privilege[] held = acm.getPrivileges(path);
+        granted = held == null ? 0 : toBits(held);
+      } catch (RepositoryException e) {
+        granted = 0;
+      }
+      declared.put(path, granted);
+    }
+    return granted;
+  }
+
+  /**
+   * @return the access control manager of the session, or null if the session does not
+   *         provide one and permissions have to be checked one action at a time.
+   */
+  private AccessControlManager getAccessControlManager() {
+    if (accessControlManager == null && !checkPermissions) {
+      try {
+        accessControlManager = AccessControlUtil.getAccessControlManager(session);
+      } catch (Exception e) {
+        LOGGER.debug("No access control manager, checking permissions instead: {}", e
+            .getMessage());
+      }
+      checkPermissions = accessControlManager == null;
+    }
+    return accessControlManager;
+  }
+
+  private boolean hasPermission(String path, String action) {
+    try {
+      session.checkPermission(path, action);
+      return true;
+    } catch (AccessControlException e) {
+      return false;
+    } catch (RepositoryException e) {
+      return false;
+    }
+  }
+
+  private static int toBits(Privilege[] privileges) {
+    int granted = 0;
+    for (Privilege privilege : privileges) {
+      String name = privilege.getName();
+      if (Privilege.JCR_ALL.equals(name)) {
+        return READ | MODIFY_PROPERTIES | REMOVE_NODE | REMOVE_CHILD_NODES;
+      } else if (Privilege.JCR_READ.equals(name)) {
+        granted |= READ;
+      } else if (Privilege.JCR_MODIFY_PROPERTIES.equals(name)) {
+        granted |= MODIFY_PROPERTIES;
+      } else if (Privilege.JCR_REMOVE_NODE.equals(name)) {
+        granted |= REMOVE_NODE;
+      } else if (Privilege.JCR_REMOVE_CHILD_NODES.equals(name)) {
+        granted |= REMOVE_CHILD_NODES;
+      } else if (privilege.isAggregate()) {
+        granted |= toBits(privilege.getDeclaredAggregatePrivileges());
+      }
+    }
+    return granted;
+  }
+
+}
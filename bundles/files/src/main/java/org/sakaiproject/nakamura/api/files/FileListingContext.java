@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.files;
+
+import org.sakaiproject.nakamura.api.site.SiteService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * What is looked up while writing the files of one response: the privileges of the
+ * session and the sites the files are used in. Files in a listing often share sites, so
+ * each site is only checked and counted once. Create one per response.
+ */
+public class FileListingContext {
+
+  /**
+   * A site a file is used in, as seen by the session of the response.
+   */
+  static class SiteSummary {
+    private final Node siteNode;
+    private final int memberCount;
+
+    SiteSummary(Node siteNode, int memberCount) {
+      this.siteNode = siteNode;
+      this.memberCount = memberCount;
+    }
+
+    /**
+     * @return the site, or null if the identifier is not a site the session can read.
+     */
+    Node getSiteNode() {
+      return siteNode;
+    }
+
+    int getMemberCount() {
+      return memberCount;
+    }
+  }
+
+  private static final SiteSummary NOT_A_SITE = new SiteSummary(null, 0);
+
+  private final Session session;
+  private final SiteService siteService;
+  private final EffectivePrivileges privileges;
+  private final Map<String, SiteSummary> sites = new HashMap<String, SiteSummary>();
+
+  /**
+   * @param session
+   *          the session the files are read with.
+   * @param siteService
+   *          the site service used to count the members of sites.
+   */
+  public FileListingContext(Session session, SiteService siteService) {
+    this.session = session;
+    this.siteService = siteService;
+    this.privileges = new EffectivePrivileges(session);
+  }
+
+  /**
+   * @return the privileges of the session.
+   */
+  public EffectivePrivileges getPrivileges() {
+    return privileges;
+  }
+
+  /**
+   * @return the site service used to count the members of sites.
+   */
+  public SiteService getSiteService() {
+    return siteService;
+  }
+
+  /**
+   * Look up a site a file is used in, once per response.
+   *
+   * @param identifier
+   *          the identifier of the site node, as held in sakai:sites.
+   * @return the site, never null.
+   * @throws RepositoryException
+   */
+  SiteSummary getSite(String identifier) throws RepositoryException {
+    SiteSummary site = sites.get(identifier);
+    if (site == null) {
+      site = NOT_A_SITE;
+      try {
+        Node siteNode = session.getNodeByIdentifier(identifier);
+        if (privileges.isGranted(siteNode.getPath(), EffectivePrivileges.READ)
+            && siteService.isSite(siteNode)) {
+          site = new SiteSummary(siteNode, siteService.getMemberCount(siteNode));
+        }
+      } finally {
+        // also remember sites that failed, they would fail again.
+        sites.put(identifier, site);
+      }
+    }
+    return site;
+  }
+
+}
@@ -30,7 +30,6 @@ import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.api.SlingRepository;
-import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.sakaiproject.nakamura.api.site.SiteService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
@@ -41,10 +40,9 @@ import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.AccessControlException;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
@@ -55,8 +53,6 @@ import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
-import javax.jcr.security.AccessControlManager;
-import javax.jcr.security.Privilege;
 
 /**
  * Some utility function regarding file management.
@@ -181,13 +177,34 @@ public class FileUtils {
    */
   public static void writeFileNode(Node node, Session session, JSONWriter write,
       SiteService siteService, int maxDepth) throws JSONException, RepositoryException {
+    writeFileNode(node, session, write, new FileListingContext(session, siteService),
+        maxDepth);
+  }
+
+  /**
+   * Writes all the properties of a sakai/file node. Also checks what the permissions are
+   * for a session and where the links are. Permissions and sites are looked up through
+   * the context, so that files written to the same response share the lookups.
+   *
+   * @param node
+   * @param session
+   * @param write
+   * @param context
+   *          the lookups of the response the file is written to.
+   * @param maxDepth
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public static void writeFileNode(Node node, Session session, JSONWriter write,
+      FileListingContext context, int maxDepth) throws JSONException,
+      RepositoryException {
 
     write.object();
 
     // dump all the properties.
     ExtendedJSONWriter.writeNodeTreeToWriter(write, node, true, maxDepth);
     // The permissions for this session.
-    writePermissions(node, session, write);
+    writePermissions(node, context.getPrivileges(), write);
 
     if (node.hasNode(JcrConstants.JCR_CONTENT)) {
       Node contentNode = node.getNode(JcrConstants.JCR_CONTENT);
@@ -204,7 +221,7 @@ public class FileUtils {
     }
 
     // Get all the sites where this file is referenced.
-    getSites(node, write, siteService);
+    getSites(node, write, context);
 
     write.endObject();
   }
@@ -220,11 +237,28 @@ public class FileUtils {
    */
   public static void writeLinkNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
+    writeLinkNode(node, session, write, new FileListingContext(session, siteService));
+  }
+
+  /**
+   * Writes all the properties for a linked node, looking up permissions and sites
+   * through the context of the response.
+   *
+   * @param node
+   * @param session
+   * @param write
+   * @param context
+   *          the lookups of the response the link is written to.
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public static void writeLinkNode(Node node, Session session, JSONWriter write,
+      FileListingContext context) throws JSONException, RepositoryException {
     write.object();
     // Write all the properties.
     ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
     // permissions
-    writePermissions(node, session, write);
+    writePermissions(node, context.getPrivileges(), write);
 
     // Write the actual file.
     if (node.hasProperty(SAKAI_LINK)) {
@@ -232,7 +266,7 @@ public class FileUtils {
       write.key("file");
       try {
         Node fileNode = session.getNodeByIdentifier(uuid);
-        writeFileNode(fileNode, session, write, siteService);
+        writeFileNode(fileNode, session, write, context, 0);
       } catch (ItemNotFoundException e) {
         write.value(false);
       }
@@ -245,54 +279,36 @@ public class FileUtils {
    * Gives the permissions for this user.
    *
    * @param node
-   * @param session
+   * @param privileges
    * @param write
    * @throws RepositoryException
    * @throws JSONException
    */
-  private static void writePermissions(Node node, Session session, JSONWriter write)
-      throws RepositoryException, JSONException {
-    String path = node.getPath();
+  private static void writePermissions(Node node, EffectivePrivileges privileges,
+      JSONWriter write) throws RepositoryException, JSONException {
+    int granted = privileges.getPrivileges(node.getPath());
     write.key("permissions");
     write.object();
     write.key("set_property");
-    write.value(hasPermission(session, path, "set_property"));
+    write.value((granted & EffectivePrivileges.MODIFY_PROPERTIES) != 0);
     write.key("read");
-    write.value(hasPermission(session, path, "read"));
+    write.value((granted & EffectivePrivileges.READ) != 0);
     write.key("remove");
-    write.value(hasPermission(session, path, "remove"));
+    write.value((granted & EffectivePrivileges.REMOVE_NODE) != 0);
     write.endObject();
   }
 
-  /**
-   * Checks if the current user has a permission on a path.
-   *
-   * @param session
-   * @param path
-   * @param permission
-   * @return
-   */
-  private static boolean hasPermission(Session session, String path, String permission) {
-    try {
-      session.checkPermission(path, permission);
-      return true;
-    } catch (AccessControlException e) {
-      return false;
-    } catch (RepositoryException e) {
-      return false;
-    }
-  }
-
   /**
    * Gets all the sites where this file is used and parses the info for it.
    *
    * @param node
    * @param write
+   * @param context
    * @throws RepositoryException
    * @throws JSONException
    */
   @SuppressWarnings(justification = "Need to trap subsystem errors ", value = { "REC_CATCH_EXCEPTION" })
-  private static void getSites(Node node, JSONWriter write, SiteService siteService)
+  private static void getSites(Node node, JSONWriter write, FileListingContext context)
       throws RepositoryException, JSONException {
 
     write.key("usedIn");
@@ -302,32 +318,25 @@ public class FileUtils {
 
     // sakai:sites contains uuid's of sites where the file is being referenced.
     Value[] sites = JcrUtils.getValues(node, "sakai:sites");
-    Session session = node.getSession();
 
     int total = 0;
-    try {
-      List<String> handledSites = new ArrayList<String>();
-      AccessControlManager acm = AccessControlUtil.getAccessControlManager(session);
-      Privilege read = acm.privilegeFromName(Privilege.JCR_READ);
-      Privilege[] privs = new Privilege[] { read };
-      for (Value v : sites) {
-        String path = v.getString();
-        if (!handledSites.contains(path)) {
-          handledSites.add(path);
-          Node siteNode = session.getNodeByIdentifier(v.getString());
-
-          boolean hasAccess = acm.hasPrivileges(path, privs);
-          if (siteService.isSite(siteNode) && hasAccess) {
-            writeSiteInfo(siteNode, write, siteService);
+    Set<String> handledSites = new HashSet<String>();
+    for (Value v : sites) {
+      String identifier = v.getString();
+      if (handledSites.add(identifier)) {
+        try {
+          FileListingContext.SiteSummary site = context.getSite(identifier);
+          if (site.getSiteNode() != null) {
+            writeSiteInfo(site.getSiteNode(), write, site.getMemberCount());
             total++;
           }
+        } catch (Exception e) {
+          // We ignore every exception it has when looking up sites.
+          // it is dirty ..
+          log.info("Catched exception when looking up used sites for a file. "
+              + e.getMessage());
         }
       }
-    } catch (Exception e) {
-      // We ignore every exception it has when looking up sites.
-      // it is dirty ..
-      log.info("Catched exception when looking up used sites for a file. "
-          + e.getMessage());
     }
     write.endArray();
     write.key("total");
@@ -345,9 +354,14 @@ public class FileUtils {
    */
   protected static void writeSiteInfo(Node siteNode, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
+    writeSiteInfo(siteNode, write, siteService.getMemberCount(siteNode));
+  }
+
+  private static void writeSiteInfo(Node siteNode, JSONWriter write, int memberCount)
+      throws JSONException, RepositoryException {
     write.object();
     write.key("member-count");
-    write.value(String.valueOf(siteService.getMemberCount(siteNode)));
+    write.value(String.valueOf(memberCount));
     ExtendedJSONWriter.writeNodeContentsToWriter(write, siteNode);
     write.endObject();
   }
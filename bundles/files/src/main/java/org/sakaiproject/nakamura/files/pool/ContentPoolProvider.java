@@ -19,31 +19,96 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.servlet.http.HttpServletRequest;
 
 @Component(name = "org.sakaiproject.nakamura.files.pool.ContentPoolProvider", immediate = true, metatype = true, description = "%contentpool.description", label = "%contentpool.name")
-@Service(value = ResourceProvider.class)
-@Property(name = ResourceProvider.ROOTS, value = { "/", "/p" })
-public class ContentPoolProvider implements ResourceProvider {
+@Services(value = { @Service(value = ResourceProvider.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = ResourceProvider.ROOTS, value = { "/", "/p" }),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+public class ContentPoolProvider implements ResourceProvider, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ContentPoolProvider.class);
   public static final String CONTENT_RESOURCE_PROVIDER = ContentPoolProvider.class
       .getName();
 
+  /**
+   * The maximum number of pool IDs whose path is held, and of pool IDs whose misses are
+   * held. The least recently used is dropped first.
+   */
+  static final int MAX_POOL_IDS = 10000;
+
+  /**
+   * How long a user is remembered not to find a pool ID, in ms. Events on the pooled
+   * content drop the misses sooner, this bounds how long it takes to notice a user joining
+   * a group that can see the content.
+   */
+  static final long MISS_TTL = 30000L;
+
+  /**
+   * The users who did not find a pool ID, until an event on the pooled content or the
+   * time they expire.
+   */
+  private static class Misses {
+    private final long expires;
+    private final Set<String> users = new HashSet<String>();
+
+    private Misses(long expires) {
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * The storage path of each pool ID, which never changes.
+   */
+  private final Map<String, String> poolPaths = new LinkedHashMap<String, String>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_POOL_IDS;
+    }
+  };
+
+  private final Map<String, Misses> misses = new LinkedHashMap<String, Misses>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Misses> eldest) {
+      return size() > MAX_POOL_IDS;
+    }
+  };
+
   // this 36*36 = 1296, so /a/aa/aa/aa will have 36 at the first level, then 46656 at the
   // second and then 60M, then 7e10 items at the last level.
 
@@ -110,18 +175,18 @@ public class ContentPoolProvider implements ResourceProvider {
         return null;
       }
       LOGGER.debug("Pool ID is [{}]", poolId);
-      String poolPath = null;
-      try {
-        poolPath = CreateContentPoolServlet.hash(poolId) + selectors;
-      } catch (Exception e) {
-        throw new RepositoryException("Unable to hash pool ID " + e.getMessage(), e);
+      String poolPath = getPoolPath(poolId) + selectors;
+      String userId = getUserId(resourceResolver);
+      if (isMiss(poolId, userId)) {
+        LOGGER.debug("Pool ID is known not to exist, reject {} ", poolPath);
+        throw createMissException();
       }
-      Resource r = resourceResolver.resolve(poolPath);
-      if (r instanceof NonExistingResource) {
+      Resource r = resourceResolver.getResource(poolPath);
+      if (r == null || r instanceof NonExistingResource) {
         LOGGER.debug("Pool ID does not exist, reject and dont allow creation on POST {} ",
             poolPath);
-        throw new SlingException("Resources may not be created at /p by the user",
-            new AccessDeniedException("Cant create user specified pool resoruce"));
+        putMiss(poolId, userId);
+        throw createMissException();
       }
       LOGGER.debug("Resolving [{}] to [{}] ", poolPath, r);
       if (r != null) {
@@ -142,6 +207,118 @@ public class ContentPoolProvider implements ResourceProvider {
     return null;
   }
 
+  /**
+   * @param poolId
+   *          The ID of the pooled content.
+   * @return The path the pooled content is stored at.
+   * @throws RepositoryException
+   */
+  private String getPoolPath(String poolId) throws RepositoryException {
+    synchronized (poolPaths) {
+      String poolPath = poolPaths.get(poolId);
+      if (poolPath != null) {
+        return poolPath;
+      }
+    }
+    String poolPath;
+    try {
+      poolPath = CreateContentPoolServlet.hash(poolId);
+    } catch (Exception e) {
+      throw new RepositoryException("Unable to hash pool ID " + e.getMessage(), e);
+    }
+    synchronized (poolPaths) {
+      poolPaths.put(poolId, poolPath);
+    }
+    return poolPath;
+  }
+
+  /**
+   * @return The user of the resolver, or null if it has no session.
+   */
+  private String getUserId(ResourceResolver resourceResolver) {
+    Session session = resourceResolver.adaptTo(Session.class);
+    return session == null ? null : session.getUserID();
+  }
+
+  private boolean isMiss(String poolId, String userId) {
+    if (userId == null) {
+      return false;
+    }
+    synchronized (misses) {
+      Misses poolIdMisses = misses.get(poolId);
+      if (poolIdMisses == null) {
+        return false;
+      }
+      if (poolIdMisses.expires < System.currentTimeMillis()) {
+        misses.remove(poolId);
+        return false;
+      }
+      return poolIdMisses.users.contains(userId);
+    }
+  }
+
+  private void putMiss(String poolId, String userId) {
+    if (userId == null) {
+      return;
+    }
+    synchronized (misses) {
+      Misses poolIdMisses = misses.get(poolId);
+      if (poolIdMisses == null || poolIdMisses.expires < System.currentTimeMillis()) {
+        poolIdMisses = new Misses(System.currentTimeMillis() + MISS_TTL);
+        misses.put(poolId, poolIdMisses);
+      }
+      poolIdMisses.users.add(userId);
+    }
+  }
+
+  private SlingException createMissException() {
+    return new SlingException("Resources may not be created at /p by the user",
+        new AccessDeniedException("Cant create user specified pool resoruce"));
+  }
+
+  /**
+   * {@inheritDoc} Drops the misses of pooled content that is created, changed, or
+   * deleted, a change may be to who can see it.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null
+        || !path.startsWith(CreateContentPoolServlet.POOLED_CONTENT_ROOT + "/")) {
+      return;
+    }
+    String poolId = getPoolId(path);
+    synchronized (misses) {
+      if (poolId == null) {
+        // a folder of pooled content.
+        misses.clear();
+      } else {
+        misses.remove(poolId);
+      }
+    }
+  }
+
+  /**
+   * @param path
+   *          A path below the root of pooled content, as returned by
+   *          {@link CreateContentPoolServlet#hash(String)} or below that.
+   * @return The pool ID of the path, or null if the path is above pooled content.
+   */
+  static String getPoolId(String path) {
+    // /_p/a/bb/cc/dd/poolId
+    int start = 0;
+    for (int i = 0; i < 6; i++) {
+      start = path.indexOf('/', start) + 1;
+      if (start == 0) {
+        return null;
+      }
+    }
+    int end = path.indexOf('/', start);
+    String poolId = (end < 0) ? path.substring(start) : path.substring(start, end);
+    return poolId.length() == 0 ? null : poolId;
+  }
+
   private String getLastElement(String path) {
     for (int i = path.length() - 1; i >= 0; i--) {
       if (path.charAt(i) == '/') {
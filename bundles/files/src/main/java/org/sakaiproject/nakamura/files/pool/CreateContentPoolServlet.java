@@ -17,11 +17,8 @@
  */
 package org.sakaiproject.nakamura.files.pool;
 
-import static javax.jcr.security.Privilege.JCR_ALL;
-import static javax.jcr.security.Privilege.JCR_READ;
 import static org.apache.jackrabbit.JcrConstants.JCR_CONTENT;
 import static org.apache.jackrabbit.JcrConstants.NT_RESOURCE;
-import static org.apache.sling.jcr.base.util.AccessControlUtil.replaceAccessControlEntry;
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_CREATED_FOR;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.POOLED_CONTENT_FILENAME;
@@ -56,6 +53,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.ACLUtils;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
@@ -68,6 +66,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -124,6 +123,8 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
   private static final Logger LOGGER = LoggerFactory
       .getLogger(CreateContentPoolServlet.class);
 
+  private static final ThreadLocal<MessageDigest> POOL_ID_DIGEST = new ThreadLocal<MessageDigest>();
+
   private String serverId;
   private long startingPoint;
   private Object lock = new Object();
@@ -237,11 +238,8 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
           .createBinary(value.getInputStream()));
 
       // The current user will be a manager and thus gets the JCR_ALL privilege on the file.
-      Principal userPrincipal = au.getPrincipal();
-      AccessControlUtil.replaceAccessControlEntry(session, path, userPrincipal,
-          new String[] { JCR_ALL }, null, null, null);
-
       // Other people can't see or do anything.
+      Principal userPrincipal = au.getPrincipal();
       Principal anon = new Principal() {
         public String getName() {
           return UserConstants.ANON_USERID;
@@ -252,10 +250,11 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
           return "everyone";
         }
       };
-      AccessControlUtil.replaceAccessControlEntry(session, path, anon, null,
-          new String[] { JCR_ALL }, null, null);
-      AccessControlUtil.replaceAccessControlEntry(session, path, everyone, null,
-          new String[] { JCR_ALL }, null, null);
+      Map<Principal, String[]> privilegeSpecs = new LinkedHashMap<Principal, String[]>();
+      privilegeSpecs.put(userPrincipal, new String[] { ACLUtils.ALL_GRANTED });
+      privilegeSpecs.put(anon, new String[] { ACLUtils.ALL_DENIED });
+      privilegeSpecs.put(everyone, new String[] { ACLUtils.ALL_DENIED });
+      ACLUtils.addEntry(path, privilegeSpecs, session);
       // Create a users node under this node.
       // We do this so we're still able to query the repository and find the files where a
       // user/group is viewer/manager of.
@@ -271,8 +270,10 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
 
       // These nodes can only be modified by an admin/manager.
       // Other people cannot even see it.
-      replaceAccessControlEntry(session, userNode.getPath(), everyone, null, new String[] {
-          JCR_READ, JCR_ALL }, null, null);
+      privilegeSpecs = new LinkedHashMap<Principal, String[]>();
+      privilegeSpecs.put(everyone, new String[] { ACLUtils.READ_DENIED,
+          ACLUtils.ALL_DENIED });
+      ACLUtils.addEntry(userNode.getPath(), privilegeSpecs, session);
     } else {
       Node fileNode = session.getNode(path);
       Node resourceNode = fileNode.getNode(JCR_CONTENT);
@@ -313,9 +314,23 @@ public class CreateContentPoolServlet extends SlingAllMethodsServlet {
     return contentType;
   }
 
+  /**
+   * Get the path pooled content is stored at.
+   *
+   * @param poolId
+   *          The ID of the pooled content.
+   * @return The path, sharded by the SHA-1 digest of the ID.
+   * @throws NoSuchAlgorithmException
+   * @throws UnsupportedEncodingException
+   */
   public static String hash(String poolId) throws NoSuchAlgorithmException,
       UnsupportedEncodingException {
-    MessageDigest md = MessageDigest.getInstance("SHA-1");
+    // looking the digest up each time costs more than computing it for a short ID.
+    MessageDigest md = POOL_ID_DIGEST.get();
+    if (md == null) {
+      md = MessageDigest.getInstance("SHA-1");
+      POOL_ID_DIGEST.set(md);
+    }
     String encodedId = StringUtils.encode(md.digest(poolId.getBytes("UTF-8")),
         HASHENCODING);
     LOGGER.debug("Hashing [{}] gave [{}] ", poolId, encodedId);
@@ -29,6 +29,7 @@ import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.files.FileListingContext;
 import org.sakaiproject.nakamura.api.files.FileUtils;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.search.Aggregator;
@@ -173,6 +174,7 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       Aggregator aggregator, RowIterator iterator) throws JSONException,
       RepositoryException {
     Session session = request.getResourceResolver().adaptTo(Session.class);
+    FileListingContext context = new FileListingContext(session, siteService);
 
     while (iterator.hasNext()) {
       Row row = iterator.nextRow();
@@ -181,7 +183,7 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
         aggregator.add(node);
       }
 
-      handleNode(node, session, write);
+      handleNode(node, session, write, context);
     }
   }
 
@@ -206,10 +208,11 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       JSONException {
 
     Session session = request.getResourceResolver().adaptTo(Session.class);
+    FileListingContext context = new FileListingContext(session, siteService);
     iterator.skip(start);
     for (long i = start; i < end && iterator.hasNext(); i++) {
       Node node = iterator.nextNode();
-      handleNode(node, session, write);
+      handleNode(node, session, write, context);
     }
   }
 
@@ -227,15 +230,34 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
    */
   protected void handleNode(Node node, Session session, JSONWriter write)
       throws JSONException, RepositoryException {
+    handleNode(node, session, write, new FileListingContext(session, siteService));
+  }
+
+  /**
+   * Give a JSON representation of the file node.
+   *
+   * @param node
+   *          The node
+   * @param session
+   *          The {@link Session} to use to grab more information.
+   * @param write
+   *          The {@link JSONWriter} to use.
+   * @param context
+   *          The lookups shared by all the nodes written to the same response.
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  protected void handleNode(Node node, Session session, JSONWriter write,
+      FileListingContext context) throws JSONException, RepositoryException {
     String type = "";
     if (node.hasProperty(SLING_RESOURCE_TYPE_PROPERTY)) {
       type = node.getProperty(SLING_RESOURCE_TYPE_PROPERTY).getString();
     }
 
     if (FilesConstants.RT_SAKAI_LINK.equals(type)) {
-      FileUtils.writeLinkNode(node, session, write, siteService);
+      FileUtils.writeLinkNode(node, session, write, context);
     } else {
-      FileUtils.writeFileNode(node, session, write, siteService, depth);
+      FileUtils.writeFileNode(node, session, write, context, depth);
     }
   }
 }
@@ -20,23 +20,30 @@ package org.sakaiproject.nakamura.api.files;
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sakaiproject.nakamura.api.files.FileUtils.resolveNode;
 
 import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.testing.jcr.MockNode;
 import org.apache.sling.commons.testing.jcr.MockProperty;
 import org.apache.sling.commons.testing.jcr.MockPropertyIterator;
+import org.apache.sling.commons.testing.jcr.MockValue;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.site.SiteService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -54,14 +61,20 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
 import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
 
 /**
  *
  */
 public class FilesUtilsTest {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(FilesUtilsTest.class);
+
   @Test
   public void testWriteFileNode() throws JSONException, RepositoryException,
       UnsupportedEncodingException, IOException {
@@ -221,6 +234,151 @@ public class FilesUtilsTest {
 
   }
 
+  @Test
+  public void testWritePermissionsFromPrivileges() throws Exception {
+    Session session = mock(Session.class);
+    AccessControlManager acm = mock(AccessControlManager.class);
+    when(session.getAccessControlManager()).thenReturn(acm);
+    Privilege write = createPrivilege(Privilege.JCR_WRITE, createPrivilege(
+        Privilege.JCR_MODIFY_PROPERTIES), createPrivilege(Privilege.JCR_ADD_CHILD_NODES));
+    Privilege read = createPrivilege(Privilege.JCR_READ);
+    when(acm.getPrivileges("/path/to/file.doc")).thenReturn(
+        new Privilege[] { read, write });
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    FileUtils.writeFileNode(createFileNode(), session, new JSONWriter(w), mock(SiteService.class));
+    w.flush();
+    JSONObject permissions = new JSONObject(baos.toString("UTF-8"))
+        .getJSONObject("permissions");
+    assertEquals(true, permissions.getBoolean("read"));
+    assertEquals(true, permissions.getBoolean("set_property"));
+    assertEquals(false, permissions.getBoolean("remove"));
+    verify(session, never()).checkPermission(anyString(), anyString());
+
+    EffectivePrivileges privileges = new EffectivePrivileges(session);
+    Privilege all = createPrivilege(Privilege.JCR_ALL);
+    when(acm.getPrivileges("/")).thenReturn(new Privilege[] { all });
+    when(acm.getPrivileges("/admin")).thenReturn(new Privilege[] { all });
+    when(acm.getPrivileges("/missing")).thenThrow(new PathNotFoundException());
+    assertEquals(true, privileges.isGranted("/admin", EffectivePrivileges.READ
+        | EffectivePrivileges.REMOVE_NODE));
+    assertEquals(0, privileges.getPrivileges("/missing"));
+  }
+
+  @Test
+  public void testRemoveNeedsRemoveChildNodesOnParent() throws Exception {
+    Session session = mock(Session.class);
+    AccessControlManager acm = mock(AccessControlManager.class);
+    when(session.getAccessControlManager()).thenReturn(acm);
+    Privilege read = createPrivilege(Privilege.JCR_READ);
+    Privilege removeNode = createPrivilege(Privilege.JCR_REMOVE_NODE);
+    Privilege removeChildNodes = createPrivilege(Privilege.JCR_REMOVE_CHILD_NODES);
+    when(acm.getPrivileges("/locked")).thenReturn(new Privilege[] { read });
+    when(acm.getPrivileges("/locked/file.doc")).thenReturn(
+        new Privilege[] { read, removeNode });
+    when(acm.getPrivileges("/open")).thenReturn(new Privilege[] { read, removeChildNodes });
+    when(acm.getPrivileges("/open/file.doc")).thenReturn(
+        new Privilege[] { read, removeNode });
+    when(acm.getPrivileges("/open/other.doc")).thenReturn(
+        new Privilege[] { read, removeNode });
+
+    EffectivePrivileges privileges = new EffectivePrivileges(session);
+    assertEquals(false, privileges.isGranted("/locked/file.doc",
+        EffectivePrivileges.REMOVE_NODE));
+    assertEquals(true, privileges.isGranted("/locked/file.doc", EffectivePrivileges.READ));
+    assertEquals(true, privileges.isGranted("/open/file.doc",
+        EffectivePrivileges.REMOVE_NODE));
+    assertEquals(true, privileges.isGranted("/open/other.doc",
+        EffectivePrivileges.REMOVE_NODE));
+    // the parent's own privileges don't pick up the bit used for its children.
+    assertEquals(EffectivePrivileges.READ, privileges.getPrivileges("/open"));
+    // the parent is evaluated once for all its children.
+    verify(acm, times(1)).getPrivileges("/open");
+  }
+
+  @Test
+  public void testListingSharedSitesBenchmark() throws Exception {
+    int fileCount = 100;
+    int siteCount = 5;
+    Session session = mock(Session.class);
+    AccessControlManager acm = mock(AccessControlManager.class);
+    when(session.getAccessControlManager()).thenReturn(acm);
+    Privilege read = createPrivilege(Privilege.JCR_READ);
+    when(acm.getPrivileges(anyString())).thenReturn(new Privilege[] { read });
+    SiteService siteService = mock(SiteService.class);
+    for (int i = 0; i < siteCount; i++) {
+      Node siteNode = new MockNode("/sites/site" + i);
+      when(session.getNodeByIdentifier("site-" + i)).thenReturn(siteNode);
+      when(siteService.isSite(siteNode)).thenReturn(true);
+      when(siteService.getMemberCount(siteNode)).thenReturn(10 * i);
+    }
+    List<Node> files = new ArrayList<Node>();
+    for (int i = 0; i < fileCount; i++) {
+      // every file is used in three of the sites.
+      files.add(createSiteFileNode("/path/to/file" + i, "site-" + (i % siteCount), "site-"
+          + ((i + 1) % siteCount), "site-" + ((i + 2) % siteCount)));
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    JSONWriter write = new JSONWriter(w);
+    long start = System.nanoTime();
+    FileListingContext context = new FileListingContext(session, siteService);
+    write.array();
+    for (Node file : files) {
+      FileUtils.writeFileNode(file, session, write, context, 0);
+    }
+    write.endArray();
+    long elapsed = System.nanoTime() - start;
+    w.flush();
+
+    JSONArray listing = new JSONArray(baos.toString("UTF-8"));
+    assertEquals(fileCount, listing.length());
+    JSONObject usedIn = listing.getJSONObject(7).getJSONObject("usedIn");
+    assertEquals(3, usedIn.getInt("total"));
+    assertEquals("20", usedIn.getJSONArray("sites").getJSONObject(0).getString(
+        "member-count"));
+    // one evaluation per file and per site, one member count per site.
+    verify(acm, times(fileCount + siteCount)).getPrivileges(anyString());
+    verify(siteService, times(siteCount)).getMemberCount(any(Node.class));
+    verify(session, never()).checkPermission(anyString(), anyString());
+    LOGGER.info("Listed {} files in {} sites in {} ms with {} privilege evaluations "
+        + "and {} member counts, instead of {} permission checks and {} member counts",
+        new Object[] { fileCount, siteCount, elapsed / 1000000, fileCount + siteCount,
+            siteCount, fileCount * 3 + fileCount * 3, fileCount * 3 });
+  }
+
+  private Node createSiteFileNode(String path, String... siteIds)
+      throws RepositoryException {
+    Node node = mock(Node.class);
+    when(node.getPath()).thenReturn(path);
+    when(node.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+    MockPropertyIterator properties = new MockPropertyIterator(new ArrayList<Property>()
+        .iterator());
+    when(node.getProperties()).thenReturn(properties);
+    Value[] values = new Value[siteIds.length];
+    for (int i = 0; i < siteIds.length; i++) {
+      values[i] = new MockValue(siteIds[i]);
+    }
+    Property sites = mock(Property.class);
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    when(definition.isMultiple()).thenReturn(true);
+    when(sites.getDefinition()).thenReturn(definition);
+    when(sites.getValues()).thenReturn(values);
+    when(node.hasProperty("sakai:sites")).thenReturn(true);
+    when(node.getProperty("sakai:sites")).thenReturn(sites);
+    return node;
+  }
+
+  private Privilege createPrivilege(String name, Privilege... aggregated) {
+    Privilege privilege = mock(Privilege.class);
+    when(privilege.getName()).thenReturn(name);
+    when(privilege.isAggregate()).thenReturn(aggregated.length > 0);
+    when(privilege.getDeclaredAggregatePrivileges()).thenReturn(aggregated);
+    return privilege;
+  }
+
   @Test
   public void testResolveNode() throws RepositoryException {
     Session session = mock(Session.class);
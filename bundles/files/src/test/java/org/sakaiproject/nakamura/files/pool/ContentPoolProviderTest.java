@@ -22,15 +22,25 @@ import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
 import junit.framework.Assert;
 
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceMetadata;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.SyntheticResource;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import javax.jcr.Session;
 
 public class ContentPoolProviderTest {
 
@@ -48,9 +58,9 @@ public class ContentPoolProviderTest {
   @SuppressWarnings(value = { "DLS_DEAD_LOCAL_STORE" }, justification = "Unit testing fail mode")
   @Test
   public void testNonExisting() {
-    Mockito.when(resourceResolver.resolve(Mockito.anyString())).thenReturn(resource);
+    Mockito.when(resourceResolver.getResource(Mockito.anyString())).thenReturn(resource);
     Mockito
-        .when(resourceResolver.resolve(Mockito.eq("/_p/j/yy/qe/u1/nonexisting")))
+        .when(resourceResolver.getResource(Mockito.eq("/_p/j/yy/qe/u1/nonexisting")))
         .thenReturn(new NonExistingResource(resourceResolver, "/_p/aa/bb/cc/nonexisting"));
     Mockito.when(resource.getPath()).thenReturn("/_p/AA/BB/CC/DD/testing");
     ResourceMetadata resourceMetadata = new ResourceMetadata();
@@ -71,7 +81,7 @@ public class ContentPoolProviderTest {
 
   @Test
   public void testNonMatching() {
-    Mockito.when(resourceResolver.resolve(Mockito.anyString())).thenReturn(resource);
+    Mockito.when(resourceResolver.getResource(Mockito.anyString())).thenReturn(resource);
     Mockito.when(resource.getPath()).thenReturn("/_p/AA/BB/CC/DD/testing");
     ResourceMetadata resourceMetadata = new ResourceMetadata();
     Mockito.when(resource.getResourceMetadata()).thenReturn(resourceMetadata);
@@ -85,6 +95,57 @@ public class ContentPoolProviderTest {
 
   }
 
+  @Test
+  public void testMissesAreRemembered() throws Exception {
+    Session session = Mockito.mock(Session.class);
+    Mockito.when(session.getUserID()).thenReturn("ieb");
+    Mockito.when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+    String poolPath = CreateContentPoolServlet.hash("missing");
+    Assert.assertEquals("missing", ContentPoolProvider.getPoolId(poolPath));
+    Assert.assertEquals("missing", ContentPoolProvider.getPoolId(poolPath + "/jcr:content"));
+    Assert.assertNull(ContentPoolProvider.getPoolId("/_p/j/yy"));
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        cp.getResource(resourceResolver, "/p/missing");
+        Assert.fail("Should have refused a missing pool ID");
+      } catch (SlingException e) {
+      }
+    }
+    Mockito.verify(resourceResolver, Mockito.times(1)).getResource(poolPath);
+
+    // creating the pooled content drops the miss.
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, poolPath);
+    cp.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_ADDED, properties));
+    Mockito.when(resourceResolver.getResource(poolPath)).thenReturn(resource);
+    Mockito.when(resource.getPath()).thenReturn(poolPath);
+    ResourceMetadata resourceMetadata = new ResourceMetadata();
+    Mockito.when(resource.getResourceMetadata()).thenReturn(resourceMetadata);
+    Assert.assertSame(resource, cp.getResource(resourceResolver, "/p/missing"));
+    Mockito.verify(resourceResolver, Mockito.times(2)).getResource(poolPath);
+  }
+
+  @Test
+  public void testPoolIdsResolveToTheirPaths() throws Exception {
+    Mockito.when(resourceResolver.getResource(Mockito.anyString())).thenAnswer(
+        new Answer<Resource>() {
+          public Resource answer(InvocationOnMock invocation) {
+            String path = (String) invocation.getArguments()[0];
+            return new SyntheticResource(resourceResolver, path, "sakai/pooled-content");
+          }
+        });
+    for (int r = 0; r < 2; r++) {
+      for (int i = 0; i < 100; i++) {
+        String poolId = "pool" + i;
+        Resource found = cp.getResource(resourceResolver, "/p/" + poolId);
+        Assert.assertEquals(CreateContentPoolServlet.hash(poolId), found.getPath());
+      }
+    }
+    Mockito.verify(resourceResolver, Mockito.times(200)).getResource(Mockito.anyString());
+    Mockito.verify(resourceResolver, Mockito.never()).resolve(Mockito.anyString());
+  }
+
   public void testProviderWithId(String selectors, String extra) {
     Resource result = cp.getResource(resourceResolver, "/p/testing" + selectors + extra);
     Assert.assertEquals(null, result);
@@ -30,7 +30,6 @@ import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
-import org.apache.kahadb.util.ByteArrayInputStream;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
@@ -44,17 +43,28 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.testutils.mockito.MockitoTestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Binary;
 import javax.jcr.Node;
@@ -69,6 +79,9 @@ import javax.jcr.security.Privilege;
 
 public class CreateContentPoolServletTest {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(CreateContentPoolServletTest.class);
+
   @Mock
   private SlingRepository slingRepository;
   @Mock
@@ -122,24 +135,10 @@ public class CreateContentPoolServletTest {
 
   @Test
   public void testCreate() throws Exception {
-
-    // activate
-    when(clusterTrackingService.getCurrentServerId()).thenReturn("serverID");
-    when(slingRepository.loginAdministrative(null)).thenReturn(adminSession);
-
+    CreateContentPoolServlet cp = createServlet();
 
     when(request.getRequestPathInfo()).thenReturn(requestPathInfo);
-    when(requestPathInfo.getExtension()).thenReturn(null);
-
-    when(adminSession.getUserManager()).thenReturn(userManager);
-    when(adminSession.getPrincipalManager()).thenReturn(principalManager);
-    when(adminSession.getAccessControlManager()).thenReturn(accessControlManager);
     when(request.getRemoteUser()).thenReturn("ieb");
-    when(iebPrincipal.getPath()).thenReturn("/i/ie/ieb");
-    iebAuthorizable = MockitoTestUtils.createAuthorizable("ieb", false);
-    when(iebAuthorizable.getPrincipal()).thenReturn(iebPrincipal);
-    when(userManager.getAuthorizable("ieb")).thenReturn(iebAuthorizable);
-
     when(request.getRequestParameterMap()).thenReturn(requestParameterMap);
     Map<String, RequestParameter[]> map = new HashMap<String, RequestParameter[]>();
 
@@ -163,6 +162,178 @@ public class CreateContentPoolServletTest {
 
     when(requestParameterNot.isFormField()).thenReturn(true);
 
+    // Mock the members node behaviour
+    String usersNodePath = parentNode.getPath() + PersonalUtils.getUserHashedPath(iebAuthorizable);
+    when(adminSession.itemExists(usersNodePath)).thenReturn(true);
+    when(adminSession.getItem(usersNodePath)).thenReturn(membersNode);
+    ArgumentCaptor<String[]> managersCaptor = ArgumentCaptor.forClass(String[].class);
+    when(
+        membersNode.setProperty(Mockito.eq(POOLED_CONTENT_USER_MANAGER), managersCaptor
+            .capture())).thenReturn(null);
+
+    StringWriter stringWriter = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+
+    cp.doPost(request, response);
+
+    // Verify that we created all the nodes.
+    assertEquals(1, managersCaptor.getValue().length);
+    assertEquals(iebPrincipal.getName(), managersCaptor.getValue()[0]);
+
+    JSONObject jsonObject = new JSONObject(stringWriter.toString());
+    Assert.assertNotNull(jsonObject.getString("testfilename.pdf"));
+    Assert.assertNotNull(jsonObject.getString("index.html"));
+    Assert.assertEquals(2, jsonObject.length());
+    // the access control list of each file and of each members node is written once,
+    // next to the pool root being created for each file.
+    Mockito.verify(accessControlManager, Mockito.times(6)).setPolicy(Mockito.anyString(),
+        Mockito.eq(accessControlList));
+  }
+
+  @Test
+  public void testConcurrentUploads() throws Exception {
+    final CreateContentPoolServlet cp = createServlet();
+    final long size = 8L * 1024L * 1024L;
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicLong stored = new AtomicLong();
+    when(valueFactory.createBinary(Mockito.any(InputStream.class))).thenAnswer(
+        new Answer<Binary>() {
+          // stands in for the data store, reading the whole upload.
+          public Binary answer(InvocationOnMock invocation) throws Throwable {
+            InputStream in = (InputStream) invocation.getArguments()[0];
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+              stored.addAndGet(read);
+            }
+            created.incrementAndGet();
+            return binary;
+          }
+        });
+
+    int uploads = 4;
+    final SlingHttpServletRequest[] requests = new SlingHttpServletRequest[uploads];
+    final SlingHttpServletResponse[] responses = new SlingHttpServletResponse[uploads];
+    final RequestParameter[] files = new RequestParameter[uploads];
+    for (int i = 0; i < uploads; i++) {
+      requests[i] = createUpload("upload" + i + ".zip", size, i);
+      files[i] = requests[i].getRequestParameterMap().entrySet().iterator().next()
+          .getValue()[0];
+      responses[i] = Mockito.mock(SlingHttpServletResponse.class);
+      when(responses[i].getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    }
+
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    Thread[] threads = new Thread[uploads];
+    long start = System.nanoTime();
+    for (int i = 0; i < uploads; i++) {
+      final int upload = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            cp.doPost(requests[upload], responses[upload]);
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    for (Throwable t : failures) {
+      LOGGER.error("Upload failed", t);
+    }
+    assertEquals(0, failures.size());
+    // each upload is streamed into the repository once, and read for nothing else.
+    assertEquals(uploads, created.get());
+    assertEquals(uploads * size, stored.get());
+    for (RequestParameter file : files) {
+      Mockito.verify(file, Mockito.times(1)).getInputStream();
+    }
+    LOGGER.info("Uploaded {} files of {} MB at once in {} ms", new Object[] { uploads,
+        size >> 20, elapsed / 1000000 });
+  }
+
+  private SlingHttpServletRequest createUpload(String fileName, final long size,
+      final int seed) throws Exception {
+    SlingHttpServletRequest upload = Mockito.mock(SlingHttpServletRequest.class);
+    RequestParameterMap parameterMap = Mockito.mock(RequestParameterMap.class);
+    RequestParameter file = Mockito.mock(RequestParameter.class);
+    when(upload.getRequestPathInfo()).thenReturn(requestPathInfo);
+    when(upload.getRemoteUser()).thenReturn("ieb");
+    when(upload.getRequestParameterMap()).thenReturn(parameterMap);
+    Map<String, RequestParameter[]> map = new HashMap<String, RequestParameter[]>();
+    map.put("files", new RequestParameter[] { file });
+    when(parameterMap.entrySet()).thenReturn(map.entrySet());
+    when(file.isFormField()).thenReturn(false);
+    when(file.getContentType()).thenReturn("application/zip; charset=binary");
+    when(file.getFileName()).thenReturn(fileName);
+    when(file.getSize()).thenReturn(size);
+    when(file.getInputStream()).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) throws Throwable {
+        return new GeneratedInputStream(size, seed);
+      }
+    });
+    return upload;
+  }
+
+  /**
+   * Content that is generated as it is read, so that no upload is held in memory.
+   */
+  private static class GeneratedInputStream extends InputStream {
+    private final long length;
+    private final int seed;
+    private long position;
+
+    private GeneratedInputStream(long length, int seed) {
+      this.length = length;
+      this.seed = seed;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position >= length) {
+        return -1;
+      }
+      return (int) ((position++ * 31 + seed) & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= length) {
+        return -1;
+      }
+      int n = (int) Math.min(len, length - position);
+      for (int i = 0; i < n; i++) {
+        b[off + i] = (byte) ((position++ * 31 + seed) & 0xff);
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Stub what creating pooled content needs of the repository, and create the servlet.
+   */
+  private CreateContentPoolServlet createServlet() throws Exception {
+    // activate
+    when(clusterTrackingService.getCurrentServerId()).thenReturn("serverID");
+    when(slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+
+    when(requestPathInfo.getExtension()).thenReturn(null);
+
+    when(adminSession.getUserManager()).thenReturn(userManager);
+    when(adminSession.getPrincipalManager()).thenReturn(principalManager);
+    when(adminSession.getAccessControlManager()).thenReturn(accessControlManager);
+    when(iebPrincipal.getPath()).thenReturn("/i/ie/ieb");
+    iebAuthorizable = MockitoTestUtils.createAuthorizable("ieb", false);
+    when(iebAuthorizable.getPrincipal()).thenReturn(iebPrincipal);
+    when(userManager.getAuthorizable("ieb")).thenReturn(iebAuthorizable);
+
     // deep create
     when(adminSession.itemExists(Mockito.anyString())).thenReturn(true);
     when(adminSession.getItem(Mockito.anyString())).thenReturn(parentNode);
@@ -204,36 +375,13 @@ public class CreateContentPoolServletTest {
     AccessControlPolicy[] acp = new AccessControlPolicy[] { accessControlList };
     when(accessControlManager.getPolicies(Mockito.anyString())).thenReturn(acp);
 
-    // Mock the members node behaviour
-    String usersNodePath = parentNode.getPath() + PersonalUtils.getUserHashedPath(iebAuthorizable);
-    when(adminSession.itemExists(usersNodePath)).thenReturn(true);
-    when(adminSession.getItem(usersNodePath)).thenReturn(membersNode);
-    ArgumentCaptor<String[]> managersCaptor = ArgumentCaptor.forClass(String[].class);
-    when(
-        membersNode.setProperty(Mockito.eq(POOLED_CONTENT_USER_MANAGER), managersCaptor
-            .capture())).thenReturn(null);
-
     // saving
     when(adminSession.hasPendingChanges()).thenReturn(true);
 
-    StringWriter stringWriter = new StringWriter();
-    when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
-
     CreateContentPoolServlet cp = new CreateContentPoolServlet();
     cp.clusterTrackingService = clusterTrackingService;
     cp.slingRepository = slingRepository;
     cp.activate(componentContext);
-
-    cp.doPost(request, response);
-
-    // Verify that we created all the nodes.
-    assertEquals(1, managersCaptor.getValue().length);
-    assertEquals(iebPrincipal.getName(), managersCaptor.getValue()[0]);
-
-    JSONObject jsonObject = new JSONObject(stringWriter.toString());
-    Assert.assertNotNull(jsonObject.getString("testfilename.pdf"));
-    Assert.assertNotNull(jsonObject.getString("index.html"));
-    Assert.assertEquals(2, jsonObject.length());
-
+    return cp;
   }
 }
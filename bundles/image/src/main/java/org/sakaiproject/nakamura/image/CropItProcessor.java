@@ -18,6 +18,7 @@
 
 package org.sakaiproject.nakamura.image;
 
+import org.apache.jackrabbit.api.JackrabbitValue;
 import org.apache.sanselan.ImageFormat;
 import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
@@ -30,29 +31,60 @@ import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.ValueFactory;
 
 public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * The number of crops that decode and scale images at the same time, one per processor.
+   * Each crop holds a decoded image on the heap, so this bounds the heap taken by cropping
+   * however many requests come in at once.
+   */
+  private static final Semaphore PROCESSING = new Semaphore(Runtime.getRuntime()
+      .availableProcessors(), true);
+
+  /**
+   * The number of seconds a crop waits for another crop to finish before giving up.
+   */
+  private static final long PROCESSING_TIMEOUT = 30;
+
+  /**
+   * The encoded images of recent crops.
+   */
+  static final DerivativeCache DERIVATIVES = new DerivativeCache(16L * 1024L * 1024L);
+
   /**
    * 
    * @param session
@@ -79,8 +111,26 @@ public class CropItProcessor {
    */
   public static String[] crop(Session session, int x, int y, int width, int height,
       List<Dimension> dimensions, String img, String save) throws ImageException {
+    try {
+      if (!PROCESSING.tryAcquire(PROCESSING_TIMEOUT, TimeUnit.SECONDS)) {
+        throw new ImageException(503, "Too many images are being cropped, try again later.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImageException(503, "Interrupted while waiting to crop the image.");
+    }
+    try {
+      return doCrop(session, x, y, width, height, dimensions, img, save);
+    } finally {
+      PROCESSING.release();
+    }
+  }
+
+  private static String[] doCrop(Session session, int x, int y, int width, int height,
+      List<Dimension> dimensions, String img, String save) throws ImageException {
 
     InputStream in = null;
+    ImageInputStream iis = null;
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -115,57 +165,67 @@ public class CropItProcessor {
         }
 
         // Read the image
-        Binary content = imgNode.getProperty(JCRConstants.JCR_DATA).getBinary();
+        Property data = imgNode.getProperty(JCRConstants.JCR_DATA);
+        Binary content = data.getBinary();
         if ( content.getSize() > 100L*1024L*1024L ) {
           throw new ImageException(406, "Image "+imgPath+" too large to crop > 100MB Si "+content.getSize());
           
         }
         in = content.getStream();
+        iis = ImageIO.createImageInputStream(in);
         try {
-
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
-          }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
+          Dimension[] targets;
+          byte[][] images;
+          String outputMimeType;
+          ImageReader reader = getImageReader(iis);
+          if (reader != null) {
+            // Only the crop is decoded, at no more than twice the largest size it is
+            // scaled to.
+            try {
+              reader.setInput(iis, true, true);
+              int sourceWidth = reader.getWidth(0);
+              int sourceHeight = reader.getHeight(0);
+              Rectangle box = getCropBox(x, y, width, height, sourceWidth, sourceHeight);
+              targets = getTargets(dimensions, sourceWidth, sourceHeight);
+              images = createDerivatives(reader, getContentIdentity(data), box, targets);
+              outputMimeType = getMimeType(reader, mimeType);
+            } finally {
+              reader.dispose();
+            }
+          } else {
+            // ImageIO can't read this format, decode all of it with Sanselan.
+            // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
+            // ImageInfo _and_ the BufferedImage.
+            // I've tried using a BufferedInputStream which allows you to reset, but for BMP
+            // this doesn't help.
+            byte[] bytes = (iis == null) ? IOUtils.getInputStreamBytes(in)
+                : readBytes(iis);
+            ImageInfo info = Sanselan.getImageInfo(bytes);
+            BufferedImage imgBuf = getBufferedImage(bytes, info);
+            Rectangle box = getCropBox(x, y, width, height, info.getWidth(), info
+                .getHeight());
+            targets = getTargets(dimensions, info.getWidth(), info.getHeight());
+
+            // Cut the desired piece out of the image.
+            BufferedImage subImage = imgBuf.getSubimage(box.x, box.y, box.width,
+                box.height);
+            images = new byte[targets.length][];
+            for (int i = 0; i < targets.length; i++) {
+              images[i] = scaleAndWriteToByteArray(targets[i].width, targets[i].height,
+                  subImage, imgName, info);
+            }
+            outputMimeType = info.getMimeType();
           }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
-
-            Dimension d = dimensions.get(i);
-
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
-
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
-
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
-            
-            if ( image != null ) {
+          // Save an image for each dimension, all in one save.
+          for (int i = 0; i < targets.length; i++) {
+            int iWidth = targets[i].width;
+            int iHeight = targets[i].height;
+            if ( images[i] != null ) {
 
               String sPath = save + iWidth + "x" + iHeight + "_" + imgName;
               // Save new image to JCR.
-              saveImageToJCR(sPath, info.getMimeType(), image, imgNode, session);
+              saveImageToJCR(sPath, outputMimeType, images[i], imgNode, session);
   
               arrFiles[i] = sPath;
             } else {
@@ -173,6 +233,9 @@ public class CropItProcessor {
               arrFiles[i] = img;
             }
           }
+          if (session.hasPendingChanges()) {
+            session.save();
+          }
         } catch (ImageReadException e) {
           // This is not a valid image.
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{imgPath, mimeType, e.getMessage()});
@@ -197,6 +260,13 @@ public class CropItProcessor {
       throw new ImageException(500, "Unable to read image in order to crop it.");
     } finally {
       // close the streams
+      if (iis != null) {
+        try {
+          iis.close();
+        } catch (IOException e) {
+          LOGGER.debug("Exception closing imageinputstream.");
+        }
+      }
       if (in != null) {
         try {
           in.close();
@@ -208,6 +278,245 @@ public class CropItProcessor {
     return arrFiles;
   }
 
+  /**
+   * Cut a crop out of an image and scale it to a number of sizes. Only the crop is
+   * decoded, skipping rows and columns when the crop is more than twice the size of the
+   * largest target, and every size is scaled from the closest larger one. Images are
+   * taken from, and kept in, the {@link #DERIVATIVES derivative cache} when the content
+   * of the source image has an identity.
+   * 
+   * @param reader
+   *          A reader whose input is the source image.
+   * @param contentIdentity
+   *          The identity of the content of the source image, null if it has none.
+   * @param box
+   *          The crop, within the source image.
+   * @param targets
+   *          The sizes to scale the crop to.
+   * @return The encoded image for each target, null where an image could not be written.
+   * @throws IOException
+   *           Failed to read the source image.
+   */
+  protected static byte[][] createDerivatives(ImageReader reader, String contentIdentity,
+      Rectangle box, final Dimension[] targets) throws IOException {
+    byte[][] images = new byte[targets.length][];
+    String[] keys = new String[targets.length];
+    boolean decode = false;
+    for (int i = 0; i < targets.length; i++) {
+      if (contentIdentity != null) {
+        keys[i] = DerivativeCache.getKey(contentIdentity, box.x, box.y, box.width,
+            box.height, targets[i].width, targets[i].height);
+        images[i] = DERIVATIVES.get(keys[i]);
+      }
+      decode = decode || images[i] == null;
+    }
+    if (!decode) {
+      return images;
+    }
+
+    int maxWidth = 1;
+    int maxHeight = 1;
+    for (Dimension target : targets) {
+      maxWidth = Math.max(maxWidth, target.width);
+      maxHeight = Math.max(maxHeight, target.height);
+    }
+    int subsampling = Math.max(1, Math.min(box.width / (2 * maxWidth), box.height
+        / (2 * maxHeight)));
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(box);
+    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+    BufferedImage region = toScalableImage(reader.read(0, param));
+    String formatName = reader.getFormatName();
+
+    // Scale the largest sizes first, so the smaller ones start from a smaller image.
+    Integer[] order = new Integer[targets.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long areaA = (long) targets[a].width * targets[a].height;
+        long areaB = (long) targets[b].width * targets[b].height;
+        return areaA < areaB ? 1 : (areaA == areaB ? 0 : -1);
+      }
+    });
+    BufferedImage previous = region;
+    for (int i : order) {
+      if (images[i] != null) {
+        continue;
+      }
+      Dimension target = targets[i];
+      BufferedImage source = region;
+      if (previous.getWidth() >= target.width && previous.getHeight() >= target.height) {
+        source = previous;
+      }
+      BufferedImage scaled = getScaledInstance(source, target.width, target.height);
+      previous = scaled;
+      try {
+        images[i] = writeImage(scaled, formatName);
+        if (images[i] != null && keys[i] != null) {
+          DERIVATIVES.put(keys[i], images[i]);
+        }
+      } catch (Exception e) {
+        LOGGER.error("Failed to process image "+e.getMessage(), e);
+      }
+    }
+    return images;
+  }
+
+  /**
+   * Encode an image in a format. Not every writer takes every type of image, BMP and JPEG
+   * can't hold an alpha channel for example, so an image the writer refuses is drawn onto
+   * an opaque RGB image and written again.
+   * 
+   * @param image
+   *          The image to encode.
+   * @param formatName
+   *          The informal name of the format.
+   * @return The encoded image, or null if no writer for the format could encode it.
+   * @throws IOException
+   *           Failed to write the image.
+   */
+  protected static byte[] writeImage(BufferedImage image, String formatName)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (ImageIO.write(image, formatName, out)) {
+      return out.toByteArray();
+    }
+    LOGGER.warn("No {} writer takes images of type {}, writing it as RGB instead",
+        formatName, image.getType());
+    BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+        BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = rgb.createGraphics();
+    g2.setColor(Color.WHITE);
+    g2.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+    g2.drawImage(image, 0, 0, null);
+    g2.dispose();
+    out.reset();
+    if (ImageIO.write(rgb, formatName, out)) {
+      return out.toByteArray();
+    }
+    LOGGER.warn("Unable to write an image as {}", formatName);
+    return null;
+  }
+
+  /**
+   * @param x
+   *          Where to start cutting on the x-axis.
+   * @param y
+   *          Where to start cutting on the y-axis.
+   * @param width
+   *          The width to cut out, the entire image width if <=0.
+   * @param height
+   *          The height to cut out, the entire image height if <=0.
+   * @param sourceWidth
+   *          The width of the image.
+   * @param sourceHeight
+   *          The height of the image.
+   * @return The crop, within the image.
+   * @throws ImageException
+   *           The crop is outside of the image.
+   */
+  private static Rectangle getCropBox(int x, int y, int width, int height,
+      int sourceWidth, int sourceHeight) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? sourceWidth : width;
+    height = (height <= 0) ? sourceHeight : height;
+
+    if (x + width > sourceWidth) {
+      width = sourceWidth - x;
+    }
+    if (y + height > sourceHeight) {
+      height = sourceHeight - y;
+    }
+    if (x < 0 || y < 0 || width <= 0 || height <= 0) {
+      throw new ImageException(400, "The crop is outside of the image.");
+    }
+    return new Rectangle(x, y, width, height);
+  }
+
+  /**
+   * @return The size for each dimension, the size of the image where a dimension is <=0.
+   */
+  private static Dimension[] getTargets(List<Dimension> dimensions, int sourceWidth,
+      int sourceHeight) {
+    Dimension[] targets = new Dimension[dimensions.size()];
+    for (int i = 0; i < targets.length; i++) {
+      Dimension d = dimensions.get(i);
+      targets[i] = new Dimension((d.width <= 0) ? sourceWidth : d.width,
+          (d.height <= 0) ? sourceHeight : d.height);
+    }
+    return targets;
+  }
+
+  /**
+   * @param iis
+   *          The stream of the image, may be null.
+   * @return A reader for the image, or null if ImageIO can't read it.
+   */
+  private static ImageReader getImageReader(ImageInputStream iis) {
+    if (iis != null) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (readers.hasNext()) {
+        return readers.next();
+      }
+    }
+    return null;
+  }
+
+  private static String getMimeType(ImageReader reader, String defaultMimeType) {
+    ImageReaderSpi provider = reader.getOriginatingProvider();
+    if (provider != null && provider.getMIMETypes() != null
+        && provider.getMIMETypes().length > 0) {
+      return provider.getMIMETypes()[0];
+    }
+    return defaultMimeType;
+  }
+
+  /**
+   * @param data
+   *          The jcr:data property of the image.
+   * @return The identity of the content, which changes when the content does, or null if
+   *         the repository does not give the content one.
+   * @throws RepositoryException
+   */
+  private static String getContentIdentity(Property data) throws RepositoryException {
+    Value value = data.getValue();
+    if (value instanceof JackrabbitValue) {
+      return ((JackrabbitValue) value).getContentIdentity();
+    }
+    return null;
+  }
+
+  private static byte[] readBytes(ImageInputStream iis) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = iis.read(buffer)) > 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Indexed and custom images can't be drawn into an image of the same type without
+   * losing colours, so they are scaled as RGB.
+   */
+  private static BufferedImage toScalableImage(BufferedImage img) {
+    int type = img.getType();
+    if (type != BufferedImage.TYPE_CUSTOM && type != BufferedImage.TYPE_BYTE_INDEXED
+        && type != BufferedImage.TYPE_BYTE_BINARY) {
+      return img;
+    }
+    BufferedImage rgb = new BufferedImage(img.getWidth(), img.getHeight(), img
+        .getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+        : BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = rgb.createGraphics();
+    g2.drawImage(img, 0, 0, null);
+    g2.dispose();
+    return rgb;
+  }
+
   /**
    * @param bytes
    * @param info
@@ -233,7 +542,8 @@ public class CropItProcessor {
   }
 
   /**
-   * Will save a stream of an image to the JCR.
+   * Will save a stream of an image to the JCR. The session is not saved, so that all the
+   * images of a crop are saved at once.
    * 
    * @param path
    *          The JCR path to save the image in.
@@ -264,10 +574,6 @@ public class CropItProcessor {
       contentNode.setProperty(JCRConstants.JCR_DATA, vf.createBinary(bais));
       contentNode.setProperty(JCRConstants.JCR_MIMETYPE, mimetype);
       contentNode.setProperty(JCRConstants.JCR_LASTMODIFIED, Calendar.getInstance());
-
-      if (session.hasPendingChanges()) {
-        session.save();
-      }
     } catch (RepositoryException e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
       throw new ImageException(500, "Unable to save image to JCR.");
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The encoded images produced by cropping, keyed by the content of the source image, the
+ * crop box and the size. The same crop of the same picture is asked for again and again
+ * (an avatar saved twice, a crop retried after a failed save), so the encoded bytes are
+ * kept up to a maximum number of bytes, least recently used first out.
+ */
+class DerivativeCache {
+
+  private final long maxBytes;
+  private long bytes;
+  private final Map<String, byte[]> images = new LinkedHashMap<String, byte[]>(16, 0.75f,
+      true);
+
+  /**
+   * @param maxBytes
+   *          the maximum number of bytes of images held.
+   */
+  DerivativeCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @param contentIdentity
+   *          the identity of the content of the source image.
+   * @param x
+   *          the left of the crop box.
+   * @param y
+   *          the top of the crop box.
+   * @param width
+   *          the width of the crop box.
+   * @param height
+   *          the height of the crop box.
+   * @param targetWidth
+   *          the width the crop is scaled to.
+   * @param targetHeight
+   *          the height the crop is scaled to.
+   * @return the key of the image.
+   */
+  static String getKey(String contentIdentity, int x, int y, int width, int height,
+      int targetWidth, int targetHeight) {
+    return contentIdentity + "/" + x + "," + y + "," + width + "," + height + "/"
+        + targetWidth + "x" + targetHeight;
+  }
+
+  /**
+   * @param key
+   *          the key of the image.
+   * @return the encoded image or null if it is not held.
+   */
+  synchronized byte[] get(String key) {
+    return images.get(key);
+  }
+
+  /**
+   * Hold an encoded image, dropping the least recently used images if the cache is full.
+   * Images larger than the whole cache are not held.
+   *
+   * @param key
+   *          the key of the image.
+   * @param image
+   *          the encoded image.
+   */
+  synchronized void put(String key, byte[] image) {
+    if (image.length > maxBytes) {
+      return;
+    }
+    byte[] previous = images.put(key, image);
+    if (previous != null) {
+      bytes -= previous.length;
+    }
+    bytes += image.length;
+    Iterator<byte[]> eldest = images.values().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().length;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * @return the number of images held.
+   */
+  synchronized int size() {
+    return images.size();
+  }
+
+  /**
+   * @return the number of bytes of images held.
+   */
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Drop every image.
+   */
+  synchronized void clear() {
+    images.clear();
+    bytes = 0;
+  }
+}
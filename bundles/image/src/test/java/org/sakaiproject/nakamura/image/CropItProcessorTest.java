@@ -17,34 +17,56 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.apache.jackrabbit.api.JackrabbitValue;
 import org.apache.sanselan.ImageFormat;
 import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
+import org.apache.sanselan.util.IOUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
 import javax.jcr.ValueFormatException;
 
 /**
@@ -52,6 +74,14 @@ import javax.jcr.ValueFormatException;
  */
 public class CropItProcessorTest extends AbstractEasyMockTest {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessorTest.class);
+
+  /**
+   * The value of a binary held in a Jackrabbit data store.
+   */
+  private interface IdentifiedValue extends Value, JackrabbitValue {
+  }
+
   private Session session;
   private String img = "/foo/people.png";
   private int x = 0;
@@ -72,6 +102,7 @@ public class CropItProcessorTest extends AbstractEasyMockTest {
     d.setSize(50, 50);
     dimensions.add(d);
     expect(session.getItem(img)).andReturn(node);
+    CropItProcessor.DERIVATIVES.clear();
   }
 
   /**
@@ -142,6 +173,175 @@ public class CropItProcessorTest extends AbstractEasyMockTest {
     }
   }
 
+  @Test
+  public void testCropSavesOnce() throws Exception {
+    byte[] bytes = IOUtils.getInputStreamBytes(getClass().getResourceAsStream("people.png"));
+    dimensions.add(new Dimension(32, 32));
+    expect(node.getName()).andReturn("people.png");
+    expect(node.getPath()).andReturn(img);
+    expect(node.isNodeType("nt:file")).andReturn(true);
+    Node contentNode = createMock(Node.class);
+    expect(node.getNode(JCRConstants.JCR_CONTENT)).andReturn(contentNode);
+    expect(contentNode.hasProperty(JCRConstants.JCR_MIMETYPE)).andReturn(false);
+    Property streamProp = createMock(Property.class);
+    expect(contentNode.getProperty(JCRConstants.JCR_DATA)).andReturn(streamProp);
+    Binary bin = createMock(Binary.class);
+    expect(streamProp.getBinary()).andReturn(bin);
+    expect(bin.getSize()).andReturn((long) bytes.length);
+    expect(bin.getStream()).andReturn(new ByteArrayInputStream(bytes));
+    IdentifiedValue value = createMock(IdentifiedValue.class);
+    expect(streamProp.getValue()).andReturn(value);
+    expect(value.getContentIdentity()).andReturn("people-content");
+
+    ValueFactory valueFactory = createMock(ValueFactory.class);
+    expect(session.getValueFactory()).andReturn(valueFactory).times(2);
+    expect(valueFactory.createBinary(isA(InputStream.class))).andReturn(bin).times(2);
+    for (String path : new String[] { save + "50x50_people.png", save + "32x32_people.png" }) {
+      Node file = createMock(Node.class);
+      Node resource = createMock(Node.class);
+      expect(session.itemExists(path)).andReturn(true);
+      expect(session.getItem(path)).andReturn(file);
+      expect(file.hasNode(JCRConstants.JCR_CONTENT)).andReturn(true);
+      expect(file.getNode(JCRConstants.JCR_CONTENT)).andReturn(resource);
+      expect(resource.setProperty(JCRConstants.JCR_DATA, bin)).andReturn(null);
+      expect(resource.setProperty(JCRConstants.JCR_MIMETYPE, "image/png")).andReturn(null);
+      expect(resource.setProperty(eq(JCRConstants.JCR_LASTMODIFIED), isA(Calendar.class)))
+          .andReturn(null);
+    }
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+    expectLastCall().once();
+    replay();
+
+    String[] files = CropItProcessor.crop(session, x, y, width, height, dimensions, img,
+        save);
+    assertEquals(save + "50x50_people.png", files[0]);
+    assertEquals(save + "32x32_people.png", files[1]);
+    assertEquals(2, CropItProcessor.DERIVATIVES.size());
+    verify();
+  }
+
+  @Test
+  public void testCreateDerivatives() throws Exception {
+    Dimension[] targets = new Dimension[] { new Dimension(32, 32), new Dimension(100, 80) };
+    Rectangle box = new Rectangle(20, 20, 200, 160);
+    byte[][] images = CropItProcessor.createDerivatives(createReader(getClass()
+        .getResourceAsStream("people.png")), "people-content", box, targets);
+    for (int i = 0; i < targets.length; i++) {
+      BufferedImage scaled = ImageIO.read(new ByteArrayInputStream(images[i]));
+      assertEquals(targets[i].width, scaled.getWidth());
+      assertEquals(targets[i].height, scaled.getHeight());
+    }
+
+    // the same crop of the same content comes from the cache, the reader has no input
+    // and would fail if it was read.
+    ImageReader unread = ImageIO.getImageReadersByFormatName("png").next();
+    byte[][] cached = CropItProcessor.createDerivatives(unread, "people-content", box,
+        targets);
+    assertSame(images[0], cached[0]);
+    assertSame(images[1], cached[1]);
+  }
+
+  @Test
+  public void testDerivativeBenchmark() throws Exception {
+    // a photo cropped to the usual profile picture sizes, large enough to be subsampled.
+    BufferedImage photo = new BufferedImage(1200, 900, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = photo.createGraphics();
+    g2.setPaint(new GradientPaint(0, 0, Color.ORANGE, 1200, 900, Color.BLUE));
+    g2.fillRect(0, 0, 1200, 900);
+    g2.dispose();
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(photo, "jpg", jpeg);
+    byte[] bytes = jpeg.toByteArray();
+    photo = null;
+    Rectangle box = new Rectangle(200, 50, 800, 800);
+    Dimension[] targets = new Dimension[] { new Dimension(128, 128),
+        new Dimension(64, 64), new Dimension(32, 32) };
+    int repeats = 2;
+
+    long start = System.nanoTime();
+    long allocated = getAllocatedBytes();
+    for (int i = 0; i < repeats; i++) {
+      BufferedImage full = ImageIO.read(new ByteArrayInputStream(bytes));
+      BufferedImage subImage = full.getSubimage(box.x, box.y, box.width, box.height);
+      for (Dimension target : targets) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(CropItProcessor.getScaledInstance(subImage, target.width,
+            target.height), "jpg", out);
+      }
+    }
+    long fullAllocated = (getAllocatedBytes() - allocated) / repeats;
+    long fullTime = (System.nanoTime() - start) / repeats;
+
+    start = System.nanoTime();
+    allocated = getAllocatedBytes();
+    byte[][] images = null;
+    for (int i = 0; i < repeats; i++) {
+      images = CropItProcessor.createDerivatives(createReader(new ByteArrayInputStream(
+          bytes)), null, box, targets);
+    }
+    long regionAllocated = (getAllocatedBytes() - allocated) / repeats;
+    long regionTime = (System.nanoTime() - start) / repeats;
+    for (int i = 0; i < targets.length; i++) {
+      BufferedImage scaled = ImageIO.read(new ByteArrayInputStream(images[i]));
+      assertEquals(targets[i].width, scaled.getWidth());
+      assertEquals(targets[i].height, scaled.getHeight());
+    }
+
+    CropItProcessor.createDerivatives(createReader(new ByteArrayInputStream(bytes)),
+        "photo-content", box, targets);
+    start = System.nanoTime();
+    for (int i = 0; i < repeats; i++) {
+      CropItProcessor.createDerivatives(createReader(new ByteArrayInputStream(bytes)),
+          "photo-content", box, targets);
+    }
+    long cachedTime = (System.nanoTime() - start) / repeats;
+
+    LOGGER.info("Cropped a 1200x900 jpeg to {} sizes: full decode {} ms, {} KB; "
+        + "subsampled region {} ms, {} KB; cached {} us", new Object[] { targets.length,
+        fullTime / 1000000, fullAllocated / 1024, regionTime / 1000000,
+        regionAllocated / 1024, cachedTime / 1000 });
+    if (fullAllocated > 0) {
+      assertTrue(regionAllocated < fullAllocated);
+    }
+  }
+
+  @Test
+  public void testWriteImageWithoutAlpha() throws Exception {
+    BufferedImage argb = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g2 = argb.createGraphics();
+    g2.setColor(Color.RED);
+    g2.fillRect(0, 0, 10, 10);
+    g2.dispose();
+    // BMP can't hold the alpha channel, so the image is written as RGB.
+    byte[] bmp = CropItProcessor.writeImage(argb, "bmp");
+    BufferedImage written = ImageIO.read(new ByteArrayInputStream(bmp));
+    assertEquals(20, written.getWidth());
+    assertEquals(10, written.getHeight());
+    assertEquals(Color.RED.getRGB(), written.getRGB(5, 5));
+    assertEquals(Color.WHITE.getRGB(), written.getRGB(15, 5));
+    assertNull(CropItProcessor.writeImage(argb, "no-such-format"));
+  }
+
+  /**
+   * @return the bytes allocated by this thread so far, 0 if the JVM doesn't tell.
+   */
+  private long getAllocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+          .currentThread().getId());
+    }
+    return 0;
+  }
+
+  private ImageReader createReader(InputStream in) throws IOException {
+    ImageInputStream iis = ImageIO.createImageInputStream(in);
+    ImageReader reader = ImageIO.getImageReaders(iis).next();
+    reader.setInput(iis, true, true);
+    return reader;
+  }
+
   @Test
   public void testscaleAndWriteToStream() throws IOException, ImageWriteException,
       ImageReadException {
@@ -51,6 +51,7 @@ import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.ValueFactory;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -118,6 +119,7 @@ public class CropItServletTest extends AbstractEasyMockTest {
 
     Binary bin = createMock(Binary.class);
     expect(imgContentData.getBinary()).andReturn(bin);
+    expect(imgContentData.getValue()).andReturn(createMock(Value.class));
     byte[] b = IOUtils.getInputStreamBytes(getClass().getClassLoader().getResourceAsStream("people.png"));
     expect(bin.getSize()).andReturn((long)b.length);
     expect(bin.getStream()).andReturn(new ByteArrayInputStream(b));
@@ -158,10 +160,10 @@ public class CropItServletTest extends AbstractEasyMockTest {
       expect(session.getItem(userPath+"/breadcrumbs/" + s + "_people.png")).andReturn(
           breadCrumbNode);
 
-      expect(session.hasPendingChanges()).andReturn(true);
-      session.save();
-
     }
+    // all the sizes are saved at once.
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
     expect(session.itemExists(userPath+"/people.png")).andReturn(true);
     expect(session.getItem(userPath+"/people.png")).andReturn(imgNode);
     expect(session.itemExists(userPath+"/breadcrumbs")).andReturn(true);
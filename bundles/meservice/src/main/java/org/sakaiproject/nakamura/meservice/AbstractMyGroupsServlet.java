@@ -1,7 +1,6 @@
 package org.sakaiproject.nakamura.meservice;
 
 import org.apache.jackrabbit.api.security.user.Authorizable;
-import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -15,11 +14,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-import java.util.regex.Pattern;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -31,9 +28,18 @@ public abstract class AbstractMyGroupsServlet extends SlingSafeMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(MyManagedGroupsServlet.class);
 
   public static final String PARAM_TEXT_TO_MATCH = "q";
+  public static final String PARAM_ITEMS = "items";
+  public static final String PARAM_PAGE = "page";
+
+  /**
+   * The most groups asked of the directory at a time while filling a page.
+   */
+  private static final int MAX_BATCH = 100;
 
   protected transient ProfileService profileService;
 
+  protected transient GroupDirectoryService groupDirectoryService;
+
   protected void bindProfileService(ProfileService profileService) {
     this.profileService = profileService;
   }
@@ -41,33 +47,56 @@ public abstract class AbstractMyGroupsServlet extends SlingSafeMethodsServlet {
     this.profileService = null;
   }
 
+  protected void bindGroupDirectoryService(GroupDirectoryService groupDirectoryService) {
+    this.groupDirectoryService = groupDirectoryService;
+  }
+  protected void unbindGroupDirectoryService(GroupDirectoryService groupDirectoryService) {
+    this.groupDirectoryService = null;
+  }
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
     Session session = request.getResourceResolver().adaptTo(Session.class);
     String userId = session.getUserID();
     try {
-      // Find the Group entities associated with the user.
+      // Do some paging, by default all the groups are listed.
+      int items = Integer.MAX_VALUE;
+      int page = 0;
+      try {
+        if (request.getParameter(PARAM_ITEMS) != null) {
+          items = Integer.parseInt(request.getParameter(PARAM_ITEMS));
+        }
+        if (request.getParameter(PARAM_PAGE) != null) {
+          page = Integer.parseInt(request.getParameter(PARAM_PAGE));
+        }
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "The items and page parameters must be numbers.");
+        return;
+      }
+      if (items < 0) {
+        items = Integer.MAX_VALUE;
+      }
+      if (page < 0) {
+        page = 0;
+      }
+      int offset = (int) Math.min((long) page * items, Integer.MAX_VALUE);
+
+      // Find the Group entities associated with the user that match the filter.
       UserManager userManager = AccessControlUtil.getUserManager(session);
       Authorizable authorizable = userManager.getAuthorizable(userId);
-      TreeMap<String, Group> groups = getGroups(authorizable, userManager);
+      List<ValueMap> profiles = findProfiles(session, authorizable, request
+          .getParameter(PARAM_TEXT_TO_MATCH), offset, items);
 
       // Write out the Profiles.
-      Pattern filterPattern = getFilterPattern(request.getParameter(PARAM_TEXT_TO_MATCH));
       List<String> selectors = Arrays.asList(request.getRequestPathInfo().getSelectors());
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
       ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
       writer.setTidy(selectors.contains("tidy"));
       writer.array();
-      for (Group group : groups.values()) {
-        ValueMap profile = profileService.getProfileMap(group, session);
-        if (profile != null) {
-          if ((filterPattern == null) || (isValueMapPattternMatch(profile, filterPattern))) {
-            writer.valueMap(profile);
-          }
-        } else {
-          LOGGER.info("No Profile found for group {}", group.getID());
-        }
+      for (ValueMap profile : profiles) {
+        writer.valueMap(profile);
       }
       writer.endArray();
     } catch (RepositoryException e) {
@@ -81,52 +110,77 @@ public abstract class AbstractMyGroupsServlet extends SlingSafeMethodsServlet {
     }
   }
 
-  protected abstract TreeMap<String, Group> getGroups(Authorizable member, UserManager userManager)
-      throws RepositoryException;
-
-  protected static Pattern getFilterPattern(String filterParameter) {
-    Pattern filterPattern;
-    if (filterParameter == null) {
-      filterPattern = null;
-    } else {
-      // Translate Jackrabbit-style wildcards to Java-style wildcards.
-      String translatedParameter = "(?i).*\\b" + filterParameter.replaceAll("\\*", ".*") + "\\b.*";
-      filterPattern = Pattern.compile(translatedParameter);
-    }
-    return filterPattern;
-  }
-
-  private boolean isObjectPatternMatch(Object object, Pattern queryFilter) {
-    if (object instanceof ValueMap) {
-      return isValueMapPattternMatch((ValueMap) object, queryFilter);
-    } else if (object instanceof Object[]) {
-      return isArrayPatternMatch((Object[]) object, queryFilter);
-    } else {
-      return isStringPatternMatch(object.toString(), queryFilter);
-    }
-  }
-
-  private boolean isArrayPatternMatch(Object[] array, Pattern queryFilter) {
-    for (Object object : array) {
-      if (isObjectPatternMatch(object, queryFilter)) {
-        return true;
+  /**
+   * Read a page of the profiles of the groups to list for a user. The directory holds
+   * every group of the user, so groups whose profile the session can't read are dropped
+   * before the page is cut, and more groups are asked for until the page is full. Only
+   * the profiles on the page are read in full.
+   *
+   * @param session
+   *          the session of the user.
+   * @param member
+   *          the user.
+   * @param textToMatch
+   *          the words to match against the title and description of the groups, or null
+   *          to list every group.
+   * @param offset
+   *          the number of readable matching groups to skip.
+   * @param limit
+   *          the maximum number of profiles to return.
+   * @return the profiles, ordered by group id.
+   * @throws RepositoryException
+   */
+  private List<ValueMap> findProfiles(Session session, Authorizable member,
+      String textToMatch, int offset, int limit) throws RepositoryException {
+    UserManager userManager = AccessControlUtil.getUserManager(session);
+    List<ValueMap> profiles = new ArrayList<ValueMap>();
+    int batch = Math.max(1, Math.min(limit, MAX_BATCH));
+    int skipped = 0;
+    int start = 0;
+    while (profiles.size() < limit) {
+      List<String> groupIds = findGroups(member, textToMatch, start, batch);
+      for (String groupId : groupIds) {
+        Authorizable group = userManager.getAuthorizable(groupId);
+        if (group == null || !session.itemExists(profileService.getProfilePath(group))) {
+          LOGGER.info("No Profile found for group {}", groupId);
+          continue;
+        }
+        if (skipped < offset) {
+          skipped++;
+          continue;
+        }
+        ValueMap profile = profileService.getProfileMap(group, session);
+        if (profile != null) {
+          profiles.add(profile);
+          if (profiles.size() == limit) {
+            break;
+          }
+        }
       }
-    }
-    return false;
-  }
-
-  private boolean isValueMapPattternMatch(ValueMap valueMap, Pattern queryFilter) {
-    for (Entry<String, Object> entry : valueMap.entrySet()) {
-      Object rawValue = entry.getValue();
-      if (isObjectPatternMatch(rawValue, queryFilter)) {
-        return true;
+      if (groupIds.size() < batch) {
+        break;
       }
+      start += batch;
     }
-    return false;
-  }
-
-  private boolean isStringPatternMatch(String stringValue, Pattern queryFilter) {
-    return queryFilter.matcher(stringValue).matches();
+    return profiles;
   }
 
-}
\ No newline at end of file
+  /**
+   * Find a page of the groups to list for a user.
+   *
+   * @param member
+   *          the user.
+   * @param textToMatch
+   *          the words to match against the title and description of the groups, or null
+   *          to list every group.
+   * @param offset
+   *          the number of matching groups to skip.
+   * @param limit
+   *          the maximum number of groups to return.
+   * @return the ids of the groups, ordered by id.
+   * @throws RepositoryException
+   */
+  protected abstract List<String> findGroups(Authorizable member, String textToMatch,
+      int offset, int limit) throws RepositoryException;
+
+}
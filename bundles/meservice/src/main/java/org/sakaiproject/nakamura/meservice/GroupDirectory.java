@@ -0,0 +1,389 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * An index of the words in the title and description of groups, and of the groups each
+ * user belongs to, so that the groups of a user matching some text can be listed without
+ * reading any profile. Only ids and words are held. The index is not thread safe, callers
+ * must synchronize on it.
+ */
+public class GroupDirectory {
+
+  /**
+   * The maximum number of groups held, the least recently used group is dropped when this
+   * is exceeded.
+   */
+  static final int MAX_GROUPS = 100000;
+
+  /**
+   * The maximum number of users whose membership is held, the least recently used user is
+   * dropped when this is exceeded.
+   */
+  static final int MAX_MEMBERSHIPS = 10000;
+
+  private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+  private static final Pattern TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}*]+");
+
+  /**
+   * The groups a user belongs to, directly or not.
+   */
+  public static class Membership {
+    private final SortedSet<String> groups;
+    private final SortedSet<String> managedGroups;
+
+    /**
+     * @param groups
+     *          the ids of the groups the user is a member of, other than groups that hold
+     *          the managers of another group.
+     * @param managedGroups
+     *          the ids of the groups the user manages.
+     */
+    public Membership(Set<String> groups, Set<String> managedGroups) {
+      this.groups = Collections.unmodifiableSortedSet(new TreeSet<String>(groups));
+      this.managedGroups = Collections.unmodifiableSortedSet(new TreeSet<String>(
+          managedGroups));
+    }
+
+    /**
+     * @return the ids of the groups the user is a member of, in order.
+     */
+    public SortedSet<String> getGroups() {
+      return groups;
+    }
+
+    /**
+     * @return the ids of the groups the user manages, in order.
+     */
+    public SortedSet<String> getManagedGroups() {
+      return managedGroups;
+    }
+  }
+
+  /**
+   * The words of an indexed group.
+   */
+  private static class IndexedGroup {
+    private final String profilePath;
+    private final Set<String> words;
+
+    private IndexedGroup(String profilePath, Set<String> words) {
+      this.profilePath = profilePath;
+      this.words = words;
+    }
+  }
+
+  private final Map<String, IndexedGroup> groups = new LinkedHashMap<String, IndexedGroup>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, IndexedGroup> eldest) {
+      if (size() > MAX_GROUPS) {
+        unindex(eldest.getKey(), eldest.getValue());
+        return true;
+      }
+      return false;
+    }
+  };
+
+  private final TreeMap<String, Set<String>> words = new TreeMap<String, Set<String>>();
+  private final TreeMap<String, String> profiles = new TreeMap<String, String>();
+
+  private final Map<String, Membership> memberships = new LinkedHashMap<String, Membership>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Membership> eldest) {
+      return size() > MAX_MEMBERSHIPS;
+    }
+  };
+
+  /**
+   * Index a group, replacing any words held for it.
+   *
+   * @param groupId
+   *          the group.
+   * @param profilePath
+   *          the path of the profile the words were read from.
+   * @param title
+   *          the title of the group, may be null.
+   * @param description
+   *          the description of the group, may be null.
+   */
+  public void putGroup(String groupId, String profilePath, String title,
+      String description) {
+    removeGroup(groupId);
+    Set<String> groupWords = new HashSet<String>();
+    addWords(groupWords, title);
+    addWords(groupWords, description);
+    for (String word : groupWords) {
+      Set<String> ids = words.get(word);
+      if (ids == null) {
+        ids = new HashSet<String>();
+        words.put(word, ids);
+      }
+      ids.add(groupId);
+    }
+    profiles.put(profilePath, groupId);
+    groups.put(groupId, new IndexedGroup(profilePath, groupWords));
+  }
+
+  /**
+   * @param groupId
+   *          the group.
+   * @return true if the words of the group are indexed.
+   */
+  public boolean containsGroup(String groupId) {
+    return groups.containsKey(groupId);
+  }
+
+  /**
+   * Drop a group from the index.
+   *
+   * @param groupId
+   *          the group.
+   * @return true if the group was indexed.
+   */
+  public boolean removeGroup(String groupId) {
+    IndexedGroup entry = groups.remove(groupId);
+    if (entry == null) {
+      return false;
+    }
+    unindex(groupId, entry);
+    return true;
+  }
+
+  /**
+   * Drop every group whose profile is at, above or below a path.
+   *
+   * @param path
+   *          the path of a resource that changed.
+   * @return true if any group was dropped.
+   */
+  public boolean removeGroupsAt(String path) {
+    List<String> groupIds = new ArrayList<String>();
+    for (String parent = path; parent.length() > 0; parent = parent.substring(0, parent
+        .lastIndexOf('/'))) {
+      String groupId = profiles.get(parent);
+      if (groupId != null) {
+        groupIds.add(groupId);
+      }
+    }
+    groupIds.addAll(profiles.subMap(path + "/", path + "/\uffff").values());
+    for (String groupId : groupIds) {
+      removeGroup(groupId);
+    }
+    return !groupIds.isEmpty();
+  }
+
+  /**
+   * @param userId
+   *          the user.
+   * @return the groups of the user or null if they are not held.
+   */
+  public Membership getMembership(String userId) {
+    return memberships.get(userId);
+  }
+
+  /**
+   * @param userId
+   *          the user.
+   * @param membership
+   *          the groups of the user.
+   */
+  public void putMembership(String userId, Membership membership) {
+    memberships.put(userId, membership);
+  }
+
+  /**
+   * @param userId
+   *          the user.
+   * @return true if the groups of the user were held.
+   */
+  public boolean removeMembership(String userId) {
+    return memberships.remove(userId) != null;
+  }
+
+  /**
+   * Drop the groups of every user.
+   */
+  public void clearMemberships() {
+    memberships.clear();
+  }
+
+  /**
+   * Find the groups that match every term of a search. Groups that are not indexed never
+   * match a search with terms.
+   *
+   * @param groupIds
+   *          the groups to search, in the order they are returned.
+   * @param terms
+   *          the terms, as returned by {@link #parseTerms(String)}.
+   * @param offset
+   *          the number of matching groups to skip.
+   * @param limit
+   *          the maximum number of groups to return.
+   * @return the matching groups, in the order of groupIds.
+   */
+  public List<String> find(Set<String> groupIds, List<String> terms, int offset, int limit) {
+    List<Set<String>> matches = new ArrayList<Set<String>>();
+    for (String term : terms) {
+      matches.add(getMatches(term));
+    }
+    List<String> found = new ArrayList<String>();
+    int skipped = 0;
+    for (String groupId : groupIds) {
+      if (found.size() >= limit) {
+        break;
+      }
+      boolean match = true;
+      for (Set<String> ids : matches) {
+        if (!ids.contains(groupId)) {
+          match = false;
+          break;
+        }
+      }
+      if (match) {
+        if (skipped < offset) {
+          skipped++;
+        } else {
+          found.add(groupId);
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Split the text of a search into lower case terms. A * in a term matches any
+   * characters within a word, terms that match every word are left out.
+   *
+   * @param text
+   *          the text of the search, may be null.
+   * @return the terms, empty if every group matches.
+   */
+  public static List<String> parseTerms(String text) {
+    List<String> terms = new ArrayList<String>();
+    if (text != null) {
+      for (String term : TERM_SEPARATOR.split(text.toLowerCase())) {
+        if (term.replace("*", "").length() > 0) {
+          terms.add(term);
+        }
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * @param term
+   *          a term.
+   * @return the ids of the groups that have a word matching the term.
+   */
+  private Set<String> getMatches(String term) {
+    int wildcard = term.indexOf('*');
+    if (wildcard < 0) {
+      Set<String> ids = words.get(term);
+      return ids == null ? Collections.<String> emptySet() : ids;
+    }
+    String prefix = term.substring(0, wildcard);
+    SortedMap<String, Set<String>> candidates = words;
+    if (prefix.length() > 0) {
+      candidates = words.subMap(prefix, prefix + "\uffff");
+    }
+    Pattern pattern = null;
+    if (wildcard != term.length() - 1) {
+      StringBuilder regex = new StringBuilder();
+      for (String part : term.split("\\*", -1)) {
+        if (regex.length() > 0) {
+          regex.append(".*");
+        }
+        regex.append(Pattern.quote(part));
+      }
+      pattern = Pattern.compile(regex.toString());
+    }
+    Set<String> ids = new HashSet<String>();
+    for (Map.Entry<String, Set<String>> entry : candidates.entrySet()) {
+      if (pattern == null || pattern.matcher(entry.getKey()).matches()) {
+        ids.addAll(entry.getValue());
+      }
+    }
+    return ids;
+  }
+
+  private void unindex(String groupId, IndexedGroup entry) {
+    for (String word : entry.words) {
+      Set<String> ids = words.get(word);
+      if (ids != null) {
+        ids.remove(groupId);
+        if (ids.isEmpty()) {
+          words.remove(word);
+        }
+      }
+    }
+    if (groupId.equals(profiles.get(entry.profilePath))) {
+      profiles.remove(entry.profilePath);
+    }
+  }
+
+  private static void addWords(Set<String> groupWords, String text) {
+    if (text != null) {
+      for (String word : WORD_SEPARATOR.split(text.toLowerCase())) {
+        if (word.length() > 0) {
+          groupWords.add(word);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of groups indexed.
+   */
+  int getGroupCount() {
+    return groups.size();
+  }
+
+  /**
+   * @return the number of distinct words indexed.
+   */
+  int getWordCount() {
+    return words.size();
+  }
+
+  /**
+   * @return the number of users whose groups are held.
+   */
+  int getMembershipCount() {
+    return memberships.size();
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Lists the groups of a user whose title or description matches some text, from an
+ * index that is kept up to date as groups and membership change.
+ */
+public interface GroupDirectoryService {
+
+  /**
+   * Find the groups a user is a member of, leaving out groups that hold the managers of
+   * another group.
+   *
+   * @param member
+   *          the user.
+   * @param text
+   *          the words to match against the title and description of the groups, a * in
+   *          a word matches any characters. If null, or only *, every group matches.
+   * @param offset
+   *          the number of matching groups to skip.
+   * @param limit
+   *          the maximum number of groups to return.
+   * @return the ids of the matching groups, ordered by id.
+   * @throws RepositoryException
+   */
+  List<String> findGroups(Authorizable member, String text, int offset, int limit)
+      throws RepositoryException;
+
+  /**
+   * Find the groups a user is a manager of.
+   *
+   * @param member
+   *          the user.
+   * @param text
+   *          the words to match against the title and description of the groups, a * in
+   *          a word matches any characters. If null, or only *, every group matches.
+   * @param offset
+   *          the number of matching groups to skip.
+   * @param limit
+   *          the maximum number of groups to return.
+   * @return the ids of the matching groups, ordered by id.
+   * @throws RepositoryException
+   */
+  List<String> findManagedGroups(Authorizable member, String text, int offset, int limit)
+      throws RepositoryException;
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.sakaiproject.nakamura.api.profile.ProfileConstants.GROUP_DESCRIPTION_PROPERTY;
+import static org.sakaiproject.nakamura.api.profile.ProfileConstants.GROUP_TITLE_PROPERTY;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.meservice.GroupDirectory.Membership;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * Keeps a {@link GroupDirectory} of the groups listed by /system/me/groups and
+ * /system/me/managedgroups. The words of a group are read from its profile the first time
+ * the group is searched and the groups of a user are read the first time the user lists
+ * them. Resource events on the profile of a group drop its words and authorizable events
+ * drop the groups of the users they affect, both are read again on next use.
+ */
+@Component(immediate = true, description = "Indexes the groups of each user by title and description.", label = "GroupDirectoryService")
+@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
+@Services(value = { @Service(value = GroupDirectoryService.class),
+    @Service(value = EventHandler.class) })
+public class GroupDirectoryServiceImpl implements GroupDirectoryService, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(GroupDirectoryServiceImpl.class);
+
+  @Property(value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+      SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED,
+      AuthorizableEvent.TOPIC + "join", AuthorizableEvent.TOPIC + "part",
+      AuthorizableEvent.TOPIC + "delete" })
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  @Reference
+  protected transient ProfileService profileService;
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  /**
+   * The number of times the words of the groups are read while searching before the
+   * search gives up on the index because profiles keep changing.
+   */
+  private static final int MAX_INDEX_ATTEMPTS = 3;
+
+  private static final String AUTH_PROFILE = "/authprofile";
+
+  /**
+   * All access is synchronized on the directory. The versions are incremented with every
+   * event that may change the words of a group or the groups of a user, so that what was
+   * read concurrently with the event is not kept.
+   */
+  private final GroupDirectory directory = new GroupDirectory();
+  private long groupVersion;
+  private long membershipVersion;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.meservice.GroupDirectoryService#findGroups(org.apache.jackrabbit.api.security.user.Authorizable,
+   *      java.lang.String, int, int)
+   */
+  public List<String> findGroups(Authorizable member, String text, int offset, int limit)
+      throws RepositoryException {
+    return find(getMembership(member).getGroups(), text, offset, limit);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.meservice.GroupDirectoryService#findManagedGroups(org.apache.jackrabbit.api.security.user.Authorizable,
+   *      java.lang.String, int, int)
+   */
+  public List<String> findManagedGroups(Authorizable member, String text, int offset,
+      int limit) throws RepositoryException {
+    return find(getMembership(member).getManagedGroups(), text, offset, limit);
+  }
+
+  private List<String> find(Set<String> groupIds, String text, int offset, int limit)
+      throws RepositoryException {
+    List<String> terms = GroupDirectory.parseTerms(text);
+    for (int attempt = 0; attempt < MAX_INDEX_ATTEMPTS; attempt++) {
+      List<String> missing = new ArrayList<String>();
+      long startVersion;
+      synchronized (directory) {
+        if (!terms.isEmpty()) {
+          for (String groupId : groupIds) {
+            if (!directory.containsGroup(groupId)) {
+              missing.add(groupId);
+            }
+          }
+        }
+        if (missing.isEmpty()) {
+          return directory.find(groupIds, terms, offset, limit);
+        }
+        startVersion = groupVersion;
+      }
+      List<String[]> read = readGroups(missing);
+      synchronized (directory) {
+        // don't keep words that may have missed an event while they were read.
+        if (startVersion == groupVersion) {
+          for (String[] group : read) {
+            directory.putGroup(group[0], group[1], group[2], group[3]);
+          }
+          return directory.find(groupIds, terms, offset, limit);
+        }
+      }
+    }
+    // The profiles kept changing while they were read, search them without the index.
+    LOGGER.info("Group profiles changed while they were indexed, searching {} groups",
+        groupIds.size());
+    GroupDirectory unindexed = new GroupDirectory();
+    for (String[] group : readGroups(groupIds)) {
+      unindexed.putGroup(group[0], group[1], group[2], group[3]);
+    }
+    return unindexed.find(groupIds, terms, offset, limit);
+  }
+
+  /**
+   * Get the groups of a user, reading them if they are not held.
+   *
+   * @param member
+   *          the user.
+   * @return the groups of the user.
+   * @throws RepositoryException
+   */
+  private Membership getMembership(Authorizable member) throws RepositoryException {
+    String userId = member.getID();
+    long startVersion;
+    synchronized (directory) {
+      Membership membership = directory.getMembership(userId);
+      if (membership != null) {
+        return membership;
+      }
+      startVersion = membershipVersion;
+    }
+    Set<String> groups = new HashSet<String>();
+    Set<String> managedGroups = new HashSet<String>();
+    Iterator<Group> it = member.memberOf();
+    while (it.hasNext()) {
+      Group group = it.next();
+      // Until KERN-950 is fixed, we don't have a foolproof way to know whether
+      // a Jackrabbit Group should be considered a Sakai Group entity.
+      // Groups that hold the managers of another group name that group.
+      if (group.hasProperty(UserConstants.PROP_MANAGED_GROUP)) {
+        Value[] values = group.getProperty(UserConstants.PROP_MANAGED_GROUP);
+        if ((values != null) && (values.length == 1)) {
+          managedGroups.add(values[0].getString());
+        }
+      } else {
+        groups.add(group.getID());
+      }
+    }
+    Membership membership = new Membership(groups, managedGroups);
+    synchronized (directory) {
+      // don't keep groups that may have missed an event while they were read.
+      if (startVersion == membershipVersion) {
+        directory.putMembership(userId, membership);
+      }
+    }
+    return membership;
+  }
+
+  /**
+   * Read the words of groups from their profiles.
+   *
+   * @param groupIds
+   *          the groups.
+   * @return the id, profile path, title and description of each group that exists.
+   * @throws RepositoryException
+   */
+  protected List<String[]> readGroups(Collection<String> groupIds)
+      throws RepositoryException {
+    List<String[]> read = new ArrayList<String[]>();
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      UserManager userManager = AccessControlUtil.getUserManager(adminSession);
+      for (String groupId : groupIds) {
+        Authorizable group = userManager.getAuthorizable(groupId);
+        if (group == null) {
+          continue;
+        }
+        String profilePath = profileService.getProfilePath(group);
+        String title = null;
+        String description = null;
+        if (adminSession.itemExists(profilePath)) {
+          Node profileNode = (Node) adminSession.getItem(profilePath);
+          title = getString(profileNode, GROUP_TITLE_PROPERTY);
+          description = getString(profileNode, GROUP_DESCRIPTION_PROPERTY);
+        }
+        read.add(new String[] { groupId, profilePath, title, description });
+      }
+    } finally {
+      adminSession.logout();
+    }
+    return read;
+  }
+
+  private String getString(Node node, String name) throws RepositoryException {
+    if (node.hasProperty(name)) {
+      return node.getProperty(name).getString();
+    }
+    return null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (topic.startsWith(AuthorizableEvent.TOPIC)) {
+      handleAuthorizableEvent(topic, event);
+    } else {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      // the profile of a group, or a folder holding profiles, changed.
+      if (path != null && path.startsWith("/_group/")
+          && (path.contains(AUTH_PROFILE) || SlingConstants.TOPIC_RESOURCE_REMOVED
+              .equals(topic))) {
+        synchronized (directory) {
+          groupVersion++;
+          directory.removeGroupsAt(path);
+        }
+      }
+    }
+  }
+
+  private void handleAuthorizableEvent(String topic, Event event) {
+    String principal = (String) event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    Object user = event.getProperty(AuthorizableEvent.USER);
+    String userId = null;
+    if ((Operation.join.getTopic().equals(topic) || Operation.part.getTopic().equals(topic))
+        && user instanceof User) {
+      try {
+        userId = ((User) user).getID();
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to find the user whose membership changed", e);
+      }
+    }
+    synchronized (directory) {
+      membershipVersion++;
+      if (userId != null) {
+        directory.removeMembership(userId);
+      } else {
+        // a group joined or left a group, or an authorizable was deleted, which can
+        // change the groups of any user.
+        if (Operation.delete.getTopic().equals(topic) && principal != null) {
+          groupVersion++;
+          directory.removeGroup(principal);
+        }
+        directory.clearMemberships();
+        LOGGER.debug("Dropped the groups of every user after {} of {}", topic, principal);
+      }
+    }
+  }
+
+}
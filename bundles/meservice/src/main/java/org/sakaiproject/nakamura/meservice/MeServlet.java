@@ -17,19 +17,10 @@
  */
 package org.sakaiproject.nakamura.meservice;
 
-import static org.sakaiproject.nakamura.api.connections.ConnectionConstants.SAKAI_CONNECTION_STATE;
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
-
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.jackrabbit.api.security.principal.PrincipalIterator;
-import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.Authorizable;
-import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
-import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ValueMap;
@@ -37,15 +28,12 @@ import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
-import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
-import org.sakaiproject.nakamura.api.message.MessagingException;
-import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
@@ -56,9 +44,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.security.Principal;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
@@ -66,14 +52,9 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.Map.Entry;
 
-import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -101,15 +82,15 @@ public class MeServlet extends SlingSafeMethodsServlet {
   private static final String LOCALE_FIELD = "locale";
   private static final String TIMEZONE_FIELD = "timezone";
 
-  @Reference
-  protected transient MessagingService messagingService;
-
   @Reference
   protected transient ConnectionManager connectionManager;
 
   @Reference
   protected transient ProfileService profileService;
 
+  @Reference
+  protected transient MeSummaryService meSummaryService;
+
   /**
    * {@inheritDoc}
    *
@@ -125,12 +106,18 @@ public class MeServlet extends SlingSafeMethodsServlet {
       Session session = request.getResourceResolver().adaptTo(Session.class);
       UserManager um = AccessControlUtil.getUserManager(session);
       Authorizable au = um.getAuthorizable(session.getUserID());
+      // The counts and groups of a user are served from a summary kept up to date by
+      // events, anonymous users have none.
+      MeSummary summary = null;
+      if (au != null && !UserConstants.ANON_USERID.equals(au.getID())) {
+        summary = meSummaryService.getSummary(session, au);
+      }
       PrintWriter w = response.getWriter();
       ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
       writer.object();
       // User info
       writer.key("user");
-      writeUserJSON(writer, session, au);
+      writeUserJSON(writer, session, au, summary);
 
       // Dump this user his info
       writer.key("profile");
@@ -139,15 +126,15 @@ public class MeServlet extends SlingSafeMethodsServlet {
 
       // Dump this user his number of unread messages.
       writer.key("messages");
-      writeMessageCounts(writer, session, au);
+      writeMessageCounts(writer, summary);
 
       // Dump this user his number of contacts.
       writer.key("contacts");
-      writeContactCounts(writer, session, au);
+      writeContactCounts(writer, summary);
 
       // Dump the groups for this user.
       writer.key("groups");
-      writeGroups(writer, session, au);
+      writeGroups(writer, summary);
 
       writer.endObject();
     } catch (JSONException e) {
@@ -163,26 +150,19 @@ public class MeServlet extends SlingSafeMethodsServlet {
   }
 
   /**
+   * Writes a JSON Array with the compact profile of every group the user is a member of.
+   *
    * @param writer
-   * @param session
-   * @param au
+   * @param summary
+   *          The summary of the user, null for anonymous.
    * @throws JSONException
-   * @throws RepositoryException
    */
-  protected void writeGroups(ExtendedJSONWriter writer, Session session, Authorizable au)
-      throws JSONException, RepositoryException {
+  protected void writeGroups(ExtendedJSONWriter writer, MeSummary summary)
+      throws JSONException {
     writer.array();
-    if (!UserConstants.ANON_USERID.equals(au.getID())) {
-      // It might be better to just use au.declaredMemberOf() .
-      // au.memberOf will fetch ALL the groups this user is a member of, including
-      // indirect ones.
-      Iterator<Group> groups = au.memberOf();
-      while (groups.hasNext()) {
-        Group group = groups.next();
-        ValueMap groupProfile = profileService.getCompactProfileMap(group, session);
-        if (groupProfile != null) {
-          writer.valueMap(groupProfile);
-        }
+    if (summary != null) {
+      for (Map<String, Object> group : summary.getGroups()) {
+        writer.valueMap(new ValueMapDecorator(group));
       }
     }
     writer.endArray();
@@ -193,62 +173,15 @@ public class MeServlet extends SlingSafeMethodsServlet {
    * PENDING, ACCEPTED.
    *
    * @param writer
-   * @param session
-   * @param au
+   * @param summary
+   *          The summary of the user, null for anonymous.
    * @throws JSONException
-   * @throws RepositoryException
    */
-  protected void writeContactCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au) throws JSONException, RepositoryException {
+  protected void writeContactCounts(ExtendedJSONWriter writer, MeSummary summary)
+      throws JSONException {
     writer.object();
-
-    // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getID();
-    if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.endObject();
-      return;
-    }
-
-    // Get the path to the store for this user.
-    Map<String, Integer> contacts = new HashMap<String, Integer>();
-    contacts.put(ACCEPTED.toString().toLowerCase(), 0);
-    contacts.put(INVITED.toString().toLowerCase(), 0);
-    contacts.put(PENDING.toString().toLowerCase(), 0);
-    try {
-      // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
-      // in the private package unfortunately.
-      String store = PersonalUtils.getHomeFolder(au) + "/"
-          + ConnectionConstants.CONTACT_STORE_NAME;
-      store = ISO9075.encodePath(store);
-      StringBuilder statement = new StringBuilder("/jcr:root");
-      statement.append(store);
-      statement.append("//*[@sling:resourceType='sakai/contact' and (");
-      statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(ACCEPTED)
-          .append("' or ");
-      statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(INVITED)
-          .append("' or ");
-      statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(PENDING)
-          .append("')]");
-
-      // Execute the query, loop over the results and count the items.
-      QueryManager qm = session.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(statement.toString(), "xpath");
-      QueryResult result = q.execute();
-      NodeIterator iterator = result.getNodes();
-      while (iterator.hasNext()) {
-        Node contact = iterator.nextNode();
-        if (contact.hasProperty(SAKAI_CONNECTION_STATE)) {
-          String state = contact.getProperty(SAKAI_CONNECTION_STATE).getString()
-              .toLowerCase();
-          int count = 0;
-          if (contacts.containsKey(state)) {
-            count = contacts.get(state);
-          }
-          contacts.put(state, count + 1);
-        }
-      }
-    } finally {
-      for (Entry<String, Integer> entry : contacts.entrySet()) {
+    if (summary != null) {
+      for (Entry<String, Integer> entry : summary.getContacts().entrySet()) {
         writer.key(entry.getKey());
         writer.value(entry.getValue());
       }
@@ -261,49 +194,18 @@ public class MeServlet extends SlingSafeMethodsServlet {
    *
    * @param writer
    *          The writer
-   * @param session
-   *          A JCR session to perform queries with. This session needs read access on the
-   *          authorizable's message box.
-   * @param au
-   *          An authorizable to look up the messages for.
+   * @param summary
+   *          The summary of the user, null for anonymous.
    * @throws JSONException
-   * @throws RepositoryException
-   * @throws MessagingException
    */
-  protected void writeMessageCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au) throws JSONException, MessagingException, RepositoryException {
+  protected void writeMessageCounts(ExtendedJSONWriter writer, MeSummary summary)
+      throws JSONException {
     writer.object();
     writer.key("unread");
-
-    // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getID();
-    if (UserConstants.ANON_USERID.equals(userID)) {
+    if (summary == null) {
       writer.value(0);
-      writer.endObject();
-      return;
-    }
-
-    // Get the path to the store for this user.
-    long count = 0;
-    try {
-      String store = messagingService.getFullPathToStore(au.getID(), session);
-      store = ISO9075.encodePath(store);
-      StringBuilder statement = new StringBuilder("/jcr:root");
-      statement.append(store);
-      statement
-          .append("//*[@sling:resourceType='sakai/message' and @sakai:type='internal' and @sakai:messagebox='inbox' and @sakai:read = false()]");
-
-      // Execute the query, loop over the results and count the items.
-      QueryManager qm = session.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(statement.toString(), "xpath");
-      QueryResult result = q.execute();
-      NodeIterator iterator = result.getNodes();
-      while (iterator.hasNext()) {
-        count++;
-        iterator.next();
-      }
-    } finally {
-      writer.value(count);
+    } else {
+      writer.value(summary.getUnread());
     }
     writer.endObject();
   }
@@ -313,15 +215,18 @@ public class MeServlet extends SlingSafeMethodsServlet {
    * @param write
    * @param session
    * @param authorizable
+   * @param summary
+   *          The summary of the user, null for anonymous.
    * @throws RepositoryException
    * @throws JSONException
    */
   protected void writeUserJSON(ExtendedJSONWriter write, Session session,
-      Authorizable authorizable) throws RepositoryException, JSONException {
+      Authorizable authorizable, MeSummary summary) throws RepositoryException,
+      JSONException {
 
     String user = session.getUserID();
     boolean isAnonymous = (UserConstants.ANON_USERID.equals(user));
-    if (isAnonymous || authorizable == null) {
+    if (isAnonymous || authorizable == null || summary == null) {
 
       write.object();
       write.key("anon").value(true);
@@ -332,8 +237,7 @@ public class MeServlet extends SlingSafeMethodsServlet {
       write.value(false);
       write.endObject();
     } else {
-      PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(session);
-      Set<String> subjects = getSubjects(authorizable, principalManager);
+      Set<String> subjects = summary.getSubjects();
       Map<String, Object> properties = getProperties(authorizable);
 
       write.object();
@@ -439,32 +343,6 @@ public class MeServlet extends SlingSafeMethodsServlet {
     write.endArray();
   }
 
-  /**
-   * All the names of the {@link Group groups} a user is a member of.
-   *
-   * @param authorizable
-   *          The {@link Authorizable authorizable} that represents the user.
-   * @param principalManager
-   *          The {@link PrincipalManager principalManager} that can be used to retrieve
-   *          the group membership.
-   * @return All the names of the {@link Group groups} a user is a member of.
-   * @throws RepositoryException
-   */
-  protected Set<String> getSubjects(Authorizable authorizable,
-      PrincipalManager principalManager) throws RepositoryException {
-    Set<String> subjects = new HashSet<String>();
-    if (authorizable != null) {
-      Principal principal = authorizable.getPrincipal();
-      if (principal != null) {
-        PrincipalIterator it = principalManager.getGroupMembership(principal);
-        while (it.hasNext()) {
-          subjects.add(it.nextPrincipal().getName());
-        }
-      }
-    }
-    return subjects;
-  }
-
   private Map<String, Object> getProperties(Authorizable authorizable)
       throws RepositoryException {
     Map<String, Object> result = new HashMap<String, Object>();
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The parts of /system/me that need a query or a walk of the group membership: the
+ * number of unread messages, the number of contacts in each state and the groups of the
+ * user. Each part is either known or null, a part is dropped when an event shows it may
+ * have changed and is recomputed on the next request. Instances are immutable so that
+ * they can be shared between threads and placed in a replicated cache.
+ */
+public class MeSummary implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String userId;
+  private final String homePath;
+  private final Long unread;
+  private final LinkedHashMap<String, Integer> contacts;
+  private final LinkedHashSet<String> subjects;
+  private final ArrayList<HashMap<String, Object>> groups;
+
+  /**
+   * @param userId
+   *          the user the summary is for.
+   * @param homePath
+   *          the home folder of the user.
+   */
+  public MeSummary(String userId, String homePath) {
+    this(userId, homePath, null, null, null, null);
+  }
+
+  private MeSummary(String userId, String homePath, Long unread,
+      LinkedHashMap<String, Integer> contacts, LinkedHashSet<String> subjects,
+      ArrayList<HashMap<String, Object>> groups) {
+    this.userId = userId;
+    this.homePath = homePath;
+    this.unread = unread;
+    this.contacts = contacts;
+    this.subjects = subjects;
+    this.groups = groups;
+  }
+
+  /**
+   * @return the user the summary is for.
+   */
+  public String getUserId() {
+    return userId;
+  }
+
+  /**
+   * @return the home folder of the user.
+   */
+  public String getHomePath() {
+    return homePath;
+  }
+
+  /**
+   * @return the number of unread messages in the inbox, or null if not known.
+   */
+  public Long getUnread() {
+    return unread;
+  }
+
+  /**
+   * @return the number of contacts, keyed by the lower case name of the state, or null
+   *         if not known.
+   */
+  public Map<String, Integer> getContacts() {
+    if (contacts == null) {
+      return null;
+    }
+    return Collections.unmodifiableMap(contacts);
+  }
+
+  /**
+   * @return the names of all the groups the user is a member of, or null if not known.
+   */
+  public Set<String> getSubjects() {
+    if (subjects == null) {
+      return null;
+    }
+    return Collections.unmodifiableSet(subjects);
+  }
+
+  /**
+   * @return the compact profile of every group the user is a member of and may see, or
+   *         null if not known. Known if and only if the subjects are known.
+   */
+  public List<Map<String, Object>> getGroups() {
+    if (groups == null) {
+      return null;
+    }
+    List<Map<String, Object>> copy = new ArrayList<Map<String, Object>>();
+    for (Map<String, Object> group : groups) {
+      copy.add(Collections.unmodifiableMap(group));
+    }
+    return copy;
+  }
+
+  /**
+   * @return true if every part of the summary is known.
+   */
+  public boolean isComplete() {
+    return unread != null && contacts != null && subjects != null;
+  }
+
+  /**
+   * @param unread
+   *          the number of unread messages or null if not known.
+   * @return a copy of this summary with the number of unread messages replaced.
+   */
+  public MeSummary withUnread(Long unread) {
+    return new MeSummary(userId, homePath, unread, contacts, subjects, groups);
+  }
+
+  /**
+   * @param contacts
+   *          the number of contacts in each state or null if not known.
+   * @return a copy of this summary with the contact counts replaced.
+   */
+  public MeSummary withContacts(Map<String, Integer> contacts) {
+    LinkedHashMap<String, Integer> copy = null;
+    if (contacts != null) {
+      copy = new LinkedHashMap<String, Integer>(contacts);
+    }
+    return new MeSummary(userId, homePath, unread, copy, subjects, groups);
+  }
+
+  /**
+   * @param subjects
+   *          the names of all the groups the user is a member of, or null if not known.
+   * @param groups
+   *          the compact profiles of the groups, or null if not known.
+   * @return a copy of this summary with the group membership replaced.
+   */
+  public MeSummary withMembership(Set<String> subjects, List<Map<String, Object>> groups) {
+    if (subjects == null || groups == null) {
+      return new MeSummary(userId, homePath, unread, contacts, null, null);
+    }
+    ArrayList<HashMap<String, Object>> groupsCopy = new ArrayList<HashMap<String, Object>>();
+    for (Map<String, Object> group : groups) {
+      groupsCopy.add(new HashMap<String, Object>(group));
+    }
+    return new MeSummary(userId, homePath, unread, contacts, new LinkedHashSet<String>(
+        subjects), groupsCopy);
+  }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Provides the {@link MeSummary} of a user, kept up to date as messages, contacts and
+ * group membership change.
+ */
+public interface MeSummaryService {
+
+  /**
+   * Get the summary of a user, computing any part that is not known.
+   *
+   * @param session
+   *          the session of the user, used to compute the parts that are not known.
+   * @param authorizable
+   *          the user.
+   * @return the complete summary of the user.
+   * @throws RepositoryException
+   */
+  MeSummary getSummary(Session session, Authorizable authorizable)
+      throws RepositoryException;
+
+}
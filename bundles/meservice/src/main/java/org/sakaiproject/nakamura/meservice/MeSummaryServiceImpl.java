@@ -0,0 +1,673 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.sakaiproject.nakamura.api.connections.ConnectionConstants.SAKAI_CONNECTION_STATE;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.jackrabbit.api.security.principal.PrincipalIterator;
+import org.apache.jackrabbit.api.security.principal.PrincipalManager;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessagingService;
+import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+/**
+ * Keeps a {@link MeSummary} for every user that has recently asked for /system/me, keyed
+ * by home folder. Resource events in the message store or the contact store of a user
+ * drop that part of the summary. Membership events drop the groups of the users they
+ * affect: the members of the group concerned, and the users whose summary lists it. The
+ * parts are dropped by writing the summary back to the cluster invalidated cache, or
+ * removing it when it is not held on this server, so that other servers drop their copy
+ * too. The dropped parts are recomputed with the user's session on the next request.
+ * Once an hour the cached summaries are checked against the repository, as seen by each
+ * user, and any part that has drifted is dropped.
+ */
+@Component(immediate = true, description = "Maintains the summary of each user shown by /system/me.", label = "MeSummaryService")
+@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 3600L) })
+@Services(value = { @Service(value = MeSummaryService.class),
+    @Service(value = EventHandler.class), @Service(value = Runnable.class) })
+public class MeSummaryServiceImpl implements MeSummaryService, EventHandler, Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MeSummaryServiceImpl.class);
+
+  @Property(value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+      SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED,
+      AuthorizableEvent.TOPIC + "join", AuthorizableEvent.TOPIC + "part",
+      AuthorizableEvent.TOPIC + "delete" })
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * The name of the cache of summaries, keyed by home folder.
+   */
+  private static final String SUMMARY_CACHE = "me.summary";
+
+  private static final String MESSAGE_STORE = "/" + MessageConstants.FOLDER_MESSAGES;
+  private static final String CONTACT_STORE = "/" + ConnectionConstants.CONTACT_STORE_NAME;
+  private static final String AUTH_PROFILE = "/public/authprofile";
+
+  @Reference
+  protected transient MessagingService messagingService;
+
+  @Reference
+  protected transient ProfileService profileService;
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  private Cache<MeSummary> summaries;
+
+  /**
+   * Guards the summaries against a summary that was computed while an event changed the
+   * repository. The home folders that summaries are being computed for are counted in
+   * building and those an event touched meanwhile are marked in changed.
+   */
+  private final Object summaryLock = new Object();
+  private final Map<String, Integer> building = new HashMap<String, Integer>();
+  private final Set<String> changed = new HashSet<String>();
+
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+    summaries = cacheManagerService.getCache(SUMMARY_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    if (this.cacheManagerService == cacheManagerService) {
+      summaries = null;
+      this.cacheManagerService = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.meservice.MeSummaryService#getSummary(javax.jcr.Session,
+   *      org.apache.jackrabbit.api.security.user.Authorizable)
+   */
+  public MeSummary getSummary(Session session, Authorizable authorizable)
+      throws RepositoryException {
+    String homePath = PersonalUtils.getHomeFolder(authorizable);
+    Cache<MeSummary> cache = summaries;
+    MeSummary summary = null;
+    if (cache != null) {
+      summary = cache.get(homePath);
+      if (summary != null && summary.isComplete()) {
+        return summary;
+      }
+    }
+    if (summary == null) {
+      summary = new MeSummary(authorizable.getID(), homePath);
+    }
+    startBuilding(homePath);
+    boolean computed = false;
+    try {
+      if (summary.getUnread() == null) {
+        summary = summary.withUnread(countUnreadMessages(session, authorizable));
+      }
+      if (summary.getContacts() == null) {
+        summary = summary.withContacts(countContacts(session, authorizable));
+      }
+      if (summary.getSubjects() == null) {
+        summary = summary.withMembership(getSubjects(session, authorizable), getGroups(
+            session, authorizable));
+      }
+      computed = true;
+    } finally {
+      synchronized (summaryLock) {
+        if (endBuilding(homePath) && computed && cache != null) {
+          cache.put(homePath, summary);
+        }
+      }
+    }
+    return summary;
+  }
+
+  /**
+   * Count the unread messages in the inbox of a user.
+   *
+   * @param session
+   *          a session that can read the message store of the user.
+   * @param authorizable
+   *          the user.
+   * @return the number of unread messages.
+   * @throws RepositoryException
+   */
+  protected long countUnreadMessages(Session session, Authorizable authorizable)
+      throws RepositoryException {
+    String store = messagingService.getFullPathToStore(authorizable.getID(), session);
+    store = ISO9075.encodePath(store);
+    StringBuilder statement = new StringBuilder("/jcr:root");
+    statement.append(store);
+    statement
+        .append("//*[@sling:resourceType='sakai/message' and @sakai:type='internal' and @sakai:messagebox='inbox' and @sakai:read = false()]");
+
+    QueryManager qm = session.getWorkspace().getQueryManager();
+    Query q = qm.createQuery(statement.toString(), "xpath");
+    QueryResult result = q.execute();
+    NodeIterator iterator = result.getNodes();
+    long count = iterator.getSize();
+    if (count < 0) {
+      // The size is not known up front, count the results.
+      count = 0;
+      while (iterator.hasNext()) {
+        count++;
+        iterator.next();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Count the contacts of a user that are accepted, invited or pending.
+   *
+   * @param session
+   *          a session that can read the contact store of the user.
+   * @param authorizable
+   *          the user.
+   * @return the number of contacts, keyed by the lower case name of the state.
+   * @throws RepositoryException
+   */
+  protected Map<String, Integer> countContacts(Session session, Authorizable authorizable)
+      throws RepositoryException {
+    Map<String, Integer> contacts = new LinkedHashMap<String, Integer>();
+    contacts.put(ACCEPTED.toString().toLowerCase(), 0);
+    contacts.put(INVITED.toString().toLowerCase(), 0);
+    contacts.put(PENDING.toString().toLowerCase(), 0);
+
+    // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
+    // in the private package unfortunately.
+    String store = PersonalUtils.getHomeFolder(authorizable) + CONTACT_STORE;
+    store = ISO9075.encodePath(store);
+    StringBuilder statement = new StringBuilder("/jcr:root");
+    statement.append(store);
+    statement.append("//*[@sling:resourceType='sakai/contact' and (");
+    statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(ACCEPTED)
+        .append("' or ");
+    statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(INVITED)
+        .append("' or ");
+    statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(PENDING)
+        .append("')]");
+
+    QueryManager qm = session.getWorkspace().getQueryManager();
+    Query q = qm.createQuery(statement.toString(), "xpath");
+    QueryResult result = q.execute();
+    NodeIterator iterator = result.getNodes();
+    while (iterator.hasNext()) {
+      Node contact = iterator.nextNode();
+      if (contact.hasProperty(SAKAI_CONNECTION_STATE)) {
+        String state = contact.getProperty(SAKAI_CONNECTION_STATE).getString()
+            .toLowerCase();
+        int count = 0;
+        if (contacts.containsKey(state)) {
+          count = contacts.get(state);
+        }
+        contacts.put(state, count + 1);
+      }
+    }
+    return contacts;
+  }
+
+  /**
+   * All the names of the {@link Group groups} a user is a member of.
+   *
+   * @param session
+   *          the session used to retrieve the group membership.
+   * @param authorizable
+   *          the user.
+   * @return All the names of the {@link Group groups} a user is a member of.
+   * @throws RepositoryException
+   */
+  protected Set<String> getSubjects(Session session, Authorizable authorizable)
+      throws RepositoryException {
+    Set<String> subjects = new LinkedHashSet<String>();
+    Principal principal = authorizable.getPrincipal();
+    if (principal != null) {
+      PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(session);
+      PrincipalIterator it = principalManager.getGroupMembership(principal);
+      while (it.hasNext()) {
+        subjects.add(it.nextPrincipal().getName());
+      }
+    }
+    return subjects;
+  }
+
+  /**
+   * The compact profiles of the groups a user is a member of.
+   *
+   * @param session
+   *          the session used to read the profiles, groups whose profile it can't see
+   *          are left out.
+   * @param authorizable
+   *          the user.
+   * @return the compact profile of each group.
+   * @throws RepositoryException
+   */
+  protected List<Map<String, Object>> getGroups(Session session, Authorizable authorizable)
+      throws RepositoryException {
+    List<Map<String, Object>> groups = new ArrayList<Map<String, Object>>();
+    // It might be better to just use au.declaredMemberOf() .
+    // au.memberOf will fetch ALL the groups this user is a member of, including
+    // indirect ones.
+    Iterator<Group> it = authorizable.memberOf();
+    while (it.hasNext()) {
+      Group group = it.next();
+      ValueMap groupProfile = profileService.getCompactProfileMap(group, session);
+      if (groupProfile != null) {
+        groups.add(groupProfile);
+      }
+    }
+    return groups;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Cache<MeSummary> cache = summaries;
+    if (cache == null) {
+      return;
+    }
+    String topic = event.getTopic();
+    if (topic.startsWith(AuthorizableEvent.TOPIC)) {
+      handleAuthorizableEvent(cache, topic, event);
+    } else {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      if (path != null) {
+        handleResourceEvent(cache, topic, path);
+      }
+    }
+  }
+
+  private void handleResourceEvent(Cache<MeSummary> cache, String topic, String path) {
+    if (path.startsWith("/_user/")) {
+      // The store name may also appear in the home folder itself, so every occurrence
+      // is tried as the end of the home folder.
+      for (String homePath : getHomePaths(path, MESSAGE_STORE)) {
+        synchronized (summaryLock) {
+          markChanged(homePath);
+          MeSummary summary = cache.get(homePath);
+          if (summary != null && summary.getUnread() != null) {
+            cache.put(homePath, summary.withUnread(null));
+          }
+        }
+      }
+      for (String homePath : getHomePaths(path, CONTACT_STORE)) {
+        synchronized (summaryLock) {
+          markChanged(homePath);
+          MeSummary summary = cache.get(homePath);
+          if (summary != null && summary.getContacts() != null) {
+            cache.put(homePath, summary.withContacts(null));
+          }
+        }
+      }
+      if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+        synchronized (summaryLock) {
+          markChanged(path);
+          cache.removeChildren(path);
+        }
+      }
+    } else if (path.startsWith("/_group/")) {
+      // The profile of a group changed, drop it from the summaries of its members.
+      for (String homePath : getHomePaths(path, AUTH_PROFILE)) {
+        // The home folder is named after the group.
+        dropMembershipOfMembers(cache, homePath.substring(homePath.lastIndexOf('/') + 1),
+            false);
+      }
+    }
+  }
+
+  private void handleAuthorizableEvent(Cache<MeSummary> cache, String topic, Event event) {
+    Object user = event.getProperty(AuthorizableEvent.USER);
+    String principalName = (String) event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    boolean membership = Operation.join.getTopic().equals(topic)
+        || Operation.part.getTopic().equals(topic);
+    if (membership && user instanceof User) {
+      try {
+        String homePath = getHomePath(((User) user).getID());
+        if (homePath != null) {
+          dropMembership(cache, homePath);
+          return;
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to find the home folder of a user whose membership changed", e);
+      }
+    }
+    if (principalName == null) {
+      return;
+    }
+    if (Operation.delete.getTopic().equals(topic)) {
+      // The summary of a deleted user goes, and a deleted group leaves the summaries of
+      // the users that were in it.
+      for (MeSummary summary : cache.list()) {
+        if (principalName.equals(summary.getUserId())) {
+          synchronized (summaryLock) {
+            markChanged(summary.getHomePath());
+            cache.remove(summary.getHomePath());
+          }
+        }
+      }
+    }
+    // A group joined or left a group, which changes the groups of its members.
+    dropMembershipOfMembers(cache, principalName, membership);
+  }
+
+  /**
+   * Drop the groups from the summaries of the users in a group.
+   *
+   * @param groupId
+   *          the group.
+   * @param lookup
+   *          true to also look up the members of the group in the repository, rather
+   *          than only the summaries that list the group.
+   */
+  private void dropMembershipOfMembers(Cache<MeSummary> cache, String groupId,
+      boolean lookup) {
+    Set<String> homePaths = new HashSet<String>();
+    for (MeSummary summary : cache.list()) {
+      Set<String> subjects = summary.getSubjects();
+      if (subjects != null && subjects.contains(groupId)) {
+        homePaths.add(summary.getHomePath());
+      }
+    }
+    if (lookup) {
+      try {
+        homePaths.addAll(getMemberHomePaths(groupId));
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to find the members of group " + groupId, e);
+      }
+    }
+    for (String homePath : homePaths) {
+      dropMembership(cache, homePath);
+    }
+  }
+
+  /**
+   * Drop the groups from the summary of a user, here and on the other servers.
+   */
+  private void dropMembership(Cache<MeSummary> cache, String homePath) {
+    synchronized (summaryLock) {
+      markChanged(homePath);
+      MeSummary summary = cache.get(homePath);
+      if (summary == null) {
+        cache.remove(homePath);
+      } else if (summary.getSubjects() != null) {
+        cache.put(homePath, summary.withMembership(null, null));
+      }
+    }
+  }
+
+  /**
+   * @param groupId
+   *          the group.
+   * @return the home folders of the users in the group, directly or through other
+   *         groups.
+   * @throws RepositoryException
+   */
+  private Set<String> getMemberHomePaths(String groupId) throws RepositoryException {
+    Set<String> homePaths = new HashSet<String>();
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      Authorizable group = AccessControlUtil.getUserManager(adminSession).getAuthorizable(
+          groupId);
+      if (group instanceof Group) {
+        for (Iterator<Authorizable> it = ((Group) group).getMembers(); it.hasNext();) {
+          Authorizable member = it.next();
+          if (!member.isGroup()) {
+            homePaths.add(PersonalUtils.getHomeFolder(member));
+          }
+        }
+      }
+    } finally {
+      adminSession.logout();
+    }
+    return homePaths;
+  }
+
+  /**
+   * @param userId
+   *          the user.
+   * @return the home folder of the user or null if the user does not exist.
+   * @throws RepositoryException
+   */
+  private String getHomePath(String userId) throws RepositoryException {
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      Authorizable authorizable = AccessControlUtil.getUserManager(adminSession)
+          .getAuthorizable(userId);
+      if (authorizable == null) {
+        return null;
+      }
+      return PersonalUtils.getHomeFolder(authorizable);
+    } finally {
+      adminSession.logout();
+    }
+  }
+
+  /**
+   * @param path
+   *          a path.
+   * @param store
+   *          the path segment that marks a store in a home folder, e.g. /message.
+   * @return the path before each occurrence of the store segment in the path.
+   */
+  private List<String> getHomePaths(String path, String store) {
+    List<String> homePaths = new ArrayList<String>();
+    int i = path.indexOf(store);
+    while (i > 0) {
+      int end = i + store.length();
+      if (end == path.length() || path.charAt(end) == '/') {
+        homePaths.add(path.substring(0, i));
+      }
+      i = path.indexOf(store, i + 1);
+    }
+    return homePaths;
+  }
+
+  /**
+   * Record that a summary is being computed for a home folder.
+   */
+  private void startBuilding(String homePath) {
+    synchronized (summaryLock) {
+      Integer builders = building.get(homePath);
+      building.put(homePath, builders == null ? 1 : builders + 1);
+    }
+  }
+
+  /**
+   * Record that a summary is no longer being computed for a home folder. Must be called
+   * holding the summary lock.
+   *
+   * @return true if nothing changed the home folder while the summary was computed.
+   */
+  private boolean endBuilding(String homePath) {
+    boolean unchanged = !changed.contains(homePath);
+    int builders = building.get(homePath);
+    if (builders == 1) {
+      building.remove(homePath);
+      changed.remove(homePath);
+    } else {
+      building.put(homePath, builders - 1);
+    }
+    return unchanged;
+  }
+
+  /**
+   * Mark a home folder as changed for any summary being computed for it. Must be called
+   * holding the summary lock.
+   */
+  private void markChanged(String homePath) {
+    if (building.containsKey(homePath)) {
+      changed.add(homePath);
+    }
+  }
+
+  /**
+   * Invoked as a task by the Sling Scheduler, once an hour, to check the cached summaries
+   * against the repository.
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    try {
+      checkConsistency();
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to check the cached summaries: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Recompute the counts and group membership of every cached summary with a session of
+   * its user, so that it is compared with what the user would see, and drop any part that
+   * differs so that it is recomputed on the next request.
+   *
+   * @return the number of summaries that had drifted.
+   * @throws RepositoryException
+   */
+  protected int checkConsistency() throws RepositoryException {
+    Cache<MeSummary> cache = summaries;
+    if (cache == null) {
+      return 0;
+    }
+    int drifted = 0;
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      for (MeSummary cached : cache.list()) {
+        String homePath = cached.getHomePath();
+        Authorizable authorizable = AccessControlUtil.getUserManager(adminSession)
+            .getAuthorizable(cached.getUserId());
+        if (authorizable == null) {
+          synchronized (summaryLock) {
+            cache.remove(homePath);
+          }
+          drifted++;
+          continue;
+        }
+        startBuilding(homePath);
+        MeSummary stored = null;
+        Session userSession = null;
+        try {
+          userSession = adminSession.impersonate(new SimpleCredentials(cached.getUserId(),
+              new char[0]));
+          MeSummary current = cached;
+          if (cached.getUnread() != null) {
+            current = current.withUnread(countUnreadMessages(userSession, authorizable));
+          }
+          if (cached.getContacts() != null) {
+            current = current.withContacts(countContacts(userSession, authorizable));
+          }
+          if (cached.getSubjects() != null) {
+            current = current.withMembership(getSubjects(userSession, authorizable),
+                cached.getGroups());
+          }
+          stored = current;
+        } finally {
+          if (userSession != null) {
+            userSession.logout();
+          }
+          synchronized (summaryLock) {
+            MeSummary summary = cache.get(homePath);
+            if (endBuilding(homePath) && stored != null
+                && summary != null) {
+              // Only drop the parts that drifted, from whatever is cached now.
+              MeSummary repaired = summary;
+              if (!equals(cached.getUnread(), stored.getUnread())) {
+                repaired = repaired.withUnread(null);
+              }
+              if (!equals(cached.getContacts(), stored.getContacts())) {
+                repaired = repaired.withContacts(null);
+              }
+              if (!equals(cached.getSubjects(), stored.getSubjects())) {
+                repaired = repaired.withMembership(null, null);
+              }
+              if (repaired != summary) {
+                cache.put(homePath, repaired);
+                drifted++;
+              }
+            }
+          }
+        }
+      }
+    } finally {
+      adminSession.logout();
+    }
+    if (drifted > 0) {
+      LOGGER.warn("Dropped {} out of date summaries for /system/me", drifted);
+    }
+    return drifted;
+  }
+
+  private static boolean equals(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+}
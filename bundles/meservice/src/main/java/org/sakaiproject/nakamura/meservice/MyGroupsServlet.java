@@ -18,43 +18,30 @@
 package org.sakaiproject.nakamura.meservice;
 
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.jackrabbit.api.security.user.Authorizable;
-import org.apache.jackrabbit.api.security.user.Group;
-import org.apache.jackrabbit.api.security.user.UserManager;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
-import org.sakaiproject.nakamura.api.user.UserConstants;
 
-import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.List;
 
 import javax.jcr.RepositoryException;
 
 @SlingServlet(paths = { "/system/me/groups" }, generateComponent = true, generateService = true, methods = { "GET" })
-@Reference(name="profileService", referenceInterface=ProfileService.class)
+@References({
+    @Reference(name="profileService", referenceInterface=ProfileService.class),
+    @Reference(name="groupDirectoryService", referenceInterface=GroupDirectoryService.class) })
 public class MyGroupsServlet extends AbstractMyGroupsServlet {
   private static final long serialVersionUID = 8809581334593701801L;
 
   /**
    * {@inheritDoc}
-   * @see org.sakaiproject.nakamura.meservice.AbstractMyGroupsServlet#getGroups(org.apache.jackrabbit.api.security.user.Authorizable, org.apache.jackrabbit.api.security.user.UserManager)
+   * @see org.sakaiproject.nakamura.meservice.AbstractMyGroupsServlet#findGroups(org.apache.jackrabbit.api.security.user.Authorizable, java.lang.String, int, int)
    */
   @Override
-  protected TreeMap<String, Group> getGroups(Authorizable member, UserManager userManager)
-      throws RepositoryException {
-    TreeMap<String, Group> groups = new TreeMap<String, Group>();
-    Iterator<Group> allGroupsIter = member.memberOf();
-    while (allGroupsIter.hasNext()) {
-      Group group = allGroupsIter.next();
-      // Until KERN-950 is fixed, we don't have a foolproof way to know whether
-      // a Jackrabbit Group should be considered a Sakai Group entity.
-      // We skip Managers-holders but otherwise just return a Profile if
-      // we find one.
-      if (!group.hasProperty(UserConstants.PROP_MANAGED_GROUP)) {
-        groups.put(group.getID(), group);
-      }
-    }
-    return groups;
+  protected List<String> findGroups(Authorizable member, String textToMatch, int offset,
+      int limit) throws RepositoryException {
+    return groupDirectoryService.findGroups(member, textToMatch, offset, limit);
   }
 
 }
@@ -18,40 +18,30 @@
 package org.sakaiproject.nakamura.meservice;
 
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.jackrabbit.api.security.user.Authorizable;
-import org.apache.jackrabbit.api.security.user.Group;
-import org.apache.jackrabbit.api.security.user.UserManager;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
-import org.sakaiproject.nakamura.api.user.UserConstants;
 
-import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.List;
 
 import javax.jcr.RepositoryException;
-import javax.jcr.Value;
 
 @SlingServlet(paths = { "/system/me/managedgroups" }, generateComponent = true, generateService = true, methods = { "GET" })
-@Reference(name="profileService", referenceInterface=ProfileService.class)
+@References({
+    @Reference(name="profileService", referenceInterface=ProfileService.class),
+    @Reference(name="groupDirectoryService", referenceInterface=GroupDirectoryService.class) })
 public class MyManagedGroupsServlet extends AbstractMyGroupsServlet {
   private static final long serialVersionUID = 5286762541480563822L;
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.meservice.AbstractMyGroupsServlet#findGroups(org.apache.jackrabbit.api.security.user.Authorizable, java.lang.String, int, int)
+   */
   @Override
-  protected TreeMap<String, Group> getGroups(Authorizable member, UserManager userManager)
-      throws RepositoryException {
-    TreeMap<String, Group> managedGroups = new TreeMap<String, Group>();
-    Iterator<Group> allGroupsIter = member.memberOf();
-    while (allGroupsIter.hasNext()) {
-      Group group = allGroupsIter.next();
-      if (group.hasProperty(UserConstants.PROP_MANAGED_GROUP)) {
-        Value[] values = group.getProperty(UserConstants.PROP_MANAGED_GROUP);
-        if ((values != null) && (values.length == 1)) {
-          String managedGroupId = values[0].getString();
-          Group managedGroup = (Group) userManager.getAuthorizable(managedGroupId);
-          managedGroups.put(managedGroupId, managedGroup);
-        }
-      }
-    }
-    return managedGroups;
+  protected List<String> findGroups(Authorizable member, String textToMatch, int offset,
+      int limit) throws RepositoryException {
+    return groupDirectoryService.findManagedGroups(member, textToMatch, offset, limit);
   }
 
 }
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.sling.api.SlingConstants;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ *
+ */
+public class GroupDirectoryServiceImplTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(GroupDirectoryServiceImplTest.class);
+
+  /**
+   * Reads the words of groups from a map and counts the reads.
+   */
+  private static class CountingDirectoryService extends GroupDirectoryServiceImpl {
+    private final Map<String, String[]> profiles = new HashMap<String, String[]>();
+    private int reads;
+
+    void putProfile(String groupId, String title, String description) {
+      profiles.put(groupId, new String[] { groupId, "/_group/" + groupId + "/public/authprofile",
+          title, description });
+    }
+
+    @Override
+    protected List<String[]> readGroups(Collection<String> groupIds)
+        throws RepositoryException {
+      List<String[]> read = new ArrayList<String[]>();
+      for (String groupId : groupIds) {
+        reads++;
+        if (profiles.containsKey(groupId)) {
+          read.add(profiles.get(groupId));
+        }
+      }
+      return read;
+    }
+  }
+
+  @Test
+  public void testFindByWords() throws Exception {
+    GroupDirectory directory = new GroupDirectory();
+    directory.putGroup("g-bio", "/_group/g-bio/public/authprofile", "Introduction to Biology",
+        "The study of life.");
+    directory.putGroup("g-chem", "/_group/g-chem/public/authprofile", "Organic Chemistry",
+        "Carbon, bonds and life-forms");
+    directory.putGroup("g-math", "/_group/g-math/public/authprofile", "Mathematics", null);
+    List<String> all = Arrays.asList("g-bio", "g-chem", "g-math");
+    Set<String> groupIds = new TreeSet<String>(all);
+
+    assertEquals(all, directory.find(groupIds, GroupDirectory.parseTerms(null), 0, 10));
+    assertEquals(all, directory.find(groupIds, GroupDirectory.parseTerms(" * "), 0, 10));
+    assertEquals(Arrays.asList("g-bio", "g-chem"), directory.find(groupIds, GroupDirectory
+        .parseTerms("LIFE"), 0, 10));
+    assertEquals(Arrays.asList("g-chem"), directory.find(groupIds, GroupDirectory
+        .parseTerms("life forms"), 0, 10));
+    assertEquals(Arrays.asList("g-bio"), directory.find(groupIds, GroupDirectory
+        .parseTerms("bio*"), 0, 10));
+    assertEquals(Arrays.asList("g-math"), directory.find(groupIds, GroupDirectory
+        .parseTerms("*at*"), 0, 10));
+    assertEquals(Arrays.asList("g-chem"), directory.find(groupIds, GroupDirectory
+        .parseTerms("*m*ry"), 0, 10));
+    assertEquals(0, directory.find(groupIds, GroupDirectory.parseTerms("bio"), 0, 10)
+        .size());
+
+    // paging
+    assertEquals(Arrays.asList("g-chem"), directory.find(groupIds, GroupDirectory
+        .parseTerms(null), 1, 1));
+    assertEquals(0, directory.find(groupIds, GroupDirectory.parseTerms(null), 3, 1).size());
+
+    // words of a group are replaced and dropped with it.
+    directory.putGroup("g-bio", "/_group/g-bio/public/authprofile", "Botany", null);
+    assertEquals(Arrays.asList("g-chem"), directory.find(groupIds, GroupDirectory
+        .parseTerms("life"), 0, 10));
+    assertTrue(directory.removeGroupsAt("/_group/g-bio"));
+    assertTrue(directory.removeGroupsAt("/_group/g-chem/public/authprofile/basic"));
+    assertEquals(1, directory.getWordCount());
+    assertEquals(1, directory.getGroupCount());
+  }
+
+  @Test
+  public void testMembershipAndEvents() throws Exception {
+    CountingDirectoryService service = new CountingDirectoryService();
+    service.putProfile("g-bio", "Biology", null);
+    service.putProfile("g-chem", "Chemistry", null);
+
+    Group bio = createGroup("g-bio", null);
+    Group chem = createGroup("g-chem", null);
+    Group chemManagers = createGroup("g-chem-managers", "g-chem");
+    Authorizable jack = EasyMock.createMock(Authorizable.class);
+    expect(jack.getID()).andReturn("jack").anyTimes();
+    expect(jack.memberOf()).andReturn(Arrays.asList(bio, chem, chemManagers).iterator())
+        .andReturn(Arrays.asList(chem, chemManagers).iterator());
+    EasyMock.replay(bio, chem, chemManagers, jack);
+
+    assertEquals(Arrays.asList("g-bio", "g-chem"), service.findGroups(jack, null, 0, 10));
+    assertEquals(Arrays.asList("g-chem"), service.findManagedGroups(jack, null, 0, 10));
+    assertEquals(Arrays.asList("g-bio", "g-chem"), service.findGroups(jack, "*", 0, 10));
+    assertEquals(0, service.reads);
+
+    assertEquals(Arrays.asList("g-chem"), service.findGroups(jack, "chem*", 0, 10));
+    assertEquals(2, service.reads);
+    assertEquals(Arrays.asList("g-bio"), service.findGroups(jack, "biology", 0, 10));
+    assertEquals(2, service.reads);
+
+    // a change to the profile of a group drops its words.
+    service.putProfile("g-bio", "Botany", null);
+    service.handleEvent(createResourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/_group/g-bio/public/authprofile"));
+    assertEquals(0, service.findGroups(jack, "biology", 0, 10).size());
+    assertEquals(Arrays.asList("g-bio"), service.findGroups(jack, "botany", 0, 10));
+    assertEquals(3, service.reads);
+
+    // jack leaving a group drops the groups of jack.
+    User user = EasyMock.createMock(User.class);
+    expect(user.getID()).andReturn("jack").anyTimes();
+    EasyMock.replay(user);
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(AuthorizableEvent.USER, user);
+    properties.put(AuthorizableEvent.PRINCIPAL_NAME, "g-bio");
+    service.handleEvent(new Event(AuthorizableEvent.TOPIC + "part", properties));
+    assertEquals(Arrays.asList("g-chem"), service.findGroups(jack, null, 0, 10));
+    EasyMock.verify(jack);
+  }
+
+  @Test
+  public void testFilteredListingBenchmark() throws Exception {
+    int groupCount = 500;
+    CountingDirectoryService service = new CountingDirectoryService();
+    List<Group> groups = new ArrayList<Group>();
+    for (int i = 0; i < groupCount; i++) {
+      String groupId = String.format("course-%04d", i);
+      service.putProfile(groupId, "Course " + i + (i % 10 == 0 ? " seminar" : " lecture"),
+          "Taught in term " + (i % 3));
+      groups.add(createGroup(groupId, null));
+    }
+    Authorizable member = EasyMock.createMock(Authorizable.class);
+    expect(member.getID()).andReturn("student").anyTimes();
+    expect(member.memberOf()).andReturn(groups.iterator()).once();
+    EasyMock.replay(groups.toArray());
+    EasyMock.replay(member);
+
+    long start = System.nanoTime();
+    List<String> page = service.findGroups(member, "seminar", 0, 25);
+    long first = System.nanoTime() - start;
+    assertEquals(25, page.size());
+    assertEquals("course-0000", page.get(0));
+    assertEquals(groupCount, service.reads);
+
+    int repeats = 100;
+    start = System.nanoTime();
+    for (int i = 0; i < repeats; i++) {
+      page = service.findGroups(member, "sem*", 1, 25);
+    }
+    long indexed = (System.nanoTime() - start) / repeats;
+    assertEquals(25, page.size());
+    assertEquals("course-0010", page.get(0));
+    assertEquals(groupCount, service.reads);
+    LOGGER.info("Filtered {} groups: first search {} us reading {} profiles, "
+        + "indexed search {} us reading none", new Object[] { groupCount, first / 1000,
+        groupCount, indexed / 1000 });
+  }
+
+  private Group createGroup(String groupId, String managedGroupId)
+      throws RepositoryException {
+    Group group = EasyMock.createMock(Group.class);
+    expect(group.getID()).andReturn(groupId).anyTimes();
+    expect(group.hasProperty(UserConstants.PROP_MANAGED_GROUP)).andReturn(
+        managedGroupId != null).anyTimes();
+    if (managedGroupId != null) {
+      Value value = EasyMock.createMock(Value.class);
+      expect(value.getString()).andReturn(managedGroupId).anyTimes();
+      EasyMock.replay(value);
+      expect(group.getProperty(UserConstants.PROP_MANAGED_GROUP)).andReturn(
+          new Value[] { value }).anyTimes();
+    }
+    return group;
+  }
+
+  private Event createResourceEvent(String topic, String path) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, properties);
+  }
+
+}
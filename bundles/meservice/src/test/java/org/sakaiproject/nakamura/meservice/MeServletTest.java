@@ -19,10 +19,6 @@ package org.sakaiproject.nakamura.meservice;
 
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
-import static org.sakaiproject.nakamura.api.connections.ConnectionConstants.SAKAI_CONNECTION_STATE;
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
-import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
@@ -36,8 +32,6 @@ import org.apache.sling.commons.testing.jcr.MockNode;
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
-import org.sakaiproject.nakamura.api.message.MessagingException;
-import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.profile.ProfileServiceImpl;
@@ -48,20 +42,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.Workspace;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -75,7 +66,7 @@ public class MeServletTest extends AbstractEasyMockTest {
   private JackrabbitSession session;
   private SlingHttpServletRequest request;
   private SlingHttpServletResponse response;
-  private MessagingService messagingService;
+  private MeSummaryService meSummaryService;
   private MeServlet servlet;
 
   @Before
@@ -89,14 +80,14 @@ public class MeServletTest extends AbstractEasyMockTest {
     response = createMock(SlingHttpServletResponse.class);
     session = createMock(JackrabbitSession.class);
     ResourceResolver resolver = createMock(ResourceResolver.class);
-    messagingService = createMock(MessagingService.class);
+    meSummaryService = createMock(MeSummaryService.class);
 
     expect(resolver.adaptTo(Session.class)).andReturn(session);
     expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
     expect(response.getWriter()).andReturn(w);
 
     servlet = new MeServlet();
-    servlet.messagingService = messagingService;
+    servlet.meSummaryService = meSummaryService;
 
     // TODO With this, we are testing the internals of the ProfileServiceImpl
     // class as well as the internals of the MeServlet class. Mocking it would
@@ -218,79 +209,45 @@ public class MeServletTest extends AbstractEasyMockTest {
   }
 
   @Test
-  public void testMessages() throws MessagingException, JSONException,
-      RepositoryException {
-
-    MeServlet servlet = new MeServlet();
-    servlet.messagingService = messagingService;
-
-    Authorizable au = createAuthorizable("jack", false, true);
-    expect(messagingService.getFullPathToStore("jack", session)).andReturn(
-        "/path/to/store");
-
-    // Mock the query.
-    Workspace workSpace = createMock(Workspace.class);
-    QueryManager qm = createMock(QueryManager.class);
-    Query q = createMock(Query.class);
-    QueryResult qr = createMock(QueryResult.class);
-    NodeIterator iterator = createMock(NodeIterator.class);
-    expect(session.getWorkspace()).andReturn(workSpace);
-    expect(workSpace.getQueryManager()).andReturn(qm);
-    expect(
-        qm
-            .createQuery(EasyMock.matches(".*\\/path\\/to\\/store.*"), EasyMock
-                .eq("xpath"))).andReturn(q);
-    expect(q.execute()).andReturn(qr);
-    expect(qr.getNodes()).andReturn(iterator);
-    expect(iterator.hasNext()).andReturn(true).times(2).andReturn(false);
-    expect(iterator.next()).andReturn(null).times(2);
-
-    replay();
-    servlet.writeMessageCounts(new ExtendedJSONWriter(w), session, au);
+  public void testUserSummary() throws Exception {
+    Authorizable au = createAuthorizable("jack", false, false);
+    expect(au.getPropertyNames()).andReturn(new ArrayList<String>().iterator());
+    EasyMock.replay(au);
+    UserManager um = createUserManager(null, true, au);
 
-    w.flush();
-    JSONObject o = new JSONObject(baos.toString());
-    assertEquals(2, o.get("unread"));
-  }
+    String profilePath = PersonalUtils.getProfilePath(au);
+    Node profileNode = new MockNode(profilePath);
+    Node rootNode = createMock(Node.class);
+    expect(rootNode.hasNode(profilePath.substring(1))).andReturn(true).anyTimes();
+    expect(session.getRootNode()).andReturn(rootNode).anyTimes();
+    expect(session.getNode(profilePath)).andReturn(profileNode).anyTimes();
+    expect(session.getUserID()).andReturn("jack").anyTimes();
+    expect(session.getUserManager()).andReturn(um).anyTimes();
 
-  @Test
-  public void testContactCounts() throws MessagingException, JSONException,
-      RepositoryException {
+    Map<String, Integer> contacts = new HashMap<String, Integer>();
+    contacts.put("accepted", 2);
+    Map<String, Object> group = new HashMap<String, Object>();
+    group.put("groupid", "g-jack-friends");
+    MeSummary summary = new MeSummary("jack", "/_user/j/ja/jack").withUnread(5L)
+        .withContacts(contacts).withMembership(
+            new HashSet<String>(Arrays.asList("g-jack-friends")),
+            Arrays.asList(group));
+    expect(meSummaryService.getSummary(session, au)).andReturn(summary);
 
-    Authorizable au = createAuthorizable("jack", false, true);
-
-    // Mock the query.
-    Workspace workSpace = createMock(Workspace.class);
-    QueryManager qm = createMock(QueryManager.class);
-    Query q = createMock(Query.class);
-    QueryResult qr = createMock(QueryResult.class);
-    NodeIterator iterator = createMock(NodeIterator.class);
-    expect(session.getWorkspace()).andReturn(workSpace);
-    expect(workSpace.getQueryManager()).andReturn(qm);
-    expect(
-        qm.createQuery(EasyMock.matches(".*\\/_user\\/j\\/ja\\/jack\\/contacts.*"),
-            EasyMock.eq("xpath"))).andReturn(q);
-    expect(q.execute()).andReturn(qr);
-    expect(qr.getNodes()).andReturn(iterator);
-
-    MockNode pendingNode = new MockNode("/path/to/node");
-    pendingNode.setProperty(SAKAI_CONNECTION_STATE, PENDING.toString());
-    MockNode acceptedNode = new MockNode("/path/to/node");
-    acceptedNode.setProperty(SAKAI_CONNECTION_STATE, ACCEPTED.toString());
-    MockNode invitedNode = new MockNode("/path/to/node");
-    invitedNode.setProperty(SAKAI_CONNECTION_STATE, INVITED.toString());
-
-    expect(iterator.hasNext()).andReturn(true).times(4).andReturn(false);
-    expect(iterator.nextNode()).andReturn(pendingNode).andReturn(invitedNode).andReturn(
-        acceptedNode).andReturn(invitedNode);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
 
     replay();
-    servlet.writeContactCounts(new ExtendedJSONWriter(w), session, au);
 
+    servlet.doGet(request, response);
     w.flush();
-    JSONObject o = new JSONObject(baos.toString());
-    assertEquals(2, o.get("invited"));
-    assertEquals(1, o.get("accepted"));
-    assertEquals(1, o.get("pending"));
+    JSONObject json = new JSONObject(baos.toString("UTF-8"));
+    JSONObject user = json.getJSONObject("user");
+    assertEquals("jack", user.getString("userid"));
+    assertEquals("g-jack-friends", user.getJSONArray("subjects").getString(0));
+    assertEquals(5, json.getJSONObject("messages").getInt("unread"));
+    assertEquals(2, json.getJSONObject("contacts").getInt("accepted"));
+    assertEquals("g-jack-friends", json.getJSONArray("groups").getJSONObject(0)
+        .getString("groupid"));
   }
 }
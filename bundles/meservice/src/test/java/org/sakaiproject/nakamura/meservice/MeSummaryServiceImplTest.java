@@ -0,0 +1,472 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.nakamura.api.connections.ConnectionConstants.SAKAI_CONNECTION_STATE;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.testing.jcr.MockNode;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.message.MessagingService;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+/**
+ *
+ */
+public class MeSummaryServiceImplTest extends AbstractEasyMockTest {
+
+  private JackrabbitSession session;
+  private MessagingService messagingService;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    session = createMock(JackrabbitSession.class);
+    messagingService = createMock(MessagingService.class);
+  }
+
+  @Test
+  public void testMessages() throws Exception {
+    MeSummaryServiceImpl service = new MeSummaryServiceImpl();
+    service.messagingService = messagingService;
+
+    Authorizable au = createAuthorizable("jack", false, true);
+    expect(messagingService.getFullPathToStore("jack", session)).andReturn(
+        "/path/to/store");
+
+    // Mock the query.
+    Workspace workSpace = createMock(Workspace.class);
+    QueryManager qm = createMock(QueryManager.class);
+    Query q = createMock(Query.class);
+    QueryResult qr = createMock(QueryResult.class);
+    NodeIterator iterator = createMock(NodeIterator.class);
+    expect(session.getWorkspace()).andReturn(workSpace);
+    expect(workSpace.getQueryManager()).andReturn(qm);
+    expect(
+        qm
+            .createQuery(EasyMock.matches(".*\\/path\\/to\\/store.*"), EasyMock
+                .eq("xpath"))).andReturn(q);
+    expect(q.execute()).andReturn(qr);
+    expect(qr.getNodes()).andReturn(iterator);
+    expect(iterator.getSize()).andReturn(-1L);
+    expect(iterator.hasNext()).andReturn(true).times(2).andReturn(false);
+    expect(iterator.next()).andReturn(null).times(2);
+
+    replay();
+    assertEquals(2, service.countUnreadMessages(session, au));
+  }
+
+  @Test
+  public void testContactCounts() throws Exception {
+    MeSummaryServiceImpl service = new MeSummaryServiceImpl();
+    Authorizable au = createAuthorizable("jack", false, true);
+
+    // Mock the query.
+    Workspace workSpace = createMock(Workspace.class);
+    QueryManager qm = createMock(QueryManager.class);
+    Query q = createMock(Query.class);
+    QueryResult qr = createMock(QueryResult.class);
+    NodeIterator iterator = createMock(NodeIterator.class);
+    expect(session.getWorkspace()).andReturn(workSpace);
+    expect(workSpace.getQueryManager()).andReturn(qm);
+    expect(
+        qm.createQuery(EasyMock.matches(".*\\/_user\\/j\\/ja\\/jack\\/contacts.*"),
+            EasyMock.eq("xpath"))).andReturn(q);
+    expect(q.execute()).andReturn(qr);
+    expect(qr.getNodes()).andReturn(iterator);
+
+    MockNode pendingNode = new MockNode("/path/to/node");
+    pendingNode.setProperty(SAKAI_CONNECTION_STATE, PENDING.toString());
+    MockNode acceptedNode = new MockNode("/path/to/node");
+    acceptedNode.setProperty(SAKAI_CONNECTION_STATE, ACCEPTED.toString());
+    MockNode invitedNode = new MockNode("/path/to/node");
+    invitedNode.setProperty(SAKAI_CONNECTION_STATE, INVITED.toString());
+
+    expect(iterator.hasNext()).andReturn(true).times(4).andReturn(false);
+    expect(iterator.nextNode()).andReturn(pendingNode).andReturn(invitedNode).andReturn(
+        acceptedNode).andReturn(invitedNode);
+
+    replay();
+    Map<String, Integer> contacts = service.countContacts(session, au);
+    assertEquals(2, (int) contacts.get("invited"));
+    assertEquals(1, (int) contacts.get("accepted"));
+    assertEquals(1, (int) contacts.get("pending"));
+  }
+
+  @Test
+  public void testSummaryCached() throws Exception {
+    CountingSummaryService service = createCountingSummaryService();
+    Authorizable au = createAuthorizable("jack", false, true);
+    replay();
+
+    MeSummary summary = service.getSummary(session, au);
+    assertEquals(3L, (long) summary.getUnread());
+    assertEquals(1, (int) summary.getContacts().get("accepted"));
+    assertTrue(summary.getSubjects().contains("g-jack-friends"));
+    assertEquals("g-jack-friends", summary.getGroups().get(0).get("groupid"));
+
+    service.getSummary(session, au);
+    service.getSummary(session, au);
+    assertEquals(1, service.unreadCounts);
+    assertEquals(1, service.contactCounts);
+    assertEquals(1, service.membershipLoads);
+  }
+
+  @Test
+  public void testEventsDropParts() throws Exception {
+    CountingSummaryService service = createCountingSummaryService();
+    Authorizable au = createAuthorizable("jack", false, true);
+    User user = createMock(User.class);
+    expect(user.getID()).andReturn("jack").anyTimes();
+    expectAdminSession(service, au);
+    replay();
+
+    service.getSummary(session, au);
+
+    // Messages elsewhere and stores of other users don't touch the summary.
+    service.handleEvent(createResourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/_user/j/ja/jack/public/authprofile"));
+    service.handleEvent(createResourceEvent(SlingConstants.TOPIC_RESOURCE_ADDED,
+        "/_user/j/ji/jill/message/ab/cd/ef/gh/msg1"));
+    service.getSummary(session, au);
+    assertEquals(1, service.unreadCounts);
+
+    // A new message only drops the unread count.
+    service.unread = 4;
+    service.handleEvent(createResourceEvent(SlingConstants.TOPIC_RESOURCE_ADDED,
+        "/_user/j/ja/jack/message/ab/cd/ef/gh/msg1"));
+    MeSummary summary = service.getSummary(session, au);
+    assertEquals(4L, (long) summary.getUnread());
+    assertEquals(2, service.unreadCounts);
+    assertEquals(1, service.contactCounts);
+    assertEquals(1, service.membershipLoads);
+
+    // A change of a contact only drops the contact counts.
+    service.handleEvent(createResourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/_user/j/ja/jack/contacts/ji/jill"));
+    service.getSummary(session, au);
+    assertEquals(2, service.unreadCounts);
+    assertEquals(2, service.contactCounts);
+    assertEquals(1, service.membershipLoads);
+
+    // The user joining a group drops the groups.
+    service.handleEvent(createAuthorizableEvent("join", "g-new", user));
+    service.getSummary(session, au);
+    assertEquals(2, service.membershipLoads);
+
+    // A group the user is not in joining a group, or changing its profile, doesn't.
+    service.handleEvent(createAuthorizableEvent("join", "g-new", "admin"));
+    service.handleEvent(createResourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/_group/g/g-/g-new/public/authprofile"));
+    service.getSummary(session, au);
+    assertEquals(2, service.membershipLoads);
+
+    // A group the user is in joining a group does.
+    service.handleEvent(createAuthorizableEvent("join", "g-jack-friends", "admin"));
+    service.getSummary(session, au);
+    assertEquals(3, service.membershipLoads);
+
+    // So does a change to its profile.
+    service.handleEvent(createResourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/_group/g/g-/g-jack-friends/public/authprofile"));
+    service.getSummary(session, au);
+    assertEquals(2, service.unreadCounts);
+    assertEquals(2, service.contactCounts);
+    assertEquals(4, service.membershipLoads);
+  }
+
+  @Test
+  public void testGroupChangesOnlyTouchMembers() throws Exception {
+    CountingSummaryService service = new CountingSummaryService();
+    MapCacheImpl<Object> cache = bindCache(service);
+    Authorizable jack = createAuthorizable("jack", false, true);
+    Authorizable jill = createAuthorizable("jill", false, true);
+    Group group = createGroup("g-new", jack);
+    Group other = createGroup("g-other");
+    expectAdminSession(service, jack, jill, group, other);
+    replay();
+
+    MeSummary jacks = service.getSummary(session, jack);
+    MeSummary jills = service.getSummary(session, jill);
+
+    // The summaries of users outside the group are left alone.
+    service.handleEvent(createAuthorizableEvent("join", "g-other", "admin"));
+    assertTrue(jacks == cache.get(jacks.getHomePath()));
+    service.handleEvent(createAuthorizableEvent("join", "g-new", "admin"));
+    assertTrue(jills == cache.get(jills.getHomePath()));
+
+    // A member found in the repository has its groups recomputed, and the counts kept.
+    service.subjects.add("g-new");
+    MeSummary summary = service.getSummary(session, jack);
+    assertTrue(summary.getSubjects().contains("g-new"));
+    assertEquals(3, service.membershipLoads);
+    assertEquals(2, service.unreadCounts);
+    service.getSummary(session, jack);
+    assertEquals(3, service.membershipLoads);
+
+    // A deleted group leaves the summaries that list it, and a deleted user goes.
+    service.handleEvent(createAuthorizableEvent("delete", "g-new", "admin"));
+    assertNull(((MeSummary) cache.get(jacks.getHomePath())).getSubjects());
+    assertTrue(jills == cache.get(jills.getHomePath()));
+    service.handleEvent(createAuthorizableEvent("delete", "jill", "admin"));
+    assertFalse(cache.containsKey(jills.getHomePath()));
+  }
+
+  @Test
+  public void testChangeWhileComputing() throws Exception {
+    final Event message = createResourceEvent(SlingConstants.TOPIC_RESOURCE_ADDED,
+        "/_user/j/ja/jack/message/ab/cd/ef/gh/msg1");
+    CountingSummaryService service = new CountingSummaryService() {
+      @Override
+      protected long countUnreadMessages(Session session, Authorizable authorizable)
+          throws RepositoryException {
+        long unread = super.countUnreadMessages(session, authorizable);
+        if (unreadCounts == 1) {
+          // A message arrives after the count.
+          handleEvent(message);
+        }
+        return unread;
+      }
+    };
+    bindCache(service);
+    Authorizable au = createAuthorizable("jack", false, true);
+    replay();
+
+    service.getSummary(session, au);
+    service.getSummary(session, au);
+    assertEquals(2, service.unreadCounts);
+    service.getSummary(session, au);
+    assertEquals(2, service.unreadCounts);
+  }
+
+  @Test
+  public void testCheckConsistency() throws Exception {
+    CountingSummaryService service = createCountingSummaryService();
+    Authorizable au = createAuthorizable("jack", false, true);
+    expectAdminSession(service, au);
+    replay();
+
+    service.getSummary(session, au);
+    assertEquals(0, service.checkConsistency());
+
+    // A change the events missed.
+    service.unread = 7;
+    service.subjects.add("g-missed");
+    assertEquals(1, service.checkConsistency());
+    int contactCounts = service.contactCounts;
+    MeSummary summary = service.getSummary(session, au);
+    assertEquals(7L, (long) summary.getUnread());
+    assertTrue(summary.getSubjects().contains("g-missed"));
+    // The contacts had not drifted, so were kept.
+    assertEquals(contactCounts, service.contactCounts);
+    assertEquals(0, service.checkConsistency());
+  }
+
+  @Test
+  public void testCheckConsistencyAsUser() throws Exception {
+    CountingSummaryService service = createCountingSummaryService();
+    Authorizable au = createAuthorizable("jack", false, true);
+    expectAdminSession(service, au);
+    replay();
+
+    service.getSummary(session, au);
+    // Groups the user can't see, but the administrator can, are not drift.
+    service.adminSubjects.add("g-hidden");
+    assertEquals(0, service.checkConsistency());
+  }
+
+  @Test
+  public void testCheckConsistencyDeletedUser() throws Exception {
+    CountingSummaryService service = createCountingSummaryService();
+    Authorizable au = createAuthorizable("jack", false, true);
+    expectAdminSession(service);
+    replay();
+
+    service.getSummary(session, au);
+    assertEquals(1, service.checkConsistency());
+    service.getSummary(session, au);
+    assertEquals(2, service.unreadCounts);
+  }
+
+  private CountingSummaryService createCountingSummaryService() {
+    CountingSummaryService service = new CountingSummaryService();
+    bindCache(service);
+    return service;
+  }
+
+  private MapCacheImpl<Object> bindCache(MeSummaryServiceImpl service) {
+    MapCacheImpl<Object> cache = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = EasyMock.createMock(CacheManagerService.class);
+    expect(
+        cacheManagerService.getCache(EasyMock.isA(String.class), EasyMock
+            .eq(CacheScope.CLUSTERINVALIDATED))).andReturn(cache);
+    EasyMock.replay(cacheManagerService);
+    service.bindCacheManagerService(cacheManagerService);
+    return cache;
+  }
+
+  private void expectAdminSession(MeSummaryServiceImpl service,
+      Authorizable... authorizables) throws RepositoryException {
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    JackrabbitSession adminSession = createMock(JackrabbitSession.class);
+    UserManager um = createUserManager(null, false, authorizables);
+    expect(um.getAuthorizable(EasyMock.isA(String.class))).andReturn(null).anyTimes();
+    EasyMock.replay(um);
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession).anyTimes();
+    expect(adminSession.getUserManager()).andReturn(um).anyTimes();
+    adminSession.logout();
+    expectLastCall().anyTimes();
+    JackrabbitSession userSession = createMock(JackrabbitSession.class);
+    expect(adminSession.impersonate(EasyMock.isA(SimpleCredentials.class))).andReturn(
+        userSession).anyTimes();
+    userSession.logout();
+    expectLastCall().anyTimes();
+    service.slingRepository = slingRepository;
+    if (service instanceof CountingSummaryService) {
+      ((CountingSummaryService) service).adminSession = adminSession;
+    }
+  }
+
+  private Group createGroup(String id, final Authorizable... members)
+      throws RepositoryException {
+    Group group = EasyMock.createMock(Group.class);
+    expect(group.getID()).andReturn(id).anyTimes();
+    expect(group.isGroup()).andReturn(true).anyTimes();
+    expect(group.getMembers()).andAnswer(new IAnswer<Iterator<Authorizable>>() {
+      public Iterator<Authorizable> answer() throws Throwable {
+        return Arrays.asList(members).iterator();
+      }
+    }).anyTimes();
+    EasyMock.replay(group);
+    return group;
+  }
+
+  private Event createResourceEvent(String topic, String path) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, properties);
+  }
+
+  private Event createAuthorizableEvent(String operation, String principal, Object user) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(AuthorizableEvent.PRINCIPAL_NAME, principal);
+    properties.put(AuthorizableEvent.USER, user);
+    return new Event(AuthorizableEvent.TOPIC + operation, properties);
+  }
+
+  /**
+   * Serves the parts of the summary from fields, counting how often each is computed.
+   */
+  private static class CountingSummaryService extends MeSummaryServiceImpl {
+    long unread = 3;
+    Set<String> subjects = new LinkedHashSet<String>();
+    Set<String> adminSubjects = new LinkedHashSet<String>();
+    Session adminSession;
+    int unreadCounts;
+    int contactCounts;
+    int membershipLoads;
+
+    CountingSummaryService() {
+      subjects.add("g-jack-friends");
+    }
+
+    @Override
+    protected long countUnreadMessages(Session session, Authorizable authorizable)
+        throws RepositoryException {
+      unreadCounts++;
+      return unread;
+    }
+
+    @Override
+    protected Map<String, Integer> countContacts(Session session,
+        Authorizable authorizable) throws RepositoryException {
+      contactCounts++;
+      Map<String, Integer> contacts = new HashMap<String, Integer>();
+      contacts.put("accepted", 1);
+      contacts.put("invited", 0);
+      contacts.put("pending", 0);
+      return contacts;
+    }
+
+    @Override
+    protected Set<String> getSubjects(Session session, Authorizable authorizable)
+        throws RepositoryException {
+      membershipLoads++;
+      Set<String> loaded = new LinkedHashSet<String>(subjects);
+      if (session == adminSession) {
+        loaded.addAll(adminSubjects);
+      }
+      return loaded;
+    }
+
+    @Override
+    protected List<Map<String, Object>> getGroups(Session session,
+        Authorizable authorizable) throws RepositoryException {
+      List<Map<String, Object>> groups = new ArrayList<Map<String, Object>>();
+      for (String subject : subjects) {
+        Map<String, Object> group = new HashMap<String, Object>();
+        group.put("groupid", subject);
+        groups.add(group);
+      }
+      return groups;
+    }
+  }
+}
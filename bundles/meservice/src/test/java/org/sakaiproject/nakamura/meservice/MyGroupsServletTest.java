@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONArray;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ *
+ */
+public class MyGroupsServletTest extends AbstractEasyMockTest {
+
+  @Test
+  public void testPagesSkipUnreadableGroups() throws Exception {
+    List<String> groupIds = Arrays.asList("g-1", "g-2", "g-3", "g-4", "g-5");
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    ProfileService profileService = createMock(ProfileService.class);
+    Authorizable jack = createAuthorizable("jack", false, true);
+    UserManager userManager = createUserManager(null, false, jack);
+    for (String groupId : groupIds) {
+      Authorizable group = createAuthorizable(groupId, true, true);
+      expect(userManager.getAuthorizable(groupId)).andReturn(group).anyTimes();
+      String profilePath = "/_group/" + groupId + "/public/authprofile";
+      expect(profileService.getProfilePath(group)).andReturn(profilePath).anyTimes();
+      // the session can't read the profile of g-2.
+      expect(session.itemExists(profilePath)).andReturn(!"g-2".equals(groupId))
+          .anyTimes();
+      HashMap<String, Object> profile = new HashMap<String, Object>();
+      profile.put("groupid", groupId);
+      expect(profileService.getProfileMap(group, session)).andReturn(
+          new ValueMapDecorator(profile)).anyTimes();
+    }
+    expect(session.getUserID()).andReturn("jack").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    EasyMock.replay(userManager);
+
+    // the second page of two.
+    StringWriter out = new StringWriter();
+    SlingHttpServletRequest request = createRequest(session, "2", "1");
+    SlingHttpServletResponse response = createNiceMock(SlingHttpServletResponse.class);
+    expect(response.getWriter()).andReturn(new PrintWriter(out));
+    replay();
+
+    MyGroupsServlet servlet = new MyGroupsServlet();
+    servlet.profileService = profileService;
+    final List<Integer> batches = new ArrayList<Integer>();
+    servlet.groupDirectoryService = new ListDirectoryService(groupIds) {
+      @Override
+      public List<String> findGroups(Authorizable member, String text, int offset,
+          int limit) {
+        batches.add(offset);
+        return super.findGroups(member, text, offset, limit);
+      }
+    };
+    servlet.doGet(request, response);
+
+    JSONArray groups = new JSONArray(out.toString());
+    assertEquals(2, groups.length());
+    assertEquals("g-4", groups.getJSONObject(0).getString("groupid"));
+    assertEquals("g-5", groups.getJSONObject(1).getString("groupid"));
+    // more groups were asked for until the page was full.
+    assertEquals(Arrays.asList(0, 2, 4), batches);
+  }
+
+  private SlingHttpServletRequest createRequest(Session session, String items, String page) {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    RequestPathInfo pathInfo = createMock(RequestPathInfo.class);
+    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
+    expect(resolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    expect(request.getRequestPathInfo()).andReturn(pathInfo).anyTimes();
+    expect(pathInfo.getSelectors()).andReturn(new String[0]).anyTimes();
+    expect(request.getParameter(AbstractMyGroupsServlet.PARAM_ITEMS)).andReturn(items)
+        .anyTimes();
+    expect(request.getParameter(AbstractMyGroupsServlet.PARAM_PAGE)).andReturn(page)
+        .anyTimes();
+    expect(request.getParameter(EasyMock.isA(String.class))).andReturn(null).anyTimes();
+    return request;
+  }
+
+  /**
+   * A directory that lists the same groups for everyone.
+   */
+  private static class ListDirectoryService implements GroupDirectoryService {
+    private final List<String> groupIds;
+
+    ListDirectoryService(List<String> groupIds) {
+      this.groupIds = groupIds;
+    }
+
+    public List<String> findGroups(Authorizable member, String text, int offset, int limit) {
+      int end = (int) Math.min(groupIds.size(), (long) offset + limit);
+      return new ArrayList<String>(groupIds.subList(Math.min(offset, end), end));
+    }
+
+    public List<String> findManagedGroups(Authorizable member, String text, int offset,
+        int limit) throws RepositoryException {
+      return findGroups(member, text, offset, limit);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.persistence;
+
+import javax.persistence.PersistenceException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+/**
+ * The transaction of a request, bound to the thread handling it. The transaction is only
+ * started when the request first uses the entity manager, so that requests that never
+ * touch JPA don't pay for one.
+ */
+final class RequestTransaction {
+
+  private static final ThreadLocal<RequestTransaction> CURRENT = new ThreadLocal<RequestTransaction>();
+
+  private final TransactionManager transactionManager;
+  private boolean joined;
+  private boolean started;
+
+  private RequestTransaction(TransactionManager transactionManager) {
+    this.transactionManager = transactionManager;
+  }
+
+  /**
+   * Binds a transaction to the current thread, it is not started.
+   *
+   * @param transactionManager
+   *          the transaction manager to start the transaction with.
+   * @return the transaction, or null if one is already bound to the thread.
+   */
+  static RequestTransaction bind(TransactionManager transactionManager) {
+    if (CURRENT.get() != null) {
+      return null;
+    }
+    RequestTransaction requestTransaction = new RequestTransaction(transactionManager);
+    CURRENT.set(requestTransaction);
+    return requestTransaction;
+  }
+
+  /**
+   * Starts the transaction bound to the current thread, if there is one and it has not
+   * been started. A transaction that was started on the thread by something else is left
+   * alone.
+   *
+   * @throws PersistenceException
+   *           if the transaction could not be started.
+   */
+  static void join() {
+    RequestTransaction requestTransaction = CURRENT.get();
+    if (requestTransaction != null && !requestTransaction.joined) {
+      requestTransaction.begin();
+    }
+  }
+
+  private void begin() {
+    try {
+      if (Status.STATUS_NO_TRANSACTION == transactionManager.getStatus()) {
+        transactionManager.begin();
+        started = true;
+      }
+      // only once it worked, so that a failed start is tried again on the next use.
+      joined = true;
+    } catch (NotSupportedException e) {
+      throw new PersistenceException(e.getMessage(), e);
+    } catch (SystemException e) {
+      throw new PersistenceException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return true if the transaction was started during the request.
+   */
+  boolean isStarted() {
+    return started;
+  }
+
+  /**
+   * Unbinds the transaction from the current thread.
+   */
+  void unbind() {
+    CURRENT.remove();
+  }
+}
@@ -150,6 +150,8 @@ public class ScopedEntityManager implements EntityManager {
    * @return
    */
   private EntityManager getEntityManager() {
+    // start the transaction of the request, if it has not been started.
+    RequestTransaction.join();
     Cache<EntityManagerHolder> cache = cacheManagerService.getCache(JPA_CACHE, scope);
     EntityManagerHolder entityManagerHolder = cache.get(ENTITY_MANAGER);
     if (entityManagerHolder == null) {
@@ -23,10 +23,16 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -34,10 +40,10 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
-import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.SystemException;
@@ -45,10 +51,13 @@ import javax.transaction.TransactionManager;
 
 /**
  * The <code>SakaiRequestFilter</code> class is a request level filter, which manages the
- * Sakai Cache and Transaction services..
+ * Sakai Cache and Transaction services.. The transaction of a request is only started
+ * when the request first uses the {@link ScopedEntityManager}, and is only committed or
+ * rolled back if it was started. Requests to the excluded paths or with the excluded
+ * methods are not given a transaction at all.
  */
 @Service(value=Filter.class)
-@Component(immediate=true, metatype=false)
+@Component(immediate=true, metatype=true)
 @Properties(value={@Property(name="service.description", value="Transaction Support Filter"),
     @Property(name="service.vendor",value="The Sakai Foundation"),
     @Property(name="filter.scope",value="request", propertyPrivate=true),
@@ -58,10 +67,36 @@ public class TransactionManagerFilter implements Filter {
 
   private static final boolean debug = LOGGER.isDebugEnabled();
 
+  @Property(value = { "/dev/", "/devwidgets/" }, cardinality = Integer.MAX_VALUE, description = "Requests to paths starting with one of these are not given a transaction.")
+  static final String EXCLUDED_PATHS = "transaction.excluded.paths";
 
-  @Reference
-  private TransactionManager transactionManager;
+  @Property(value = { "" }, cardinality = Integer.MAX_VALUE, description = "Requests with one of these methods are not given a transaction.")
+  static final String EXCLUDED_METHODS = "transaction.excluded.methods";
+
+  private String[] excludedPaths = new String[0];
+  private Set<String> excludedMethods = new HashSet<String>();
 
+  @Reference
+  protected TransactionManager transactionManager;
+
+  protected void activate(ComponentContext componentContext) {
+    List<String> paths = new ArrayList<String>();
+    for (String path : OsgiUtil.toStringArray(componentContext.getProperties().get(
+        EXCLUDED_PATHS), new String[0])) {
+      if (path != null && path.trim().length() > 0) {
+        paths.add(path.trim());
+      }
+    }
+    excludedPaths = paths.toArray(new String[paths.size()]);
+    Set<String> methods = new HashSet<String>();
+    for (String method : OsgiUtil.toStringArray(componentContext.getProperties().get(
+        EXCLUDED_METHODS), new String[0])) {
+      if (method != null && method.trim().length() > 0) {
+        methods.add(method.trim().toUpperCase());
+      }
+    }
+    excludedMethods = methods;
+  }
 
   /**
    * {@inheritDoc}
@@ -89,38 +124,76 @@ public class TransactionManagerFilter implements Filter {
    */
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
       throws IOException, ServletException {
+    HttpServletRequest hrequest = (HttpServletRequest) request;
     HttpServletResponse hresponse = (HttpServletResponse) response;
+    if (isExcluded(hrequest)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    // null if this request is inside one that already has a transaction.
+    RequestTransaction requestTransaction = RequestTransaction.bind(transactionManager);
+    if (requestTransaction == null) {
+      chain.doFilter(request, response);
+      return;
+    }
     try {
-      begin();
       chain.doFilter(request, response);
-      commit();
+      if (requestTransaction.isStarted()) {
+        commit();
+      }
     } catch (SecurityException se) {
-      rollback();
+      rollback(requestTransaction);
       // catch any Security exceptions and send a 401
       hresponse.reset();
       hresponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, se.getMessage());
     } catch (RuntimeException e) {
-      rollback();
+      // This includes the RetryRequest a Jetty continuation throws to suspend the
+      // request, which has to get back to Jetty as it is. The request is dispatched
+      // again later, so what it did so far is rolled back.
+      rollback(requestTransaction);
       throw e;
     } catch (IOException e) {
-      rollback();
+      rollback(requestTransaction);
       throw e;
     } catch (ServletException e) {
-      rollback();
+      rollback(requestTransaction);
       throw e;
     } catch (Throwable t) {
-      rollback();
+      rollback(requestTransaction);
       throw new ServletException(t.getMessage(), t);
+    } finally {
+      requestTransaction.unbind();
     }
   }
 
   /**
-   * @throws SystemException
-   * @throws NotSupportedException
-   * 
+   * @param request
+   * @return true if the request should not be given a transaction.
    */
-  protected void begin() throws NotSupportedException, SystemException {
-    transactionManager.begin();
+  private boolean isExcluded(HttpServletRequest request) {
+    if (excludedMethods.contains(request.getMethod())) {
+      return true;
+    }
+    if (excludedPaths.length > 0) {
+      String path = request.getPathInfo();
+      if (path == null) {
+        path = request.getRequestURI();
+      }
+      if (path != null) {
+        for (String excludedPath : excludedPaths) {
+          if (path.startsWith(excludedPath)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private void rollback(RequestTransaction requestTransaction) {
+    if (requestTransaction.isStarted()) {
+      rollback();
+    }
   }
 
   /**
@@ -0,0 +1,300 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence.dbcp;
+
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection pool that records how long requests wait for a connection, and keeps track
+ * of the connections that are borrowed so that the ones that are held for longer than the
+ * abandoned timeout are reported, and optionally taken back, when the evictor runs. The
+ * pool usage is exposed as an MBean.
+ */
+public class ConnectionPool extends GenericObjectPool implements ConnectionPoolMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+  private final AtomicLong connectionRequests = new AtomicLong();
+  private final AtomicLong connectionPoolTimeouts = new AtomicLong();
+  private final AtomicLong totalWaitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+  private final AtomicLong abandonedConnections = new AtomicLong();
+  private final AtomicLong removedAbandonedConnections = new AtomicLong();
+
+  /**
+   * The connections that are borrowed, all access is synchronized on the map.
+   */
+  private final Map<Object, Borrowed> borrowed = new IdentityHashMap<Object, Borrowed>();
+
+  private volatile long abandonedTimeout;
+  private volatile boolean removeAbandoned;
+  private volatile boolean logAbandoned;
+
+  /**
+   * A connection that is borrowed from the pool.
+   */
+  private static class Borrowed {
+    private final long time = System.currentTimeMillis();
+    private final Throwable trace;
+    private boolean reported;
+
+    private Borrowed(boolean logAbandoned) {
+      trace = logAbandoned ? new Throwable("Connection borrowed here") : null;
+    }
+  }
+
+  /**
+   * Create a pool, the connection factory registers itself with the pool.
+   */
+  public ConnectionPool() {
+    super(null);
+  }
+
+  /**
+   * @param abandonedTimeout
+   *          the time in ms after which a borrowed connection is considered abandoned, 0
+   *          or less to never consider connections abandoned.
+   * @param removeAbandoned
+   *          true if abandoned connections should be closed and taken back by the pool,
+   *          false if they should only be reported.
+   * @param logAbandoned
+   *          true if where an abandoned connection was borrowed should be logged, this
+   *          records a stack trace on every borrow.
+   */
+  public void setAbandonedConfig(long abandonedTimeout, boolean removeAbandoned,
+      boolean logAbandoned) {
+    this.abandonedTimeout = abandonedTimeout;
+    this.removeAbandoned = removeAbandoned;
+    this.logAbandoned = logAbandoned;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.commons.pool.impl.GenericObjectPool#borrowObject()
+   */
+  @Override
+  public Object borrowObject() throws Exception {
+    long start = System.currentTimeMillis();
+    try {
+      Object connection = super.borrowObject();
+      synchronized (borrowed) {
+        borrowed.put(connection, new Borrowed(logAbandoned));
+      }
+      return connection;
+    } catch (NoSuchElementException e) {
+      connectionPoolTimeouts.incrementAndGet();
+      throw e;
+    } finally {
+      long wait = System.currentTimeMillis() - start;
+      connectionRequests.incrementAndGet();
+      totalWaitTime.addAndGet(wait);
+      long max = maxWaitTime.get();
+      while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+        max = maxWaitTime.get();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.commons.pool.impl.GenericObjectPool#returnObject(java.lang.Object)
+   */
+  @Override
+  public void returnObject(Object obj) throws Exception {
+    if (release(obj)) {
+      super.returnObject(obj);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.commons.pool.impl.GenericObjectPool#invalidateObject(java.lang.Object)
+   */
+  @Override
+  public void invalidateObject(Object obj) throws Exception {
+    if (release(obj)) {
+      super.invalidateObject(obj);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Checks for abandoned connections before evicting idle ones.
+   *
+   * @see org.apache.commons.pool.impl.GenericObjectPool#evict()
+   */
+  @Override
+  public void evict() throws Exception {
+    checkAbandoned();
+    super.evict();
+  }
+
+  /**
+   * Reports the connections that have been borrowed for longer than the abandoned
+   * timeout, once each, and takes them back if abandoned connections are removed.
+   */
+  void checkAbandoned() {
+    long timeout = abandonedTimeout;
+    if (timeout <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    List<Object> remove = new ArrayList<Object>();
+    synchronized (borrowed) {
+      for (Entry<Object, Borrowed> entry : borrowed.entrySet()) {
+        Borrowed b = entry.getValue();
+        if (now - b.time < timeout) {
+          continue;
+        }
+        if (!b.reported) {
+          b.reported = true;
+          abandonedConnections.incrementAndGet();
+          if (b.trace != null) {
+            LOGGER.warn("Connection borrowed " + (now - b.time)
+                + " ms ago has not been returned ", b.trace);
+          } else {
+            LOGGER.warn("Connection borrowed {} ms ago has not been returned ", now
+                - b.time);
+          }
+        }
+        if (removeAbandoned) {
+          remove.add(entry.getKey());
+        }
+      }
+      for (Object connection : remove) {
+        borrowed.remove(connection);
+      }
+    }
+    for (Object connection : remove) {
+      try {
+        super.invalidateObject(connection);
+        removedAbandonedConnections.incrementAndGet();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to close abandoned connection {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param obj
+   *          a connection coming back to the pool.
+   * @return true if the connection was borrowed, false if it has already been taken back
+   *         as abandoned.
+   */
+  private boolean release(Object obj) {
+    synchronized (borrowed) {
+      return borrowed.remove(obj) != null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.persistence.dbcp.ConnectionPoolMBean#getConnectionRequests()
+   */
+  public long getConnectionRequests() {
+    return connectionRequests.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.persistence.dbcp.ConnectionPoolMBean#getConnectionPoolTimeouts()
+   */
+  public long getConnectionPoolTimeouts() {
+    return connectionPoolTimeouts.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.persistence.dbcp.ConnectionPoolMBean#getTotalConnectionWaitTime()
+   */
+  public long getTotalConnectionWaitTime() {
+    return totalWaitTime.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.persistence.dbcp.ConnectionPoolMBean#getMaxConnectionWaitTime()
+   */
+  public long getMaxConnectionWaitTime() {
+    return maxWaitTime.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.persistence.dbcp.ConnectionPoolMBean#getAverageConnectionWaitTime()
+   */
+  public double getAverageConnectionWaitTime() {
+    long requests = connectionRequests.get();
+    if (requests == 0) {
+      return 0.0;
+    }
+    return ((double) totalWaitTime.get()) / requests;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.persistence.dbcp.ConnectionPoolMBean#getAbandonedConnections()
+   */
+  public long getAbandonedConnections() {
+    return abandonedConnections.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.persistence.dbcp.ConnectionPoolMBean#getRemovedAbandonedConnections()
+   */
+  public long getRemovedAbandonedConnections() {
+    return removedAbandonedConnections.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.persistence.dbcp.ConnectionPoolMBean#resetStatistics()
+   */
+  public void resetStatistics() {
+    connectionRequests.set(0);
+    connectionPoolTimeouts.set(0);
+    totalWaitTime.set(0);
+    maxWaitTime.set(0);
+    abandonedConnections.set(0);
+    removedAbandonedConnections.set(0);
+  }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence.dbcp;
+
+/**
+ * JMX view of the JDBC connection pool.
+ */
+public interface ConnectionPoolMBean {
+
+  /**
+   * @return the number of connections currently borrowed from the pool.
+   */
+  int getNumActive();
+
+  /**
+   * @return the number of idle connections in the pool.
+   */
+  int getNumIdle();
+
+  /**
+   * @return the maximum number of connections borrowed at once, negative for no limit.
+   */
+  int getMaxActive();
+
+  /**
+   * @return the maximum number of idle connections kept in the pool.
+   */
+  int getMaxIdle();
+
+  /**
+   * @return the time in ms a request waits for a connection before it fails.
+   */
+  long getMaxWait();
+
+  /**
+   * @return the number of times a connection has been requested from the pool.
+   */
+  long getConnectionRequests();
+
+  /**
+   * @return the number of connection requests that timed out waiting for the pool.
+   */
+  long getConnectionPoolTimeouts();
+
+  /**
+   * @return the total time in ms spent waiting for connections.
+   */
+  long getTotalConnectionWaitTime();
+
+  /**
+   * @return the longest time in ms a request has waited for a connection.
+   */
+  long getMaxConnectionWaitTime();
+
+  /**
+   * @return the average time in ms a request has waited for a connection.
+   */
+  double getAverageConnectionWaitTime();
+
+  /**
+   * @return the number of connections that have been found borrowed for longer than the
+   *         abandoned timeout.
+   */
+  long getAbandonedConnections();
+
+  /**
+   * @return the number of abandoned connections that have been taken back by the pool.
+   */
+  long getRemovedAbandonedConnections();
+
+  /**
+   * Reset the counters.
+   */
+  void resetStatistics();
+
+}
@@ -26,15 +26,23 @@ import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.configuration.ConfigurationService;
 import org.sakaiproject.nakamura.api.configuration.NakamuraConstants;
 import org.sakaiproject.nakamura.api.persistence.DataSourceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.sql.SQLException;
+import java.util.Dictionary;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
 /**
@@ -63,22 +71,88 @@ import javax.sql.DataSource;
  * You can optionally provide a {@link org.apache.commons.pool.KeyedObjectPoolFactory}
  * that will be used to create {@link org.apache.commons.pool.KeyedObjectPool}s for
  * pooling {@link java.sql.PreparedStatement}s for each {@link java.sql.Connection}.
- *
+ * <p>
+ * The size of the pool, how long a request waits for a connection, the eviction of idle
+ * connections, the statement pool and the detection of abandoned connections are
+ * configured on the component. The pool is a {@link ConnectionPool}, registered with JMX
+ * as {@value #CONNECTION_POOL_MBEAN_NAME}.
+ * </p>
  *
  *
  *
  *
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 @Service
 public class DataSourceServiceImpl implements DataSourceService {
 
+  private static final int DEFAULT_MAX_ACTIVE = 20;
+  @Property(intValue = DEFAULT_MAX_ACTIVE, description = "The maximum number of connections borrowed at once, negative for no limit.")
+  static final String MAX_ACTIVE = "jdbc.pool.maxActive";
+
+  private static final int DEFAULT_MAX_IDLE = 8;
+  @Property(intValue = DEFAULT_MAX_IDLE, description = "The maximum number of idle connections kept in the pool.")
+  static final String MAX_IDLE = "jdbc.pool.maxIdle";
+
+  private static final int DEFAULT_MIN_IDLE = 0;
+  @Property(intValue = DEFAULT_MIN_IDLE, description = "The number of idle connections the evictor keeps open.")
+  static final String MIN_IDLE = "jdbc.pool.minIdle";
+
+  private static final long DEFAULT_MAX_WAIT = 10000L;
+  @Property(longValue = DEFAULT_MAX_WAIT, description = "The time in ms a request waits for a connection when the pool is exhausted before it fails, negative to wait forever.")
+  static final String MAX_WAIT = "jdbc.pool.maxWait";
+
+  private static final boolean DEFAULT_TEST_ON_BORROW = true;
+  @Property(boolValue = DEFAULT_TEST_ON_BORROW, description = "Run the validation query on a connection before it is borrowed.")
+  static final String TEST_ON_BORROW = "jdbc.pool.testOnBorrow";
+
+  private static final boolean DEFAULT_TEST_WHILE_IDLE = false;
+  @Property(boolValue = DEFAULT_TEST_WHILE_IDLE, description = "Run the validation query on idle connections when the evictor runs.")
+  static final String TEST_WHILE_IDLE = "jdbc.pool.testWhileIdle";
+
+  private static final long DEFAULT_TIME_BETWEEN_EVICTION_RUNS = 60000L;
+  @Property(longValue = DEFAULT_TIME_BETWEEN_EVICTION_RUNS, description = "The time in ms between runs of the evictor, which also checks for abandoned connections, 0 or less to disable it.")
+  static final String TIME_BETWEEN_EVICTION_RUNS = "jdbc.pool.timeBetweenEvictionRunsMillis";
+
+  private static final long DEFAULT_MIN_EVICTABLE_IDLE_TIME = 300000L;
+  @Property(longValue = DEFAULT_MIN_EVICTABLE_IDLE_TIME, description = "The time in ms a connection can be idle before the evictor closes it.")
+  static final String MIN_EVICTABLE_IDLE_TIME = "jdbc.pool.minEvictableIdleTimeMillis";
+
+  private static final int DEFAULT_NUM_TESTS_PER_EVICTION_RUN = 3;
+  @Property(intValue = DEFAULT_NUM_TESTS_PER_EVICTION_RUN, description = "The number of idle connections examined by each run of the evictor.")
+  static final String NUM_TESTS_PER_EVICTION_RUN = "jdbc.pool.numTestsPerEvictionRun";
+
+  private static final int DEFAULT_STATEMENTS_MAX_IDLE = 10;
+  @Property(intValue = DEFAULT_STATEMENTS_MAX_IDLE, description = "The number of idle prepared statements kept for each statement, when prepared statements are pooled.")
+  static final String STATEMENTS_MAX_IDLE = "jdbc.statements.maxIdle";
+
+  private static final int DEFAULT_STATEMENTS_MAX_TOTAL = 100;
+  @Property(intValue = DEFAULT_STATEMENTS_MAX_TOTAL, description = "The maximum number of prepared statements kept for each connection, 0 or less for no limit.")
+  static final String STATEMENTS_MAX_TOTAL = "jdbc.statements.maxTotal";
+
+  private static final boolean DEFAULT_REMOVE_ABANDONED = false;
+  @Property(boolValue = DEFAULT_REMOVE_ABANDONED, description = "Close and take back connections that have been borrowed for longer than the abandoned timeout, rather than only reporting them.")
+  static final String REMOVE_ABANDONED = "jdbc.pool.removeAbandoned";
+
+  private static final int DEFAULT_REMOVE_ABANDONED_TIMEOUT = 300;
+  @Property(intValue = DEFAULT_REMOVE_ABANDONED_TIMEOUT, description = "The time in seconds after which a borrowed connection is considered abandoned, 0 or less to disable the check.")
+  static final String REMOVE_ABANDONED_TIMEOUT = "jdbc.pool.removeAbandonedTimeout";
+
+  private static final boolean DEFAULT_LOG_ABANDONED = false;
+  @Property(boolValue = DEFAULT_LOG_ABANDONED, description = "Log where abandoned connections were borrowed, this records a stack trace on every borrow.")
+  static final String LOG_ABANDONED = "jdbc.pool.logAbandoned";
+
+  static final String CONNECTION_POOL_MBEAN_NAME = "org.sakaiproject.nakamura.persistence:type=ConnectionPool";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceServiceImpl.class);
+
   private PoolingDataSource dataSource;
+  private ConnectionPool connectionPool;
   @SuppressWarnings("unused")
   private PoolableConnectionFactory poolableConnectionFactory;
 
   @Reference
-  private ConfigurationService confurationService;
+  protected ConfigurationService confurationService;
 
   /**
    * Construct a DBCP data source service.
@@ -115,8 +189,37 @@ public class DataSourceServiceImpl implements DataSourceService {
     boolean poolPreparedStatements = Boolean.valueOf(confurationService
         .getProperty(NakamuraConstants.JDBC_DEFAULT_PREPARED_STATEMENTS));
 
+    Dictionary<?, ?> properties = componentContext.getProperties();
+
     Class.forName(driverClassName);
-    GenericObjectPool connectionPool = new GenericObjectPool(null);
+    connectionPool = new ConnectionPool();
+    connectionPool.setMaxActive(OsgiUtil.toInteger(properties.get(MAX_ACTIVE),
+        DEFAULT_MAX_ACTIVE));
+    connectionPool.setMaxIdle(OsgiUtil.toInteger(properties.get(MAX_IDLE),
+        DEFAULT_MAX_IDLE));
+    connectionPool.setMinIdle(OsgiUtil.toInteger(properties.get(MIN_IDLE),
+        DEFAULT_MIN_IDLE));
+    // wait for a connection when the pool is exhausted, but not forever.
+    connectionPool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+    connectionPool.setMaxWait(OsgiUtil.toLong(properties.get(MAX_WAIT), DEFAULT_MAX_WAIT));
+    // connections can only be tested when there is a query to test them with.
+    boolean validate = validationQuery != null && validationQuery.length() > 0;
+    connectionPool.setTestOnBorrow(validate
+        && OsgiUtil.toBoolean(properties.get(TEST_ON_BORROW), DEFAULT_TEST_ON_BORROW));
+    connectionPool.setTestWhileIdle(validate
+        && OsgiUtil.toBoolean(properties.get(TEST_WHILE_IDLE), DEFAULT_TEST_WHILE_IDLE));
+    connectionPool.setMinEvictableIdleTimeMillis(OsgiUtil.toLong(properties
+        .get(MIN_EVICTABLE_IDLE_TIME), DEFAULT_MIN_EVICTABLE_IDLE_TIME));
+    connectionPool.setNumTestsPerEvictionRun(OsgiUtil.toInteger(properties
+        .get(NUM_TESTS_PER_EVICTION_RUN), DEFAULT_NUM_TESTS_PER_EVICTION_RUN));
+    connectionPool.setAbandonedConfig(1000L * OsgiUtil.toInteger(properties
+        .get(REMOVE_ABANDONED_TIMEOUT), DEFAULT_REMOVE_ABANDONED_TIMEOUT), OsgiUtil
+        .toBoolean(properties.get(REMOVE_ABANDONED), DEFAULT_REMOVE_ABANDONED), OsgiUtil
+        .toBoolean(properties.get(LOG_ABANDONED), DEFAULT_LOG_ABANDONED));
+    // starts the evictor, set last so it runs with the rest of the configuration.
+    connectionPool.setTimeBetweenEvictionRunsMillis(OsgiUtil.toLong(properties
+        .get(TIME_BETWEEN_EVICTION_RUNS), DEFAULT_TIME_BETWEEN_EVICTION_RUNS));
+
     ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(url,
         username, password);
 
@@ -126,8 +229,10 @@ public class DataSourceServiceImpl implements DataSourceService {
       int maxActive = -1;
       byte whenExhaustedAction = GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL;
       long maxWait = 0L;
-      int maxIdlePerKey = 1;
-      int maxOpenPreparedStatements = 0;
+      int maxIdlePerKey = OsgiUtil.toInteger(properties.get(STATEMENTS_MAX_IDLE),
+          DEFAULT_STATEMENTS_MAX_IDLE);
+      int maxOpenPreparedStatements = OsgiUtil.toInteger(properties
+          .get(STATEMENTS_MAX_TOTAL), DEFAULT_STATEMENTS_MAX_TOTAL);
       statementPoolFactory = new GenericKeyedObjectPoolFactory(null, maxActive,
           whenExhaustedAction, maxWait, maxIdlePerKey, maxOpenPreparedStatements);
     }
@@ -136,9 +241,53 @@ public class DataSourceServiceImpl implements DataSourceService {
         connectionPool, statementPoolFactory, validationQuery, defaultReadOnly,
         defaultAutoCommit);
     dataSource = new PoolingDataSource(connectionPool);
+    registerConnectionPoolMBean();
   }
 
   protected void deactivate(ComponentContext componentContext) {
+    unregisterConnectionPoolMBean();
+    if (connectionPool != null) {
+      try {
+        connectionPool.close();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to close the connection pool {} ", e.getMessage());
+      }
+      connectionPool = null;
+    }
+  }
+
+  private void registerConnectionPoolMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(CONNECTION_POOL_MBEAN_NAME);
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(connectionPool, name);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register the JDBC connection pool with JMX: {} ", e
+          .getMessage());
+    }
+  }
+
+  private void unregisterConnectionPoolMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(CONNECTION_POOL_MBEAN_NAME);
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Unable to unregister the JDBC connection pool from JMX: {} ", e
+          .getMessage());
+    }
+  }
+
+  /**
+   * @return the pool the data source borrows connections from.
+   */
+  ConnectionPool getConnectionPool() {
+    return connectionPool;
   }
 
   /**
@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.apache.geronimo.transaction.manager.GeronimoTransactionManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Hashtable;
+
+import javax.persistence.PersistenceException;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.transaction.NotSupportedException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+public class TransactionManagerFilterTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(TransactionManagerFilterTest.class);
+
+  private TransactionManager transactionManager;
+  private TransactionManagerFilter filter;
+  private HttpServletResponse response;
+
+  @Before
+  public void setUp() throws Exception {
+    transactionManager = new GeronimoTransactionManager(60);
+    filter = createFilter(transactionManager);
+    response = createMock(HttpServletResponse.class);
+    replay(response);
+  }
+
+  private TransactionManagerFilter createFilter(TransactionManager transactionManager) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(TransactionManagerFilter.EXCLUDED_PATHS, new String[] { "/dev/" });
+    properties.put(TransactionManagerFilter.EXCLUDED_METHODS, new String[] { "OPTIONS" });
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    replay(componentContext);
+    TransactionManagerFilter transactionManagerFilter = new TransactionManagerFilter();
+    transactionManagerFilter.transactionManager = transactionManager;
+    transactionManagerFilter.activate(componentContext);
+    return transactionManagerFilter;
+  }
+
+  private HttpServletRequest createRequest(String method, String path) {
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+    expect(request.getMethod()).andReturn(method).anyTimes();
+    expect(request.getPathInfo()).andReturn(path).anyTimes();
+    replay(request);
+    return request;
+  }
+
+  /**
+   * A chain that uses the entity manager, as far as the transaction is concerned, and
+   * records the status of the transaction when it does.
+   */
+  private class JpaChain implements FilterChain {
+    int status = -1;
+
+    public void doFilter(ServletRequest request, ServletResponse response)
+        throws IOException, ServletException {
+      RequestTransaction.join();
+      RequestTransaction.join();
+      try {
+        status = transactionManager.getStatus();
+      } catch (SystemException e) {
+        throw new ServletException(e);
+      }
+    }
+  }
+
+  @Test
+  public void testNoTransactionWithoutJpa() throws Exception {
+    // any call on the transaction manager fails the test.
+    TransactionManager strictTransactionManager = createMock(TransactionManager.class);
+    replay(strictTransactionManager);
+    TransactionManagerFilter strictFilter = createFilter(strictTransactionManager);
+    FilterChain chain = createMock(FilterChain.class);
+    HttpServletRequest request = createRequest("GET", "/_user/a/alice/public.json");
+    chain.doFilter(request, response);
+    replay(chain);
+
+    strictFilter.doFilter(request, response, chain);
+    verify(chain, strictTransactionManager);
+  }
+
+  @Test
+  public void testTransactionStartedOnJpaUse() throws Exception {
+    JpaChain chain = new JpaChain();
+    filter.doFilter(createRequest("POST", "/_user/a/alice.update.json"), response, chain);
+    assertEquals(Status.STATUS_ACTIVE, chain.status);
+    assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+  }
+
+  @Test
+  public void testTransactionRolledBack() throws Exception {
+    final RuntimeException failure = new RuntimeException("failed");
+    FilterChain chain = new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        RequestTransaction.join();
+        throw failure;
+      }
+    };
+    try {
+      filter.doFilter(createRequest("POST", "/_user/a/alice.update.json"), response, chain);
+      fail("The failure of the request should be thrown");
+    } catch (RuntimeException e) {
+      assertSame(failure, e);
+    }
+    assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+
+    // the thread is not left with a transaction to join.
+    RequestTransaction.join();
+    assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+  }
+
+  @Test
+  public void testExcluded() throws Exception {
+    JpaChain chain = new JpaChain();
+    filter.doFilter(createRequest("GET", "/dev/index.html"), response, chain);
+    assertEquals(Status.STATUS_NO_TRANSACTION, chain.status);
+
+    filter.doFilter(createRequest("OPTIONS", "/_user/a/alice"), response, chain);
+    assertEquals(Status.STATUS_NO_TRANSACTION, chain.status);
+  }
+
+  @Test
+  public void testTransactionAlreadyStarted() throws Exception {
+    transactionManager.begin();
+    try {
+      JpaChain chain = new JpaChain();
+      filter.doFilter(createRequest("POST", "/_user/a/alice.update.json"), response,
+          chain);
+      // the transaction started by someone else is not committed by the filter.
+      assertEquals(Status.STATUS_ACTIVE, transactionManager.getStatus());
+    } finally {
+      transactionManager.rollback();
+    }
+  }
+
+  @Test
+  public void testJoinAfterFailedBegin() throws Exception {
+    // the transaction manager can't start the first transaction asked for.
+    final TransactionManager failingOnce = new GeronimoTransactionManager(60) {
+      private boolean failed;
+
+      @Override
+      public void begin() throws NotSupportedException, SystemException {
+        if (!failed) {
+          failed = true;
+          throw new SystemException("Not available");
+        }
+        super.begin();
+      }
+    };
+    final int[] status = new int[] { -1 };
+    FilterChain chain = new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        try {
+          RequestTransaction.join();
+          fail("The transaction should not have been started");
+        } catch (PersistenceException e) {
+          // expected
+        }
+        // the next use of the entity manager tries again.
+        RequestTransaction.join();
+        try {
+          status[0] = failingOnce.getStatus();
+        } catch (SystemException e) {
+          throw new ServletException(e);
+        }
+      }
+    };
+    createFilter(failingOnce).doFilter(createRequest("POST", "/_user/a/alice.update.json"),
+        response, chain);
+    assertEquals(Status.STATUS_ACTIVE, status[0]);
+    assertEquals(Status.STATUS_NO_TRANSACTION, failingOnce.getStatus());
+  }
+
+  @Test
+  public void testThroughput() throws Exception {
+    // every loop pays the same for the mock request, so it doesn't skew the comparison.
+    HttpServletRequest request = createRequest("GET", "/_user/a/alice/public.json");
+    FilterChain noJpa = new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response) {
+      }
+    };
+    JpaChain jpa = new JpaChain();
+    // a request that writes, so that a resource takes part in the commit.
+    final CountingXAResource resource = new CountingXAResource();
+    FilterChain jpaEnlisted = new FilterChain() {
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        RequestTransaction.join();
+        try {
+          transactionManager.getTransaction().enlistResource(resource);
+        } catch (Exception e) {
+          throw new ServletException(e);
+        }
+      }
+    };
+
+    // run twice, the first run warms up.
+    for (int run = 0; run < 2; run++) {
+      final int requests = 100000;
+      // what every request used to cost, a transaction whether it was used or not.
+      long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        transactionManager.begin();
+        noJpa.doFilter(request, response);
+        transactionManager.commit();
+      }
+      long eager = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        filter.doFilter(request, response, noJpa);
+      }
+      long lazy = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        filter.doFilter(request, response, jpa);
+      }
+      long lazyJpa = System.nanoTime() - start;
+
+      resource.commits = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        filter.doFilter(request, response, jpaEnlisted);
+      }
+      long lazyEnlisted = System.nanoTime() - start;
+      assertEquals(requests, resource.commits);
+
+      LOGGER.info("Requests per second, eager transaction {}, lazy without JPA {}, "
+          + "lazy with JPA {}, lazy with an enlisted resource {}", new Object[] {
+          perSecond(requests, eager), perSecond(requests, lazy),
+          perSecond(requests, lazyJpa), perSecond(requests, lazyEnlisted) });
+    }
+    assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+  }
+
+  /**
+   * A resource that does no work, and counts the transactions it committed.
+   */
+  private static class CountingXAResource implements XAResource {
+    int commits;
+
+    public void start(Xid xid, int flags) {
+    }
+
+    public void end(Xid xid, int flags) {
+    }
+
+    public int prepare(Xid xid) {
+      return XA_OK;
+    }
+
+    public void commit(Xid xid, boolean onePhase) {
+      commits++;
+    }
+
+    public void rollback(Xid xid) {
+    }
+
+    public void forget(Xid xid) {
+    }
+
+    public Xid[] recover(int flag) {
+      return new Xid[0];
+    }
+
+    public boolean isSameRM(XAResource resource) {
+      return resource == this;
+    }
+
+    public int getTransactionTimeout() {
+      return 0;
+    }
+
+    public boolean setTransactionTimeout(int seconds) {
+      return false;
+    }
+  }
+
+  private long perSecond(int requests, long nanos) {
+    return requests * 1000000000L / Math.max(1L, nanos);
+  }
+}
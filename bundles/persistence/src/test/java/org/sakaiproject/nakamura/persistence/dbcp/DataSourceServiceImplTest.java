@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence.dbcp;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.configuration.ConfigurationService;
+import org.sakaiproject.nakamura.api.configuration.NakamuraConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+/**
+ * Runs the pool against an embedded Derby database.
+ */
+public class DataSourceServiceImplTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(DataSourceServiceImplTest.class);
+
+  private DataSourceServiceImpl dataSourceService;
+
+  @After
+  public void tearDown() {
+    if (dataSourceService != null) {
+      dataSourceService.deactivate(null);
+    }
+  }
+
+  private DataSourceServiceImpl activate(Hashtable<String, Object> properties)
+      throws Exception {
+    ConfigurationService configurationService = createMock(ConfigurationService.class);
+    expect(configurationService.getProperty(NakamuraConstants.JDBC_DRIVER_NAME))
+        .andReturn("org.apache.derby.jdbc.EmbeddedDriver").anyTimes();
+    expect(configurationService.getProperty(NakamuraConstants.JDBC_URL)).andReturn(
+        "jdbc:derby:target/pooltestdb;create=true").anyTimes();
+    expect(configurationService.getProperty(NakamuraConstants.JDBC_USERNAME))
+        .andReturn("sa").anyTimes();
+    expect(configurationService.getProperty(NakamuraConstants.JDBC_PASSWORD))
+        .andReturn("").anyTimes();
+    expect(configurationService.getProperty(NakamuraConstants.JDBC_VALIDATION_QUERY))
+        .andReturn("values(1)").anyTimes();
+    expect(configurationService.getProperty(NakamuraConstants.JDBC_DEFAULT_READ_ONLY))
+        .andReturn("false").anyTimes();
+    expect(configurationService.getProperty(NakamuraConstants.JDBC_DEFAULT_AUTO_COMMIT))
+        .andReturn("true").anyTimes();
+    expect(
+        configurationService
+            .getProperty(NakamuraConstants.JDBC_DEFAULT_PREPARED_STATEMENTS)).andReturn(
+        "true").anyTimes();
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    replay(configurationService, componentContext);
+
+    DataSourceServiceImpl service = new DataSourceServiceImpl();
+    service.confurationService = configurationService;
+    service.activate(componentContext);
+    return service;
+  }
+
+  @Test
+  public void testSoak() throws Exception {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(DataSourceServiceImpl.MAX_ACTIVE, 5);
+    properties.put(DataSourceServiceImpl.MAX_IDLE, 5);
+    properties.put(DataSourceServiceImpl.MAX_WAIT, 30000L);
+    dataSourceService = activate(properties);
+    final DataSource dataSource = dataSourceService.getDataSource();
+    final ConnectionPool pool = dataSourceService.getConnectionPool();
+
+    final int threads = 20;
+    final int queries = 200;
+    final AtomicInteger errors = new AtomicInteger();
+    List<Thread> workers = new ArrayList<Thread>();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < queries; j++) {
+            try {
+              Connection connection = dataSource.getConnection();
+              try {
+                assertTrue(pool.getNumActive() <= 5);
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("values(1)");
+                resultSet.next();
+                assertEquals(1, resultSet.getInt(1));
+                resultSet.close();
+                statement.close();
+              } finally {
+                connection.close();
+              }
+            } catch (Throwable t) {
+              LOGGER.info("Query failed ", t);
+              errors.incrementAndGet();
+            }
+          }
+        }
+      };
+      workers.add(worker);
+      worker.start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    LOGGER.info("{} queries on {} threads in {} ms, average wait {} ms, max wait {} ms",
+        new Object[] { threads * queries, threads, System.currentTimeMillis() - start,
+            pool.getAverageConnectionWaitTime(), pool.getMaxConnectionWaitTime() });
+
+    assertEquals(0, errors.get());
+    assertEquals(0, pool.getNumActive());
+    assertTrue(pool.getNumIdle() <= 5);
+    assertEquals(threads * queries, pool.getConnectionRequests());
+    assertEquals(0, pool.getConnectionPoolTimeouts());
+  }
+
+  @Test
+  public void testExhaustedPoolTimesOut() throws Exception {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(DataSourceServiceImpl.MAX_ACTIVE, 2);
+    properties.put(DataSourceServiceImpl.MAX_WAIT, 200L);
+    dataSourceService = activate(properties);
+    DataSource dataSource = dataSourceService.getDataSource();
+    ConnectionPool pool = dataSourceService.getConnectionPool();
+
+    Connection first = dataSource.getConnection();
+    Connection second = dataSource.getConnection();
+    long start = System.currentTimeMillis();
+    try {
+      dataSource.getConnection();
+      fail("The pool should be exhausted");
+    } catch (SQLException e) {
+      // expected
+    }
+    assertTrue(System.currentTimeMillis() - start >= 200);
+    assertEquals(1, pool.getConnectionPoolTimeouts());
+    assertTrue(pool.getMaxConnectionWaitTime() >= 200);
+
+    first.close();
+    Connection third = dataSource.getConnection();
+    third.close();
+    second.close();
+    assertEquals(0, pool.getNumActive());
+  }
+
+  @Test
+  public void testAbandonedConnection() throws Exception {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(DataSourceServiceImpl.MAX_ACTIVE, 2);
+    properties.put(DataSourceServiceImpl.TIME_BETWEEN_EVICTION_RUNS, -1L);
+    properties.put(DataSourceServiceImpl.REMOVE_ABANDONED, true);
+    properties.put(DataSourceServiceImpl.REMOVE_ABANDONED_TIMEOUT, 1);
+    properties.put(DataSourceServiceImpl.LOG_ABANDONED, true);
+    dataSourceService = activate(properties);
+    DataSource dataSource = dataSourceService.getDataSource();
+    ConnectionPool pool = dataSourceService.getConnectionPool();
+
+    Connection leaked = dataSource.getConnection();
+    Connection held = dataSource.getConnection();
+    pool.evict();
+    assertEquals(0, pool.getAbandonedConnections());
+
+    Thread.sleep(1100);
+    held.close();
+    pool.evict();
+    assertEquals(1, pool.getAbandonedConnections());
+    assertEquals(1, pool.getRemovedAbandonedConnections());
+    assertEquals(0, pool.getNumActive());
+
+    // closing it late must not take it back a second time.
+    try {
+      leaked.close();
+    } catch (SQLException e) {
+      // the connection was closed by the pool.
+    }
+    assertEquals(0, pool.getNumActive());
+    Connection connection = dataSource.getConnection();
+    connection.close();
+  }
+
+  @Test
+  public void testMBean() throws Exception {
+    dataSourceService = activate(new Hashtable<String, Object>());
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(DataSourceServiceImpl.CONNECTION_POOL_MBEAN_NAME);
+    assertTrue(mbeanServer.isRegistered(name));
+    assertEquals(20, mbeanServer.getAttribute(name, "MaxActive"));
+
+    Connection connection = dataSourceService.getDataSource().getConnection();
+    assertEquals(1, mbeanServer.getAttribute(name, "NumActive"));
+    connection.close();
+    assertEquals(1L, mbeanServer.getAttribute(name, "ConnectionRequests"));
+
+    dataSourceService.deactivate(null);
+    dataSourceService = null;
+    assertTrue(!mbeanServer.isRegistered(name));
+  }
+}
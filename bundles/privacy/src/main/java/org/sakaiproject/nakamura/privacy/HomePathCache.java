@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.privacy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The home paths authorizable ids were last resolved to, including the ids that have no
+ * home, so that resolving a URL in a personal space doesn't look the authorizable up
+ * again. The least recently used ids are dropped once the cache is full, and ids without
+ * a home are only kept for a while. All access is synchronized on the cache.
+ */
+class HomePathCache {
+
+  /**
+   * The path kept for an id that has no home.
+   */
+  static final String NO_HOME = "";
+
+  /**
+   * A home path, and the time it expires for an id without a home.
+   */
+  private static class Home {
+    private final String path;
+    private final long expires;
+
+    private Home(String path, long expires) {
+      this.path = path;
+      this.expires = expires;
+    }
+  }
+
+  private final Map<String, Home> homes;
+
+  private final long noHomeTtl;
+
+  /**
+   * Incremented every time ids are dropped, so that an id resolved while they were
+   * dropped is not kept.
+   */
+  private long generation;
+
+  /**
+   * @param maxSize
+   *          The number of ids that are kept.
+   * @param noHomeTtl
+   *          How long an id without a home is kept, in ms.
+   */
+  HomePathCache(final int maxSize, long noHomeTtl) {
+    this.noHomeTtl = noHomeTtl;
+    homes = new LinkedHashMap<String, Home>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Home> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param id
+   *          The id of the authorizable.
+   * @return The home path of the authorizable, {@link #NO_HOME} if it has none, or null
+   *         if the id has not been resolved since it was last dropped or it had no home
+   *         that expired.
+   */
+  synchronized String get(String id) {
+    Home home = homes.get(id);
+    if (home == null) {
+      return null;
+    }
+    if (home.expires <= System.currentTimeMillis()) {
+      homes.remove(id);
+      return null;
+    }
+    return home.path;
+  }
+
+  /**
+   * @return The generation to pass to {@link #put(String, String, long)}, taken before the
+   *         id is resolved.
+   */
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Keeps the home path of an id, unless ids were dropped since the resolution started.
+   *
+   * @param id
+   *          The id of the authorizable.
+   * @param home
+   *          The home path, or {@link #NO_HOME}.
+   * @param generation
+   *          The generation when the resolution started.
+   */
+  synchronized void put(String id, String home, long generation) {
+    if (generation == this.generation) {
+      long expires = Long.MAX_VALUE;
+      if (NO_HOME.equals(home)) {
+        expires = System.currentTimeMillis() + noHomeTtl;
+      }
+      homes.put(id, new Home(home, expires));
+    }
+  }
+
+  /**
+   * Drops one id. Resolutions of other ids that are under way are not kept either, which
+   * is cheaper than tracking them by id and only costs them a lookup next time.
+   *
+   * @param id
+   *          The id of the authorizable.
+   */
+  synchronized void remove(String id) {
+    homes.remove(id);
+    generation++;
+  }
+
+  /**
+   * Drops every id.
+   */
+  synchronized void clear() {
+    homes.clear();
+    generation++;
+  }
+
+  synchronized int size() {
+    return homes.size();
+  }
+}
@@ -21,19 +21,29 @@ package org.sakaiproject.nakamura.privacy;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.Principal;
 import java.util.Arrays;
+import java.util.Dictionary;
 import java.util.Iterator;
 
 import javax.jcr.RepositoryException;
@@ -41,18 +51,71 @@ import javax.jcr.Session;
 import javax.servlet.http.HttpServletRequest;
 
 @Component(name = "org.sakaiproject.nakamura.privacy.HomeResourceProvider", immediate = true, metatype = true, description = "%homeprovider.description", label = "%homeprovider.name")
-@Service(value = ResourceProvider.class)
+@Services(value = { @Service(value = ResourceProvider.class),
+    @Service(value = EventHandler.class) })
 @Property(name = ResourceProvider.ROOTS, value = { "/", "/group" })
-public class HomeResourceProvider implements ResourceProvider {
+public class HomeResourceProvider implements ResourceProvider, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(HomeResourceProvider.class);
   public static final String HOME_RESOURCE_PROVIDER = HomeResourceProvider.class
       .getName();
 
+  private static final int DEFAULT_HOME_CACHE_SIZE = 10000;
+  @Property(intValue = DEFAULT_HOME_CACHE_SIZE, description = "The number of authorizable ids whose home path is kept.")
+  static final String HOME_CACHE_SIZE = "home.cache.size";
+
+  /**
+   * Creating an authorizable drops it from the cache, this bounds how long an id without
+   * a home is kept in case the event is missed.
+   */
+  private static final long DEFAULT_NO_HOME_TTL = 30000L;
+  @Property(longValue = DEFAULT_NO_HOME_TTL, description = "How long, in ms, an id that is not an authorizable is remembered.")
+  static final String NO_HOME_TTL = "home.cache.nohome.ttl";
+
+  /**
+   * The home of an authorizable only changes when it is created or deleted.
+   */
+  @Property(value = { AuthorizableEvent.TOPIC + "create",
+      AuthorizableEvent.TOPIC + "delete" })
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  @Reference
+  protected SlingRepository repository;
+
+  private HomePathCache homeCache = new HomePathCache(DEFAULT_HOME_CACHE_SIZE,
+      DEFAULT_NO_HOME_TTL);
+
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    homeCache = new HomePathCache(OsgiUtil.toInteger(properties.get(HOME_CACHE_SIZE),
+        DEFAULT_HOME_CACHE_SIZE), OsgiUtil.toLong(properties.get(NO_HOME_TTL),
+        DEFAULT_NO_HOME_TTL));
+  }
+
+  /**
+   * {@inheritDoc} Drops the authorizable that was created or deleted from the cache, or
+   * every authorizable if the event doesn't say which.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String principalName = (String) event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    if (principalName == null) {
+      LOGGER.debug("Clearing the home cache on {} ", event.getTopic());
+      homeCache.clear();
+    } else {
+      LOGGER.debug("Dropping {} from the home cache on {} ", principalName, event
+          .getTopic());
+      homeCache.remove(principalName);
+    }
+  }
+
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
-    LOGGER.info("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
+    }
     return getResource(resourceResolver, path);
   }
 
@@ -91,9 +154,53 @@ public class HomeResourceProvider implements ResourceProvider {
         LOGGER.debug("Got Elements Path [{}] ", Arrays.toString(elements));
       }
       if (elements.length >= 1) {
-        Session session = resourceResolver.adaptTo(Session.class);
+        String home = getHomePath(elements[0]);
+        if (home != null) {
+          String userPath = home;
+          if (elements.length == 2) {
+            userPath = userPath + "/" + elements[1];
+          }
+          Resource r = resourceResolver.resolve(userPath);
+          LOGGER.debug("Resolving [{}] to [{}] ", userPath, r);
+          if (r != null) {
+            // are the last elements the same ?
+            if (getLastElement(r.getPath()).equals(getLastElement(subPath))) {
+              r.getResourceMetadata().put(HomeResourceProvider.HOME_RESOURCE_PROVIDER,
+                  this);
+              return r;
+            } else {
+              if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Rejected [{}] != [{}] ", getLastElement(r.getPath()),
+                    getLastElement(subPath));
+              }
+            }
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The home is looked up with an administrative session, as the cache is shared by every
+   * session and an authorizable the requesting user can't see must not be cached as having
+   * no home. The resource itself is still resolved through the resolver of the user.
+   *
+   * @param id
+   *          The id of the authorizable.
+   * @return The path of the home of the authorizable under /_user or /_group, or null if
+   *         there is no such authorizable or it has no home.
+   * @throws RepositoryException
+   */
+  private String getHomePath(String id) throws RepositoryException {
+    String home = homeCache.get(id);
+    if (home == null) {
+      long generation = homeCache.getGeneration();
+      home = HomePathCache.NO_HOME;
+      Session session = repository.loginAdministrative(null);
+      try {
         UserManager um = AccessControlUtil.getUserManager(session);
-        Authorizable a = um.getAuthorizable(elements[0]);
+        Authorizable a = um.getAuthorizable(id);
         if (a != null) {
           Principal p = a.getPrincipal();
           if (p instanceof ItemBasedPrincipal) {
@@ -104,31 +211,18 @@ public class HomeResourceProvider implements ResourceProvider {
               principalPathStart = "/rep:security/rep:authorizables/rep:groups";
               targetStart = "/_group";
             }
-            String userPath = targetStart
-                + ibp.getPath().substring(principalPathStart.length());
-            if (elements.length == 2) {
-              userPath = userPath + "/" + elements[1];
-            }
-            Resource r = resourceResolver.resolve(userPath);
-            LOGGER.debug("Resolving [{}] to [{}] ", userPath, r);
-            if (r != null) {
-              // are the last elements the same ?
-              if (getLastElement(r.getPath()).equals(getLastElement(subPath))) {
-                r.getResourceMetadata().put(HomeResourceProvider.HOME_RESOURCE_PROVIDER,
-                    this);
-                return r;
-              } else {
-                if (LOGGER.isDebugEnabled()) {
-                  LOGGER.debug("Rejected [{}] != [{}] ", getLastElement(r.getPath()),
-                      getLastElement(subPath));
-                }
-              }
-            }
+            home = targetStart + ibp.getPath().substring(principalPathStart.length());
           }
         }
+      } finally {
+        session.logout();
       }
+      homeCache.put(id, home, generation);
     }
-    return null;
+    if (HomePathCache.NO_HOME.equals(home)) {
+      return null;
+    }
+    return home;
   }
 
   private String getLastElement(String path) {
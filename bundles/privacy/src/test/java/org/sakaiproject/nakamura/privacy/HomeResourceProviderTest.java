@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.privacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.SyntheticResource;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Hashtable;
+
+import javax.jcr.Session;
+
+/**
+ *
+ */
+public class HomeResourceProviderTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(HomeResourceProviderTest.class);
+
+  private HomeResourceProvider provider;
+  private ResourceResolver resourceResolver;
+  private UserManager userManager;
+  private SlingRepository repository;
+  private JackrabbitSession adminSession;
+
+  @Before
+  public void setUp() throws Exception {
+    provider = new HomeResourceProvider();
+    activate(30000L);
+
+    // homes are looked up administratively, the user only resolves the resource.
+    userManager = mock(UserManager.class);
+    adminSession = mock(JackrabbitSession.class);
+    when(adminSession.getUserManager()).thenReturn(userManager);
+    repository = mock(SlingRepository.class);
+    when(repository.loginAdministrative(null)).thenReturn(adminSession);
+    provider.repository = repository;
+    resourceResolver = mock(ResourceResolver.class);
+    when(resourceResolver.resolve(org.mockito.Matchers.anyString())).thenAnswer(
+        new Answer<Resource>() {
+          public Resource answer(InvocationOnMock invocation) {
+            return new SyntheticResource(resourceResolver, (String) invocation
+                .getArguments()[0], "sling:Folder");
+          }
+        });
+
+    User alice = mock(User.class);
+    ItemBasedPrincipal alicePrincipal = mock(ItemBasedPrincipal.class);
+    when(alicePrincipal.getPath()).thenReturn(
+        "/rep:security/rep:authorizables/rep:users/a/al/alice");
+    when(alice.getPrincipal()).thenReturn(alicePrincipal);
+    when(userManager.getAuthorizable("alice")).thenReturn(alice);
+
+    Group math = mock(Group.class);
+    ItemBasedPrincipal mathPrincipal = mock(ItemBasedPrincipal.class);
+    when(mathPrincipal.getPath()).thenReturn(
+        "/rep:security/rep:authorizables/rep:groups/m/ma/math");
+    when(math.getPrincipal()).thenReturn(mathPrincipal);
+    when(math.isGroup()).thenReturn(true);
+    when(userManager.getAuthorizable("math")).thenReturn(math);
+  }
+
+  private void activate(long noHomeTtl) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(HomeResourceProvider.HOME_CACHE_SIZE, 100);
+    properties.put(HomeResourceProvider.NO_HOME_TTL, noHomeTtl);
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(properties);
+    provider.activate(componentContext);
+  }
+
+  private Event createEvent(AuthorizableEvent.Operation operation, String principalName) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(AuthorizableEvent.PRINCIPAL_NAME, principalName);
+    return new Event(operation.getTopic(), properties);
+  }
+
+  @Test
+  public void testResolveHome() throws Exception {
+    Resource resource = provider.getResource(resourceResolver, "/~alice/public/profile");
+    assertEquals("/_user/a/al/alice/public/profile", resource.getPath());
+    assertSame(provider, resource.getResourceMetadata().get(
+        HomeResourceProvider.HOME_RESOURCE_PROVIDER));
+    resource = provider.getResource(resourceResolver, "/user/alice");
+    assertEquals("/_user/a/al/alice", resource.getPath());
+    resource = provider.getResource(resourceResolver, "/group/math/pages");
+    assertEquals("/_group/m/ma/math/pages", resource.getPath());
+
+    // each authorizable is only looked up once.
+    verify(userManager, times(1)).getAuthorizable("alice");
+    verify(userManager, times(1)).getAuthorizable("math");
+    verify(adminSession, times(2)).logout();
+    verify(resourceResolver, never()).adaptTo(Session.class);
+  }
+
+  @Test
+  public void testNoHome() throws Exception {
+    assertNull(provider.getResource(resourceResolver, "/~bob/public"));
+    assertNull(provider.getResource(resourceResolver, "/~bob/public"));
+    verify(userManager, times(1)).getAuthorizable("bob");
+  }
+
+  @Test
+  public void testHomeOfGroupHiddenFromUser() throws Exception {
+    // a user that can't see the group doesn't leave it cached without a home.
+    ResourceResolver outsider = mock(ResourceResolver.class);
+    when(outsider.resolve("/_group/m/ma/math/pages")).thenReturn(
+        new NonExistingResource(outsider, "/_group/m/ma/math/pages"));
+    assertEquals("/_group/m/ma/math/pages", provider.getResource(outsider,
+        "/group/math/pages").getPath());
+
+    Resource resource = provider.getResource(resourceResolver, "/group/math/pages");
+    assertEquals("/_group/m/ma/math/pages", resource.getPath());
+    assertEquals("sling:Folder", resource.getResourceType());
+    verify(userManager, times(1)).getAuthorizable("math");
+  }
+
+  @Test
+  public void testInvalidatedOnCreate() throws Exception {
+    assertNull(provider.getResource(resourceResolver, "/~bob/public"));
+
+    User bob = mock(User.class);
+    ItemBasedPrincipal bobPrincipal = mock(ItemBasedPrincipal.class);
+    when(bobPrincipal.getPath()).thenReturn(
+        "/rep:security/rep:authorizables/rep:users/b/bo/bob");
+    when(bob.getPrincipal()).thenReturn(bobPrincipal);
+    when(userManager.getAuthorizable("bob")).thenReturn(bob);
+    provider.handleEvent(createEvent(AuthorizableEvent.Operation.create, "bob"));
+
+    Resource resource = provider.getResource(resourceResolver, "/~bob/public");
+    assertEquals("/_user/b/bo/bob/public", resource.getPath());
+    verify(userManager, times(2)).getAuthorizable("bob");
+  }
+
+  @Test
+  public void testInvalidatesOnlyTheAuthorizable() throws Exception {
+    provider.getResource(resourceResolver, "/~alice/public");
+    provider.getResource(resourceResolver, "/group/math/pages");
+
+    provider.handleEvent(createEvent(AuthorizableEvent.Operation.delete, "math"));
+    provider.getResource(resourceResolver, "/~alice/public");
+    provider.getResource(resourceResolver, "/group/math/pages");
+    verify(userManager, times(1)).getAuthorizable("alice");
+    verify(userManager, times(2)).getAuthorizable("math");
+
+    // an event that doesn't say which authorizable drops them all.
+    provider.handleEvent(new Event(AuthorizableEvent.Operation.delete.getTopic(),
+        new Hashtable<String, Object>()));
+    provider.getResource(resourceResolver, "/~alice/public");
+    verify(userManager, times(2)).getAuthorizable("alice");
+  }
+
+  @Test
+  public void testNoHomeExpires() throws Exception {
+    activate(0L);
+    assertNull(provider.getResource(resourceResolver, "/~bob/public"));
+    assertNull(provider.getResource(resourceResolver, "/~bob/public"));
+    verify(userManager, times(2)).getAuthorizable("bob");
+
+    // homes are kept.
+    provider.getResource(resourceResolver, "/~alice/public");
+    provider.getResource(resourceResolver, "/~alice/public");
+    verify(userManager, times(1)).getAuthorizable("alice");
+  }
+
+  @Test
+  public void testResolutionThroughput() throws Exception {
+    Event delete = createEvent(AuthorizableEvent.Operation.delete, "alice");
+    // run twice, the first run warms up.
+    for (int run = 0; run < 2; run++) {
+      int resolutions = 5000;
+      long start = System.nanoTime();
+      for (int i = 0; i < resolutions; i++) {
+        provider.handleEvent(delete);
+        provider.getResource(resourceResolver, "/~alice/public/profile");
+      }
+      long uncached = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < resolutions; i++) {
+        provider.getResource(resourceResolver, "/~alice/public/profile");
+      }
+      long cached = System.nanoTime() - start;
+
+      LOGGER.info("Home resolutions per second, uncached {}, cached {}", resolutions
+          * 1000000000L / Math.max(1L, uncached), resolutions * 1000000000L
+          / Math.max(1L, cached));
+    }
+  }
+}
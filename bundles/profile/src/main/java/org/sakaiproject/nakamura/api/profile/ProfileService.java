@@ -20,6 +20,8 @@ package org.sakaiproject.nakamura.api.profile;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.sling.api.resource.ValueMap;
 
+import java.util.Set;
+
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -81,6 +83,21 @@ public interface ProfileService {
    */
   ValueMap getProfileMap(Node profileNode) throws RepositoryException;
 
+  /**
+   * Gets part of the profile information from JCR, only reading and expanding the
+   * sections that are asked for.
+   *
+   * @param profileNode
+   *          The node that represents the top level profile node.
+   * @param sections
+   *          The names of the sections (child nodes of the profile node) that should be
+   *          included. The properties of the profile node itself are always included.
+   *
+   * @return A Map that represents the requested part of the profile.
+   */
+  ValueMap getProfileMap(Node profileNode, Set<String> sections)
+      throws RepositoryException;
+
   /**
    * Gets the compact profile information from JCR and expands external resources
    * efficiently.
@@ -30,19 +30,30 @@ import static org.sakaiproject.nakamura.api.profile.ProfileConstants.USER_PICTUR
 import static org.sakaiproject.nakamura.api.profile.ProfileConstants.USER_PROFILE_RT;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.ReferenceStrategy;
 import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrPropertyMap;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
@@ -51,13 +62,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -65,16 +79,67 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 /**
- *
+ * Compact profiles are read with an administrative session and cached by profile path,
+ * and evicted when a resource event is seen for anything under the profile. A cached
+ * compact profile is only handed to sessions that can see every node it was read from;
+ * other sessions read their own view of the profile, which is not cached. Compact
+ * profiles with sections from an external ProfileProvider are never cached, as no event
+ * is seen when the provider's data changes.
  */
 @Component(immediate = true, specVersion = "1.1")
-@Service(value = ProfileService.class)
+@Services(value = { @Service(value = ProfileService.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+    SlingConstants.TOPIC_RESOURCE_REMOVED }) })
 @References(value = { @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider") })
-public class ProfileServiceImpl implements ProfileService {
+public class ProfileServiceImpl implements ProfileService, EventHandler {
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
   public static final Logger LOG = LoggerFactory.getLogger(ProfileServiceImpl.class);
+
+  /**
+   * The name of the node holding the profile within the public folder.
+   */
+  private static final String AUTH_PROFILE = "authprofile";
+
+  /**
+   * The name of the cache of compact profiles, keyed by profile path.
+   */
+  private static final String COMPACT_PROFILE_CACHE = "profile.compact";
+
+  /**
+   * The sections of a user profile that are read for the compact profile.
+   */
+  private static final Set<String> COMPACT_USER_SECTIONS = Collections.singleton(USER_BASIC);
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  private Cache<CompactProfile> compactProfileCache;
+
+  /**
+   * Counts evictions, so that a compact profile read while its profile was changing is
+   * not cached.
+   */
+  private final AtomicLong evictions = new AtomicLong();
+
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+    compactProfileCache = cacheManagerService.getCache(COMPACT_PROFILE_CACHE,
+        CacheScope.INSTANCE);
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    if (this.cacheManagerService == cacheManagerService) {
+      compactProfileCache = null;
+      this.cacheManagerService = null;
+    }
+  }
   /**
    * {@inheritDoc}
    *
@@ -115,7 +180,7 @@ public class ProfileServiceImpl implements ProfileService {
    * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfilePath(org.apache.jackrabbit.api.security.user.Authorizable)
    */
   public String getProfilePath(Authorizable authorizable) {
-    return getPublicPath(authorizable) + "/authprofile";
+    return getPublicPath(authorizable) + "/" + AUTH_PROFILE;
   }
 
   /**
@@ -146,13 +211,7 @@ public class ProfileServiceImpl implements ProfileService {
   public ValueMap getProfileMap(Node profileNode) throws RepositoryException {
     // Get the data from our external providers.
     Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileNode);
-    Map<Node, Future<Map<String, Object>>> providedNodeData = new HashMap<Node, Future<Map<String, Object>>>();
-    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
-      ProfileProvider pp = providers.get(e.getKey());
-      if (pp != null) {
-        providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
-      }
-    }
+    Map<Node, Future<Map<String, Object>>> providedNodeData = getProvidedNodeData(providersMap);
     try {
       // Return it as a ValueMap.
       ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
@@ -165,6 +224,67 @@ public class ProfileServiceImpl implements ProfileService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfileMap(javax.jcr.Node,
+   *      java.util.Set)
+   */
+  public ValueMap getProfileMap(Node profileNode, Set<String> sections)
+      throws RepositoryException {
+    if (providerSettingsFactory.newProviderSettings("", profileNode) != null) {
+      // The whole profile comes from a provider, which can't be asked for less.
+      return getProfileMap(profileNode);
+    }
+    // Only scan the requested sections for external providers.
+    Map<String, List<ProviderSettings>> providersMap = new HashMap<String, List<ProviderSettings>>();
+    List<Node> sectionNodes = new ArrayList<Node>();
+    for (String section : sections) {
+      if (profileNode.hasNode(section)) {
+        Node sectionNode = profileNode.getNode(section);
+        sectionNodes.add(sectionNode);
+        scanForProviders(appendPath("", section), sectionNode, providersMap);
+      }
+    }
+    Map<Node, Future<Map<String, Object>>> providedNodeData = getProvidedNodeData(providersMap);
+    try {
+      ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
+      map.putAll(new JcrPropertyMap(profileNode));
+      map.put("jcr:path", profileNode.getPath());
+      map.put("jcr:name", profileNode.getName());
+      for (Node sectionNode : sectionNodes) {
+        ValueMap sectionMap = new ValueMapDecorator(new HashMap<String, Object>());
+        handleNode(sectionNode, providedNodeData, sectionMap);
+        map.put(sectionNode.getName(), sectionMap);
+      }
+      return map;
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Ask the providers for the data of the external nodes they are responsible for.
+   *
+   * @param providersMap
+   *          the settings of the external nodes, by provider name.
+   * @return the pending data of each external node.
+   * @throws RepositoryException
+   */
+  private Map<Node, Future<Map<String, Object>>> getProvidedNodeData(
+      Map<String, List<ProviderSettings>> providersMap) throws RepositoryException {
+    Map<Node, Future<Map<String, Object>>> providedNodeData = new HashMap<Node, Future<Map<String, Object>>>();
+    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
+      ProfileProvider pp = providers.get(e.getKey());
+      if (pp != null) {
+        providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
+      }
+    }
+    return providedNodeData;
+  }
+
   /**
    * Fills the provided map with the JCR info and the external information.
    *
@@ -215,39 +335,179 @@ public class ProfileServiceImpl implements ProfileService {
    */
   public ValueMap getCompactProfileMap(Authorizable authorizable, Session session)
       throws RepositoryException {
+    String profilePath = getProfilePath(authorizable);
+    // Checked through the session so that it can only see the profiles it may read.
+    if (!session.getRootNode().hasNode(profilePath.substring(1))) {
+      return null;
+    }
+    Cache<CompactProfile> cache = compactProfileCache;
+    if (cache != null && slingRepository != null) {
+      CompactProfile compactProfile = cache.get(profilePath);
+      if (compactProfile == null) {
+        long evicted = evictions.get();
+        compactProfile = readCompactProfile(authorizable, profilePath);
+        if (compactProfile != null && !compactProfile.external
+            && evicted == evictions.get()) {
+          cache.put(profilePath, compactProfile);
+        }
+      }
+      if (compactProfile != null && compactProfile.isVisibleTo(session)) {
+        // Callers may add to the map, so never hand out the cached one.
+        return copy(compactProfile.map);
+      }
+    }
+    // The session may not see all of the profile, so it gets a view of its own.
+    return readCompactProfileMap(authorizable, session.getNode(profilePath));
+  }
+
+  /**
+   * Read the full compact profile of an authorizable with an administrative session, along
+   * with the paths of the nodes it was read from.
+   *
+   * @param authorizable
+   *          the authorizable.
+   * @param profilePath
+   *          the path of the profile of the authorizable.
+   * @return the compact profile, or null if there is no profile.
+   * @throws RepositoryException
+   */
+  private CompactProfile readCompactProfile(Authorizable authorizable, String profilePath)
+      throws RepositoryException {
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      if (!adminSession.itemExists(profilePath)) {
+        return null;
+      }
+      Node profileNode = (Node) adminSession.getItem(profilePath);
+      List<String> paths = new ArrayList<String>();
+      paths.add(profilePath);
+      boolean external = isExternal(profileNode);
+      if (!authorizable.isGroup()) {
+        for (String section : COMPACT_USER_SECTIONS) {
+          if (profileNode.hasNode(section)) {
+            external = collectPaths(profileNode.getNode(section), paths) || external;
+          }
+        }
+      }
+      return new CompactProfile(readCompactProfileMap(authorizable, profileNode), paths
+          .toArray(new String[paths.size()]), external);
+    } finally {
+      adminSession.logout();
+    }
+  }
+
+  /**
+   * Collect the paths of a node and its descendants.
+   *
+   * @return true if any of the nodes is provided by an external ProfileProvider.
+   */
+  private boolean collectPaths(Node node, List<String> paths) throws RepositoryException {
+    paths.add(node.getPath());
+    boolean external = isExternal(node);
+    for (NodeIterator ni = node.getNodes(); ni.hasNext();) {
+      external = collectPaths(ni.nextNode(), paths) || external;
+    }
+    return external;
+  }
+
+  /**
+   * @return true if the content of the node comes from an external ProfileProvider.
+   */
+  private static boolean isExternal(Node node) throws RepositoryException {
+    return node.hasProperty("sakai:source")
+        && "external".equals(node.getProperty("sakai:source").getString());
+  }
+
+  /**
+   * Copy a map and the maps nested in it.
+   */
+  @SuppressWarnings("unchecked")
+  private static ValueMap copy(Map<String, Object> map) {
+    ValueMap copy = new ValueMapDecorator(new HashMap<String, Object>(map));
+    for (Entry<String, Object> e : copy.entrySet()) {
+      Object value = e.getValue();
+      if (value instanceof Map) {
+        e.setValue(copy((Map<String, Object>) value));
+      } else if (value instanceof Object[]) {
+        e.setValue(((Object[]) value).clone());
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * A compact profile and the paths of the nodes it was read from.
+   */
+  private static class CompactProfile {
+    private final ValueMap map;
+    private final String[] paths;
+    private final boolean external;
+
+    CompactProfile(ValueMap map, String[] paths, boolean external) {
+      this.map = map;
+      this.paths = paths;
+      this.external = external;
+    }
+
+    /**
+     * @return true if the session can see every node the profile was read from, and so
+     *         would read the same compact profile.
+     */
+    boolean isVisibleTo(Session session) throws RepositoryException {
+      for (String path : paths) {
+        if (!session.itemExists(path)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Read the compact profile of an authorizable, loading only the parts of the profile
+   * that are needed.
+   *
+   * @param authorizable
+   *          the authorizable.
+   * @param profileNode
+   *          the profile node of the authorizable.
+   * @return the compact profile.
+   * @throws RepositoryException
+   */
+  private ValueMap readCompactProfileMap(Authorizable authorizable, Node profileNode)
+      throws RepositoryException {
+    // Get the part of the profile we need.
+    Set<String> sections = Collections.emptySet();
+    if (!authorizable.isGroup()) {
+      sections = COMPACT_USER_SECTIONS;
+    }
+    ValueMap profile = getProfileMap(profileNode, sections);
+
     // The map were we will stick the compact information in.
-    ValueMap compactProfile;
+    ValueMap compactProfile = new ValueMapDecorator(new HashMap<String, Object>());
 
-    // Get the entire profile.
-    ValueMap profile = getProfileMap(authorizable, session);
-    if (profile == null) {
-      compactProfile = null;
+    if (authorizable.isGroup()) {
+      // For a group we just dump it's title and description.
+      compactProfile.put("groupid", authorizable.getID());
+      compactProfile.put(GROUP_TITLE_PROPERTY, profile.get(GROUP_TITLE_PROPERTY));
+      compactProfile.put(GROUP_DESCRIPTION_PROPERTY, profile
+          .get(GROUP_DESCRIPTION_PROPERTY));
     } else {
-      compactProfile = new ValueMapDecorator(new HashMap<String, Object>());
-
-      if (authorizable.isGroup()) {
-        // For a group we just dump it's title and description.
-        compactProfile.put("groupid", authorizable.getID());
-        compactProfile.put(GROUP_TITLE_PROPERTY, profile.get(GROUP_TITLE_PROPERTY));
-        compactProfile.put(GROUP_DESCRIPTION_PROPERTY, profile
-            .get(GROUP_DESCRIPTION_PROPERTY));
-      } else {
-        compactProfile.put(USER_PICTURE, profile.get(USER_PICTURE));
-
-        try{
-          ValueMap basicMap =(ValueMap) profile.get(USER_BASIC);
-          if ( basicMap != null ) {
-            compactProfile.put(USER_BASIC, basicMap);
-          } else {
-            LOG.warn("User {} has no basic profile (firstName, lastName and email not avaiable) ",authorizable.getID());
-          }
-        }catch(Exception e){
-          LOG.warn("Can't get authprofile basic information. ", e);
+      compactProfile.put(USER_PICTURE, profile.get(USER_PICTURE));
+
+      try{
+        ValueMap basicMap =(ValueMap) profile.get(USER_BASIC);
+        if ( basicMap != null ) {
+          compactProfile.put(USER_BASIC, basicMap);
+        } else {
+          LOG.warn("User {} has no basic profile (firstName, lastName and email not avaiable) ",authorizable.getID());
         }
-        // Backward compatible reasons.
-        compactProfile.put("userid", authorizable.getID());
-        compactProfile.put("hash", getUserHashedPath(authorizable));
+      }catch(Exception e){
+        LOG.warn("Can't get authprofile basic information. ", e);
       }
+      // Backward compatible reasons.
+      compactProfile.put("userid", authorizable.getID());
+      compactProfile.put("hash", getUserHashedPath(authorizable));
     }
     return compactProfile;
   }
@@ -354,6 +614,34 @@ public class ProfileServiceImpl implements ProfileService {
     return hash;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    Cache<CompactProfile> cache = compactProfileCache;
+    if (cache == null || path == null
+        || !(path.startsWith("/_user/") || path.startsWith("/_group/"))) {
+      return;
+    }
+    int i = path.indexOf("/" + AUTH_PROFILE);
+    if (i > 0) {
+      int end = i + AUTH_PROFILE.length() + 1;
+      if (end == path.length() || path.charAt(end) == '/') {
+        evictions.incrementAndGet();
+        cache.remove(path.substring(0, end));
+        return;
+      }
+    }
+    if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(event.getTopic())) {
+      // A home folder or one of its parents went away.
+      evictions.incrementAndGet();
+      cache.removeChildren(path);
+    }
+  }
+
   protected void bindProfileProvider(ProfileProvider provider,
       Map<String, Object> properties) {
     String name = (String) properties.get(ProfileProvider.PROVIDER_NAME);
@@ -20,24 +20,46 @@ package org.sakaiproject.nakamura.profile;
 import junit.framework.Assert;
 
 import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.testing.jcr.MockNode;
+import org.apache.sling.commons.testing.jcr.MockNodeIterator;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.profile.ProfileConstants;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.StringWriter;
 import java.io.Writer;
 import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -57,6 +79,9 @@ import javax.jcr.nodetype.PropertyDefinition;
  */
 public class ProfileServiceImplTest {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ProfileServiceImplTest.class);
+
   @Mock
   private Session session;
   @Mock
@@ -115,6 +140,373 @@ public class ProfileServiceImplTest {
     Assert.assertNull(valueMap);
   }
 
+  @Test
+  public void testProfileSections() throws Exception {
+    ProfileService ps = setupProfileService();
+    Mockito.when(baseNode.hasNode("normal")).thenReturn(true);
+    Mockito.when(baseNode.getNode("normal")).thenReturn(normal);
+    Mockito.when(baseNode.hasNode("missing")).thenReturn(false);
+
+    ValueMap map = ps.getProfileMap(getBaseNode(), new HashSet<String>(Arrays.asList(
+        "normal", "missing")));
+
+    // The properties of the profile node, jcr:path, jcr:name and the one section.
+    Assert.assertEquals(map.toString(), 4, map.size());
+    Assert.assertEquals("baseNodePropertyValue", map.get("baseNodePropertyName"));
+    Assert.assertEquals("/_user/i/ie/ieb/profile", map.get("jcr:path"));
+    ValueMap normalMap = (ValueMap) map.get("normal");
+    Assert.assertEquals("normalNodePropertyValue", normalMap.get("normalNodePropertyName"));
+    Assert.assertFalse(map.containsKey("externalNode"));
+    Assert.assertFalse(map.containsKey("normal2"));
+    // Nothing outside the requested sections was scanned or fetched.
+    Mockito.verify(baseNode, Mockito.never()).getNodes();
+    Mockito.verify(external, Mockito.never()).hasProperty(Matchers.anyString());
+    Mockito.verify(profileProvider, Mockito.never()).getProvidedMap(
+        Matchers.anyListOf(ProviderSettings.class));
+  }
+
+  @Test
+  public void testCompactProfileCache() throws Exception {
+    Map<String, Node> profiles = new HashMap<String, Node>();
+    Session adminSession = createProfileSession(profiles, Collections.<String> emptySet());
+    ProfileServiceImpl ps = createCachingProfileService(adminSession);
+    Session profileSession = createProfileSession(profiles, Collections.<String> emptySet());
+    User user = createUser(ps, profiles, "alice");
+    String profilePath = ps.getProfilePath(user);
+
+    ValueMap compact = ps.getCompactProfileMap(user, profileSession);
+    Assert.assertEquals("alice", compact.get("userid"));
+    Assert.assertEquals("a/al/alice", compact.get("hash"));
+    ValueMap basic = (ValueMap) compact.get(ProfileConstants.USER_BASIC);
+    Assert.assertEquals("alice-first", basic.get("firstName"));
+    Assert.assertFalse(compact.containsKey("aboutme"));
+
+    // Changes to the returned map, or the maps within it, don't leak into the cache.
+    compact.put("extra", "value");
+    basic.put("firstName", "changed");
+    compact = ps.getCompactProfileMap(user, profileSession);
+    Assert.assertFalse(compact.containsKey("extra"));
+    basic = (ValueMap) compact.get(ProfileConstants.USER_BASIC);
+    Assert.assertEquals("alice-first", basic.get("firstName"));
+    Mockito.verify(adminSession, Mockito.times(1)).getItem(profilePath);
+    Mockito.verify(profileSession, Mockito.never()).getNode(profilePath);
+
+    // Changes outside of the profile don't evict it.
+    ps.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_CHANGED, ps.getPrivatePath(user)
+        + "/authprofiles"));
+    ps.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/var/authprofile"));
+    ps.getCompactProfileMap(user, profileSession);
+    Mockito.verify(adminSession, Mockito.times(1)).getItem(profilePath);
+
+    // A change to the basic section evicts it.
+    profiles.get(profilePath).getNode(ProfileConstants.USER_BASIC).setProperty("firstName",
+        "Alice");
+    ps.handleEvent(createEvent(SlingConstants.TOPIC_RESOURCE_CHANGED, profilePath + "/"
+        + ProfileConstants.USER_BASIC));
+    compact = ps.getCompactProfileMap(user, profileSession);
+    basic = (ValueMap) compact.get(ProfileConstants.USER_BASIC);
+    Assert.assertEquals("Alice", basic.get("firstName"));
+    Mockito.verify(adminSession, Mockito.times(2)).getItem(profilePath);
+  }
+
+  @Test
+  public void testCompactProfileFromProviderNotCached() throws Exception {
+    Map<String, Node> profiles = new HashMap<String, Node>();
+    Session adminSession = createProfileSession(profiles, Collections.<String> emptySet());
+    ProfileServiceImpl ps = createCachingProfileService(adminSession);
+    Session profileSession = createProfileSession(profiles, Collections.<String> emptySet());
+    User user = createUser(ps, profiles, "alice");
+    String profilePath = ps.getProfilePath(user);
+    TreeNode basic = (TreeNode) profiles.get(profilePath).getNode(
+        ProfileConstants.USER_BASIC);
+    basic.setProperty("sakai:source", "external");
+    basic.session = Mockito.mock(Session.class);
+
+    // No event is seen when a provider's data changes, so it is read every time.
+    ps.getCompactProfileMap(user, profileSession);
+    ps.getCompactProfileMap(user, profileSession);
+    Mockito.verify(adminSession, Mockito.times(2)).getItem(profilePath);
+  }
+
+  @Test
+  public void testCompactProfileRestrictedSession() throws Exception {
+    Map<String, Node> profiles = new HashMap<String, Node>();
+    Session adminSession = createProfileSession(profiles, Collections.<String> emptySet());
+    ProfileServiceImpl ps = createCachingProfileService(adminSession);
+    User user = createUser(ps, profiles, "alice");
+    String profilePath = ps.getProfilePath(user);
+    String basicPath = profilePath + "/" + ProfileConstants.USER_BASIC;
+    Session restrictedSession = createProfileSession(profiles, Collections
+        .singleton(basicPath));
+    Session profileSession = createProfileSession(profiles, Collections.<String> emptySet());
+
+    // A session that can't see the basic section doesn't get it from the cache.
+    ValueMap compact = ps.getCompactProfileMap(user, restrictedSession);
+    Assert.assertEquals("alice", compact.get("userid"));
+    Assert.assertFalse(compact.containsKey(ProfileConstants.USER_BASIC));
+    Mockito.verify(restrictedSession, Mockito.times(1)).getNode(profilePath);
+
+    // Nor does what it could see end up in the cache for others.
+    compact = ps.getCompactProfileMap(user, profileSession);
+    ValueMap basic = (ValueMap) compact.get(ProfileConstants.USER_BASIC);
+    Assert.assertEquals("alice-first", basic.get("firstName"));
+    Mockito.verify(profileSession, Mockito.never()).getNode(profilePath);
+    Mockito.verify(adminSession, Mockito.times(1)).getItem(profilePath);
+  }
+
+  @Test
+  public void testCompactProfileBenchmark() throws Exception {
+    Map<String, Node> profiles = new HashMap<String, Node>();
+    ProfileServiceImpl ps = createCachingProfileService(createProfileSession(profiles,
+        Collections.<String> emptySet()));
+    Session profileSession = createProfileSession(profiles, Collections.<String> emptySet());
+    int members = 500;
+    User[] users = new User[members];
+    for (int i = 0; i < members; i++) {
+      users[i] = createUser(ps, profiles, "member" + i);
+    }
+
+    // Warm up, so that the listings are not paying for class loading.
+    for (User user : users) {
+      Assert.assertNotNull(ps.getProfileMap(user, profileSession));
+    }
+
+    TreeNode.propertyReads = 0;
+    long start = System.currentTimeMillis();
+    for (User user : users) {
+      Assert.assertNotNull(ps.getProfileMap(user, profileSession));
+    }
+    long full = System.currentTimeMillis() - start;
+    int fullReads = TreeNode.propertyReads;
+
+    TreeNode.propertyReads = 0;
+    start = System.currentTimeMillis();
+    for (User user : users) {
+      Assert.assertNotNull(ps.getCompactProfileMap(user, profileSession));
+    }
+    long cold = System.currentTimeMillis() - start;
+    int coldReads = TreeNode.propertyReads;
+
+    TreeNode.propertyReads = 0;
+    start = System.currentTimeMillis();
+    for (User user : users) {
+      Assert.assertNotNull(ps.getCompactProfileMap(user, profileSession));
+    }
+    long warm = System.currentTimeMillis() - start;
+    int warmReads = TreeNode.propertyReads;
+
+    // The profile node and every section, against the profile node and basic.
+    Assert.assertEquals(members * 7, fullReads);
+    Assert.assertEquals(members * 2, coldReads);
+    Assert.assertEquals(0, warmReads);
+
+    LOGGER.info("Listing {} members:", members);
+    LOGGER.info("  full profiles took {} ms, reading {} nodes", full, fullReads);
+    LOGGER.info("  compact profiles, uncached, took {} ms, reading {} nodes", cold,
+        coldReads);
+    LOGGER.info("  compact profiles, cached, took {} ms, reading {} nodes", warm,
+        warmReads);
+  }
+
+  private ProfileServiceImpl createCachingProfileService(Session adminSession)
+      throws RepositoryException {
+    ProfileServiceImpl ps = new ProfileServiceImpl();
+    ps.slingRepository = Mockito.mock(SlingRepository.class);
+    Mockito.when(ps.slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(
+        cacheManagerService.getCache(Matchers.anyString(), Matchers
+            .eq(CacheScope.INSTANCE))).thenReturn(new MapCacheImpl<Object>());
+    ps.bindCacheManagerService(cacheManagerService);
+    return ps;
+  }
+
+  /**
+   * @param profiles
+   *          the profile nodes, by path.
+   * @param hidden
+   *          the paths of nodes the session can't see.
+   */
+  private Session createProfileSession(final Map<String, Node> profiles,
+      final Set<String> hidden) throws RepositoryException {
+    Session profileSession = Mockito.mock(Session.class);
+    Answer<Node> findNode = new Answer<Node>() {
+      public Node answer(InvocationOnMock invocation) throws Throwable {
+        String path = (String) invocation.getArguments()[0];
+        for (Entry<String, Node> profile : profiles.entrySet()) {
+          if (path.equals(profile.getKey())) {
+            return new RestrictedNode(profile.getValue(), hidden);
+          } else if (path.startsWith(profile.getKey() + "/")) {
+            Node node = profile.getValue();
+            for (String name : path.substring(profile.getKey().length() + 1).split("/")) {
+              node = node.hasNode(name) ? node.getNode(name) : null;
+              if (node == null || hidden.contains(node.getPath())) {
+                return null;
+              }
+            }
+            return node;
+          }
+        }
+        return null;
+      }
+    };
+    Mockito.when(profileSession.getItem(Matchers.anyString())).thenAnswer(findNode);
+    Mockito.when(profileSession.itemExists(Matchers.anyString())).thenAnswer(
+        new Answer<Boolean>() {
+          public Boolean answer(InvocationOnMock invocation) throws Throwable {
+            return profileSessionHasItem(profiles, hidden, (String) invocation
+                .getArguments()[0]);
+          }
+        });
+    Node rootNode = Mockito.mock(Node.class);
+    Mockito.when(profileSession.getRootNode()).thenReturn(rootNode);
+    Mockito.when(rootNode.hasNode(Matchers.anyString())).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        return profiles.containsKey("/" + invocation.getArguments()[0]);
+      }
+    });
+    Mockito.when(profileSession.getNode(Matchers.anyString())).thenAnswer(findNode);
+    return profileSession;
+  }
+
+  private boolean profileSessionHasItem(Map<String, Node> profiles, Set<String> hidden,
+      String path) throws RepositoryException {
+    if (hidden.contains(path)) {
+      return false;
+    }
+    for (Entry<String, Node> profile : profiles.entrySet()) {
+      if (path.equals(profile.getKey())) {
+        return true;
+      } else if (path.startsWith(profile.getKey() + "/")) {
+        Node node = profile.getValue();
+        for (String name : path.substring(profile.getKey().length() + 1).split("/")) {
+          if (!node.hasNode(name)) {
+            return false;
+          }
+          node = node.getNode(name);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private User createUser(ProfileServiceImpl ps, Map<String, Node> profiles, String id)
+      throws RepositoryException {
+    User user = Mockito.mock(User.class);
+    Value hash = Mockito.mock(Value.class);
+    Mockito.when(hash.getString()).thenReturn(
+        id.substring(0, 1) + "/" + id.substring(0, 2) + "/" + id);
+    Mockito.when(user.getID()).thenReturn(id);
+    Mockito.when(user.isGroup()).thenReturn(false);
+    Mockito.when(user.hasProperty("path")).thenReturn(true);
+    Mockito.when(user.getProperty("path")).thenReturn(new Value[] { hash });
+
+    String profilePath = ps.getProfilePath(user);
+    MockNode profile = new TreeNode(profilePath);
+    profile.setProperty(ProfileConstants.USER_PICTURE, id + ".jpg");
+    Node basic = profile.addNode(ProfileConstants.USER_BASIC);
+    basic.setProperty("firstName", id + "-first");
+    basic.setProperty("lastName", id + "-last");
+    basic.setProperty("email", id + "@example.com");
+    for (String section : new String[] { "aboutme", "contactinfo", "publications",
+        "talks", "websites" }) {
+      Node sectionNode = profile.addNode(section);
+      for (int i = 0; i < 10; i++) {
+        sectionNode.setProperty(section + i, id + " " + section + " " + i);
+      }
+    }
+    profiles.put(profilePath, profile);
+    return user;
+  }
+
+  /**
+   * A MockNode that keeps track of the nodes added to it.
+   */
+  private static class TreeNode extends MockNode {
+    private static int propertyReads;
+    private Map<String, Node> children = new LinkedHashMap<String, Node>();
+    private Session session;
+
+    TreeNode(String path) {
+      super(path);
+    }
+
+    @Override
+    public Node addNode(String relPath) {
+      Node child = new TreeNode(getPath() + "/" + relPath);
+      children.put(relPath, child);
+      return child;
+    }
+
+    @Override
+    public boolean hasNode(String relPath) {
+      return children.containsKey(relPath);
+    }
+
+    @Override
+    public Node getNode(String relPath) {
+      return children.get(relPath);
+    }
+
+    @Override
+    public PropertyIterator getProperties() {
+      propertyReads++;
+      return super.getProperties();
+    }
+
+    @Override
+    public NodeIterator getNodes() {
+      return new MockNodeIterator(children.values().toArray(new Node[children.size()]));
+    }
+
+    @Override
+    public Session getSession() {
+      return session;
+    }
+  }
+
+  /**
+   * A profile node as seen by a session that can't see some of its sections.
+   */
+  private static class RestrictedNode extends TreeNode {
+    private final TreeNode node;
+    private final Set<String> hidden;
+
+    RestrictedNode(Node node, Set<String> hidden) {
+      super(((TreeNode) node).getPath());
+      this.node = (TreeNode) node;
+      this.hidden = hidden;
+    }
+
+    @Override
+    public boolean hasNode(String relPath) {
+      return node.hasNode(relPath) && !hidden.contains(getPath() + "/" + relPath);
+    }
+
+    @Override
+    public Node getNode(String relPath) {
+      return hasNode(relPath) ? node.getNode(relPath) : null;
+    }
+
+    @Override
+    public PropertyIterator getProperties() {
+      return node.getProperties();
+    }
+
+    @Override
+    public NodeIterator getNodes() {
+      return node.getNodes();
+    }
+  }
+
+  private Event createEvent(String topic, String path) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, properties);
+  }
+
   /**
    * @return
    */
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that holds the first bytes written to it in memory until the content
+ * has been accepted, after which the held bytes and everything that follows are written
+ * straight through to the target stream. Both the lookahead and the total number of
+ * bytes are bounded; exceeding either causes the write to fail with a
+ * {@link LimitExceededException}.
+ */
+class LookaheadOutputStream extends OutputStream {
+
+  /**
+   * Thrown when more bytes are written than the stream allows.
+   */
+  static class LimitExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    LimitExceededException(String message) {
+      super(message);
+    }
+  }
+
+  private final int maxLookahead;
+  private final long maxLength;
+  private ByteArrayOutputStream lookahead = new ByteArrayOutputStream();
+  private OutputStream target;
+  private long length;
+  private int buffered;
+
+  /**
+   * @param maxLookahead
+   *          the maximum number of bytes held before the content is accepted.
+   * @param maxLength
+   *          the maximum number of bytes that may be written in total.
+   */
+  LookaheadOutputStream(int maxLookahead, long maxLength) {
+    this.maxLookahead = maxLookahead;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Accept the content, writing everything held so far to the target and passing all
+   * further writes straight through.
+   *
+   * @param target
+   *          the stream to write to.
+   * @throws IOException
+   */
+  void accept(OutputStream target) throws IOException {
+    buffered = lookahead.size();
+    lookahead.writeTo(target);
+    lookahead = null;
+    this.target = target;
+  }
+
+  /**
+   * @return true once {@link #accept(OutputStream)} has been called.
+   */
+  boolean isAccepted() {
+    return target != null;
+  }
+
+  /**
+   * @return the number of bytes held in memory before the content was accepted, or held
+   *         now if it has not been accepted yet.
+   */
+  int getBuffered() {
+    return target == null ? lookahead.size() : buffered;
+  }
+
+  /**
+   * @return the number of bytes written so far.
+   */
+  long getLength() {
+    return length;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.OutputStream#write(int)
+   */
+  @Override
+  public void write(int b) throws IOException {
+    checkLength(1);
+    if (target == null) {
+      lookahead.write(b);
+    } else {
+      target.write(b);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.OutputStream#write(byte[], int, int)
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkLength(len);
+    if (target == null) {
+      lookahead.write(b, off, len);
+    } else {
+      target.write(b, off, len);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.OutputStream#flush()
+   */
+  @Override
+  public void flush() throws IOException {
+    if (target != null) {
+      target.flush();
+    }
+  }
+
+  private void checkLength(int len) throws LimitExceededException {
+    length += len;
+    if (length > maxLength) {
+      throw new LimitExceededException("Content is longer than " + maxLength + " bytes");
+    }
+    if (target == null && length > maxLookahead) {
+      throw new LimitExceededException("Content was not accepted within the first "
+          + maxLookahead + " bytes");
+    }
+  }
+
+}
@@ -20,10 +20,10 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -34,45 +34,46 @@ import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.velocity.Template;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
-import org.apache.velocity.exception.MethodInvocationException;
-import org.apache.velocity.exception.ParseErrorException;
-import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
-import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
-import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
-import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.Reader;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.Value;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -80,7 +81,10 @@ import javax.servlet.http.HttpServletResponse;
  */
 @Service
 @Component(immediate = true)
-public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource {
+@Properties(value = { @Property(name = EventConstants.EVENT_TOPIC, value = {
+    SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }) })
+public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource,
+    EventHandler {
 
   /**
    * 
@@ -105,16 +109,79 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  private static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 100;
+  @Property(intValue = DEFAULT_MAX_TOTAL_CONNECTIONS)
+  private static final String MAX_TOTAL_CONNECTIONS = "http.max.total.connections";
+
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+  @Property(intValue = DEFAULT_MAX_CONNECTIONS_PER_HOST)
+  private static final String MAX_CONNECTIONS_PER_HOST = "http.max.connections.per.host";
+
   /**
-   * The shared velocity engine, which should cache all the templates. (need to sort out
-   * how to invalidate).
+   * Per host limits on the number of connections, each entry is of the form
+   * host[:port]=connections, eg www.google.com:443=40.
    */
-  private VelocityEngine velocityEngine;
+  @Property(value = { "" }, cardinality = Integer.MAX_VALUE)
+  private static final String HOST_MAX_CONNECTIONS = "http.host.max.connections";
+
+  private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+  @Property(intValue = DEFAULT_CONNECT_TIMEOUT)
+  private static final String CONNECT_TIMEOUT = "http.connect.timeout";
+
+  private static final int DEFAULT_READ_TIMEOUT = 30000;
+  @Property(intValue = DEFAULT_READ_TIMEOUT)
+  private static final String READ_TIMEOUT = "http.read.timeout";
+
+  private static final long DEFAULT_POOL_TIMEOUT = 10000L;
+  @Property(longValue = DEFAULT_POOL_TIMEOUT)
+  private static final String POOL_TIMEOUT = "http.pool.timeout";
+
+  private static final boolean DEFAULT_STALE_CHECKING = true;
+  @Property(boolValue = DEFAULT_STALE_CHECKING)
+  private static final String STALE_CHECKING = "http.stale.checking";
+
+  private static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+  @Property(longValue = DEFAULT_IDLE_TIMEOUT)
+  private static final String IDLE_TIMEOUT = "http.idle.timeout";
+
+  private static final long DEFAULT_IDLE_CHECK_INTERVAL = 15000L;
+  @Property(longValue = DEFAULT_IDLE_CHECK_INTERVAL)
+  private static final String IDLE_CHECK_INTERVAL = "http.idle.check.interval";
+
+  private static final int DEFAULT_DEFINITION_CACHE_SIZE = 500;
+  @Property(intValue = DEFAULT_DEFINITION_CACHE_SIZE)
+  private static final String DEFINITION_CACHE_SIZE = "proxy.definition.cache.size";
+
+  /**
+   * The name under which the connection pool statistics are registered with JMX.
+   */
+  private static final String CONNECTION_POOL_MBEAN_NAME = "org.sakaiproject.nakamura.proxy:type=ConnectionPool";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyClientServiceImpl.class);
+
+  /**
+   * The shared velocity runtime, used to parse proxy templates into the compiled proxy
+   * definitions.
+   */
+  private RuntimeInstance velocityRuntime;
+
+  /**
+   * Compiled proxy definitions of the nodes under /var/proxy, keyed by the path of the
+   * proxy node. Entries are recompiled if the node's last modified time changes and are
+   * dropped when an event is received for the node. The least recently used definitions
+   * are dropped once the cache is full. All access is synchronized on the map.
+   */
+  private volatile Map<String, ProxyDefinition> proxyDefinitions = createDefinitionCache(DEFAULT_DEFINITION_CACHE_SIZE);
 
   /**
    * A multi threaded connection manager to provide http connections with pooling.
    */
-  private MultiThreadedHttpConnectionManager httpClientConnectionManager;
+  private ProxyConnectionManager httpClientConnectionManager;
+
+  /**
+   * Closes connections that have been idle in the pool for too long.
+   */
+  private IdleConnectionTimeoutThread idleConnectionTimeoutThread;
 
   /**
    * The http client for this component (multi threaded)
@@ -157,25 +224,107 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     } else {
       configProperties = new HashMap<String, Object>();
     }
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+    velocityRuntime = new RuntimeInstance();
+    velocityRuntime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, JCR_RESOURCE_LOADER);
-    velocityEngine.setProperty(JCR_RESOURCE_LOADER_CLASS, JcrResourceLoader.class
+    velocityRuntime.setProperty(RuntimeConstants.RESOURCE_LOADER, JCR_RESOURCE_LOADER);
+    velocityRuntime.setProperty(JCR_RESOURCE_LOADER_CLASS, JcrResourceLoader.class
         .getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty(JCR_RESOURCE_LOADER_PATH
         + ProxyNodeSource.JCR_RESOURCE_LOADER_RESOURCE_SOURCE, this);
-    velocityEngine.setExtendedProperties(configuration);
-    velocityEngine.init();
+    velocityRuntime.setConfiguration(configuration);
+    velocityRuntime.init();
+    proxyDefinitions = createDefinitionCache(OsgiUtil.toInteger(configProperties
+        .get(DEFINITION_CACHE_SIZE), DEFAULT_DEFINITION_CACHE_SIZE));
 
-    httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
+    httpClientConnectionManager = new ProxyConnectionManager();
     HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-    // could set a whole load of connection properties
+    params.setMaxTotalConnections(OsgiUtil.toInteger(configProperties
+        .get(MAX_TOTAL_CONNECTIONS), DEFAULT_MAX_TOTAL_CONNECTIONS));
+    params.setDefaultMaxConnectionsPerHost(OsgiUtil.toInteger(configProperties
+        .get(MAX_CONNECTIONS_PER_HOST), DEFAULT_MAX_CONNECTIONS_PER_HOST));
+    for (String hostMax : OsgiUtil.toStringArray(configProperties
+        .get(HOST_MAX_CONNECTIONS), new String[0])) {
+      if (hostMax.trim().length() > 0) {
+        setMaxConnectionsPerHost(params, hostMax);
+      }
+    }
+    params.setConnectionTimeout(OsgiUtil.toInteger(configProperties.get(CONNECT_TIMEOUT),
+        DEFAULT_CONNECT_TIMEOUT));
+    params.setSoTimeout(OsgiUtil.toInteger(configProperties.get(READ_TIMEOUT),
+        DEFAULT_READ_TIMEOUT));
+    params.setStaleCheckingEnabled(OsgiUtil.toBoolean(configProperties
+        .get(STALE_CHECKING), DEFAULT_STALE_CHECKING));
     httpClientConnectionManager.setParams(params);
 
+    idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+    idleConnectionTimeoutThread.setName("Proxy Idle Connection Eviction");
+    idleConnectionTimeoutThread.setConnectionTimeout(OsgiUtil.toLong(configProperties
+        .get(IDLE_TIMEOUT), DEFAULT_IDLE_TIMEOUT));
+    idleConnectionTimeoutThread.setTimeoutInterval(OsgiUtil.toLong(configProperties
+        .get(IDLE_CHECK_INTERVAL), DEFAULT_IDLE_CHECK_INTERVAL));
+    idleConnectionTimeoutThread.addConnectionManager(httpClientConnectionManager);
+    idleConnectionTimeoutThread.start();
+
+    registerConnectionPoolMBean();
+
     httpClient = new HttpClient(httpClientConnectionManager);
+    // don't wait forever for a connection from the pool.
+    httpClient.getParams().setConnectionManagerTimeout(
+        OsgiUtil.toLong(configProperties.get(POOL_TIMEOUT), DEFAULT_POOL_TIMEOUT));
+  }
+
+  /**
+   * @param params
+   *          the connection manager parameters.
+   * @param hostMax
+   *          a limit of the form host[:port]=connections.
+   */
+  private void setMaxConnectionsPerHost(HttpConnectionManagerParams params, String hostMax) {
+    try {
+      String[] hostAndMax = StringUtils.split(hostMax, '=', 2);
+      String[] hostAndPort = StringUtils.split(hostAndMax[0].trim(), ':', 2);
+      HostConfiguration hostConfiguration = new HostConfiguration();
+      if (hostAndPort.length == 2) {
+        int port = Integer.parseInt(hostAndPort[1]);
+        hostConfiguration.setHost(hostAndPort[0], port, port == 443 ? "https" : "http");
+      } else {
+        hostConfiguration.setHost(hostAndPort[0]);
+      }
+      params.setMaxConnectionsPerHost(hostConfiguration, Integer.parseInt(hostAndMax[1]
+          .trim()));
+    } catch (Exception e) {
+      LOGGER.warn("Ignoring invalid per host connection limit {} ", hostMax);
+    }
+  }
+
+  private void registerConnectionPoolMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(CONNECTION_POOL_MBEAN_NAME);
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(httpClientConnectionManager, name);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register the proxy connection pool with JMX: {} ", e
+          .getMessage());
+    }
+  }
+
+  private void unregisterConnectionPoolMBean() {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(CONNECTION_POOL_MBEAN_NAME);
+      if (mbeanServer.isRegistered(name)) {
+        mbeanServer.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Unable to unregister the proxy connection pool from JMX: {} ", e
+          .getMessage());
+    }
   }
 
   /**
@@ -185,7 +334,12 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    unregisterConnectionPoolMBean();
+    idleConnectionTimeoutThread.shutdown();
     httpClientConnectionManager.shutdown();
+    synchronized (proxyDefinitions) {
+      proxyDefinitions.clear();
+    }
   }
 
   /**
@@ -232,66 +386,21 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     try {
       bindNode(node);
 
-      if (node != null && node.hasProperty(SAKAI_REQUEST_PROXY_ENDPOINT)) {
-        // setup the post request
-        String endpointURL = JcrUtils.getMultiValueString(node
-            .getProperty(SAKAI_REQUEST_PROXY_ENDPOINT));
-        if ( isUnsafeProxyDefinition(node)) {
-          try {
-            URL u = new URL(endpointURL);
-            String host = u.getHost();
-            if ( host.indexOf('$') >= 0 ) {
-              throw new ProxyClientException("Invalid Endpoint template, relies on request to resolve valid URL "+u);
-            }
-          } catch ( MalformedURLException e) {
-            throw new ProxyClientException("Invalid Endpoint template, relies on request to resolve valid URL", e);
-          }
-        }
-
+      ProxyDefinition definition = null;
+      if (node != null) {
+        definition = getProxyDefinition(node);
+      }
+      if (definition != null) {
         VelocityContext context = new VelocityContext(input);
 
         // add in the config properties from the bundle overwriting everythign else.
         context.put("config", configProperties);
 
-        endpointURL = processUrlTemplate(endpointURL, context);
-
-        ProxyMethod proxyMethod = ProxyMethod.GET;
-        if (node.hasProperty(SAKAI_REQUEST_PROXY_METHOD)) {
-          try {
-            proxyMethod = ProxyMethod.valueOf(node
-                .getProperty(SAKAI_REQUEST_PROXY_METHOD).getString());
-          } catch (Exception e) {
+        String endpointURL = definition.mergeEndpoint(context);
 
-          }
-        }
         HttpMethod method = null;
-        switch (proxyMethod) {
+        switch (definition.getMethod()) {
         case GET:
-          if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
-            long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
-            method = new HeadMethod(endpointURL);
-            HttpMethodParams params = new HttpMethodParams(method.getParams());
-            // make certain we reject the body of a head
-            params.setBooleanParameter("http.protocol.reject-head-body", true);
-            method.setParams(params);
-            method.setFollowRedirects(true);
-            populateMethod(method, node, headers);
-            int result = httpClient.executeMethod(method);
-            if (result == 200) {
-              // Check if the content-length is smaller than the maximum (if any).
-              Header contentLengthHeader = method.getResponseHeader("Content-Length");
-              if (contentLengthHeader != null) {
-                long length = Long.parseLong(contentLengthHeader.getValue());
-                if (length > maxSize) {
-                  return new ProxyResponseImpl(
-                      HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
-                      method);
-                }
-              }
-            } else {
-              return new ProxyResponseImpl(result, method);
-            }
-          }
           method = new GetMethod(endpointURL);
           // redirects work automatically for get, options and head, but not for put and
           // post
@@ -327,9 +436,9 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
         }
 
-        populateMethod(method, node, headers);
+        populateMethod(method, definition, headers);
 
-        if (requestInputStream == null && !node.hasProperty(SAKAI_PROXY_REQUEST_TEMPLATE)) {
+        if (requestInputStream == null && !definition.hasRequestTemplate()) {
           if (method instanceof PostMethod) {
             PostMethod postMethod = (PostMethod) method;
             for (Entry<String, Object> param : input.entrySet()) {
@@ -348,9 +457,8 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
           if (method instanceof EntityEnclosingMethod) {
             String contentType = requestContentType;
-            if (contentType == null && node.hasProperty(SAKAI_REQUEST_CONTENT_TYPE)) {
-              contentType = node.getProperty(SAKAI_REQUEST_CONTENT_TYPE).getString();
-
+            if (contentType == null) {
+              contentType = definition.getContentType();
             }
             if (contentType == null) {
               contentType = APPLICATION_OCTET_STREAM;
@@ -361,10 +469,7 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
                   requestContentLength, contentType));
             } else {
               // build the request
-              Template template = velocityEngine.getTemplate(node.getPath());
-              StringWriter body = new StringWriter();
-              template.merge(context, body);
-              byte[] soapBodyContent = body.toString().getBytes("UTF-8");
+              byte[] soapBodyContent = definition.mergeRequestTemplate(context);
               eemethod.setRequestEntity(new ByteArrayRequestEntity(soapBodyContent,
                   contentType));
 
@@ -373,6 +478,20 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         }
 
         int result = httpClient.executeMethod(method);
+        long maxSize = definition.getLimitGetSize();
+        if (maxSize >= 0 && method instanceof GetMethod) {
+          // Check if the content-length is smaller than the maximum, if the server does
+          // not tell us the body is cut off once it reaches the maximum.
+          Header contentLengthHeader = method.getResponseHeader("Content-Length");
+          if (result == 200 && contentLengthHeader != null
+              && Long.parseLong(contentLengthHeader.getValue()) > maxSize) {
+            ProxyResponseImpl response = new ProxyResponseImpl(
+                HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large", method);
+            method.abort();
+            return response;
+          }
+          return new ProxyResponseImpl(result, method, maxSize);
+        }
         if (result == 302 && method instanceof EntityEnclosingMethod) {
           // handle redirects on post and put
           String url = method.getResponseHeader("Location").getValue();
@@ -397,28 +516,107 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         + " does not contain a valid endpoint specification ");
   }
 
-  private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
-    if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
-      String postProcessorName = node.getProperty(
-          ProxyPostProcessor.SAKAI_POSTPROCESSOR).getString();
-      return !safeOpenProcessors.contains(postProcessorName);
+  /**
+   * Get the compiled definition of a proxy node, compiling it if the node has not been
+   * seen before or has been modified since it was compiled.
+   *
+   * @param node
+   *          the proxy node.
+   * @return the compiled definition, or null if the node is not a valid proxy node.
+   * @throws ProxyClientException
+   * @throws RepositoryException
+   */
+  protected ProxyDefinition getProxyDefinition(Node node) throws ProxyClientException,
+      RepositoryException {
+    String path = node.getPath();
+    long lastModified = ProxyDefinition.getLastModified(node);
+    // only nodes under /var/proxy are cached, they are the ones changes are tracked for.
+    boolean cached = path.startsWith(ResourceProxyServlet.PROXY_PATH_PREFIX);
+    ProxyDefinition definition = null;
+    if (cached) {
+      synchronized (proxyDefinitions) {
+        definition = proxyDefinitions.get(path);
+      }
+    }
+    if (definition == null || definition.getLastModified() != lastModified) {
+      definition = ProxyDefinition.compile(node, lastModified, velocityRuntime,
+          safeOpenProcessors);
+      if (definition != null && cached) {
+        synchronized (proxyDefinitions) {
+          proxyDefinitions.put(path, definition);
+        }
+      }
+    }
+    return definition;
+  }
+
+  /**
+   * @param maxSize
+   *          the number of compiled definitions that are kept.
+   * @return a map that drops the least recently used definition once it is full.
+   */
+  private static Map<String, ProxyDefinition> createDefinitionCache(final int maxSize) {
+    return new LinkedHashMap<String, ProxyDefinition>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, ProxyDefinition> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * Drops compiled proxy definitions when the node they were compiled from changes.
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      return;
+    }
+    boolean removed = SlingConstants.TOPIC_RESOURCE_REMOVED.equals(event.getTopic());
+    String prefix = path.endsWith("/") ? path : path + "/";
+    if (!path.startsWith(ResourceProxyServlet.PROXY_PATH_PREFIX)) {
+      // only the removal of /var/proxy or one of its parents affects the definitions.
+      if (removed && ResourceProxyServlet.PROXY_PATH_PREFIX.startsWith(prefix)) {
+        synchronized (proxyDefinitions) {
+          proxyDefinitions.clear();
+        }
+      }
+      return;
+    }
+    synchronized (proxyDefinitions) {
+      proxyDefinitions.remove(path);
+      if (removed) {
+        // a removed parent takes its children with it.
+        for (Iterator<String> i = proxyDefinitions.keySet().iterator(); i.hasNext();) {
+          if (i.next().startsWith(prefix)) {
+            i.remove();
+          }
+        }
+      }
     }
-    return true;
   }
 
-  private String processUrlTemplate(String endpointURL, VelocityContext context) throws ParseErrorException, MethodInvocationException, ResourceNotFoundException, IOException {
-    Reader urlTemplateReader = new StringReader(endpointURL);
-    StringWriter urlWriter = new StringWriter();
-    velocityEngine.evaluate(context, urlWriter, "urlprocessing", urlTemplateReader);
-    return urlWriter.toString();
+  /**
+   * @return the number of compiled definitions that are cached.
+   */
+  int getProxyDefinitionCount() {
+    synchronized (proxyDefinitions) {
+      return proxyDefinitions.size();
+    }
   }
 
   /**
    * @param method
    * @throws RepositoryException
    */
-  private void populateMethod(HttpMethod method, Node node, Map<String, String> headers)
-      throws RepositoryException {
+  private void populateMethod(HttpMethod method, ProxyDefinition definition,
+      Map<String, String> headers) {
     // follow redirects, but dont auto process 401's and the like.
     // credentials should be provided
     method.setDoAuthentication(false);
@@ -427,11 +625,8 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
       method.addRequestHeader(header.getKey(), header.getValue());
     }
 
-    Value[] additionalHeaders = JcrUtils.getValues(node, SAKAI_PROXY_HEADER);
-    for (Value v : additionalHeaders) {
-      String header = v.getString();
-      String[] keyVal = StringUtils.split(header, ':', 2);
-      method.addRequestHeader(keyVal[0].trim(), keyVal[1].trim());
+    for (String[] header : definition.getHeaders()) {
+      method.addRequestHeader(header[0], header[1]);
     }
 
   }
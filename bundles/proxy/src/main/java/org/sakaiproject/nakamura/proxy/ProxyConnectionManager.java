@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A multi threaded connection manager that records how long requests wait for a
+ * connection from the pool, and exposes that and the pool usage as an MBean.
+ */
+public class ProxyConnectionManager extends MultiThreadedHttpConnectionManager
+    implements ProxyConnectionManagerMBean {
+
+  private final AtomicLong connectionRequests = new AtomicLong();
+  private final AtomicLong connectionPoolTimeouts = new AtomicLong();
+  private final AtomicLong totalWaitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+  private final AtomicInteger connectionsInUse = new AtomicInteger();
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.commons.httpclient.MultiThreadedHttpConnectionManager#getConnectionWithTimeout(org.apache.commons.httpclient.HostConfiguration,
+   *      long)
+   */
+  @Override
+  public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration,
+      long timeout) throws ConnectionPoolTimeoutException {
+    long start = System.currentTimeMillis();
+    try {
+      HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration,
+          timeout);
+      connectionsInUse.incrementAndGet();
+      return connection;
+    } catch (ConnectionPoolTimeoutException e) {
+      connectionPoolTimeouts.incrementAndGet();
+      throw e;
+    } finally {
+      long wait = System.currentTimeMillis() - start;
+      connectionRequests.incrementAndGet();
+      totalWaitTime.addAndGet(wait);
+      long max = maxWaitTime.get();
+      while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+        max = maxWaitTime.get();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.commons.httpclient.MultiThreadedHttpConnectionManager#releaseConnection(org.apache.commons.httpclient.HttpConnection)
+   */
+  @Override
+  public void releaseConnection(HttpConnection conn) {
+    super.releaseConnection(conn);
+    int inUse = connectionsInUse.get();
+    while (inUse > 0 && !connectionsInUse.compareAndSet(inUse, inUse - 1)) {
+      inUse = connectionsInUse.get();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getConnectionsInUse()
+   */
+  public int getConnectionsInUse() {
+    return connectionsInUse.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getIdleConnections()
+   */
+  public int getIdleConnections() {
+    return Math.max(0, getConnectionsInPool() - connectionsInUse.get());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getMaxTotalConnections()
+   */
+  public int getMaxTotalConnections() {
+    return getParams().getMaxTotalConnections();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getDefaultMaxConnectionsPerHost()
+   */
+  public int getDefaultMaxConnectionsPerHost() {
+    return getParams().getDefaultMaxConnectionsPerHost();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getConnectionRequests()
+   */
+  public long getConnectionRequests() {
+    return connectionRequests.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getConnectionPoolTimeouts()
+   */
+  public long getConnectionPoolTimeouts() {
+    return connectionPoolTimeouts.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getTotalConnectionWaitTime()
+   */
+  public long getTotalConnectionWaitTime() {
+    return totalWaitTime.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getMaxConnectionWaitTime()
+   */
+  public long getMaxConnectionWaitTime() {
+    return maxWaitTime.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#getAverageConnectionWaitTime()
+   */
+  public double getAverageConnectionWaitTime() {
+    long requests = connectionRequests.get();
+    if (requests == 0) {
+      return 0.0;
+    }
+    return ((double) totalWaitTime.get()) / requests;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionManagerMBean#resetStatistics()
+   */
+  public void resetStatistics() {
+    connectionRequests.set(0);
+    connectionPoolTimeouts.set(0);
+    totalWaitTime.set(0);
+    maxWaitTime.set(0);
+  }
+
+}
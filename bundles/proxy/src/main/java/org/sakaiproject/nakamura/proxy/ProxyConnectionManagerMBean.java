@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+/**
+ * JMX view of the proxy HTTP connection pool.
+ */
+public interface ProxyConnectionManagerMBean {
+
+  /**
+   * @return the number of connections currently held by the pool, both in use and idle.
+   */
+  int getConnectionsInPool();
+
+  /**
+   * @return the number of connections in the pool that are currently in use.
+   */
+  int getConnectionsInUse();
+
+  /**
+   * @return the number of connections in the pool that are open and waiting to be used.
+   */
+  int getIdleConnections();
+
+  /**
+   * @return the maximum number of connections in the pool.
+   */
+  int getMaxTotalConnections();
+
+  /**
+   * @return the maximum number of connections to a host that has no specific limit.
+   */
+  int getDefaultMaxConnectionsPerHost();
+
+  /**
+   * @return the number of times a connection has been requested from the pool.
+   */
+  long getConnectionRequests();
+
+  /**
+   * @return the number of connection requests that timed out waiting for the pool.
+   */
+  long getConnectionPoolTimeouts();
+
+  /**
+   * @return the total time in ms spent waiting for connections.
+   */
+  long getTotalConnectionWaitTime();
+
+  /**
+   * @return the longest time in ms a request has waited for a connection.
+   */
+  long getMaxConnectionWaitTime();
+
+  /**
+   * @return the mean time in ms a request has waited for a connection.
+   */
+  double getAverageConnectionWaitTime();
+
+  /**
+   * Reset the request and wait time counters.
+   */
+  void resetStatistics();
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.sakaiproject.nakamura.api.proxy.ProxyClientService.SAKAI_LIMIT_GET_SIZE;
+import static org.sakaiproject.nakamura.api.proxy.ProxyClientService.SAKAI_PROXY_HEADER;
+import static org.sakaiproject.nakamura.api.proxy.ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE;
+import static org.sakaiproject.nakamura.api.proxy.ProxyClientService.SAKAI_REQUEST_CONTENT_TYPE;
+import static org.sakaiproject.nakamura.api.proxy.ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT;
+import static org.sakaiproject.nakamura.api.proxy.ProxyClientService.SAKAI_REQUEST_PROXY_METHOD;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.velocity.Template;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
+import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
+import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
+import org.sakaiproject.nakamura.util.JcrUtils;
+import org.sakaiproject.nakamura.util.MultiValueInputStream;
+import org.sakaiproject.nakamura.util.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * An immutable, compiled form of a proxy node. All the properties of the node that are
+ * needed to make a proxy call are read once, and the endpoint and request body templates
+ * are parsed into Velocity ASTs so that each call only has to merge them with the
+ * request context. Instances are shared between threads and hold no reference to the
+ * JCR session that loaded them.
+ */
+class ProxyDefinition {
+
+  /**
+   * The value used for last modified when the proxy node does not carry a
+   * jcr:lastModified property.
+   */
+  static final long NO_LAST_MODIFIED = -1L;
+
+  private final String path;
+  private final long lastModified;
+  private final Template endpointTemplate;
+  private final ProxyMethod method;
+  private final String contentType;
+  private final Template requestTemplate;
+  private final String[][] headers;
+  private final long limitGetSize;
+
+  private ProxyDefinition(String path, long lastModified, Template endpointTemplate,
+      ProxyMethod method, String contentType, Template requestTemplate,
+      String[][] headers, long limitGetSize) {
+    this.path = path;
+    this.lastModified = lastModified;
+    this.endpointTemplate = endpointTemplate;
+    this.method = method;
+    this.contentType = contentType;
+    this.requestTemplate = requestTemplate;
+    this.headers = headers;
+    this.limitGetSize = limitGetSize;
+  }
+
+  /**
+   * Compile the proxy node into a definition.
+   *
+   * @param node
+   *          the proxy node.
+   * @param lastModified
+   *          the last modified time of the node, as used for the cache key.
+   * @param runtimeServices
+   *          the Velocity runtime used to parse the templates.
+   * @param safePostProcessors
+   *          the post processors that may be used with an endpoint whose host is
+   *          resolved from the request.
+   * @return the compiled definition or null if the node has no endpoint.
+   * @throws ProxyClientException
+   *           if the endpoint is not acceptable or a template can not be parsed.
+   * @throws RepositoryException
+   */
+  static ProxyDefinition compile(Node node, long lastModified,
+      RuntimeServices runtimeServices, Set<String> safePostProcessors)
+      throws ProxyClientException, RepositoryException {
+    if (!node.hasProperty(SAKAI_REQUEST_PROXY_ENDPOINT)) {
+      return null;
+    }
+    String path = node.getPath();
+    String endpointURL = JcrUtils.getMultiValueString(node
+        .getProperty(SAKAI_REQUEST_PROXY_ENDPOINT));
+    if (isUnsafeProxyDefinition(node, safePostProcessors)) {
+      try {
+        URL u = new URL(endpointURL);
+        String host = u.getHost();
+        if (host.indexOf('$') >= 0) {
+          throw new ProxyClientException(
+              "Invalid Endpoint template, relies on request to resolve valid URL " + u);
+        }
+      } catch (MalformedURLException e) {
+        throw new ProxyClientException(
+            "Invalid Endpoint template, relies on request to resolve valid URL", e);
+      }
+    }
+
+    ProxyMethod proxyMethod = ProxyMethod.GET;
+    if (node.hasProperty(SAKAI_REQUEST_PROXY_METHOD)) {
+      try {
+        proxyMethod = ProxyMethod.valueOf(node.getProperty(SAKAI_REQUEST_PROXY_METHOD)
+            .getString());
+      } catch (Exception e) {
+
+      }
+    }
+
+    long limitGetSize = -1;
+    String contentType = null;
+    Template requestTemplate = null;
+    if (proxyMethod == ProxyMethod.GET) {
+      if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
+        limitGetSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+      }
+    } else if (proxyMethod == ProxyMethod.POST || proxyMethod == ProxyMethod.PUT) {
+      if (node.hasProperty(SAKAI_REQUEST_CONTENT_TYPE)) {
+        contentType = node.getProperty(SAKAI_REQUEST_CONTENT_TYPE).getString();
+      }
+      if (node.hasProperty(SAKAI_PROXY_REQUEST_TEMPLATE)) {
+        try {
+          Reader templateReader = new InputStreamReader(new MultiValueInputStream(node
+              .getProperty(SAKAI_PROXY_REQUEST_TEMPLATE)), "UTF-8");
+          requestTemplate = parseTemplate(runtimeServices, path, templateReader);
+        } catch (IOException e) {
+          throw new ProxyClientException("Unable to read the request template of " + path,
+              e);
+        }
+      }
+    }
+
+    Value[] additionalHeaders = JcrUtils.getValues(node, SAKAI_PROXY_HEADER);
+    String[][] headers = new String[additionalHeaders.length][];
+    for (int i = 0; i < additionalHeaders.length; i++) {
+      String[] keyVal = StringUtils.split(additionalHeaders[i].getString(), ':', 2);
+      headers[i] = new String[] { keyVal[0].trim(), keyVal[1].trim() };
+    }
+
+    Template endpointTemplate = parseTemplate(runtimeServices, path + "#endpoint",
+        new StringReader(endpointURL));
+    return new ProxyDefinition(path, lastModified, endpointTemplate, proxyMethod,
+        contentType, requestTemplate, headers, limitGetSize);
+  }
+
+  /**
+   * @param node
+   *          the proxy node.
+   * @return the last modified time of the node or {@link #NO_LAST_MODIFIED}.
+   * @throws RepositoryException
+   */
+  static long getLastModified(Node node) throws RepositoryException {
+    if (node.hasProperty(JcrConstants.JCR_LASTMODIFIED)) {
+      return node.getProperty(JcrConstants.JCR_LASTMODIFIED).getDate().getTimeInMillis();
+    }
+    return NO_LAST_MODIFIED;
+  }
+
+  private static boolean isUnsafeProxyDefinition(Node node,
+      Set<String> safePostProcessors) throws RepositoryException {
+    if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
+      String postProcessorName = node.getProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)
+          .getString();
+      return !safePostProcessors.contains(postProcessorName);
+    }
+    return true;
+  }
+
+  /**
+   * Parse a template into an initialised Velocity template that can be merged
+   * concurrently.
+   */
+  private static Template parseTemplate(RuntimeServices runtimeServices, String name,
+      Reader reader) throws ProxyClientException {
+    try {
+      SimpleNode nodeTree = runtimeServices.parse(reader, name);
+      Template template = new Template();
+      template.setName(name);
+      template.setRuntimeServices(runtimeServices);
+      template.setData(nodeTree);
+      template.initDocument();
+      return template;
+    } catch (Exception e) {
+      throw new ProxyClientException("Unable to parse the template " + name, e);
+    }
+  }
+
+  /**
+   * @param context
+   *          the request context.
+   * @return the endpoint URL with the context merged into it.
+   * @throws IOException
+   */
+  String mergeEndpoint(Context context) throws IOException {
+    StringWriter urlWriter = new StringWriter();
+    endpointTemplate.merge(context, urlWriter);
+    return urlWriter.toString();
+  }
+
+  /**
+   * @param context
+   *          the request context.
+   * @return the request body with the context merged into it, encoded as UTF-8.
+   * @throws IOException
+   */
+  byte[] mergeRequestTemplate(Context context) throws IOException {
+    StringWriter body = new StringWriter();
+    requestTemplate.merge(context, body);
+    return body.toString().getBytes("UTF-8");
+  }
+
+  /**
+   * @return the path of the proxy node this definition was compiled from.
+   */
+  String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the last modified time of the node when it was compiled.
+   */
+  long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * @return the method of the proxy call.
+   */
+  ProxyMethod getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the content type of the request body, or null if not specified.
+   */
+  String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return true if the request body is generated from a template.
+   */
+  boolean hasRequestTemplate() {
+    return requestTemplate != null;
+  }
+
+  /**
+   * @return the additional request headers as name, value pairs.
+   */
+  String[][] getHeaders() {
+    return headers;
+  }
+
+  /**
+   * @return the maximum size of a GET response, or -1 if unlimited.
+   */
+  long getLimitGetSize() {
+    return limitGetSize;
+  }
+
+}
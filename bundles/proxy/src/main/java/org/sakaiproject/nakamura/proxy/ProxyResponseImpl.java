@@ -19,8 +19,11 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.io.IOUtils;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -35,6 +38,7 @@ public class ProxyResponseImpl implements ProxyResponse {
   private HttpMethod method;
   private Map<String, String[]> headers = new HashMap<String, String[]>();
   private String cause;
+  private long maxLength = -1;
 
   /**
    * @param result
@@ -73,6 +77,21 @@ public class ProxyResponseImpl implements ProxyResponse {
   }
 
   /**
+   * @param result
+   * @param method
+   * @param maxLength
+   *          the maximum number of bytes that will be read from the response body, once
+   *          this is reached reading the body fails and the request is aborted.
+   */
+  public ProxyResponseImpl(int result, HttpMethod method, long maxLength) {
+    this(result, method);
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Create a response that was rejected without its body being read, the response has
+   * the headers of the method but no body.
+   *
    * @param scPreconditionFailed
    * @param string
    * @param method2
@@ -103,6 +122,12 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
    */
   public byte[] getResponseBody() throws IOException {
+    if (cause != null) {
+      return null;
+    }
+    if (maxLength >= 0) {
+      return IOUtils.toByteArray(getResponseBodyAsInputStream());
+    }
     return method.getResponseBody();
   }
 
@@ -111,7 +136,14 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
    */
   public InputStream getResponseBodyAsInputStream() throws IOException {
-    return method.getResponseBodyAsStream();
+    if (cause != null) {
+      return null;
+    }
+    InputStream in = method.getResponseBodyAsStream();
+    if (maxLength >= 0 && in != null) {
+      return new LimitedInputStream(in);
+    }
+    return in;
   }
 
   /**
@@ -119,6 +151,13 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
    */
   public String getResponseBodyAsString() throws IOException {
+    if (cause != null) {
+      return null;
+    }
+    if (maxLength >= 0 && method instanceof HttpMethodBase) {
+      return ((HttpMethodBase) method).getResponseBodyAsString((int) Math.min(maxLength,
+          Integer.MAX_VALUE));
+    }
     return method.getResponseBodyAsString();
   }
 
@@ -139,4 +178,46 @@ public class ProxyResponseImpl implements ProxyResponse {
     return cause;
   }
 
+  /**
+   * Fails the read and aborts the request once more than maxLength bytes have been read
+   * from the response.
+   */
+  private class LimitedInputStream extends FilterInputStream {
+
+    private long read;
+
+    LimitedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int c = super.read();
+      if (c >= 0) {
+        count(1);
+      }
+      return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    private void count(int n) throws IOException {
+      read += n;
+      if (read > maxLength) {
+        if (method != null) {
+          method.abort();
+        }
+        throw new IOException("Response too large, the maximum is " + maxLength
+            + " bytes");
+      }
+    }
+  }
+
 }
@@ -20,7 +20,6 @@ package org.sakaiproject.nakamura.proxy;
 import com.ctc.wstx.stax.WstxInputFactory;
 import com.ctc.wstx.stax.WstxOutputFactory;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -29,6 +28,7 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.LookaheadOutputStream.LimitExceededException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,7 +52,9 @@ import javax.xml.stream.events.XMLEvent;
 
 /**
  * Will check if the response we get from an RSS file is valid. It will do basic checks
- * such as checking if the Content-Length is < 10K and Content-Type is a valid type.
+ * such as checking if the Content-Length is < 10M and Content-Type is a valid type. The
+ * feed is streamed to the client as soon as the required RSS elements have been seen,
+ * so only the start of the feed is ever held in memory.
  */
 @Service(value = ProxyPostProcessor.class)
 @Component(label = "ProxyPostProcessor for RSS", description = "Post processor who checks if requests are valid RSS requests.", immediate = true)
@@ -65,6 +67,15 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
   // Maximum size is 10 megabyte.
   private static final int MAX_RSS_LENGTH = 10000000;
+
+  // The feed must be recognised as RSS within this many events and bytes, nothing is
+  // sent to the client until it has been.
+  private static final int MAX_LOOKAHEAD_EVENTS = 100;
+  private static final int MAX_LOOKAHEAD_LENGTH = 1000000;
+
+  // Valid feeds are held back until they are this long, so that most feeds are checked
+  // to be well formed before anything is sent. Longer feeds are streamed.
+  private static final int STREAMING_THRESHOLD = 65536;
   public static final Logger logger = LoggerFactory
       .getLogger(RSSProxyPostProcessor.class);
 
@@ -95,6 +106,13 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     return "rss";
   }
 
+  /**
+   * @return The stream a feed is validated and streamed through.
+   */
+  LookaheadOutputStream createOutputStream() {
+    return new LookaheadOutputStream(MAX_LOOKAHEAD_LENGTH, MAX_RSS_LENGTH);
+  }
+
   public static final Logger log = LoggerFactory.getLogger(RSSProxyPostProcessor.class);
 
   public void process(Map<String, Object> templateParams,
@@ -102,6 +120,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     if ( proxyResponse.getResultCode() == HttpServletResponse.SC_PRECONDITION_FAILED ) {
       response.sendError(HttpServletResponse.SC_FORBIDDEN,
           "This RSS feed is too big ");
+      return;
     }
 
     Map<String, String[]> headers = proxyResponse.getResponseHeaders();
@@ -135,16 +154,14 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     InputStream in = proxyResponse.getResponseBodyAsInputStream();
     InputStreamReader reader = new InputStreamReader(in);
 
-    // XMLStreamWriter writer = null;
+    // Events are written to a bounded lookahead buffer until the feed has been
+    // validated, after that they are streamed straight through to the client.
+    LookaheadOutputStream out = createOutputStream();
     XMLEventWriter writer = null;
-    ByteArrayOutputStream out = null;
 
     int i = 0;
     try {
       XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(reader);
-      // Create a temporary outputstream where we can write to.
-      out = new ByteArrayOutputStream();
-
 
       Map<String, Boolean> checkedElements = new HashMap<String, Boolean>();
       checkedElements.put("rss", false);
@@ -163,6 +180,13 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
         // Stream it to an output stream.
         writer.add(e);
 
+        if (isValid && !out.isAccepted() && out.getLength() > STREAMING_THRESHOLD) {
+          // Large valid feeds start streaming to the client, the rest is checked as it
+          // goes past.
+          writer.flush();
+          acceptFeed(response, proxyResponse, out);
+        }
+
         if (!isValid) {
           if (e.getEventType() == XMLEvent.START_ELEMENT) {
             StartElement el = e.asStartElement();
@@ -183,10 +207,10 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
           }
 
-          if (i > 100) {
+          if (!isValid && i > MAX_LOOKAHEAD_EVENTS) {
             response.sendError(HttpServletResponse.SC_FORBIDDEN,
                 "This file does not match an RSS formatted XML file..");
-            break;
+            return;
           }
           i++;
         }
@@ -196,40 +220,86 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
         response.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid RSS file.");
         return;
       }
+      writer.flush();
+      if (!out.isAccepted()) {
+        acceptFeed(response, proxyResponse, out);
+      }
 
-      // Check if we are not streaming a gigantic file..
-      if (out.size() > MAX_RSS_LENGTH) {
+    } catch (XMLStreamException e) {
+      if (out.isAccepted()) {
+        throw abort(e);
+      }
+      if (isLimitExceeded(e)) {
         response.sendError(HttpServletResponse.SC_FORBIDDEN, "This file is to big.");
-        return;
+      } else {
+        response.sendError(HttpServletResponse.SC_FORBIDDEN,
+            "This is not a valid XML file.");
       }
-
-      for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
-        for (String v : h.getValue()) {
-          response.setHeader(h.getKey(), v);
-        }
+    } catch (LimitExceededException e) {
+      if (out.isAccepted()) {
+        throw abort(e);
       }
-      // We always return 200 when we get to this point.
-      response.setStatus(200);
-      response.setHeader("Content-Length", "" + out.size());
-      // Write the cached stream to the output.
-      out.writeTo(response.getOutputStream());
-
-    } catch (XMLStreamException e) {
-      response.sendError(HttpServletResponse.SC_FORBIDDEN,
-          "This is not a valid XML file.");
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "This file is to big.");
     } catch (Exception e) {
+      if (out.isAccepted()) {
+        throw abort(e);
+      }
       logger.warn("Exception reading RSS feed.");
       response.sendError(HttpServletResponse.SC_FORBIDDEN, "General exception caught.");
     } finally {
-      out.close();
       reader.close();
-      try {
-        writer.close();
-      } catch (XMLStreamException e) {
-        // Not much we can do?
-        e.printStackTrace();
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (XMLStreamException e) {
+          // Not much we can do?
+          logger.debug(e.getMessage(), e);
+        }
       }
     }
 
   }
+
+  /**
+   * Send the headers of a valid feed to the client and start streaming the body.
+   */
+  private void acceptFeed(SlingHttpServletResponse response,
+      ProxyResponse proxyResponse, LookaheadOutputStream out) throws IOException {
+    for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
+      // the body is re-serialized so the length of the original is of no use.
+      if (!"Content-Length".equalsIgnoreCase(h.getKey())
+          && !"Transfer-Encoding".equalsIgnoreCase(h.getKey())) {
+        for (String v : h.getValue()) {
+          response.setHeader(h.getKey(), v);
+        }
+      }
+    }
+    // We always return 200 when we get to this point.
+    response.setStatus(200);
+    out.accept(response.getOutputStream());
+  }
+
+  /**
+   * @return true if the exception was caused by the feed being too long.
+   */
+  private boolean isLimitExceeded(Throwable t) {
+    while (t != null) {
+      if (t instanceof LimitExceededException) {
+        return true;
+      }
+      t = t.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Once the feed has started streaming to the client the response is committed and the
+   * only way to signal a bad feed is to abort the response.
+   */
+  private IOException abort(Exception e) {
+    logger.warn("Aborted streaming RSS feed: {}", e.getMessage());
+    IOException ioe = new IOException("Aborted streaming RSS feed: " + e.getMessage());
+    ioe.initCause(e);
+    return ioe;
+  }
 }
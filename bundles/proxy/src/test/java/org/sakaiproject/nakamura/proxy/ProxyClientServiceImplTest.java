@@ -20,15 +20,25 @@ package org.sakaiproject.nakamura.proxy;
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingConstants;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeInstance;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
@@ -36,11 +46,17 @@ import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.testutils.http.CapturedRequest;
 import org.sakaiproject.nakamura.testutils.http.DummyServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.Map;
 
 import javax.jcr.Binary;
@@ -49,12 +65,20 @@ import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 import javax.jcr.nodetype.PropertyDefinition;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  *
  */
 public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ProxyClientServiceImplTest.class);
+
   /**
    * 
    */
@@ -128,6 +152,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     Node node = createMock(Node.class);
 
     expect(node.getPath()).andReturn("/testing").anyTimes();
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
     expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
         false);
 
@@ -164,6 +189,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     Value value = createMock(Value.class);
 
     expect(node.getPath()).andReturn("/testing").anyTimes();
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
     expect(node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).andReturn(
         false);
     expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
@@ -314,6 +340,11 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         requestMethodProperty);
     expect(requestMethodProperty.getString()).andReturn("PUT");
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_CONTENT_TYPE)).andReturn(
+        false);
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE)).andReturn(
+        false);
 
     dummyServer.setContentType(APPLICATION_SOAP_XML_CHARSET_UTF_8);
     dummyServer.setResponseBody(RESPONSE_BODY);
@@ -357,7 +388,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
   @Test
   public void testInvokeServiceNodeEndPointGetLimitLow() throws ProxyClientException,
       RepositoryException, IOException {
-    testRequest("GET", "HEAD", null, 1);
+    testRequest("GET", "GET", null, 1);
   }
 
   @Test
@@ -425,6 +456,7 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
         requestMethodProperty);
     expect(requestMethodProperty.getString()).andReturn(type);
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
 
     dummyServer.setContentType(APPLICATION_SOAP_XML_CHARSET_UTF_8);
     dummyServer.setResponseBody(body);
@@ -453,4 +485,277 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testProxyDefinitionIsCached() throws Exception {
+    Node node = createProxyNode("/var/proxy/cached", dummyServer.getUrl()
+        + "?q=${stockName}");
+
+    dummyServer.setContentType(APPLICATION_SOAP_XML_CHARSET_UTF_8);
+    dummyServer.setResponseBody(RESPONSE_BODY);
+    replay();
+
+    // the endpoint is only read from the node once, the second call uses the compiled
+    // definition.
+    for (int i = 0; i < 2; i++) {
+      Map<String, Object> input = new HashMap<String, Object>();
+      input.put("stockName", STOCK_NAME + i);
+      ProxyResponse response = proxyClientServiceImpl.executeCall(node,
+          new HashMap<String, String>(), input, null, 0, null);
+      CapturedRequest request = dummyServer.getRequest();
+      assertEquals("Method not correct ", "GET", request.getMethod());
+      assertEquals(RESPONSE_BODY, response.getResponseBodyAsString());
+      response.close();
+    }
+    verify();
+  }
+
+  @Test
+  public void testProxyDefinitionInvalidatedByEvent() throws Exception {
+    Node node = createProxyNode("/var/proxy/changed", dummyServer.getUrl());
+    // the same node, its properties are only read again if the definition was dropped.
+    Node changed = createProxyNode("/var/proxy/changed", dummyServer.getUrl());
+    replay();
+
+    assertNotNull(proxyClientServiceImpl.getProxyDefinition(node));
+    // a change outside /var/proxy doesn't touch the definitions.
+    proxyClientServiceImpl.handleEvent(createResourceEvent(
+        SlingConstants.TOPIC_RESOURCE_CHANGED, "/_user/a/al/alice"));
+    assertEquals(1, proxyClientServiceImpl.getProxyDefinitionCount());
+    assertNotNull(proxyClientServiceImpl.getProxyDefinition(node));
+
+    // a change to the node drops the compiled definition so it is read again.
+    proxyClientServiceImpl.handleEvent(createResourceEvent(
+        SlingConstants.TOPIC_RESOURCE_CHANGED, "/var/proxy/changed"));
+    assertEquals(0, proxyClientServiceImpl.getProxyDefinitionCount());
+    assertNotNull(proxyClientServiceImpl.getProxyDefinition(changed));
+    verify();
+  }
+
+  @Test
+  public void testProxyDefinitionCacheIsBounded() throws Exception {
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("proxy.definition.cache.size", 2);
+    expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    Node[] nodes = new Node[3];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = createProxyNode("/var/proxy/bounded" + i, dummyServer.getUrl());
+    }
+    replay();
+
+    ProxyClientServiceImpl configured = new ProxyClientServiceImpl();
+    configured.activate(componentContext);
+    try {
+      for (Node node : nodes) {
+        assertNotNull(configured.getProxyDefinition(node));
+      }
+      assertEquals(2, configured.getProxyDefinitionCount());
+
+      // removing /var drops everything under /var/proxy.
+      configured.handleEvent(createResourceEvent(SlingConstants.TOPIC_RESOURCE_REMOVED,
+          "/var"));
+      assertEquals(0, configured.getProxyDefinitionCount());
+    } finally {
+      configured.deactivate(null);
+    }
+    verify();
+  }
+
+  private Event createResourceEvent(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, properties);
+  }
+
+  @Test
+  public void testConnectionPoolConfiguration() throws Exception {
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("http.max.total.connections", 50);
+    properties.put("http.max.connections.per.host", "5");
+    properties.put("http.host.max.connections", new String[] { "example.com:8080=12",
+        "broken" });
+    properties.put("http.connect.timeout", 1000);
+    properties.put("http.read.timeout", 2000);
+    properties.put("http.stale.checking", false);
+    expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    replay();
+
+    ProxyClientServiceImpl configured = new ProxyClientServiceImpl();
+    configured.activate(componentContext);
+    try {
+      HttpConnectionManagerParams params = configured.getHttpConnectionManager()
+          .getParams();
+      assertEquals(50, params.getMaxTotalConnections());
+      assertEquals(5, params.getDefaultMaxConnectionsPerHost());
+      HostConfiguration host = new HostConfiguration();
+      host.setHost("example.com", 8080, "http");
+      assertEquals(12, params.getMaxConnectionsPerHost(host));
+      assertEquals(1000, params.getConnectionTimeout());
+      assertEquals(2000, params.getSoTimeout());
+      assertFalse(params.isStaleCheckingEnabled());
+    } finally {
+      configured.deactivate(componentContext);
+    }
+  }
+
+  @Test
+  public void testConnectionPoolMetrics() throws Exception {
+    Node node = createProxyNode("/var/proxy/metrics", dummyServer.getUrl());
+    dummyServer.setContentType(APPLICATION_SOAP_XML_CHARSET_UTF_8);
+    dummyServer.setResponseBody(RESPONSE_BODY);
+    replay();
+
+    ProxyResponse response = proxyClientServiceImpl.executeCall(node,
+        new HashMap<String, String>(), new HashMap<String, Object>(), null, 0, null);
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("org.sakaiproject.nakamura.proxy:type=ConnectionPool");
+    assertEquals(1, mbeanServer.getAttribute(name, "ConnectionsInUse"));
+    assertEquals(0, mbeanServer.getAttribute(name, "IdleConnections"));
+    response.close();
+
+    assertEquals(0, mbeanServer.getAttribute(name, "ConnectionsInUse"));
+    assertEquals(1, mbeanServer.getAttribute(name, "IdleConnections"));
+    assertEquals(1L, mbeanServer.getAttribute(name, "ConnectionRequests"));
+    assertEquals(0L, mbeanServer.getAttribute(name, "ConnectionPoolTimeouts"));
+    assertEquals(100, mbeanServer.getAttribute(name, "MaxTotalConnections"));
+    assertEquals(1, mbeanServer.getAttribute(name, "ConnectionsInPool"));
+    verify();
+  }
+
+  @Test
+  public void testLimitEnforcedWhileReadingBody() throws Exception {
+    // flushing before the body is complete makes jetty send it chunked.
+    DummyServer chunkedServer = new DummyServer() {
+      @Override
+      public void handle(String target, HttpServletRequest request,
+          HttpServletResponse response, int dispatch) throws IOException,
+          ServletException {
+        response.setContentType(APPLICATION_SOAP_XML_CHARSET_UTF_8);
+        response.flushBuffer();
+        super.handle(target, request, response, dispatch);
+      }
+    };
+    chunkedServer.setResponseBody(RESPONSE_BODY);
+    Node node = createMock(Node.class);
+    expect(node.getPath()).andReturn("/var/proxy/limited").anyTimes();
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
+    expect(node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).andReturn(false);
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        true);
+    Property endpointProperty = createNiceMock(Property.class);
+    PropertyDefinition propertyDefinition = createNiceMock(PropertyDefinition.class);
+    Value value = createNiceMock(Value.class);
+    expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        endpointProperty);
+    expect(endpointProperty.getDefinition()).andReturn(propertyDefinition);
+    expect(endpointProperty.getValue()).andReturn(value);
+    expect(value.getString()).andReturn(chunkedServer.getUrl());
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
+        false);
+    expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(true);
+    Property sizeProperty = createNiceMock(Property.class);
+    expect(node.getProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(
+        sizeProperty);
+    expect(sizeProperty.getLong()).andReturn(10L);
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(false);
+
+    replay();
+
+    ProxyResponse response = proxyClientServiceImpl.executeCall(node,
+        new HashMap<String, String>(), new HashMap<String, Object>(), null, 0, null);
+    try {
+      // the body is chunked with no content length, so the response is accepted and the
+      // limit can only apply as the body is read.
+      assertEquals(200, response.getResultCode());
+      assertEquals("chunked", response.getResponseHeaders().get("Transfer-Encoding")[0]);
+      assertNull(response.getResponseHeaders().get("Content-Length"));
+      try {
+        response.getResponseBody();
+        fail("Body should have been rejected as too large");
+      } catch (IOException e) {
+      }
+    } finally {
+      response.close();
+      chunkedServer.close();
+    }
+    assertEquals("GET", chunkedServer.getRequest().getMethod());
+    verify();
+  }
+
+  /**
+   * Compares evaluating the endpoint template from its source on every call, which is
+   * what happened before proxy definitions were compiled, against merging the compiled
+   * definition.
+   */
+  @Test
+  public void testCompiledEndpointBenchmark() throws Exception {
+    String endpoint = "http://www.example.com/service/${stockName}?key=${config.key}"
+        + "#if($start)&start=${start}#end";
+    Node node = createProxyNode("/var/proxy/benchmark", endpoint);
+    replay();
+    ProxyDefinition definition = proxyClientServiceImpl.getProxyDefinition(node);
+    verify();
+
+    RuntimeInstance runtime = new RuntimeInstance();
+    runtime.init();
+    Map<String, Object> config = new HashMap<String, Object>();
+    config.put("key", "secret");
+    int n = 20000;
+
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      VelocityContext context = createBenchmarkContext(config, i);
+      StringWriter writer = new StringWriter();
+      runtime.evaluate(context, writer, "urlprocessing", new StringReader(endpoint));
+    }
+    long evaluated = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    String url = null;
+    for (int i = 0; i < n; i++) {
+      url = definition.mergeEndpoint(createBenchmarkContext(config, i));
+    }
+    long compiled = System.nanoTime() - start;
+
+    assertEquals("http://www.example.com/service/IBM?key=secret&start=" + (n - 1), url);
+    LOGGER.info("Endpoint evaluation of {} calls, parsed each call {} ms, compiled {} ms",
+        new Object[] { n, evaluated / 1000000, compiled / 1000000 });
+  }
+
+  private VelocityContext createBenchmarkContext(Map<String, Object> config, int i) {
+    Map<String, Object> input = new HashMap<String, Object>();
+    input.put("stockName", STOCK_NAME);
+    input.put("start", String.valueOf(i));
+    VelocityContext context = new VelocityContext(input);
+    context.put("config", config);
+    return context;
+  }
+
+  /**
+   * Creates a GET proxy node whose properties can only be read once.
+   */
+  private Node createProxyNode(String path, String endpoint) throws RepositoryException {
+    Node node = createMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    expect(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(false).anyTimes();
+    expect(node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)).andReturn(false);
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        true);
+    Property endpointProperty = createMock(Property.class);
+    PropertyDefinition propertyDefinition = createMock(PropertyDefinition.class);
+    Value value = createMock(Value.class);
+    expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        endpointProperty);
+    expect(endpointProperty.getDefinition()).andReturn(propertyDefinition);
+    expect(propertyDefinition.isMultiple()).andReturn(false);
+    expect(endpointProperty.getValue()).andReturn(value);
+    expect(value.getString()).andReturn(endpoint);
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).andReturn(
+        false);
+    expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(false);
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(false);
+    return node;
+  }
+
 }
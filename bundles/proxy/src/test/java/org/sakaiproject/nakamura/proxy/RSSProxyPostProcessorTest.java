@@ -18,8 +18,13 @@
 package org.sakaiproject.nakamura.proxy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -30,7 +35,17 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
-
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletOutputStream;
@@ -43,6 +58,9 @@ import javax.servlet.http.HttpServletResponse;
 @RunWith(MockitoJUnitRunner.class)
 public class RSSProxyPostProcessorTest {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(RSSProxyPostProcessorTest.class);
+
   RSSProxyPostProcessor proxyPostProcessor;
 
   @Mock
@@ -171,4 +189,214 @@ public class RSSProxyPostProcessorTest {
     when(response.getOutputStream()).thenReturn(responseOutputStream);
   }
 
+  @Test
+  public void streamsValidFeedBeforeItHasBeenFullyRead() throws Exception {
+    //given
+    GeneratedFeedInputStream feed = new GeneratedFeedInputStream(1000000);
+    FirstWriteOutputStream out = new FirstWriteOutputStream(feed);
+    proxyResponseCanReturnHeaders();
+    when(proxyResponse.getResponseBodyAsInputStream()).thenReturn(feed);
+    when(response.getOutputStream()).thenReturn(out);
+
+    //when
+    proxyPostProcessor.activate(null);
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response).setStatus(200);
+    verify(response, never()).sendError(anyInt(), anyString());
+    assertTrue(out.getReadAtFirstWrite() < 100000);
+    assertTrue(out.getWritten() > 1000000);
+  }
+
+  @Test
+  public void abortsFeedThatIsTooLong() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    when(proxyResponse.getResponseBodyAsInputStream()).thenReturn(
+        new GeneratedFeedInputStream(11000000));
+    responseHasOutputStreamAvailable();
+
+    //when
+    proxyPostProcessor.activate(null);
+    try {
+      proxyPostProcessor.process(null, response, proxyResponse);
+      fail("The response should have been aborted");
+    } catch (IOException e) {
+      //then
+      verify(response).setStatus(200);
+    }
+  }
+
+  @Test
+  public void rejectsFeedThatIsNotRssWithinTheLookahead() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    StringBuilder sb = new StringBuilder("<rss><channel>");
+    for (int i = 0; i < 200; i++) {
+      sb.append("<entry>").append(i).append("</entry>");
+    }
+    sb.append("<title>t</title><link>l</link><item/></channel></rss>");
+    when(proxyResponse.getResponseBodyAsInputStream()).thenReturn(
+        new ByteArrayInputStream(sb.toString().getBytes("UTF-8")));
+
+    //when
+    proxyPostProcessor.activate(null);
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response).sendError(eq(HttpServletResponse.SC_FORBIDDEN), anyString());
+    verify(response, never()).getOutputStream();
+  }
+
+  /**
+   * Runs 50 concurrent 5MB feeds through the post processor. Each feed must start
+   * streaming to the client after a small part of it has been read, so the lookahead
+   * buffers hold only that part of each feed, never whole feeds.
+   */
+  @Test
+  public void concurrentLargeFeedsAreStreamed() throws Exception {
+    final List<LookaheadOutputStream> streams = Collections
+        .synchronizedList(new ArrayList<LookaheadOutputStream>());
+    proxyPostProcessor = new RSSProxyPostProcessor() {
+      @Override
+      LookaheadOutputStream createOutputStream() {
+        LookaheadOutputStream stream = super.createOutputStream();
+        streams.add(stream);
+        return stream;
+      }
+    };
+    proxyPostProcessor.activate(null);
+    final int nfeeds = 50;
+    final int feedLength = 5000000;
+    final List<FirstWriteOutputStream> outputs = Collections
+        .synchronizedList(new ArrayList<FirstWriteOutputStream>());
+    final List<Throwable> failures = Collections
+        .synchronizedList(new ArrayList<Throwable>());
+
+    Thread[] threads = new Thread[nfeeds];
+    for (int i = 0; i < nfeeds; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            GeneratedFeedInputStream feed = new GeneratedFeedInputStream(feedLength);
+            FirstWriteOutputStream out = new FirstWriteOutputStream(feed);
+            ProxyResponse feedResponse = mock(ProxyResponse.class);
+            SlingHttpServletResponse clientResponse = mock(SlingHttpServletResponse.class);
+            when(feedResponse.getResponseHeaders()).thenReturn(
+                new HashMap<String, String[]>());
+            when(feedResponse.getResponseBodyAsInputStream()).thenReturn(feed);
+            when(clientResponse.getOutputStream()).thenReturn(out);
+            proxyPostProcessor.process(null, clientResponse, feedResponse);
+            outputs.add(out);
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+
+    assertEquals(failures.toString(), 0, failures.size());
+    assertEquals(nfeeds, outputs.size());
+    for (FirstWriteOutputStream out : outputs) {
+      assertTrue(out.getReadAtFirstWrite() < 100000);
+      assertTrue(out.getWritten() > feedLength);
+    }
+    assertEquals(nfeeds, streams.size());
+    long buffered = 0;
+    for (LookaheadOutputStream stream : streams) {
+      assertTrue(stream.isAccepted());
+      assertTrue(stream.getBuffered() > 0);
+      assertTrue(stream.getBuffered() < 100000);
+      buffered += stream.getBuffered();
+    }
+    LOGGER.info("Streamed {} concurrent feeds of {} bytes, {} KB buffered in total",
+        new Object[] { nfeeds, feedLength, buffered / 1024 });
+  }
+
+  /**
+   * Generates a valid RSS feed of at least the requested length without holding it in
+   * memory.
+   */
+  private static class GeneratedFeedInputStream extends InputStream {
+    private static final byte[] HEAD = bytes("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<rss version=\"2.0\"><channel><title>Generated</title>"
+        + "<link>http://example.com/</link>");
+    private static final byte[] ITEM = bytes("<item><title>An item</title>"
+        + "<link>http://example.com/item</link><description>Lorem ipsum dolor sit amet,"
+        + " consectetur adipisicing elit.</description></item>");
+    private static final byte[] TAIL = bytes("</channel></rss>");
+
+    private final long length;
+    private long read;
+    private byte[] current = HEAD;
+    private int pos;
+    private boolean done;
+
+    GeneratedFeedInputStream(long length) {
+      this.length = length;
+    }
+
+    private static byte[] bytes(String s) {
+      try {
+        return s.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (pos == current.length) {
+        if (done || current == TAIL) {
+          done = true;
+          return -1;
+        }
+        current = (read + TAIL.length < length) ? ITEM : TAIL;
+        pos = 0;
+      }
+      read++;
+      return current[pos++] & 0xff;
+    }
+
+    long getRead() {
+      return read;
+    }
+  }
+
+  /**
+   * Records how much of the feed had been read when the first byte was sent to the
+   * client.
+   */
+  private static class FirstWriteOutputStream extends ServletOutputStream {
+    private final GeneratedFeedInputStream feed;
+    private long readAtFirstWrite = -1;
+    private long written;
+
+    FirstWriteOutputStream(GeneratedFeedInputStream feed) {
+      this.feed = feed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (readAtFirstWrite < 0) {
+        readAtFirstWrite = feed.getRead();
+      }
+      written++;
+    }
+
+    long getReadAtFirstWrite() {
+      return readAtFirstWrite;
+    }
+
+    long getWritten() {
+      return written;
+    }
+  }
+
 }
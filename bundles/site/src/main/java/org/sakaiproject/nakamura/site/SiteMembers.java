@@ -0,0 +1,484 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.sakaiproject.nakamura.api.site.Sort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The members of a site, flattened from the tree of groups that make up the site. Only
+ * the ids and sort names of the members are held, so the index stays small for large
+ * sites and is not tied to the session that built it. Sorted listings are built the first
+ * time a sort is requested and are then kept in order as members join and leave, so a
+ * page of members costs O(page) and the count O(1).
+ */
+public class SiteMembers {
+
+  /**
+   * The parent recorded for authorizables that are named directly by the site.
+   */
+  static final String SITE = "";
+
+  /**
+   * The number of filtered views of the site kept for reuse, one for each set of hidden
+   * groups seen recently.
+   */
+  static final int MAX_VIEWS = 8;
+
+  /**
+   * A user or group in the site.
+   */
+  static class Member {
+    private final String id;
+    private String firstName;
+    private String lastName;
+    private final String profilePath;
+    private final Set<String> parents = new HashSet<String>();
+
+    Member(String id, String firstName, String lastName, String profilePath) {
+      this.id = id;
+      this.firstName = firstName;
+      this.lastName = lastName;
+      this.profilePath = profilePath;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    String getFirstName() {
+      return firstName;
+    }
+
+    String getLastName() {
+      return lastName;
+    }
+
+    String getProfilePath() {
+      return profilePath;
+    }
+
+    private String getField(Sort sort) {
+      String value = null;
+      switch (sort.getField()) {
+      case firstName:
+        value = firstName;
+        break;
+      case lastName:
+        value = lastName;
+        break;
+      case id:
+        value = id;
+        break;
+      }
+      return value == null ? "" : value;
+    }
+  }
+
+  private final String sitePath;
+  private final Map<String, Member> groups = new LinkedHashMap<String, Member>();
+  private final Map<String, Member> users = new LinkedHashMap<String, Member>();
+  private final List<Member> groupList = new ArrayList<Member>();
+  private final List<Member> userList = new ArrayList<Member>();
+  private final Map<String, List<Member>> sortedGroups = new HashMap<String, List<Member>>();
+  private final Map<String, List<Member>> sortedUsers = new HashMap<String, List<Member>>();
+  private final Map<String, Comparator<Member>> comparators = new HashMap<String, Comparator<Member>>();
+  private final Map<Set<String>, SiteMembers> views = new LinkedHashMap<Set<String>, SiteMembers>(
+      MAX_VIEWS, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Set<String>, SiteMembers> eldest) {
+      return size() > MAX_VIEWS;
+    }
+  };
+
+  /**
+   * @param sitePath
+   *          the path of the site.
+   */
+  public SiteMembers(String sitePath) {
+    this.sitePath = sitePath;
+  }
+
+  /**
+   * @return the path of the site.
+   */
+  public String getSitePath() {
+    return sitePath;
+  }
+
+  /**
+   * Add a group to the site.
+   *
+   * @param parent
+   *          the group that declares the group as a member, or {@link #SITE}.
+   * @param groupId
+   *          the group.
+   * @return true if the group was not already in the site, and its members should be
+   *         added.
+   */
+  public synchronized boolean addGroup(String parent, String groupId) {
+    Member group = groups.get(groupId);
+    boolean added = false;
+    views.clear();
+    if (group == null) {
+      group = new Member(groupId, null, null, null);
+      groups.put(groupId, group);
+      groupList.add(group);
+      for (Map.Entry<String, List<Member>> sorted : sortedGroups.entrySet()) {
+        insert(sorted.getValue(), group, comparators.get(sorted.getKey()));
+      }
+      added = true;
+    }
+    group.parents.add(parent);
+    return added;
+  }
+
+  /**
+   * Add a user to the site, or record another route through which the user is a member.
+   *
+   * @param parent
+   *          the group that declares the user as a member, or {@link #SITE}.
+   * @param userId
+   *          the user.
+   * @param firstName
+   *          the first name of the user, may be null.
+   * @param lastName
+   *          the last name of the user, may be null.
+   * @param profilePath
+   *          the path to the profile the names were read from, may be null.
+   * @return true if the user was not already a member of the site.
+   */
+  public synchronized boolean addUser(String parent, String userId, String firstName,
+      String lastName, String profilePath) {
+    Member user = users.get(userId);
+    boolean added = false;
+    views.clear();
+    if (user == null) {
+      user = new Member(userId, firstName, lastName, profilePath);
+      users.put(userId, user);
+      userList.add(user);
+      for (Map.Entry<String, List<Member>> sorted : sortedUsers.entrySet()) {
+        insert(sorted.getValue(), user, comparators.get(sorted.getKey()));
+      }
+      added = true;
+    }
+    user.parents.add(parent);
+    return added;
+  }
+
+  /**
+   * Remove one route through which a user is a member of the site. The user leaves the
+   * site when no routes remain.
+   *
+   * @param parent
+   *          the group the user has left.
+   * @param userId
+   *          the user.
+   * @return true if the user is no longer a member of the site.
+   */
+  public synchronized boolean removeUser(String parent, String userId) {
+    Member user = users.get(userId);
+    if (user == null) {
+      return false;
+    }
+    views.clear();
+    user.parents.remove(parent);
+    if (user.parents.isEmpty()) {
+      removeUser(user);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Remove a user from the site regardless of the groups it belongs to, as when the user
+   * is deleted.
+   *
+   * @param userId
+   *          the user.
+   * @return true if the user was a member of the site.
+   */
+  public synchronized boolean removeUser(String userId) {
+    Member user = users.get(userId);
+    if (user == null) {
+      return false;
+    }
+    removeUser(user);
+    return true;
+  }
+
+  private void removeUser(Member user) {
+    views.clear();
+    for (Map.Entry<String, List<Member>> sorted : sortedUsers.entrySet()) {
+      remove(sorted.getValue(), user, comparators.get(sorted.getKey()));
+    }
+    userList.remove(user);
+    users.remove(user.getId());
+  }
+
+  /**
+   * Change the names of a user, moving the user to its new place in each sorted listing.
+   *
+   * @param userId
+   *          the user.
+   * @param firstName
+   *          the new first name, may be null.
+   * @param lastName
+   *          the new last name, may be null.
+   * @return true if the user is a member of the site.
+   */
+  public synchronized boolean updateUser(String userId, String firstName, String lastName) {
+    Member user = users.get(userId);
+    if (user == null) {
+      return false;
+    }
+    for (Map.Entry<String, List<Member>> sorted : sortedUsers.entrySet()) {
+      remove(sorted.getValue(), user, comparators.get(sorted.getKey()));
+    }
+    views.clear();
+    user.firstName = firstName;
+    user.lastName = lastName;
+    for (Map.Entry<String, List<Member>> sorted : sortedUsers.entrySet()) {
+      insert(sorted.getValue(), user, comparators.get(sorted.getKey()));
+    }
+    return true;
+  }
+
+  /**
+   * @param groupId
+   *          the group.
+   * @return true if the group is part of the site.
+   */
+  public synchronized boolean containsGroup(String groupId) {
+    return groups.containsKey(groupId);
+  }
+
+  /**
+   * @param userId
+   *          the user.
+   * @return true if the user is a member of the site.
+   */
+  public synchronized boolean containsUser(String userId) {
+    return users.containsKey(userId);
+  }
+
+  /**
+   * @param userId
+   *          the user.
+   * @return the profile path recorded for the user, or null.
+   */
+  public synchronized String getProfilePath(String userId) {
+    Member user = users.get(userId);
+    return user == null ? null : user.getProfilePath();
+  }
+
+  /**
+   * @return the ids of the groups in the site.
+   */
+  public synchronized Set<String> getGroupIds() {
+    return new HashSet<String>(groups.keySet());
+  }
+
+  /**
+   * Get the view of the site seen by someone who cannot see some of its groups. Groups
+   * and users that are only members of the site through those groups are left out. Views
+   * are kept for the most recent sets of hidden groups, together with their sorted
+   * listings, until the membership of the site changes.
+   *
+   * @param hiddenGroups
+   *          the groups that cannot be seen.
+   * @return the members that can be seen, or this index if no groups are hidden.
+   */
+  public synchronized SiteMembers without(Set<String> hiddenGroups) {
+    if (hiddenGroups == null || hiddenGroups.isEmpty()) {
+      return this;
+    }
+    SiteMembers view = views.get(hiddenGroups);
+    if (view == null) {
+      Set<String> key = Collections.unmodifiableSet(new HashSet<String>(hiddenGroups));
+      view = buildView(key);
+      views.put(key, view);
+    }
+    return view;
+  }
+
+  private SiteMembers buildView(Set<String> hiddenGroups) {
+    Set<String> visible = new HashSet<String>();
+    visible.add(SITE);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Member group : groupList) {
+        if (!visible.contains(group.getId()) && !hiddenGroups.contains(group.getId())
+            && !Collections.disjoint(group.parents, visible)) {
+          visible.add(group.getId());
+          changed = true;
+        }
+      }
+    }
+    SiteMembers view = new SiteMembers(sitePath);
+    for (Member group : groupList) {
+      if (visible.contains(group.getId())) {
+        for (String parent : group.parents) {
+          if (visible.contains(parent)) {
+            view.addGroup(parent, group.getId());
+          }
+        }
+      }
+    }
+    for (Member user : userList) {
+      for (String parent : user.parents) {
+        if (visible.contains(parent)) {
+          view.addUser(parent, user.getId(), user.getFirstName(), user.getLastName(),
+              user.getProfilePath());
+        }
+      }
+    }
+    return view;
+  }
+
+  /**
+   * @return the number of users in the site.
+   */
+  public synchronized int getUserCount() {
+    return userList.size();
+  }
+
+  /**
+   * @return the number of groups in the site.
+   */
+  public synchronized int getGroupCount() {
+    return groupList.size();
+  }
+
+  /**
+   * @param sort
+   *          the order of the listing, null or empty for the order in which the members
+   *          were found.
+   * @param start
+   *          the first member to list.
+   * @param nitems
+   *          the maximum number of members to list.
+   * @return the ids of a page of users.
+   */
+  public synchronized List<String> getUsers(Sort[] sort, int start, int nitems) {
+    return page(select(userList, sortedUsers, sort), start, nitems);
+  }
+
+  /**
+   * @param sort
+   *          the order of the listing, null or empty for the order in which the groups
+   *          were found.
+   * @param start
+   *          the first group to list.
+   * @param nitems
+   *          the maximum number of groups to list.
+   * @return the ids of a page of groups.
+   */
+  public synchronized List<String> getGroups(Sort[] sort, int start, int nitems) {
+    return page(select(groupList, sortedGroups, sort), start, nitems);
+  }
+
+  private List<Member> select(List<Member> unsorted, Map<String, List<Member>> sortedLists,
+      Sort[] sort) {
+    if (sort == null || sort.length == 0) {
+      return unsorted;
+    }
+    String key = getSortKey(sort);
+    List<Member> sorted = sortedLists.get(key);
+    if (sorted == null) {
+      Comparator<Member> comparator = comparators.get(key);
+      if (comparator == null) {
+        comparator = buildComparator(sort);
+        comparators.put(key, comparator);
+      }
+      sorted = new ArrayList<Member>(unsorted);
+      Collections.sort(sorted, comparator);
+      sortedLists.put(key, sorted);
+    }
+    return sorted;
+  }
+
+  private List<String> page(List<Member> members, int start, int nitems) {
+    List<String> ids = new ArrayList<String>();
+    int end = Math.min(members.size(), start + nitems);
+    for (int i = Math.max(0, start); i < end; i++) {
+      ids.add(members.get(i).getId());
+    }
+    return ids;
+  }
+
+  private static String getSortKey(Sort[] sort) {
+    StringBuilder sb = new StringBuilder();
+    for (Sort s : sort) {
+      sb.append(s.getField()).append(',').append(s.getOrder()).append(';');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Build a comparator that applies each sort in turn, falling back on the id so that the
+   * order is total and members can be found in a sorted listing by binary search.
+   */
+  private static Comparator<Member> buildComparator(final Sort[] sort) {
+    return new Comparator<Member>() {
+      public int compare(Member o1, Member o2) {
+        for (Sort s : sort) {
+          int i = o1.getField(s).compareTo(o2.getField(s));
+          if (i != 0) {
+            switch (s.getOrder()) {
+            case desc:
+              return -i;
+            default:
+              return i;
+            }
+          }
+        }
+        return o1.getId().compareTo(o2.getId());
+      }
+    };
+  }
+
+  private static void insert(List<Member> sorted, Member member,
+      Comparator<Member> comparator) {
+    int i = Collections.binarySearch(sorted, member, comparator);
+    if (i < 0) {
+      sorted.add(-i - 1, member);
+    }
+  }
+
+  private static void remove(List<Member> sorted, Member member,
+      Comparator<Member> comparator) {
+    int i = Collections.binarySearch(sorted, member, comparator);
+    if (i >= 0) {
+      sorted.remove(i);
+    }
+  }
+
+}
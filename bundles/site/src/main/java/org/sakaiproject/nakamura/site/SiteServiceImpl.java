@@ -17,9 +17,9 @@
  */
 package org.sakaiproject.nakamura.site;
 
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
@@ -29,14 +29,22 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.personal.PersonalConstants;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.site.SiteException;
 import org.sakaiproject.nakamura.api.site.SiteService;
 import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
 import org.sakaiproject.nakamura.api.user.AuthorizablePostProcessService;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
@@ -45,10 +53,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.AbstractCollection;
-import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.Item;
 import javax.jcr.Node;
@@ -70,7 +79,7 @@ import javax.servlet.http.HttpServletResponse;
  */
 @Component(immediate = true, label = "%siteService.impl.label", description = "%siteService.impl.desc")
 @Service
-public class SiteServiceImpl implements SiteService {
+public class SiteServiceImpl implements SiteService, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SiteServiceImpl.class);
 
@@ -92,9 +101,37 @@ public class SiteServiceImpl implements SiteService {
   public static final String DEFAULT_SITE = "/sites/default.html";
 
   /**
-   * The maximum size of any list before we truncate. The user is warned.
+   * The number of members above which a site is logged as large when it is indexed.
    */
-  private static final int MAXLISTSIZE = 10000;
+  private static final int LARGE_SITE_SIZE = 10000;
+
+  /**
+   * The maximum number of sites whose membership is held in the index, the least
+   * recently used site is dropped when this is exceeded.
+   */
+  private static final int MAX_INDEXED_SITES = 1000;
+
+  @org.apache.felix.scr.annotations.Property(value = {
+      SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED,
+      AuthorizableEvent.TOPIC + "join", AuthorizableEvent.TOPIC + "part",
+      AuthorizableEvent.TOPIC + "delete" })
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * The membership of recently used sites, keyed by site path and held in access order.
+   * All access is synchronized on the map; the version is incremented with every change
+   * made from an event so that an index built concurrently with the change is not kept.
+   */
+  private final Map<String, SiteMembers> membershipIndex = new LinkedHashMap<String, SiteMembers>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, SiteMembers> eldest) {
+      return size() > MAX_INDEXED_SITES;
+    }
+  };
+  private long membershipIndexVersion;
 
   /**
    * The OSGi Event Admin Service.
@@ -467,19 +504,9 @@ public class SiteServiceImpl implements SiteService {
    */
   public Iterator<Group> getGroups(Node site, int start, int nitems, Sort[] sort)
       throws SiteException {
-    MembershipTree membership = getMembershipTree(site, true);
-    if (sort != null && sort.length > 0) {
-      Comparator<GroupKey> comparitor = buildCompoundComparator(sort);
-      List<GroupKey> sortedList = Lists.sortedCopy(membership.getGroups().keySet(), comparitor);
-      Iterator<GroupKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapGroups(Iterators.limit(sortedIterator, nitems));
-    }
-
-    // no sort requested.
-
-    List<GroupKey> finalList = Lists.immutableList(membership.getGroups().keySet());
-    Iterator<GroupKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapGroups(Iterators.limit(unsortedIterator, nitems));
+    SiteMembers members = getSiteMembers(site);
+    List<Group> groups = resolve(site, members.getGroups(sort, start, nitems), Group.class);
+    return groups.iterator();
   }
 
   public Iterator<Group> unwrapGroups(final Iterator<GroupKey> underlying) {
@@ -506,26 +533,17 @@ public class SiteServiceImpl implements SiteService {
    *      int, org.sakaiproject.nakamura.api.site.Sort[])
    */
   public AbstractCollection<User> getMembers(Node site, int start, int nitems, Sort[] sort) {
-    MembershipTree membership = getMembershipTree(site, true);
-    if (sort != null && sort.length > 0) {
-      Comparator<UserKey> comparitor = buildCompoundComparator(sort);
-      List<UserKey> sortedList = Lists.sortedCopy(membership.getUsers().keySet(), comparitor);
-      Iterator<UserKey> sortedIterator = sortedList.listIterator(start);
-      return returnCollection(sortedIterator, nitems, sortedList.size());
-    }
-
-    // no sort requested.
-    List<UserKey> finalList = Lists.immutableList(membership.getUsers().keySet());
-    Iterator<UserKey> unsortedIterator = finalList.listIterator(start);
-    return returnCollection(unsortedIterator, nitems, finalList.size());
+    SiteMembers members = getSiteMembers(site);
+    List<User> users = resolve(site, members.getUsers(sort, start, nitems), User.class);
+    return returnCollection(users, members.getUserCount());
   }
 
-  private AbstractCollection<User> returnCollection(final Iterator<UserKey> iterator, final int nitems, final int totalSize) {
+  private AbstractCollection<User> returnCollection(final List<User> users, final int totalSize) {
     return new AbstractCollection<User>() {
 
       @Override
       public Iterator<User> iterator() {
-        return unwrapUsers(Iterators.limit(iterator, nitems));
+        return users.iterator();
       }
 
       @Override
@@ -553,205 +571,379 @@ public class SiteServiceImpl implements SiteService {
   }
 
   public int getMemberCount(Node site) {
-    return getMembershipTree(site, false).getUsers().size();
+    return getSiteMembers(site).getUserCount();
   }
 
   /**
-   * Builds a membership tree of users and groups for the site, because of the tree like
-   * nature of membership we may want to think of a more efficient way of performing this
-   * operation, however, there are no queries to perform this and it may be better to have
-   * this in memory. We are taking a google like approach to this operation, limiting the
-   * set to a practical size. If this become a real problem, then we might want to put the
-   * members of a site into a JPA mapped table, although that will require a tree cache
-   * invalidation scheme to keep upto date. Membership is derived not always declared.
-   * 
-   * 
+   * Resolve a page of member ids into authorizables with the session of the site. Members
+   * that can no longer be found, or that the session cannot see, are skipped.
+   *
+   * @param site
+   *          the site, whose session is used to look up the members.
+   * @param ids
+   *          the ids of the members.
+   * @param type
+   *          the type of authorizable expected.
+   * @return the authorizables.
+   */
+  private <T extends Authorizable> List<T> resolve(Node site, List<String> ids,
+      Class<T> type) {
+    List<T> resolved = Lists.newArrayList();
+    try {
+      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
+      for (String id : ids) {
+        Authorizable a = userManager.getAuthorizable(id);
+        if (type.isInstance(a)) {
+          resolved.add(type.cast(a));
+        } else {
+          LOGGER.debug("Site member {} could not be resolved", id);
+        }
+      }
+    } catch (RepositoryException ex) {
+      LOGGER.warn("Failed to resolve members of site ["+site+"] ", ex);
+    }
+    return resolved;
+  }
+
+  /**
+   * Get the members of the site that can be seen with the session of the site node.
+   * Groups in the index that the session cannot see are left out, together with the
+   * members that only belong to the site through them.
+   *
    * @param site
    *          the site
-   * @param lookupProfile
-   *          If a profile should be looked up for all the users of this site. (true will
-   *          be much slower!)
-   * @return a membership tree
+   * @return the members of the site visible to the session.
    */
-  private MembershipTree getMembershipTree(Node site, boolean lookupProfile) {
-    Map<GroupKey, Membership> groups = Maps.newLinkedHashMap();
-    Map<UserKey, Membership> users = Maps.newLinkedHashMap();
+  private SiteMembers getSiteMembers(Node site) {
+    SiteMembers members = getMembershipIndex(site);
     try {
-      Session session = site.getSession();
       UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
-      if (site.hasProperty(SiteService.AUTHORIZABLE)) {
-        Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
-        for (Value v : values) {
-          String id = v.getString();
-          Authorizable a = userManager.getAuthorizable(id);
-          if (a instanceof Group) {
-            // FIXME: a is never a Group Key (bug?)
-            if (!groups.containsKey(a)) {
-              groups.put(new GroupKey((Group) a), new Membership(null, a));
-              populateMembers((Group) a, groups, users, session);
-            }
-          } else if (a instanceof User) {
-            // FIXME: a is never a User Key (bug?)
-            if (!users.containsKey(a)) {
-              Node profileNode = null;
-              if (lookupProfile) {
-                String profilePath = PersonalUtils.getProfilePath(a);
-                try {
-                  profileNode = (Node) session.getItem(profilePath);
-                } catch ( PathNotFoundException e ) {
-                  LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-                }
-              }
-              users.put(new UserKey((User) a, profileNode), new Membership(null, a));
-            }
-          } else if (a == null) {
-            // if a is null
-            LOGGER.warn("Authorizable could not be resolved from id: {}", id);
-          } else {
-            // if a is not one of the known types
-            LOGGER.warn("Cannot handle Authorizable {} of type {}", a,  a
-                .getClass());
+      Set<String> hidden = null;
+      for (String groupId : members.getGroupIds()) {
+        if (userManager.getAuthorizable(groupId) == null) {
+          if (hidden == null) {
+            hidden = Sets.newHashSet();
           }
+          hidden.add(groupId);
         }
+      }
+      return members.without(hidden);
+    } catch (RepositoryException ex) {
+      LOGGER.warn("Failed to check the groups of site ["+site+"] ", ex);
+    }
+    return new SiteMembers(members.getSitePath());
+  }
 
-        // might want to cache the unsorted lists at this point, although they are already
-        // cached by JCR.
-      } else {
-        LOGGER.info(
-            "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
-                .getPath(), SiteService.AUTHORIZABLE);
+  /**
+   * Get the membership index of the site, building it if the site has not been indexed.
+   * The index is shared by all users, so it holds every member of the site and must be
+   * filtered before it is shown, see {@link #getSiteMembers(Node)}. It is kept up to date
+   * from authorizable and resource events, see {@link #handleEvent(Event)}.
+   *
+   * @param site
+   *          the site
+   * @return all the members of the site.
+   */
+  private SiteMembers getMembershipIndex(Node site) {
+    String sitePath = null;
+    long version;
+    try {
+      sitePath = site.getPath();
+      synchronized (membershipIndex) {
+        SiteMembers members = membershipIndex.get(sitePath);
+        if (members != null) {
+          return members;
+        }
+        version = membershipIndexVersion;
       }
+      SiteMembers members = buildSiteMembers(sitePath);
+      synchronized (membershipIndex) {
+        // don't cache an index that may have missed an event while it was being built.
+        if (version == membershipIndexVersion) {
+          membershipIndex.put(sitePath, members);
+        }
+      }
+      return members;
     } catch (RepositoryException ex) {
       // dont change this warn into {} form, doing so will prevent the exception being displayed.
       LOGGER.warn("Failed to build membership Tree for  site ["+site+"] ", ex);
     }
-    return new MembershipTree(groups, users);
+    return new SiteMembers(sitePath);
   }
 
   /**
-   * Build a compound set of comparators for performing sorts.
+   * Builds the membership index of users and groups for the site by walking the tree of
+   * groups named by the site. Membership is derived not always declared. The profile of
+   * each user is read for the names used to sort the members. The walk is done with an
+   * administrative session so the index does not depend on who first asked for it.
    * 
-   * @param sort
-   *          the sort array to base the compound set
-   * @return the first comparator in the set.
+   * @param sitePath
+   *          the path of the site
+   * @return the members of the site.
+   * @throws RepositoryException
    */
-  @SuppressWarnings("unchecked")
-  private <T extends AuthorizableKey> Comparator<T> buildCompoundComparator(Sort[] sort) {
-    if (sort.length == 0) {
-      return null;
+  private SiteMembers buildSiteMembers(String sitePath) throws RepositoryException {
+    Session session = slingRepository.loginAdministrative(null);
+    try {
+      return buildSiteMembers((Node) session.getItem(sitePath), sitePath, session);
+    } finally {
+      session.logout();
     }
-    final Comparator<T>[] comparitors = new Comparator[sort.length];
-    int i = 0;
-    for (final Sort s : sort) {
-
-      final int next = i + 1;
-      comparitors[i++] = new Comparator<T>() {
-
-        /**
-         * Compare the objects
-         */
-        public int compare(T o1, T o2) {
-          try {
-            String c1 = o1.getAuthorizable().getID();
-            String c2 = o2.getAuthorizable().getID();
-            switch (s.getField()) {
-            case firstName:
-              c1 = o1.getFirstName();
-              c2 = o2.getFirstName();
-              break;
-            case id:
-              c1 = o1.getAuthorizable().getID();
-              c2 = o2.getAuthorizable().getID();
-              break;
-            case lastName:
-              c1 = o1.getLastName();
-              c2 = o2.getLastName();
-              break;
-            }
-            switch (s.getOrder()) {
-            case asc:
-              int i = c1.compareTo(c2);
-              if (i == 0) {
-                i = compareNext(o1, o2);
-              }
-              return i;
-            case desc:
-              i = c2.compareTo(c1);
-              if (i == 0) {
-                i = compareNext(o1, o2);
-              }
-              return i;
-            }
-          } catch (RepositoryException e) {
-          }
-          return 0;
-        }
+  }
 
-        /**
-         * Chain to the next comparator in the ordering list.
-         * 
-         * @param o1
-         *          the first object to compare.
-         * @param o2
-         *          the second object to compare.
-         * @return the result of the next comparator in the chain or 0 if this is the last
-         *         one.
-         */
-        private int compareNext(T o1, T o2) {
-          if (next < comparitors.length) {
-            return comparitors[next].compare(o1, o2);
-          }
-          return 0;
+  private SiteMembers buildSiteMembers(Node site, String sitePath, Session session)
+      throws RepositoryException {
+    SiteMembers members = new SiteMembers(sitePath);
+    UserManager userManager = AccessControlUtil.getUserManager(session);
+    if (site.hasProperty(SiteService.AUTHORIZABLE)) {
+      Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
+      for (Value v : values) {
+        String id = v.getString();
+        Authorizable a = userManager.getAuthorizable(id);
+        if (a == null) {
+          LOGGER.warn("Authorizable could not be resolved from id: {}", id);
+        } else if (a instanceof Group || a instanceof User) {
+          addMember(members, SiteMembers.SITE, a, session);
+        } else {
+          // if a is not one of the known types
+          LOGGER.warn("Cannot handle Authorizable {} of type {}", a, a.getClass());
         }
-      };
+      }
+      if (members.getUserCount() > LARGE_SITE_SIZE) {
+        LOGGER.info("Indexed large site {} with {} members", sitePath, members
+            .getUserCount());
+      }
+    } else {
+      LOGGER.info(
+          "Site ({}) does not have Authorizable property ({}) and thus has no memberships",
+          sitePath, SiteService.AUTHORIZABLE);
     }
-    return comparitors[0];
+    return members;
   }
 
   /**
-   * Recursively build a list of groups for the group avoiding duplicates or infinite
-   * recursion.
+   * Add an authorizable to the membership index, recursing into the members of groups
+   * that are new to the site.
    * 
-   * @param group
-   *          the group for which we want to know all members.
-   * @param groups
-   *          the groups associated with the site.
-   * @param users
-   *          the users associated with the sites, extracted from groups
+   * @param members
+   *          the index being built.
+   * @param parent
+   *          the id of the group declaring the authorizable, or {@link SiteMembers#SITE}.
+   * @param a
+   *          the authorizable.
    * @param session
    *          the session to grab the profile node for users.
    * @throws RepositoryException
    */
-  private void populateMembers(Group group, Map<GroupKey, Membership> groups,
-      Map<UserKey, Membership> users, Session session) throws RepositoryException {
-    for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
-      Authorizable a = igm.next();
-      // FIXME: a is not a GroupKey, so this can never be true (Bug?)
-      if (!groups.containsKey(a)) {
-        if (a instanceof Group) {
-          groups.put(new GroupKey((Group) a), new Membership(group, a));
-          populateMembers((Group) a, groups, users, session);
-        } else {
-          String profilePath = PersonalUtils.getProfilePath(a);
+  private void addMember(SiteMembers members, String parent, Authorizable a,
+      Session session) throws RepositoryException {
+    String id = a.getID();
+    if (a instanceof Group) {
+      if (members.addGroup(parent, id)) {
+        for (Iterator<Authorizable> igm = ((Group) a).getDeclaredMembers(); igm.hasNext();) {
+          addMember(members, id, igm.next(), session);
+        }
+      }
+    } else if (!members.containsUser(id)) {
+      String profilePath = PersonalUtils.getProfilePath(a);
+      Node profileNode = null;
+      try {
+        profileNode = (Node) session.getItem(profilePath);
+      } catch (PathNotFoundException e) {
+        LOGGER.warn("User {} does not have a profile at {} ", id, profilePath);
+      }
+      LOGGER.debug("Populate Members adding profile {} {} ", profileNode, profilePath);
+      members.addUser(parent, id, getMemberName(a, profileNode, SortField.firstName),
+          getMemberName(a, profileNode, SortField.lastName), profilePath);
+    } else {
+      members.addUser(parent, id, null, null, null);
+    }
+  }
+
+  private String getProfileName(Node profileNode, SortField field)
+      throws RepositoryException {
+    if (profileNode != null && profileNode.hasProperty(field.toString())) {
+      return profileNode.getProperty(field.toString()).getString();
+    }
+    return null;
+  }
+
+  /**
+   * Get a name of a member from its profile, or from the properties of the user if it has
+   * no profile.
+   */
+  private String getMemberName(Authorizable a, Node profileNode, SortField field)
+      throws RepositoryException {
+    if (profileNode == null) {
+      if (a.hasProperty(field.toString())) {
+        return a.getProperty(field.toString())[0].getString();
+      }
+      return null;
+    }
+    return getProfileName(profileNode, field);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * Keeps the membership index up to date. Users joining and leaving groups, users being
+   * deleted and changes to profile names are applied to the indexed sites directly; changes
+   * to the groups within a site or to the site node itself cause the site to be indexed
+   * again when it is next used.
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    try {
+      if (topic.startsWith(AuthorizableEvent.TOPIC)) {
+        handleAuthorizableEvent(topic, event);
+      } else {
+        handleResourceEvent(topic, (String) event.getProperty(SlingConstants.PROPERTY_PATH));
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to update the site membership index, clearing it", e);
+      clearMembershipIndex();
+    }
+  }
+
+  private void handleAuthorizableEvent(String topic, Event event)
+      throws RepositoryException {
+    String principal = (String) event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    if (principal == null) {
+      return;
+    }
+    Object user = event.getProperty(AuthorizableEvent.USER);
+    if (Operation.join.getTopic().equals(topic) && user instanceof User) {
+      String userId = ((User) user).getID();
+      List<SiteMembers> sites = getIndexedSites(principal, null);
+      if (!sites.isEmpty()) {
+        Session adminSession = slingRepository.loginAdministrative(null);
+        try {
+          Authorizable a = AccessControlUtil.getUserManager(adminSession).getAuthorizable(
+              userId);
+          if (a != null) {
+            String profilePath = PersonalUtils.getProfilePath(a);
+            Node profileNode = null;
+            if (adminSession.itemExists(profilePath)) {
+              profileNode = (Node) adminSession.getItem(profilePath);
+            }
+            String firstName = getMemberName(a, profileNode, SortField.firstName);
+            String lastName = getMemberName(a, profileNode, SortField.lastName);
+            synchronized (membershipIndex) {
+              membershipIndexVersion++;
+              for (SiteMembers members : sites) {
+                members.addUser(principal, userId, firstName, lastName, profilePath);
+              }
+            }
+          }
+        } finally {
+          adminSession.logout();
+        }
+      }
+    } else if (Operation.part.getTopic().equals(topic) && user instanceof User) {
+      String userId = ((User) user).getID();
+      synchronized (membershipIndex) {
+        membershipIndexVersion++;
+        for (SiteMembers members : getIndexedSites(principal, null)) {
+          members.removeUser(principal, userId);
+        }
+      }
+    } else if (Operation.join.getTopic().equals(topic)
+        || Operation.part.getTopic().equals(topic)) {
+      // a group joined or left a group, the event does not say which so the sub tree
+      // can't be found.
+      clearMembershipIndex();
+    } else if (Operation.delete.getTopic().equals(topic)) {
+      synchronized (membershipIndex) {
+        membershipIndexVersion++;
+        for (SiteMembers members : getIndexedSites(principal, null)) {
+          membershipIndex.remove(members.getSitePath());
+        }
+        for (SiteMembers members : getIndexedSites(null, principal)) {
+          members.removeUser(principal);
+        }
+      }
+    }
+  }
+
+  private void handleResourceEvent(String topic, String path) throws RepositoryException {
+    if (path == null) {
+      return;
+    }
+    if (path.endsWith("/" + PersonalConstants.AUTH_PROFILE)) {
+      // the profile of a user, which holds the names members are sorted by.
+      String home = PathUtils.getParentReference(PathUtils.getParentReference(path));
+      String userId = home.substring(home.lastIndexOf('/') + 1);
+      List<SiteMembers> sites = Lists.newArrayList();
+      for (SiteMembers members : getIndexedSites(null, userId)) {
+        if (path.equals(members.getProfilePath(userId))) {
+          sites.add(members);
+        }
+      }
+      if (!sites.isEmpty()) {
+        Session adminSession = slingRepository.loginAdministrative(null);
+        try {
           Node profileNode = null;
-          try {
-            profileNode = (Node) session.getItem(profilePath);
-          } catch ( PathNotFoundException e ) {
-            LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
+          if (adminSession.itemExists(path)) {
+            profileNode = (Node) adminSession.getItem(path);
+          }
+          String firstName = getProfileName(profileNode, SortField.firstName);
+          String lastName = getProfileName(profileNode, SortField.lastName);
+          for (SiteMembers members : sites) {
+            members.updateUser(userId, firstName, lastName);
           }
-          LOGGER.debug("Populate Members adding profile {} {} ",profileNode,profilePath);
-          users.put(new UserKey((User) a, profileNode), new Membership(group, a));
+        } finally {
+          adminSession.logout();
         }
       }
-      if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
-        LOGGER
-            .warn("Large site listing, please consider using dynamic membership rather than explicit members groups parent Group {} "
-                + group.getID());
-        return;
+    } else {
+      synchronized (membershipIndex) {
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+          String prefix = path + "/";
+          for (Iterator<String> i = membershipIndex.keySet().iterator(); i.hasNext();) {
+            String sitePath = i.next();
+            if (sitePath.equals(path) || sitePath.startsWith(prefix)) {
+              membershipIndexVersion++;
+              i.remove();
+            }
+          }
+        } else if (membershipIndex.containsKey(path)) {
+          // the authorizables of the site may have changed.
+          membershipIndexVersion++;
+          membershipIndex.remove(path);
+        }
       }
     }
   }
 
+  /**
+   * @param groupId
+   *          if not null, find the sites containing this group.
+   * @param userId
+   *          if not null, find the sites containing this user.
+   * @return the indexed sites that contain the group or user.
+   */
+  private List<SiteMembers> getIndexedSites(String groupId, String userId) {
+    List<SiteMembers> sites = Lists.newArrayList();
+    synchronized (membershipIndex) {
+      for (SiteMembers members : membershipIndex.values()) {
+        if ((groupId != null && members.containsGroup(groupId))
+            || (userId != null && members.containsUser(userId))) {
+          sites.add(members);
+        }
+      }
+    }
+    return sites;
+  }
+
+  private void clearMembershipIndex() {
+    synchronized (membershipIndex) {
+      membershipIndexVersion++;
+      membershipIndex.clear();
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
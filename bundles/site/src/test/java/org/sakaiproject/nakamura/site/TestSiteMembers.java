@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ *
+ */
+public class TestSiteMembers {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TestSiteMembers.class);
+
+  private static final Sort[] BY_LAST_NAME = new Sort[] {
+      new Sort(SortField.lastName, SortOrder.asc),
+      new Sort(SortField.firstName, SortOrder.asc) };
+
+  private SiteMembers members;
+
+  @Before
+  public void setUp() {
+    members = new SiteMembers("/sites/physics");
+    members.addGroup(SiteMembers.SITE, "physics-students");
+    members.addGroup(SiteMembers.SITE, "physics-tutors");
+    members.addUser("physics-students", "carol", "Carol", "Young", null);
+    members.addUser("physics-students", "alice", "Alice", "Smith", null);
+    members.addUser("physics-tutors", "bob", "Bob", "Jones", null);
+  }
+
+  @Test
+  public void testUnsortedPage() {
+    assertEquals(Arrays.asList("carol", "alice", "bob"), members.getUsers(null, 0, 10));
+    assertEquals(Arrays.asList("alice"), members.getUsers(new Sort[0], 1, 1));
+    assertEquals(0, members.getUsers(null, 5, 10).size());
+    assertEquals(Arrays.asList("physics-students", "physics-tutors"), members.getGroups(
+        null, 0, 10));
+    assertEquals(3, members.getUserCount());
+    assertEquals(2, members.getGroupCount());
+  }
+
+  @Test
+  public void testSortedPage() {
+    assertEquals(Arrays.asList("bob", "alice", "carol"), members.getUsers(BY_LAST_NAME, 0,
+        10));
+    assertEquals(Arrays.asList("carol", "alice"), members.getUsers(new Sort[] { new Sort(
+        SortField.lastName, SortOrder.desc) }, 0, 2));
+    assertEquals(Arrays.asList("bob", "carol"), members.getUsers(new Sort[] { new Sort(
+        SortField.id, SortOrder.asc) }, 1, 5));
+    assertEquals(Arrays.asList("physics-tutors", "physics-students"), members.getGroups(
+        new Sort[] { new Sort(SortField.id, SortOrder.desc) }, 0, 5));
+  }
+
+  @Test
+  public void testJoinAndLeave() {
+    // build the sorted listing before the changes.
+    members.getUsers(BY_LAST_NAME, 0, 10);
+
+    assertTrue(members.addUser("physics-tutors", "dave", "Dave", "Adams", null));
+    assertFalse(members.addUser("physics-tutors", "alice", "Alice", "Smith", null));
+    assertEquals(4, members.getUserCount());
+    assertEquals(Arrays.asList("dave", "bob", "alice", "carol"), members.getUsers(
+        BY_LAST_NAME, 0, 10));
+
+    // alice is still a student.
+    assertFalse(members.removeUser("physics-tutors", "alice"));
+    assertTrue(members.containsUser("alice"));
+    assertTrue(members.removeUser("physics-students", "alice"));
+    assertFalse(members.containsUser("alice"));
+    assertEquals(Arrays.asList("dave", "bob", "carol"), members.getUsers(BY_LAST_NAME, 0,
+        10));
+
+    assertTrue(members.removeUser("dave"));
+    assertEquals(2, members.getUserCount());
+    assertEquals(Arrays.asList("carol", "bob"), members.getUsers(null, 0, 10));
+  }
+
+  @Test
+  public void testRename() {
+    members.getUsers(BY_LAST_NAME, 0, 10);
+    assertTrue(members.updateUser("carol", "Carol", "Brown"));
+    assertFalse(members.updateUser("nobody", "No", "Body"));
+    assertEquals(Arrays.asList("carol", "bob", "alice"), members.getUsers(BY_LAST_NAME, 0,
+        10));
+  }
+
+  @Test
+  public void testWithoutHiddenGroups() {
+    members.addUser(SiteMembers.SITE, "dave", "Dave", "Brown", null);
+    members.addUser("physics-tutors", "alice", "Alice", "Smith", null);
+    SiteMembers view = members.without(Collections.singleton("physics-students"));
+    assertEquals(Arrays.asList("physics-tutors"), view.getGroups(null, 0, 10));
+    assertEquals(Arrays.asList("dave", "bob", "alice"), view.getUsers(BY_LAST_NAME, 0, 10));
+    assertEquals(3, view.getUserCount());
+    // the index itself is left alone.
+    assertEquals(4, members.getUserCount());
+    assertTrue(members == members.without(Collections.<String> emptySet()));
+  }
+
+  @Test
+  public void testViewsAreReusedUntilMembershipChanges() {
+    SiteMembers view = members.without(Collections.singleton("physics-students"));
+    assertTrue(view == members.without(new HashSet<String>(Arrays
+        .asList("physics-students"))));
+    assertFalse(view == members.without(Collections.singleton("physics-tutors")));
+
+    members.addUser("physics-tutors", "dave", "Dave", "Brown", null);
+    SiteMembers changed = members.without(Collections.singleton("physics-students"));
+    assertFalse(view == changed);
+    assertEquals(Arrays.asList("bob", "dave"), changed.getUsers(null, 0, 10));
+
+    members.updateUser("dave", "Dave", "Adams");
+    changed = members.without(Collections.singleton("physics-students"));
+    assertEquals(Arrays.asList("dave", "bob"), changed.getUsers(BY_LAST_NAME, 0, 10));
+
+    members.removeUser("physics-tutors", "dave");
+    assertEquals(Arrays.asList("bob"), members.without(
+        Collections.singleton("physics-students")).getUsers(BY_LAST_NAME, 0, 10));
+  }
+
+  @Test
+  public void testLargeSiteBenchmark() {
+    int size = 50000;
+    SiteMembers course = new SiteMembers("/sites/course");
+    course.addGroup(SiteMembers.SITE, "course-students");
+    List<String[]> names = new ArrayList<String[]>();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < size; i++) {
+      String[] name = new String[] { "user" + i, "First" + (i * 7919 % size),
+          "Last" + (i * 104729 % size) };
+      names.add(name);
+      course.addUser("course-students", name[0], name[1], name[2], null);
+    }
+    long index = System.currentTimeMillis() - start;
+
+    // what each request used to do, sort a copy of the whole membership.
+    Comparator<String[]> byLastName = new Comparator<String[]>() {
+      public int compare(String[] o1, String[] o2) {
+        int i = o1[2].compareTo(o2[2]);
+        return i == 0 ? o1[1].compareTo(o2[1]) : i;
+      }
+    };
+    start = System.currentTimeMillis();
+    for (int i = 0; i < 20; i++) {
+      List<String[]> sorted = new ArrayList<String[]>(names);
+      Collections.sort(sorted, byLastName);
+    }
+    long resort = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(25, course.getUsers(BY_LAST_NAME, (i * 25) % size, 25).size());
+      assertEquals(size, course.getUserCount());
+    }
+    long pages = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      course.addUser("course-students", "late" + i, "Late", "Joiner" + i, null);
+    }
+    for (int i = 0; i < 1000; i++) {
+      course.removeUser("course-students", "late" + i);
+    }
+    long changes = System.currentTimeMillis() - start;
+    assertEquals(size, course.getUserCount());
+
+    LOGGER.info("Site with {} members:", size);
+    LOGGER.info("  indexing took {} ms", index);
+    LOGGER.info("  20 full sorts, as done per request before, took {} ms", resort);
+    LOGGER.info("  1000 sorted pages and counts from the index took {} ms", pages);
+    LOGGER.info("  1000 joins and 1000 leaves took {} ms", changes);
+  }
+
+}
@@ -3,6 +3,7 @@ package org.sakaiproject.nakamura.site;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
@@ -14,16 +15,26 @@ import org.apache.sling.commons.testing.jcr.MockValue;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.easymock.EasyMock;
 import org.junit.Test;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.api.site.Sort;
 import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
@@ -39,9 +50,12 @@ public class TestSiteService extends AbstractEasyMockTest {
     Node siteNode = createMock(Node.class);
     JackrabbitSession session = createMock(JackrabbitSession.class);
     expect(siteNode.getSession()).andReturn(session).anyTimes();
-    expect(session.getUserManager()).andReturn(userManager);
+    expect(siteNode.getPath()).andReturn("/sites/test").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    JackrabbitSession adminSession = createAdminSession(slingRepository, siteNode,
+        userManager);
     Node profileNode = createMock(Node.class);
-    expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(profileNode).anyTimes();
+    expect(adminSession.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(profileNode).anyTimes();
     expect(profileNode.hasProperty(SortField.firstName.toString())).andReturn(true).anyTimes();
     expect(profileNode.hasProperty(SortField.lastName.toString())).andReturn(true).anyTimes();
     Property prop = createMock(Property.class);
@@ -53,8 +67,10 @@ public class TestSiteService extends AbstractEasyMockTest {
 
     Group group1 = createMock(Group.class);
     Group group2 = createMock(Group.class);
-    expect(userManager.getAuthorizable("group1")).andReturn(group1);
-    expect(userManager.getAuthorizable("group2")).andReturn(group2);
+    expect(userManager.getAuthorizable("group1")).andReturn(group1).anyTimes();
+    expect(userManager.getAuthorizable("group2")).andReturn(group2).anyTimes();
+    Iterator<Authorizable> admin = createUserIterator("admin");
+    expect(userManager.getAuthorizable("admin")).andReturn(admin.next());
     expect(group1.getDeclaredMembers()).andReturn(createUserIterator("admin"));
     expect(group1.getID()).andReturn("group1").anyTimes();
     expect(group2.getDeclaredMembers()).andReturn(createUserIterator("admin"));
@@ -74,6 +90,123 @@ public class TestSiteService extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testMembershipIndexUpdatedFromEvents() throws RepositoryException {
+    UserManager userManager = createMock(UserManager.class);
+    UserManager adminUserManager = createMock(UserManager.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.slingRepository = slingRepository;
+    Node siteNode = createMock(Node.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(siteNode.getSession()).andReturn(session).anyTimes();
+    expect(siteNode.getPath()).andReturn("/sites/test").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    // the site is only walked once.
+    JackrabbitSession adminSession = createAdminSession(slingRepository, siteNode,
+        adminUserManager);
+    expect(adminSession.getItem(EasyMock.isA(String.class))).andThrow(
+        new PathNotFoundException()).anyTimes();
+    addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] { new MockValue("group1") });
+
+    Group group1 = createMock(Group.class);
+    expect(adminUserManager.getAuthorizable("group1")).andReturn(group1);
+    expect(userManager.getAuthorizable("group1")).andReturn(group1).anyTimes();
+    List<Authorizable> members = new ArrayList<Authorizable>();
+    members.add(createUserIterator("alice").next());
+    members.add(createUserIterator("bob").next());
+    for (Authorizable member : members) {
+      expect(member.hasProperty(isA(String.class))).andReturn(false).anyTimes();
+    }
+    expect(group1.getDeclaredMembers()).andReturn(members.iterator());
+    expect(group1.getID()).andReturn("group1").anyTimes();
+    User bob = createMock(User.class);
+    expect(bob.getID()).andReturn("bob").anyTimes();
+
+    replay();
+    assertEquals(2, siteService.getMemberCount(siteNode));
+    assertEquals(2, siteService.getMemberCount(siteNode));
+
+    siteService.handleEvent(createGroupEvent(Operation.part, "group1", bob));
+    assertEquals(1, siteService.getMemberCount(siteNode));
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(AuthorizableEvent.PRINCIPAL_NAME, "alice");
+    siteService.handleEvent(new Event(Operation.delete.getTopic(), properties));
+    assertEquals(0, siteService.getMemberCount(siteNode));
+    verify();
+  }
+
+  @Test
+  public void testMembersOfHiddenGroupsAreFiltered() throws RepositoryException {
+    UserManager userManager = createMock(UserManager.class);
+    UserManager adminUserManager = createMock(UserManager.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.slingRepository = slingRepository;
+    Node siteNode = createMock(Node.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(siteNode.getSession()).andReturn(session).anyTimes();
+    expect(siteNode.getPath()).andReturn("/sites/test").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    JackrabbitSession adminSession = createAdminSession(slingRepository, siteNode,
+        adminUserManager);
+    expect(adminSession.getItem(EasyMock.isA(String.class))).andThrow(
+        new PathNotFoundException()).anyTimes();
+    addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] {
+        new MockValue("public"), new MockValue("private") });
+
+    Group publicGroup = createMock(Group.class);
+    Group privateGroup = createMock(Group.class);
+    expect(publicGroup.getID()).andReturn("public").anyTimes();
+    expect(privateGroup.getID()).andReturn("private").anyTimes();
+    expect(adminUserManager.getAuthorizable("public")).andReturn(publicGroup);
+    expect(adminUserManager.getAuthorizable("private")).andReturn(privateGroup);
+    Authorizable alice = createUserIterator("alice").next();
+    expect(alice.hasProperty(SortField.firstName.toString())).andReturn(true).anyTimes();
+    expect(alice.getProperty(SortField.firstName.toString())).andReturn(
+        new Value[] { new MockValue("Alice") }).anyTimes();
+    expect(alice.hasProperty(SortField.lastName.toString())).andReturn(false).anyTimes();
+    Authorizable bob = createUserIterator("bob").next();
+    expect(bob.hasProperty(isA(String.class))).andReturn(false).anyTimes();
+    List<Authorizable> publicMembers = new ArrayList<Authorizable>();
+    publicMembers.add(alice);
+    expect(publicGroup.getDeclaredMembers()).andReturn(publicMembers.iterator());
+    List<Authorizable> privateMembers = new ArrayList<Authorizable>();
+    privateMembers.add(bob);
+    expect(privateGroup.getDeclaredMembers()).andReturn(privateMembers.iterator());
+    // the caller can't see the private group.
+    expect(userManager.getAuthorizable("public")).andReturn(publicGroup).anyTimes();
+    expect(userManager.getAuthorizable("private")).andReturn(null).anyTimes();
+    expect(userManager.getAuthorizable("alice")).andReturn(alice).anyTimes();
+
+    replay();
+    assertEquals(1, siteService.getMemberCount(siteNode));
+    Iterator<User> users = siteService.getMembers(siteNode, 0, 10,
+        new Sort[] { new Sort(SortField.firstName, SortOrder.asc) }).iterator();
+    assertEquals("alice", users.next().getID());
+    assertFalse(users.hasNext());
+    verify();
+  }
+
+  private JackrabbitSession createAdminSession(SlingRepository slingRepository,
+      Node siteNode, UserManager userManager) throws RepositoryException {
+    JackrabbitSession adminSession = createMock(JackrabbitSession.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession);
+    expect(adminSession.getItem("/sites/test")).andReturn(siteNode);
+    expect(adminSession.getUserManager()).andReturn(userManager);
+    adminSession.logout();
+    return adminSession;
+  }
+
+  private Event createGroupEvent(Operation operation, String group, User user) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(AuthorizableEvent.OPERATION, operation);
+    properties.put(AuthorizableEvent.PRINCIPAL_NAME, group);
+    properties.put(AuthorizableEvent.USER, user);
+    return new Event(operation.getTopic(), properties);
+  }
+
   private Iterator<Authorizable> createUserIterator(String userName) throws RepositoryException {
     final User mockUser = createMock(User.class);
     expect(mockUser.getID()).andReturn(userName).anyTimes();
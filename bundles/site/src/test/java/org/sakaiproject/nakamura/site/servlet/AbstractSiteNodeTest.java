@@ -71,6 +71,7 @@ public abstract class AbstractSiteNodeTest extends AbstractSiteServiceServletTes
     expect(node.getPath()).andReturn(SITE_PATH).anyTimes();
     expect(node.getName()).andReturn("sitename").anyTimes();
     expect(node.getSession()).andReturn(session).anyTimes();
+    expect(session.getItem(SITE_PATH)).andReturn(node).anyTimes();
     expect(session.getAccessControlManager()).andReturn(accessControlManager).anyTimes();
   }
   
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The local recipients and message stores an alias was last resolved to, so that the
+ * accept and deliver of a message and the messages that follow it don't expand the alias
+ * again. The least recently used aliases are dropped once the cache is full. All access
+ * is synchronized on the cache.
+ */
+class RecipientCache {
+
+  private final Map<String, Map<String, String>> aliases;
+
+  /**
+   * Incremented every time the cache is cleared, so that an alias resolved while it was
+   * cleared is not kept.
+   */
+  private long generation;
+
+  /**
+   * @param maxSize
+   *          The number of aliases that are kept.
+   */
+  RecipientCache(final int maxSize) {
+    aliases = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param alias
+   *          The local part of the address.
+   * @return The recipients of the alias mapped to the path of their message stores, or
+   *         null if the alias has not been resolved since the cache was last cleared.
+   */
+  synchronized Map<String, String> get(String alias) {
+    return aliases.get(alias);
+  }
+
+  /**
+   * @return The generation to pass to {@link #put(String, Map, long)}, taken before the
+   *         alias is resolved.
+   */
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Keeps what an alias resolved to, unless the cache was cleared since the resolution
+   * started.
+   *
+   * @param alias
+   *          The local part of the address.
+   * @param stores
+   *          The recipients of the alias mapped to the path of their message stores. This
+   *          is shared, it must not be modified.
+   * @param generation
+   *          The generation when the resolution started.
+   */
+  synchronized void put(String alias, Map<String, String> stores, long generation) {
+    if (generation == this.generation) {
+      aliases.put(alias, stores);
+    }
+  }
+
+  /**
+   * Drops every alias.
+   */
+  synchronized void clear() {
+    aliases.clear();
+    generation++;
+  }
+
+  synchronized int size() {
+    return aliases.size();
+  }
+}
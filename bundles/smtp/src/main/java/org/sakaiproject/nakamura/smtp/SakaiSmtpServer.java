@@ -5,11 +5,17 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingService;
+import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.TooMuchDataException;
@@ -21,9 +27,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -39,11 +48,24 @@ import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMultipart;
 
+/**
+ * Receives mail for the local domains and writes it to the message stores of the local
+ * recipients. The recipients and stores an alias resolves to are cached until an
+ * authorizable or a site changes. A message is read once however many recipients it has,
+ * and each recipient gets a copy in its own store that shares the binaries of the body
+ * and the parts with the other copies.
+ */
 @Component(immediate = true, metatype = true)
-public class SakaiSmtpServer implements SimpleMessageListener {
+@Service(value = EventHandler.class)
+public class SakaiSmtpServer implements SimpleMessageListener, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SakaiSmtpServer.class);
   private static final int MAX_PROPERTY_SIZE = 32 * 1024;
+  private static final int DEFAULT_RECIPIENT_CACHE_SIZE = 1000;
+  /**
+   * The number of copies of a message that are written before the session is saved.
+   */
+  private static final int SAVE_BATCH_SIZE = 100;
 
   private SMTPServer server;
 
@@ -59,16 +81,31 @@ public class SakaiSmtpServer implements SimpleMessageListener {
   @Property(intValue=8025)
   private static String SMTP_SERVER_PORT = "smtp.port";
 
+  @Property(intValue = DEFAULT_RECIPIENT_CACHE_SIZE, description = "The number of aliases whose recipients are kept.")
+  static final String RECIPIENT_CACHE_SIZE = "smtp.recipient.cache.size";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
+  @Property(value = { AuthorizableEvent.TOPIC + "create", AuthorizableEvent.TOPIC + "join",
+      AuthorizableEvent.TOPIC + "part", AuthorizableEvent.TOPIC + "delete",
+      SiteService.SiteEvent.TOPIC + "created" })
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
   private Set<String> domains = new HashSet<String>();
 
+  private RecipientCache recipientCache = new RecipientCache(DEFAULT_RECIPIENT_CACHE_SIZE);
+
   public void activate(ComponentContext context) throws Exception {
     Integer port = (Integer) context.getProperties().get(SMTP_SERVER_PORT);
     if ( port == null ) {
       port = 8025;
     }
+    Integer cacheSize = (Integer) context.getProperties().get(RECIPIENT_CACHE_SIZE);
+    if (cacheSize == null) {
+      cacheSize = DEFAULT_RECIPIENT_CACHE_SIZE;
+    }
+    recipientCache = new RecipientCache(cacheSize);
     LOGGER.info("Starting SMTP server on port {}", port);
     server = new SMTPServer(new SimpleMessageListenerAdapter(this));
     server.setPort(port);
@@ -88,6 +125,18 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     server.stop();
   }
 
+  /**
+   * Drops the cached recipients, an alias may resolve to other recipients now.
+   *
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    LOGGER.debug("Clearing the recipient cache on {} ", event.getTopic());
+    recipientCache.clear();
+  }
+
   /**
    *
    * {@inheritDoc}
@@ -96,11 +145,18 @@ public class SakaiSmtpServer implements SimpleMessageListener {
    *      java.lang.String)
    */
   public boolean accept(String from, String recipient) {
+    String alias = getLocalAlias(recipient);
+    if (alias == null) {
+      return false;
+    }
+    Map<String, String> stores = recipientCache.get(alias);
+    if (stores != null) {
+      return stores.size() > 0;
+    }
     Session session = null;
     try {
       session = slingRepository.loginAdministrative(null);
-      List<String> paths = getLocalPath(session, recipient);
-      return paths.size() > 0;
+      return resolveAlias(session, alias).size() > 0;
     } catch (Exception e) {
       LOGGER.error("Develier message with this handler ", e);
     } finally {
@@ -113,37 +169,77 @@ public class SakaiSmtpServer implements SimpleMessageListener {
 
   /**
    * @param recipient
-   * @return
+   *          A fully qualified email address of the form xxx@foo.com
+   * @return The local part of the address, or null if it is not for a local domain.
    */
-  private List<String> getLocalPath(Session session, String recipient) {
-    // assume recipient is a fully qualified email address of the form xxx@foo.com
+  private String getLocalAlias(String recipient) {
     String[] parts = StringUtils.split(recipient, '@');
-    List<String> localPaths = new ArrayList<String>();
-    if (domains.contains(parts[1])) {
-      List<String> recipients = messagingService.expandAliases(parts[0]);
-      for (String localRecipient : recipients) {
-        try {
-          String path = messagingService.getFullPathToStore(localRecipient, session);
-          if (path != null && path.length() > 0) {
-            localPaths.add(path);
-          }
-        } catch (Exception ex) {
-          LOGGER.warn("Failed to expand recipient {} ", localRecipient, ex);
+    if (parts.length == 2 && domains.contains(parts[1])) {
+      return parts[0];
+    }
+    return null;
+  }
+
+  /**
+   * @param session
+   * @param alias
+   *          The local part of the address.
+   * @return The local recipients of the alias mapped to the path of their message stores,
+   *         from the cache if the alias was resolved before.
+   */
+  private Map<String, String> getLocalStores(Session session, String alias) {
+    Map<String, String> stores = recipientCache.get(alias);
+    if (stores == null) {
+      stores = resolveAlias(session, alias);
+    }
+    return stores;
+  }
+
+  /**
+   * Expands an alias and looks up the store of each of its recipients. What it resolves to
+   * is cached, unless the store of a recipient could not be looked up.
+   *
+   * @param session
+   * @param alias
+   *          The local part of the address.
+   * @return The local recipients of the alias mapped to the path of their message stores.
+   */
+  private Map<String, String> resolveAlias(Session session, String alias) {
+    long generation = recipientCache.getGeneration();
+    Map<String, String> stores = new LinkedHashMap<String, String>();
+    boolean complete = true;
+    List<String> recipients = messagingService.expandAliases(alias);
+    for (String localRecipient : recipients) {
+      try {
+        String path = messagingService.getFullPathToStore(localRecipient, session);
+        if (path != null && path.length() > 0) {
+          stores.put(localRecipient, path);
         }
+      } catch (Exception ex) {
+        LOGGER.warn("Failed to expand recipient {} ", localRecipient, ex);
+        complete = false;
       }
     }
-    return localPaths;
+    stores = Collections.unmodifiableMap(stores);
+    if (complete) {
+      recipientCache.put(alias, stores, generation);
+    }
+    return stores;
   }
 
   public void deliver(String from, String recipient, InputStream data)
       throws TooMuchDataException, IOException {
     LOGGER.info("Got message FROM: " + from + " TO: " + recipient);
+    String alias = getLocalAlias(recipient);
+    if (alias == null) {
+      return;
+    }
     Session session = null;
     try {
       session = slingRepository.loginAdministrative(null);
 
-      List<String> paths = getLocalPath(session, recipient);
-      if (paths.size() > 0) {
+      Map<String, String> stores = getLocalStores(session, alias);
+      if (stores.size() > 0) {
         Map<String, Object> mapProperties = new HashMap<String, Object>();
         mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
             MessageConstants.SAKAI_MESSAGE_RT);
@@ -151,22 +247,20 @@ public class SakaiSmtpServer implements SimpleMessageListener {
         mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
         mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
             MessageConstants.BOX_INBOX);
-        Node createdMessage = writeMessage(session, mapProperties, data, paths.get(0));
-        if (createdMessage != null) {
+        List<Node> createdMessages = writeMessage(session, mapProperties, data, stores
+            .values());
+        if (createdMessages.size() == 1) {
+          Node createdMessage = createdMessages.get(0);
           String messagePath = createdMessage.getPath();
           String messageId = createdMessage.getProperty("message-id").getString();
           LOGGER.info("Created message {} at: {} ", messageId, messagePath);
-
-          // we might want alias expansion
-          for (int i = 1; i < paths.size(); i++) {
-            String targetPath = paths.get(i);
-            messagingService.copyMessageNode(createdMessage, targetPath);
-          }
-        }
-        if (session.hasPendingChanges()) {
-          session.save();
+        } else {
+          LOGGER.info("Created message for {} recipients of {} ", createdMessages.size(),
+              alias);
         }
-
+      }
+      if (session.hasPendingChanges()) {
+        session.save();
       }
     } catch (RepositoryException e) {
       LOGGER.error("Unable to write message", e);
@@ -181,9 +275,18 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     }
   }
 
+  /**
+   * Writes a message to the store of every recipient. The message is read once, and the
+   * body and each part are created as a single binary that is set on the message of
+   * every recipient, so the repository only has to keep one copy of the data. The session
+   * is saved every {@link #SAVE_BATCH_SIZE} messages, not after each one.
+   *
+   * @return The messages that were created, one per store.
+   */
   @SuppressWarnings("unchecked")
-  private Node writeMessage(Session session, Map<String, Object> mapProperties,
-      InputStream data, String storePath) throws MessagingException, RepositoryException, IOException {
+  private List<Node> writeMessage(Session session, Map<String, Object> mapProperties,
+      InputStream data, Collection<String> storePaths) throws MessagingException,
+      RepositoryException, IOException {
     InternetHeaders internetHeaders = new InternetHeaders(data);
     // process the headers into a map.
     for ( Enumeration<Header> e = internetHeaders.getAllHeaders(); e.hasMoreElements(); ) {
@@ -198,32 +301,64 @@ public class SakaiSmtpServer implements SimpleMessageListener {
         }
       }
     }
+    String messageId = getMessageId(mapProperties);
     String[] contentType = internetHeaders.getHeader("content-type");
+    List<MessagePart> parts = null;
+    Binary body = null;
     if (contentType != null && contentType.length > 0
         && contentType[0].contains("boundary") && contentType[0].contains("multipart/")) {
-        MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType[0],
-            data));
-        Node message = messagingService.create(session, mapProperties,
-            (String) mapProperties.get("sakai:message-id"), storePath);
-        writeMultipartToNode(session, message, multipart);
-        return message;
+      MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType[0],
+          data));
+      parts = readMultipart(session, multipart);
     } else {
-      Node node = messagingService.create(session, mapProperties);
       // set up to stream the body.
       ValueFactory valueFactory = session.getValueFactory();
-      Binary bin = valueFactory.createBinary(data);
-      node.setProperty(MessageConstants.PROP_SAKAI_BODY, bin);
-      session.save();
-      return node;
+      body = valueFactory.createBinary(data);
+    }
+
+    List<Node> messages = new ArrayList<Node>();
+    for (String storePath : storePaths) {
+      Node message = messagingService.create(session, mapProperties, messageId, storePath);
+      if (parts != null) {
+        writePartsToNode(message, parts);
+      } else {
+        message.setProperty(MessageConstants.PROP_SAKAI_BODY, body);
+      }
+      messages.add(message);
+      // The caller saves what is left after the last full batch.
+      if (messages.size() % SAVE_BATCH_SIZE == 0) {
+        session.save();
+      }
     }
+    return messages;
   }
 
-  private void writeMultipartToNode(Session session, Node message, MimeMultipart multipart)
+  /**
+   * @return The id from the Message-ID header, or a new one if there is no such header.
+   */
+  private String getMessageId(Map<String, Object> mapProperties) {
+    Object messageId = mapProperties.get("sakai:message-id");
+    if (messageId instanceof String) {
+      return (String) messageId;
+    }
+    String newId = String.valueOf(Thread.currentThread().getId())
+        + String.valueOf(System.nanoTime());
+    try {
+      return org.sakaiproject.nakamura.util.StringUtils.sha1Hash(newId);
+    } catch (Exception ex) {
+      throw new org.sakaiproject.nakamura.api.message.MessagingException(
+          "Unable to create hash.");
+    }
+  }
+
+  private List<MessagePart> readMultipart(Session session, MimeMultipart multipart)
       throws RepositoryException, MessagingException, IOException {
+    List<MessagePart> parts = new ArrayList<MessagePart>();
     int count = multipart.getCount();
     for (int i = 0; i < count; i++) {
-      createChildNodeForPart(session, i, multipart.getBodyPart(i), message);
+      parts.add(readPart(session, i, multipart.getBodyPart(i)));
     }
+    return parts;
   }
 
   private boolean isTextType(BodyPart part) throws MessagingException {
@@ -231,48 +366,67 @@ public class SakaiSmtpServer implements SimpleMessageListener {
         && part.getContentType().toLowerCase().startsWith("text/");
   }
 
-  private void createChildNodeForPart(Session session, int index, BodyPart part,
-      Node message) throws RepositoryException, MessagingException, IOException {
-    String childName = String.format("part%1$03d", index);
+  @SuppressWarnings("unchecked")
+  private MessagePart readPart(Session session, int index, BodyPart part)
+      throws RepositoryException, MessagingException, IOException {
+    MessagePart messagePart = new MessagePart(String.format("part%1$03d", index));
     if (part.getContentType().toLowerCase().startsWith("multipart/")) {
-      Node childNode = message.addNode(childName);
-      writePartPropertiesToNode(part, childNode);
+      messagePart.headers = Collections.list(part.getAllHeaders());
       MimeMultipart multi = new MimeMultipart(new SMTPDataSource(part.getContentType(),
           part.getInputStream()));
-      writeMultipartToNode(session, childNode, multi);
-      return;
-    }
-
-    if (!isTextType(part)) {
-      writePartAsFile(session, part, childName, message);
-      return;
+      messagePart.children = readMultipart(session, multi);
+      return messagePart;
     }
 
-    Node childNode = message.addNode(childName);
-    writePartPropertiesToNode(part, childNode);
     ValueFactory valueFactory = session.getValueFactory();
-    Binary bin = valueFactory.createBinary(part.getInputStream());
-    childNode.setProperty(MessageConstants.PROP_SAKAI_BODY, bin);
-    session.save();
+    messagePart.body = valueFactory.createBinary(part.getInputStream());
+    if (isTextType(part)) {
+      messagePart.headers = Collections.list(part.getAllHeaders());
+    } else {
+      messagePart.fileContentType = part.getContentType();
+    }
+    return messagePart;
   }
 
-  private void writePartAsFile(Session session, BodyPart part, String nodeName,
-      Node parentNode) throws RepositoryException, MessagingException, IOException {
-    Node fileNode = parentNode.addNode(nodeName, "nt:file");
-    Node resourceNode = fileNode.addNode("jcr:content", "nt:resource");
-    resourceNode.setProperty("jcr:mimeType", part.getContentType());
-    resourceNode.setProperty("jcr:data",
-        session.getValueFactory().createBinary(part.getInputStream()));
-    resourceNode.setProperty("jcr:lastModified", Calendar.getInstance());
+  private void writePartsToNode(Node parentNode, List<MessagePart> parts)
+      throws RepositoryException {
+    for (MessagePart part : parts) {
+      if (part.fileContentType != null) {
+        Node fileNode = parentNode.addNode(part.name, "nt:file");
+        Node resourceNode = fileNode.addNode("jcr:content", "nt:resource");
+        resourceNode.setProperty("jcr:mimeType", part.fileContentType);
+        resourceNode.setProperty("jcr:data", part.body);
+        resourceNode.setProperty("jcr:lastModified", Calendar.getInstance());
+        continue;
+      }
+      Node childNode = parentNode.addNode(part.name);
+      for (Header header : part.headers) {
+        childNode.setProperty(header.getName(), header.getValue());
+      }
+      if (part.body != null) {
+        childNode.setProperty(MessageConstants.PROP_SAKAI_BODY, part.body);
+      }
+      if (part.children != null) {
+        writePartsToNode(childNode, part.children);
+      }
+    }
   }
 
-  @SuppressWarnings("unchecked")
-  private void writePartPropertiesToNode(BodyPart part, Node childNode)
-      throws MessagingException, RepositoryException {
-    Enumeration<Header> headers = part.getAllHeaders();
-    while (headers.hasMoreElements()) {
-      Header header = headers.nextElement();
-      childNode.setProperty(header.getName(), header.getValue());
+  /**
+   * A part of a multipart message, as it was read from the data of the message.
+   */
+  private static class MessagePart {
+    private final String name;
+    private List<Header> headers;
+    private List<MessagePart> children;
+    /**
+     * The content type of a part that is stored as a file, null for other parts.
+     */
+    private String fileContentType;
+    private Binary body;
+
+    private MessagePart(String name) {
+      this.name = name;
     }
   }
 
@@ -26,7 +26,9 @@ import org.easymock.Capture;
 import org.easymock.EasyMock;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.message.MessagingService;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +47,10 @@ import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.Session;
 import javax.jcr.ValueFactory;
+import javax.mail.Transport;
+import javax.mail.Message.RecipientType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
 
 /**
  *
@@ -133,14 +139,14 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
 
     Capture<Map<String, Object>> mapProperties2 = new Capture<Map<String, Object>>();
     Capture<Session> sessionCapture2 = new Capture<Session>();
+    Capture<String> path = new Capture<String>();
     EasyMock.expect(session.getValueFactory()).andReturn(valueFactory);
     EasyMock.expect(valueFactory.createBinary(dataStream)).andReturn(binary);
     EasyMock.expect(
         messagingService.create(EasyMock.capture(sessionCapture2), EasyMock
-            .capture(mapProperties2))).andReturn(myMessageNode);
+            .capture(mapProperties2), EasyMock.isA(String.class), EasyMock
+            .capture(path))).andReturn(myMessageNode);
     EasyMock.expect(myMessageNode.setProperty("sakai:body", binary)).andReturn(null);
-    session.save();
-    EasyMock.expectLastCall();
 
     EasyMock.expect(myMessageNode.getPath()).andReturn("/messagestore/bob/messagenode");
     EasyMock.expect(myMessageNode.getProperty("message-id")).andReturn(property);
@@ -165,6 +171,7 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     Assert.assertTrue(sessionCapture2.hasCaptured());
 
     Assert.assertEquals(session, sessionCapture2.getValue());
+    Assert.assertEquals("/messagestore/alice", path.getValue());
 
     sakaiSmtpServer.deactivate(componentContext);
 
@@ -286,15 +293,16 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
 
     Capture<Map<String, Object>> mapProperties2 = new Capture<Map<String, Object>>();
     Capture<Session> sessionCapture2 = new Capture<Session>();
+    Capture<String> messageId = new Capture<String>();
+    Capture<String> path = new Capture<String>();
     EasyMock.expect(
         messagingService.create(EasyMock.capture(sessionCapture2), EasyMock
-            .capture(mapProperties2))).andReturn(myMessageNode);
+            .capture(mapProperties2), EasyMock.capture(messageId), EasyMock
+            .capture(path))).andReturn(myMessageNode);
     
     EasyMock.expect(session.getValueFactory()).andReturn(valueFactory);
     EasyMock.expect(valueFactory.createBinary(dataStream)).andReturn(binary);
     EasyMock.expect(myMessageNode.setProperty("sakai:body", binary)).andReturn(null);
-    session.save();
-    EasyMock.expectLastCall();
 
     EasyMock.expect(myMessageNode.getPath()).andReturn("/messagestore/bob/messagenode");
     EasyMock.expect(myMessageNode.getProperty("message-id")).andReturn(property);
@@ -319,6 +327,9 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     Assert.assertTrue(sessionCapture2.hasCaptured());
 
     Assert.assertEquals(session, sessionCapture2.getValue());
+    Assert.assertEquals("/messagestore/alice", path.getValue());
+    Assert.assertEquals("<2056926400.1265894315267.JavaMail.sakai@sjc-app-1.wush.net>",
+        messageId.getValue());
 
     Map<String,Object> headers = mapProperties2.getValue();
     // check multi line parsing of headers
@@ -519,4 +530,202 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testMultipartMessageToTwoRecipients() throws Exception {
+
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    MessagingService messagingService = createMock(MessagingService.class);
+    Node aliceMessage = createMock(Node.class);
+    Node bobMessage = createMock(Node.class);
+    Node partNode = createNiceMock(Node.class);
+    ValueFactory valueFactory = createMock(ValueFactory.class);
+    Binary text = createMock(Binary.class);
+    Binary image = createMock(Binary.class);
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    int port = getSafePort(8025);
+    properties.put("smtp.port",new Integer(port));
+
+    EasyMock.expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(session)
+        .anyTimes();
+    EasyMock.expect(session.getValueFactory()).andReturn(valueFactory).anyTimes();
+    List<String> recipents = new ArrayList<String>();
+    recipents.add("alice");
+    recipents.add("bob");
+    EasyMock.expect(messagingService.expandAliases("team")).andReturn(recipents)
+        .anyTimes();
+    EasyMock.expect(messagingService.getFullPathToStore("alice", session)).andReturn(
+        "/messagestore/alice").anyTimes();
+    EasyMock.expect(messagingService.getFullPathToStore("bob", session)).andReturn(
+        "/messagestore/bob").anyTimes();
+    InputStream dataStream = this.getClass().getResourceAsStream("testmultipartbinarygood.txt");
+
+    // Each part is read into a binary once, both copies use it.
+    EasyMock.expect(valueFactory.createBinary((InputStream) EasyMock.anyObject()))
+        .andReturn(text).andReturn(image);
+    EasyMock.expect(
+        messagingService.create(EasyMock.eq(session), (Map<String, Object>) EasyMock
+            .anyObject(), EasyMock.isA(String.class), EasyMock.eq("/messagestore/alice")))
+        .andReturn(aliceMessage);
+    EasyMock.expect(
+        messagingService.create(EasyMock.eq(session), (Map<String, Object>) EasyMock
+            .anyObject(), EasyMock.isA(String.class), EasyMock.eq("/messagestore/bob")))
+        .andReturn(bobMessage);
+    for (Node message : new Node[] { aliceMessage, bobMessage }) {
+      EasyMock.expect(message.addNode("part000")).andReturn(partNode);
+      EasyMock.expect(message.addNode("part001", "nt:file")).andReturn(partNode);
+    }
+    EasyMock.expect(partNode.addNode("jcr:content", "nt:resource")).andReturn(partNode)
+        .times(2);
+    EasyMock.expect(partNode.setProperty("sakai:body", text)).andReturn(null).times(2);
+    EasyMock.expect(partNode.setProperty("jcr:data", image)).andReturn(null).times(2);
+
+    replay();
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.slingRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    sakaiSmtpServer.deliver("carol@localhost", "team@localhost", dataStream);
+
+    sakaiSmtpServer.deactivate(componentContext);
+
+    verify();
+  }
+
+  @Test
+  public void testRecipientsResolvedOnce() throws Exception {
+
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    MessagingService messagingService = createMock(MessagingService.class);
+    Event event = new Event(AuthorizableEvent.TOPIC + "join",
+        new Hashtable<String, Object>());
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    int port = getSafePort(8025);
+    properties.put("smtp.port",new Integer(port));
+
+    EasyMock.expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(session)
+        .anyTimes();
+    List<String> recipents = new ArrayList<String>();
+    recipents.add("alice");
+    // Once before the event and once after it.
+    EasyMock.expect(messagingService.expandAliases("alice")).andReturn(recipents)
+        .times(2);
+    EasyMock.expect(messagingService.getFullPathToStore("alice", session)).andReturn(
+        "/messagestore/alice").times(2);
+    EasyMock.expect(messagingService.expandAliases("nobody")).andReturn(
+        new ArrayList<String>()).times(1);
+
+    replay();
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.slingRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    Assert.assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    Assert.assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    Assert.assertFalse(sakaiSmtpServer.accept("bob@localhost", "nobody@localhost"));
+    Assert.assertFalse(sakaiSmtpServer.accept("bob@localhost", "nobody@localhost"));
+    Assert.assertFalse(sakaiSmtpServer.accept("bob@localhost", "alice@elsewhere"));
+
+    sakaiSmtpServer.handleEvent(event);
+    Assert.assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+    Assert.assertTrue(sakaiSmtpServer.accept("bob@localhost", "alice@localhost"));
+
+    sakaiSmtpServer.deactivate(componentContext);
+
+    verify();
+  }
+
+  @Test
+  public void testMessageToLargeAlias() throws Exception {
+
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    MessagingService messagingService = createMock(MessagingService.class);
+    Node messageNode = createMock(Node.class);
+    ValueFactory valueFactory = createMock(ValueFactory.class);
+    Binary binary = createMock(Binary.class);
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    int port = getSafePort(8025);
+    properties.put("smtp.port",new Integer(port));
+
+    session.logout();
+    EasyMock.expectLastCall().anyTimes();
+    EasyMock.expect(session.hasPendingChanges()).andReturn(false).anyTimes();
+    EasyMock.expect(session.getValueFactory()).andReturn(valueFactory).anyTimes();
+
+    EasyMock.expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(session)
+        .anyTimes();
+
+    // The alias and the stores of its members are only looked up for the first message.
+    int members = 1000;
+    List<String> recipents = new ArrayList<String>();
+    for (int i = 0; i < members; i++) {
+      recipents.add("user" + i);
+      EasyMock.expect(messagingService.getFullPathToStore("user" + i, session))
+          .andReturn("/messagestore/user" + i).times(1);
+    }
+    EasyMock.expect(messagingService.expandAliases("everyone")).andReturn(recipents)
+        .times(1);
+
+    // The body of each message is read into one binary, which every member's copy uses.
+    EasyMock.expect(valueFactory.createBinary((InputStream) EasyMock.anyObject()))
+        .andReturn(binary).times(2);
+    Capture<Map<String, Object>> messageProperties = new Capture<Map<String, Object>>();
+    EasyMock.expect(
+        messagingService.create(EasyMock.eq(session), EasyMock.capture(messageProperties),
+            EasyMock.isA(String.class), EasyMock.startsWith("/messagestore/user")))
+        .andReturn(messageNode).times(2 * members);
+    EasyMock.expect(messageNode.setProperty("sakai:body", binary)).andReturn(null).times(
+        2 * members);
+    // The copies are saved in batches, not one at a time.
+    session.save();
+    EasyMock.expectLastCall().times(2 * members / 100);
+
+    replay();
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.slingRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+
+    sakaiSmtpServer.activate(componentContext);
+
+    java.util.Properties mailProperties = new java.util.Properties();
+    mailProperties.put("mail.smtp.host", "localhost");
+    mailProperties.put("mail.smtp.port", String.valueOf(port));
+    javax.mail.Session mailSession = javax.mail.Session.getInstance(mailProperties);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 2; i++) {
+      MimeMessage message = new MimeMessage(mailSession);
+      message.setFrom(new InternetAddress("bob@localhost"));
+      message.setRecipient(RecipientType.TO, new InternetAddress("everyone@localhost"));
+      message.setSubject("To everyone " + i);
+      message.setText("Here is a message body");
+      Transport.send(message);
+    }
+    LOGGER.info("Delivered 2 messages to {} members in {} ms ", members, System
+        .currentTimeMillis() - start);
+
+    Map<String, Object> state = messageProperties.getValue();
+    Assert.assertEquals("To everyone 1", state.get("sakai:subject"));
+    Assert.assertEquals("inbox", state.get("sakai:messagebox"));
+    Assert.assertEquals(false, state.get("sakai:read"));
+
+    sakaiSmtpServer.deactivate(componentContext);
+
+    verify();
+  }
+
 }
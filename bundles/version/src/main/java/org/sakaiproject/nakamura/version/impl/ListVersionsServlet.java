@@ -30,6 +30,7 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -47,9 +48,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.version.Version;
 import javax.jcr.version.VersionHistory;
@@ -59,7 +63,10 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Gets a version
+ * Lists a page of the versions of a resource, newest first. When the resource has a
+ * current {@link VersionIndex} only the versions on the page are read, otherwise the
+ * version history is walked. The index is only looked for, with an administrative
+ * session, when the version history is labelled as indexed.
  */
 
 @ServiceDocumentation(name = "List Versions Servlet", description = "Lists versions of a resource in json format", shortDescription = "List versions of a resource", bindings = @ServiceBinding(type = BindingType.TYPE, bindings = { "sling/servlet/default" }, selectors = @ServiceSelector(name = "versions", description = "Retrieves a paged list of versions for the resource"), extensions = @ServiceExtension(name = "json", description = "A list over versions in json format")), methods = @ServiceMethod(name = "GET", description = {
@@ -78,6 +85,9 @@ public class ListVersionsServlet extends SlingSafeMethodsServlet {
   @Reference
   protected transient ProfileService profileService;
 
+  @Reference
+  protected transient SlingRepository slingRepository;
+
   /**
    *
    */
@@ -121,25 +131,60 @@ public class ListVersionsServlet extends SlingSafeMethodsServlet {
       int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
       int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
 
-      VersionManager versionManager = node.getSession().getWorkspace()
-          .getVersionManager();
+      Session session = node.getSession();
+      VersionManager versionManager = session.getWorkspace().getVersionManager();
       VersionHistory versionHistory = versionManager.getVersionHistory(node.getPath());
-      VersionIterator versionIterator = versionHistory.getAllVersions();
 
-      long total = versionIterator.getSize();
-      long[] range = getInvertedRange(total, offset, nitems);
-      nitems = (int) (range[1] - range[0]);
-      Version[] versions = new Version[nitems];
-      versionIterator.skip(range[0]);
+      long total = 0;
+      Version[] versions = null;
+      String[] savedBy = null;
+      if (VersionIndex.isIndexed(versionHistory)) {
+        Session adminSession = slingRepository.loginAdministrative(null);
+        try {
+          VersionIndex index = VersionIndex.get(adminSession, node);
+          if (index != null
+              && index.isCurrent(versionManager.getBaseVersion(path).getName())) {
+            // Only the versions on the page are read.
+            total = index.size();
+            long[] range = getInvertedRange(total, offset, nitems);
+            nitems = (int) (range[1] - range[0]);
+            versions = new Version[nitems];
+            savedBy = new String[nitems];
+            for (int i = 0; i < nitems; i++) {
+              Node entry = index.getEntry(range[0] + i);
+              versions[i] = versionHistory.getVersion(entry.getProperty(
+                  VersionIndex.VERSION_NAME).getString());
+              if (entry.hasProperty(VersionService.SAVED_BY)) {
+                savedBy[i] = entry.getProperty(VersionService.SAVED_BY).getString();
+              }
+            }
+          }
+        } finally {
+          adminSession.logout();
+        }
+      }
+      if (versions == null) {
+        VersionIterator versionIterator = versionHistory.getAllVersions();
+        total = versionIterator.getSize();
+        long[] range = getInvertedRange(total, offset, nitems);
+        nitems = (int) (range[1] - range[0]);
+        versions = new Version[nitems];
+        savedBy = new String[nitems];
+        versionIterator.skip(range[0]);
 
-      int i = 0;
-      while (i < nitems && versionIterator.hasNext()) {
-        versions[i++] = versionIterator.nextVersion();
+        int i = 0;
+        while (i < nitems && versionIterator.hasNext()) {
+          versions[i] = versionIterator.nextVersion();
+          savedBy[i] = getSavedBy(versions[i]);
+          i++;
+        }
       }
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
 
+      // Most versions are saved by the same few people.
+      Map<String, ValueMap> editors = new HashMap<String, ValueMap>();
       Writer writer = response.getWriter();
       ExtendedJSONWriter write = new ExtendedJSONWriter(writer);
       write.object();
@@ -151,12 +196,13 @@ public class ListVersionsServlet extends SlingSafeMethodsServlet {
       write.value(total);
       write.key(JSON_VERSIONS);
       write.object();
-      versionIterator.skip(offset);
       for (int j = versions.length - 1; j >= 0; j--) {
+        if (versions[j] == null) {
+          continue;
+        }
         write.key(versions[j].getName());
         write.object();
-        Node vnode = versions[j].getNode(JcrConstants.JCR_FROZENNODE);
-        writeEditorDetails(vnode, write);
+        writeEditorDetails(savedBy[j], session, editors, write);
         ExtendedJSONWriter.writeNodeContentsToWriter(write, versions[j]);
         write.endObject();
       }
@@ -200,17 +246,37 @@ public class ListVersionsServlet extends SlingSafeMethodsServlet {
     }
   }
 
-  private void writeEditorDetails(Node node, ExtendedJSONWriter write)
-      throws RepositoryException, JSONException {
-    String user = null;
-    if (node.hasProperty(VersionService.SAVED_BY)) {
-      user = node.getProperty(VersionService.SAVED_BY).getString();
+  private String getSavedBy(Version version) throws RepositoryException {
+    Node vnode = version.getNode(JcrConstants.JCR_FROZENNODE);
+    if (vnode.hasProperty(VersionService.SAVED_BY)) {
+      return vnode.getProperty(VersionService.SAVED_BY).getString();
     }
+    return null;
+  }
 
-    if (user != null) {
-      UserManager m = AccessControlUtil.getUserManager(node.getSession());
+  /**
+   * Writes the compact profile of the user that saved a version, each profile is only
+   * read once per request.
+   */
+  private void writeEditorDetails(String user, Session session,
+      Map<String, ValueMap> editors, ExtendedJSONWriter write)
+      throws RepositoryException, JSONException {
+    if (user == null) {
+      return;
+    }
+    ValueMap map;
+    if (editors.containsKey(user)) {
+      map = editors.get(user);
+    } else {
+      UserManager m = AccessControlUtil.getUserManager(session);
       Authorizable authorizable = m.getAuthorizable(user);
-      ValueMap map = profileService.getProfileMap(authorizable, node.getSession());
+      map = null;
+      if (authorizable != null) {
+        map = profileService.getCompactProfileMap(authorizable, session);
+      }
+      editors.put(user, map);
+    }
+    if (map != null) {
       write.key(VersionService.SAVED_BY);
       write.valueMap(map);
     }
@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.sakaiproject.nakamura.util.JcrUtils;
+import org.sakaiproject.nakamura.util.PathUtils;
+import org.sakaiproject.nakamura.version.VersionService;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
+
+/**
+ * An index of the versions of a node, oldest first, so that a page of the history can be
+ * listed without walking it. Each version is a child of the index node named by its
+ * position, holding the name of the version, when it was created and who saved it. The
+ * index lives under {@link #INDEX_ROOT}, outside the node, as a child of the node would be
+ * copied into every version. It is written with an administrative session, the versions
+ * it lists are only read through the session of the user. The version history of an
+ * indexed node has a version labelled {@link #INDEXED_LABEL}, so that listing the versions
+ * of a node that never had an index does not need an administrative session. The label is
+ * kept in the version history, so it is neither part of the content of the node nor
+ * copied into its versions.
+ */
+class VersionIndex {
+
+  static final String INDEX_ROOT = "/var/versions";
+  static final String VERSION_COUNT = "sakai:versionCount";
+  static final String LAST_VERSION = "sakai:lastVersion";
+  static final String VERSION_NAME = "sakai:versionName";
+  static final String VERSION_CREATED = "sakai:versionCreated";
+  static final String INDEXED_LABEL = "sakai:indexed";
+
+  private final Node indexNode;
+
+  private VersionIndex(Node indexNode) {
+    this.indexNode = indexNode;
+  }
+
+  /**
+   * @param versionHistory
+   *          The version history of the node.
+   * @return true if versions of the node were saved through the version service, and so
+   *         may have an index.
+   * @throws RepositoryException
+   */
+  static boolean isIndexed(VersionHistory versionHistory) throws RepositoryException {
+    return versionHistory.hasVersionLabel(INDEXED_LABEL);
+  }
+
+  /**
+   * @param adminSession
+   *          The session the index is read with.
+   * @param node
+   *          The versioned node.
+   * @return The index of the versions of the node, or null if it has none.
+   * @throws RepositoryException
+   */
+  static VersionIndex get(Session adminSession, Node node) throws RepositoryException {
+    String path = getIndexPath(node);
+    if (!adminSession.itemExists(path)) {
+      return null;
+    }
+    return new VersionIndex((Node) adminSession.getItem(path));
+  }
+
+  /**
+   * Adds a version that has just been checked in to the index of a node. If the index does
+   * not end with the version the new one was checked in from, it is missing versions and
+   * is built again from the version history.
+   *
+   * @param adminSession
+   *          The session the index is written with, it is saved.
+   * @param node
+   *          The versioned node.
+   * @param version
+   *          The new version.
+   * @param savedBy
+   *          The user that saved the version.
+   * @throws RepositoryException
+   */
+  static void add(Session adminSession, Node node, Version version, String savedBy)
+      throws RepositoryException {
+    String path = getIndexPath(node);
+    Node indexNode = null;
+    if (adminSession.itemExists(path)) {
+      indexNode = (Node) adminSession.getItem(path);
+      Version[] predecessors = version.getPredecessors();
+      if (predecessors.length != 1
+          || !indexNode.hasProperty(LAST_VERSION)
+          || !predecessors[0].getName().equals(
+              indexNode.getProperty(LAST_VERSION).getString())) {
+        indexNode.remove();
+        indexNode = null;
+      }
+    }
+    if (indexNode == null) {
+      indexNode = JcrUtils.deepGetOrCreateNode(adminSession, path);
+      rebuild(indexNode, version.getContainingHistory());
+    } else {
+      long count = indexNode.getProperty(VERSION_COUNT).getLong();
+      addEntry(indexNode, count, version, savedBy);
+      indexNode.setProperty(VERSION_COUNT, count + 1);
+      indexNode.setProperty(LAST_VERSION, version.getName());
+    }
+    if (adminSession.hasPendingChanges()) {
+      adminSession.save();
+    }
+    VersionHistory versionHistory = adminSession.getWorkspace().getVersionManager()
+        .getVersionHistory(node.getPath());
+    if (!versionHistory.hasVersionLabel(INDEXED_LABEL)) {
+      versionHistory.addVersionLabel(version.getName(), INDEXED_LABEL, false);
+    }
+  }
+
+  /**
+   * Removes the index of a node that has been removed. A node that has only been moved
+   * keeps its identifier, and so its index.
+   *
+   * @param adminSession
+   *          The session the index is removed with, it is saved.
+   * @param identifier
+   *          The identifier of the removed node.
+   * @throws RepositoryException
+   */
+  static void remove(Session adminSession, String identifier) throws RepositoryException {
+    String path = getIndexPath(identifier);
+    if (!adminSession.itemExists(path)) {
+      return;
+    }
+    try {
+      adminSession.getNodeByIdentifier(identifier);
+    } catch (ItemNotFoundException e) {
+      adminSession.getItem(path).remove();
+      adminSession.save();
+    }
+  }
+
+  /**
+   * @return The number of versions, including the root version.
+   * @throws RepositoryException
+   */
+  long size() throws RepositoryException {
+    return indexNode.getProperty(VERSION_COUNT).getLong();
+  }
+
+  /**
+   * @param baseVersion
+   *          The name of the base version of the node.
+   * @return true if the index ends with the base version, false if versions were checked
+   *         in without being indexed.
+   * @throws RepositoryException
+   */
+  boolean isCurrent(String baseVersion) throws RepositoryException {
+    return indexNode.hasProperty(LAST_VERSION)
+        && baseVersion.equals(indexNode.getProperty(LAST_VERSION).getString());
+  }
+
+  /**
+   * @param position
+   *          The position of the version, 0 is the root version.
+   * @return The entry of the version.
+   * @throws RepositoryException
+   */
+  Node getEntry(long position) throws RepositoryException {
+    return indexNode.getNode(String.valueOf(position));
+  }
+
+  static String getIndexPath(Node node) throws RepositoryException {
+    return getIndexPath(node.getIdentifier());
+  }
+
+  private static String getIndexPath(String identifier) {
+    return PathUtils.toSimpleShardPath(INDEX_ROOT, identifier, "");
+  }
+
+  private static void rebuild(Node indexNode, VersionHistory versionHistory)
+      throws RepositoryException {
+    VersionIterator versionIterator = versionHistory.getAllVersions();
+    long count = 0;
+    String last = null;
+    while (versionIterator.hasNext()) {
+      Version version = versionIterator.nextVersion();
+      String savedBy = null;
+      Node frozen = version.getNode(JcrConstants.JCR_FROZENNODE);
+      if (frozen.hasProperty(VersionService.SAVED_BY)) {
+        savedBy = frozen.getProperty(VersionService.SAVED_BY).getString();
+      }
+      addEntry(indexNode, count++, version, savedBy);
+      last = version.getName();
+    }
+    indexNode.setProperty(VERSION_COUNT, count);
+    indexNode.setProperty(LAST_VERSION, last);
+  }
+
+  private static void addEntry(Node indexNode, long position, Version version,
+      String savedBy) throws RepositoryException {
+    Node entry = indexNode.addNode(String.valueOf(position));
+    entry.setProperty(VERSION_NAME, version.getName());
+    entry.setProperty(VERSION_CREATED, version.getCreated());
+    if (savedBy != null) {
+      entry.setProperty(VersionService.SAVED_BY, savedBy);
+    }
+  }
+}
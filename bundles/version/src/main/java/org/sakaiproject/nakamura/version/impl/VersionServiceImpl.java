@@ -20,27 +20,101 @@ package org.sakaiproject.nakamura.version.impl;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.version.VersionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 import javax.jcr.version.Version;
 import javax.jcr.version.VersionManager;
 
 /**
- * Service for doing operations with versions.
+ * Service for doing operations with versions. Every version saved through the service
+ * below one of the {@link #INDEXED_PATHS} is added to the {@link VersionIndex} of the
+ * node, and the index is removed when the node is. Resource events only carry the path of
+ * a removed node, while the index is found by its identifier, so removals are observed in
+ * the repository, only below the indexed paths.
  */
-@Component(immediate = true, label = "Sakai Versioning Service", description = "Service for doing operations with versions.")
+@Component(immediate = true, metatype = true, label = "Sakai Versioning Service", description = "Service for doing operations with versions.")
 @Service
 public class VersionServiceImpl implements VersionService {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(VersionServiceImpl.class);
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
+  @Property(value = { "/_user", "/_group", "/sites" }, cardinality = Integer.MAX_VALUE, description = "The versions of nodes below these paths are indexed, the history of other nodes is walked to list them.")
+  static final String INDEXED_PATHS = "version.indexed.paths";
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  private String[] indexedPaths = new String[0];
+
+  /**
+   * The session removed nodes are observed with, it is only used by the
+   * {@link RemovedNodeListener}s.
+   */
+  private Session observationSession;
+
+  private List<EventListener> listeners = new ArrayList<EventListener>();
+
+  protected void activate(ComponentContext componentContext) throws RepositoryException {
+    List<String> paths = new ArrayList<String>();
+    for (String path : OsgiUtil.toStringArray(componentContext.getProperties().get(
+        INDEXED_PATHS), new String[0])) {
+      if (path != null && path.trim().length() > 0) {
+        paths.add(path.trim());
+      }
+    }
+    indexedPaths = paths.toArray(new String[paths.size()]);
+
+    observationSession = slingRepository.loginAdministrative(null);
+    ObservationManager observationManager = observationSession.getWorkspace()
+        .getObservationManager();
+    // A listener can only be registered for one path.
+    for (String path : indexedPaths) {
+      EventListener listener = new RemovedNodeListener();
+      observationManager.addEventListener(listener, Event.NODE_REMOVED, path, true, null,
+          null, false);
+      listeners.add(listener);
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (observationSession != null) {
+      try {
+        ObservationManager observationManager = observationSession.getWorkspace()
+            .getObservationManager();
+        for (EventListener listener : listeners) {
+          observationManager.removeEventListener(listener);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to stop observing removed nodes ", e);
+      }
+      listeners.clear();
+      observationSession.logout();
+      observationSession = null;
+    }
+  }
+
   public Version saveNode(Node node, String savingUsername) throws RepositoryException {
     if (node.canAddMixin("sakai:propertiesmix")) {
       node.addMixin("sakai:propertiesmix");
@@ -61,7 +135,65 @@ public class VersionServiceImpl implements VersionService {
     if ( node.getSession().hasPendingChanges() ) {
       node.getSession().save();
     }
+    if (isIndexedPath(node.getPath())) {
+      updateIndex(node, version, savingUsername);
+    }
     return version;
   }
 
+  /**
+   * @return true if the path is one of the {@link #INDEXED_PATHS}, or below one.
+   */
+  private boolean isIndexedPath(String path) {
+    for (String indexedPath : indexedPaths) {
+      if ("/".equals(indexedPath) || path.equals(indexedPath)
+          || path.startsWith(indexedPath + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds a version to the index of the node. The version is saved whether or not this
+   * works, a failure leaves the index behind and the next version saved rebuilds it.
+   */
+  private void updateIndex(Node node, Version version, String savingUsername) {
+    Session adminSession = null;
+    try {
+      adminSession = slingRepository.loginAdministrative(null);
+      VersionIndex.add(adminSession, node, version, savingUsername);
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to index saved version ", e);
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Removes the version index of every removed node that has one.
+   */
+  private class RemovedNodeListener implements EventListener {
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+     */
+    public void onEvent(EventIterator events) {
+      while (events.hasNext()) {
+        Event event = events.nextEvent();
+        try {
+          if (!event.getPath().startsWith(VersionIndex.INDEX_ROOT + "/")) {
+            VersionIndex.remove(observationSession, event.getIdentifier());
+          }
+        } catch (RepositoryException e) {
+          LOGGER.warn("Failed to remove the version index of a removed node ", e);
+        }
+      }
+    }
+  }
+
 }
@@ -18,24 +18,38 @@
 package org.sakaiproject.nakamura.version.impl;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.commons.iterator.PropertyIteratorAdapter;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.sakaiproject.nakamura.version.VersionService;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.Node;
+import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -136,6 +150,8 @@ public class ListVersionsServletTest extends AbstractEasyMockTest {
     Session session = createNiceMock(Session.class);
     Workspace workspace = createNiceMock(Workspace.class);
     VersionManager versionManager = createNiceMock(VersionManager.class);
+    // The node is not indexed, so no administrative session is needed.
+    SlingRepository slingRepository = createMock(SlingRepository.class);
 
     EasyMock.expect(request.getResource()).andReturn(resource).anyTimes();
     EasyMock.expect(resource.adaptTo(Node.class)).andReturn(node).anyTimes();
@@ -161,8 +177,116 @@ public class ListVersionsServletTest extends AbstractEasyMockTest {
 
     replay();
 
+    listVersionsServlet.slingRepository = slingRepository;
     listVersionsServlet.doGet(request, response);
     verify();
 
   }
+
+  @Test
+  public void testGetIndexed() throws Exception {
+    SlingHttpServletRequest request = createNiceMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createNiceMock(SlingHttpServletResponse.class);
+    Resource resource = createNiceMock(Resource.class);
+    Node node = createNiceMock(Node.class);
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    Workspace workspace = createNiceMock(Workspace.class);
+    VersionManager versionManager = createNiceMock(VersionManager.class);
+    Version baseVersion = createNiceMock(Version.class);
+    // Only the versions on the page are looked up, the history is not walked.
+    VersionHistory versionHistory = createMock(VersionHistory.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    Session adminSession = createMock(Session.class);
+    Node indexNode = createNiceMock(Node.class);
+    UserManager userManager = createNiceMock(UserManager.class);
+    Authorizable authorizable = createNiceMock(Authorizable.class);
+    ProfileService profileService = createMock(ProfileService.class);
+
+    EasyMock.expect(request.getResource()).andReturn(resource).anyTimes();
+    addStringRequestParameter(request, ListVersionsServlet.PARAMS_PAGE, "2");
+    EasyMock.expect(resource.adaptTo(Node.class)).andReturn(node).anyTimes();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintWriter pw = new PrintWriter(out);
+    EasyMock.expect(response.getWriter()).andReturn(pw).anyTimes();
+
+    EasyMock.expect(node.getPath()).andReturn("/foo").anyTimes();
+    EasyMock.expect(node.getIdentifier()).andReturn("0123456789abcdef").anyTimes();
+    EasyMock.expect(node.getSession()).andReturn(session).anyTimes();
+    EasyMock.expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    EasyMock.expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    EasyMock.expect(workspace.getVersionManager()).andReturn(versionManager).anyTimes();
+    EasyMock.expect(versionManager.getVersionHistory("/foo")).andReturn(versionHistory);
+    EasyMock.expect(versionHistory.hasVersionLabel(VersionIndex.INDEXED_LABEL)).andReturn(
+        true);
+    EasyMock.expect(versionManager.getBaseVersion("/foo")).andReturn(baseVersion);
+    EasyMock.expect(baseVersion.getName()).andReturn("1.99").anyTimes();
+
+    String indexPath = "/var/versions/01/23/45/67/0123456789abcdef";
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(adminSession);
+    EasyMock.expect(adminSession.itemExists(indexPath)).andReturn(true);
+    EasyMock.expect(adminSession.getItem(indexPath)).andReturn(indexNode);
+    adminSession.logout();
+    EasyMock.expectLastCall();
+    EasyMock.expect(indexNode.getProperty(VersionIndex.VERSION_COUNT)).andReturn(
+        createProperty(100L)).anyTimes();
+    EasyMock.expect(indexNode.hasProperty(VersionIndex.LAST_VERSION)).andReturn(true)
+        .anyTimes();
+    EasyMock.expect(indexNode.getProperty(VersionIndex.LAST_VERSION)).andReturn(
+        createProperty("1.99")).anyTimes();
+
+    // The third page from the newest, of 100 versions.
+    String[] editors = new String[] { "alice", "bob", "carol" };
+    for (int i = 25; i < 50; i++) {
+      Node entry = createNiceMock(Node.class);
+      EasyMock.expect(indexNode.getNode(String.valueOf(i))).andReturn(entry);
+      EasyMock.expect(entry.getProperty(VersionIndex.VERSION_NAME)).andReturn(
+          createProperty("1." + i));
+      EasyMock.expect(entry.hasProperty(VersionService.SAVED_BY)).andReturn(true);
+      EasyMock.expect(entry.getProperty(VersionService.SAVED_BY)).andReturn(
+          createProperty(editors[i % editors.length]));
+      Version version = createNiceMock(Version.class);
+      EasyMock.expect(version.getName()).andReturn("1." + i).anyTimes();
+      EasyMock.expect(version.getProperties()).andReturn(
+          new PropertyIteratorAdapter(new ArrayList<Property>())).anyTimes();
+      EasyMock.expect(versionHistory.getVersion("1." + i)).andReturn(version);
+    }
+
+    // Each editor is looked up once for the whole page.
+    EasyMock.expect(userManager.getAuthorizable(EasyMock.isA(String.class))).andReturn(
+        authorizable).anyTimes();
+    Map<String, Object> profile = new HashMap<String, Object>();
+    profile.put("firstName", "Ed");
+    EasyMock.expect(profileService.getCompactProfileMap(authorizable, session)).andReturn(
+        new ValueMapDecorator(profile)).times(editors.length);
+    replay();
+
+    listVersionsServlet.slingRepository = slingRepository;
+    listVersionsServlet.profileService = profileService;
+    listVersionsServlet.doGet(request, response);
+    pw.flush();
+
+    JSONObject json = new JSONObject(out.toString("UTF-8"));
+    assertEquals(100, json.getLong("total"));
+    assertEquals(25, json.getInt("items"));
+    JSONObject versions = json.getJSONObject("versions");
+    assertEquals(25, versions.length());
+    assertTrue(versions.has("1.25"));
+    assertTrue(versions.has("1.49"));
+    assertEquals("Ed", versions.getJSONObject("1.25").getJSONObject(
+        VersionService.SAVED_BY).getString("firstName"));
+    verify();
+  }
+
+  /**
+   * @return A property holding the value, already replayed.
+   */
+  private Property createProperty(Object value) throws RepositoryException {
+    Property property = EasyMock.createNiceMock(Property.class);
+    EasyMock.expect(property.getString()).andReturn(String.valueOf(value)).anyTimes();
+    if (value instanceof Long) {
+      EasyMock.expect(property.getLong()).andReturn((Long) value).anyTimes();
+    }
+    EasyMock.replay(property);
+    return property;
+  }
 }
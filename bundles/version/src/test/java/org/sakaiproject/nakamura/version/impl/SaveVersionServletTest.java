@@ -21,12 +21,16 @@ import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.easymock.EasyMock;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Dictionary;
+import java.util.Hashtable;
 
 import javax.jcr.InvalidItemStateException;
 import javax.jcr.Node;
@@ -36,6 +40,7 @@ import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.Workspace;
 import javax.jcr.lock.LockException;
+import javax.jcr.observation.ObservationManager;
 import javax.jcr.version.Version;
 import javax.jcr.version.VersionException;
 import javax.jcr.version.VersionManager;
@@ -78,10 +83,12 @@ public class SaveVersionServletTest extends AbstractEasyMockTest {
     PropertyIterator propertyIterator = createNiceMock(PropertyIterator.class);
     VersionManager versionManager = createNiceMock(VersionManager.class);
     Workspace workspace = createNiceMock(Workspace.class);
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    Session adminSession = createNiceMock(Session.class);
 
     EasyMock.expect(request.getResource()).andReturn(resource);
     EasyMock.expect(resource.adaptTo(Node.class)).andReturn(node);
-    String nodePath = "/foo";
+    String nodePath = "/sites/foo";
     EasyMock.expect(node.getPath()).andReturn(nodePath).anyTimes();
     EasyMock.expect(session.getWorkspace()).andReturn(workspace);
     EasyMock.expect(workspace.getVersionManager()).andReturn(versionManager);
@@ -93,6 +100,25 @@ public class SaveVersionServletTest extends AbstractEasyMockTest {
     session.save();
     EasyMock.expectLastCall();
 
+    // Removals below /sites are observed with an administrative session.
+    Workspace adminWorkspace = createNiceMock(Workspace.class);
+    EasyMock.expect(adminSession.getWorkspace()).andReturn(adminWorkspace).anyTimes();
+    EasyMock.expect(adminWorkspace.getObservationManager()).andReturn(
+        createNiceMock(ObservationManager.class)).anyTimes();
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(VersionServiceImpl.INDEXED_PATHS, new String[] { "/sites" });
+    EasyMock.expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+
+    // The version is saved even though it can't be indexed.
+    EasyMock.expect(node.getIdentifier()).andReturn("0123456789abcdef").anyTimes();
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(adminSession)
+        .times(2);
+    EasyMock.expect(adminSession.itemExists(EasyMock.isA(String.class))).andThrow(
+        new RepositoryException("Index unavailable"));
+    adminSession.logout();
+    EasyMock.expectLastCall();
+
     EasyMock.expect(response.getWriter()).andReturn(new PrintWriter(new ByteArrayOutputStream()));
     EasyMock.expect(version.getProperties()).andReturn(propertyIterator);
     EasyMock.expect(propertyIterator.hasNext()).andReturn(false);
@@ -101,6 +127,8 @@ public class SaveVersionServletTest extends AbstractEasyMockTest {
 
     SaveVersionServlet saveVersionServlet = new SaveVersionServlet();
     VersionServiceImpl versionServiceImpl = new VersionServiceImpl();
+    versionServiceImpl.slingRepository = slingRepository;
+    versionServiceImpl.activate(componentContext);
     saveVersionServlet.versionService = versionServiceImpl;
 
     saveVersionServlet.doPost(request, response);
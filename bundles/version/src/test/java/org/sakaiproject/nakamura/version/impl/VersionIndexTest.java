@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.commons.iterator.VersionIteratorAdapter;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.sakaiproject.nakamura.version.VersionService;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionManager;
+
+/**
+ *
+ */
+public class VersionIndexTest extends AbstractEasyMockTest {
+
+  private static final String IDENTIFIER = "0123456789abcdef";
+  private static final String INDEX_PARENT = "/var/versions/01/23/45/67";
+  private static final String INDEX_PATH = INDEX_PARENT + "/" + IDENTIFIER;
+
+  private Session adminSession;
+  private Node node;
+  private VersionHistory versionHistory;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    adminSession = createMock(Session.class);
+    node = createNiceMock(Node.class);
+    EasyMock.expect(node.getIdentifier()).andReturn(IDENTIFIER).anyTimes();
+    EasyMock.expect(node.getPath()).andReturn("/foo").anyTimes();
+    versionHistory = createMock(VersionHistory.class);
+  }
+
+  @Test
+  public void testIndexPath() throws Exception {
+    replay();
+    assertEquals(INDEX_PATH, VersionIndex.getIndexPath(node));
+  }
+
+  @Test
+  public void testIsIndexed() throws Exception {
+    VersionHistory indexed = createMock(VersionHistory.class);
+    EasyMock.expect(indexed.hasVersionLabel(VersionIndex.INDEXED_LABEL)).andReturn(true);
+    EasyMock.expect(versionHistory.hasVersionLabel(VersionIndex.INDEXED_LABEL)).andReturn(
+        false);
+    replay();
+    assertTrue(VersionIndex.isIndexed(indexed));
+    assertFalse(VersionIndex.isIndexed(versionHistory));
+  }
+
+  @Test
+  public void testGetWithoutIndex() throws Exception {
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(false);
+    replay();
+    assertNull(VersionIndex.get(adminSession, node));
+    verify();
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    Node indexNode = createNiceMock(Node.class);
+    Node entry = createNiceMock(Node.class);
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(true);
+    EasyMock.expect(adminSession.getItem(INDEX_PATH)).andReturn(indexNode);
+    EasyMock.expect(indexNode.getProperty(VersionIndex.VERSION_COUNT)).andReturn(
+        createProperty(4L));
+    EasyMock.expect(indexNode.hasProperty(VersionIndex.LAST_VERSION)).andReturn(true)
+        .anyTimes();
+    EasyMock.expect(indexNode.getProperty(VersionIndex.LAST_VERSION)).andReturn(
+        createProperty("1.2")).anyTimes();
+    EasyMock.expect(indexNode.getNode("2")).andReturn(entry);
+    replay();
+
+    VersionIndex index = VersionIndex.get(adminSession, node);
+    assertEquals(4, index.size());
+    assertTrue(index.isCurrent("1.2"));
+    assertFalse(index.isCurrent("1.1"));
+    assertSame(entry, index.getEntry(2));
+    verify();
+  }
+
+  @Test
+  public void testAddBuildsIndexFromHistory() throws Exception {
+    Version root = createVersion("jcr:rootVersion", null, null);
+    Version v10 = createVersion("1.0", "alice", root);
+    Version v11 = createVersion("1.1", "bob", v10);
+    Version v12 = createVersion("1.2", "alice", v11);
+    EasyMock.expect(versionHistory.getAllVersions()).andReturn(
+        new VersionIteratorAdapter(Arrays.asList(root, v10, v11, v12)));
+
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(false).times(2);
+    Node indexNode = expectCreateIndex();
+    expectEntry(indexNode, 0, root, null);
+    expectEntry(indexNode, 1, v10, "alice");
+    expectEntry(indexNode, 2, v11, "bob");
+    expectEntry(indexNode, 3, v12, "alice");
+    EasyMock.expect(indexNode.setProperty(VersionIndex.VERSION_COUNT, 4L)).andReturn(null);
+    EasyMock.expect(indexNode.setProperty(VersionIndex.LAST_VERSION, "1.2")).andReturn(
+        null);
+    expectSave();
+    expectLabel("1.2", false);
+    replay();
+
+    VersionIndex.add(adminSession, node, v12, "alice");
+    verify();
+  }
+
+  @Test
+  public void testAddAppends() throws Exception {
+    Version v11 = createVersion("1.1", "bob", null);
+    Version v12 = createVersion("1.2", "carol", v11);
+
+    // The history is not walked.
+    Node indexNode = createMock(Node.class);
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(true);
+    EasyMock.expect(adminSession.getItem(INDEX_PATH)).andReturn(indexNode);
+    EasyMock.expect(indexNode.hasProperty(VersionIndex.LAST_VERSION)).andReturn(true);
+    EasyMock.expect(indexNode.getProperty(VersionIndex.LAST_VERSION)).andReturn(
+        createProperty("1.1"));
+    EasyMock.expect(indexNode.getProperty(VersionIndex.VERSION_COUNT)).andReturn(
+        createProperty(3L));
+    expectEntry(indexNode, 3, v12, "carol");
+    EasyMock.expect(indexNode.setProperty(VersionIndex.VERSION_COUNT, 4L)).andReturn(null);
+    EasyMock.expect(indexNode.setProperty(VersionIndex.LAST_VERSION, "1.2")).andReturn(
+        null);
+    expectSave();
+    // The history was labelled when it was first indexed.
+    expectLabel("1.2", true);
+    replay();
+
+    VersionIndex.add(adminSession, node, v12, "carol");
+    verify();
+  }
+
+  @Test
+  public void testAddRebuildsMissedVersions() throws Exception {
+    Version root = createVersion("jcr:rootVersion", null, null);
+    Version v10 = createVersion("1.0", "alice", root);
+    // Checked in without the version service.
+    Version v11 = createVersion("1.1", "bob", v10);
+    Version v12 = createVersion("1.2", "carol", v11);
+    EasyMock.expect(versionHistory.getAllVersions()).andReturn(
+        new VersionIteratorAdapter(Arrays.asList(root, v10, v11, v12)));
+
+    Node staleIndex = createMock(Node.class);
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(true);
+    EasyMock.expect(adminSession.getItem(INDEX_PATH)).andReturn(staleIndex);
+    EasyMock.expect(staleIndex.hasProperty(VersionIndex.LAST_VERSION)).andReturn(true);
+    EasyMock.expect(staleIndex.getProperty(VersionIndex.LAST_VERSION)).andReturn(
+        createProperty("1.0"));
+    staleIndex.remove();
+    EasyMock.expectLastCall();
+
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(false);
+    Node indexNode = expectCreateIndex();
+    expectEntry(indexNode, 0, root, null);
+    expectEntry(indexNode, 1, v10, "alice");
+    expectEntry(indexNode, 2, v11, "bob");
+    expectEntry(indexNode, 3, v12, "carol");
+    EasyMock.expect(indexNode.setProperty(VersionIndex.VERSION_COUNT, 4L)).andReturn(null);
+    EasyMock.expect(indexNode.setProperty(VersionIndex.LAST_VERSION, "1.2")).andReturn(
+        null);
+    expectSave();
+    expectLabel("1.2", false);
+    replay();
+
+    VersionIndex.add(adminSession, node, v12, "carol");
+    verify();
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    Node indexNode = createMock(Node.class);
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(true);
+    EasyMock.expect(adminSession.getNodeByIdentifier(IDENTIFIER)).andThrow(
+        new ItemNotFoundException(IDENTIFIER));
+    EasyMock.expect(adminSession.getItem(INDEX_PATH)).andReturn(indexNode);
+    indexNode.remove();
+    EasyMock.expectLastCall();
+    adminSession.save();
+    EasyMock.expectLastCall();
+    replay();
+
+    VersionIndex.remove(adminSession, IDENTIFIER);
+    verify();
+  }
+
+  @Test
+  public void testRemoveKeepsMovedNode() throws Exception {
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(true);
+    EasyMock.expect(adminSession.getNodeByIdentifier(IDENTIFIER)).andReturn(node);
+    replay();
+
+    VersionIndex.remove(adminSession, IDENTIFIER);
+    verify();
+  }
+
+  @Test
+  public void testRemoveWithoutIndex() throws Exception {
+    EasyMock.expect(adminSession.itemExists(INDEX_PATH)).andReturn(false);
+    replay();
+
+    VersionIndex.remove(adminSession, IDENTIFIER);
+    verify();
+  }
+
+  /**
+   * The index node is created under its existing parent.
+   */
+  private Node expectCreateIndex() throws RepositoryException {
+    Node parent = createMock(Node.class);
+    Node indexNode = createMock(Node.class);
+    EasyMock.expect(adminSession.itemExists(INDEX_PARENT)).andReturn(true);
+    EasyMock.expect(adminSession.getItem(INDEX_PARENT)).andReturn(parent);
+    EasyMock.expect(parent.hasNode(IDENTIFIER)).andReturn(false);
+    EasyMock.expect(parent.addNode(IDENTIFIER)).andReturn(indexNode);
+    return indexNode;
+  }
+
+  private void expectEntry(Node indexNode, long position, Version version, String savedBy)
+      throws RepositoryException {
+    Node entry = createMock(Node.class);
+    EasyMock.expect(indexNode.addNode(String.valueOf(position))).andReturn(entry);
+    EasyMock.expect(entry.setProperty(VersionIndex.VERSION_NAME, version.getName()))
+        .andReturn(null);
+    EasyMock.expect(entry.setProperty(VersionIndex.VERSION_CREATED, version.getCreated()))
+        .andReturn(null);
+    if (savedBy != null) {
+      EasyMock.expect(entry.setProperty(VersionService.SAVED_BY, savedBy)).andReturn(null);
+    }
+  }
+
+  private void expectSave() throws RepositoryException {
+    EasyMock.expect(adminSession.hasPendingChanges()).andReturn(true);
+    adminSession.save();
+    EasyMock.expectLastCall();
+  }
+
+  /**
+   * The version history is labelled as indexed, unless it already is.
+   */
+  private void expectLabel(String versionName, boolean labelled)
+      throws RepositoryException {
+    Workspace workspace = createMock(Workspace.class);
+    VersionManager versionManager = createMock(VersionManager.class);
+    EasyMock.expect(adminSession.getWorkspace()).andReturn(workspace);
+    EasyMock.expect(workspace.getVersionManager()).andReturn(versionManager);
+    EasyMock.expect(versionManager.getVersionHistory("/foo")).andReturn(versionHistory);
+    EasyMock.expect(versionHistory.hasVersionLabel(VersionIndex.INDEXED_LABEL)).andReturn(
+        labelled);
+    if (!labelled) {
+      versionHistory.addVersionLabel(versionName, VersionIndex.INDEXED_LABEL, false);
+      EasyMock.expectLastCall();
+    }
+  }
+
+  /**
+   * @return A version of the node, already replayed.
+   */
+  private Version createVersion(String name, String savedBy, Version predecessor)
+      throws RepositoryException {
+    Node frozen = EasyMock.createNiceMock(Node.class);
+    if (savedBy != null) {
+      EasyMock.expect(frozen.hasProperty(VersionService.SAVED_BY)).andReturn(true)
+          .anyTimes();
+      EasyMock.expect(frozen.getProperty(VersionService.SAVED_BY)).andReturn(
+          createProperty(savedBy)).anyTimes();
+    }
+    Version version = EasyMock.createNiceMock(Version.class);
+    EasyMock.expect(version.getName()).andReturn(name).anyTimes();
+    EasyMock.expect(version.getCreated()).andReturn(Calendar.getInstance()).anyTimes();
+    EasyMock.expect(version.getPredecessors()).andReturn(
+        predecessor == null ? new Version[0] : new Version[] { predecessor }).anyTimes();
+    EasyMock.expect(version.getContainingHistory()).andReturn(versionHistory).anyTimes();
+    EasyMock.expect(version.getNode(JcrConstants.JCR_FROZENNODE)).andReturn(frozen)
+        .anyTimes();
+    EasyMock.replay(frozen, version);
+    return version;
+  }
+
+  /**
+   * @return A property holding the value, already replayed.
+   */
+  private Property createProperty(Object value) throws RepositoryException {
+    Property property = EasyMock.createNiceMock(Property.class);
+    EasyMock.expect(property.getString()).andReturn(String.valueOf(value)).anyTimes();
+    if (value instanceof Long) {
+      EasyMock.expect(property.getLong()).andReturn((Long) value).anyTimes();
+    }
+    EasyMock.replay(property);
+    return property;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.jackrabbit.commons.iterator.EventIteratorAdapter;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionManager;
+
+/**
+ *
+ */
+public class VersionServiceImplTest extends AbstractEasyMockTest {
+
+  @Test
+  public void testRemovedNodeLosesIndex() throws Exception {
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    Session observationSession = createMock(Session.class);
+    Workspace workspace = createMock(Workspace.class);
+    ObservationManager observationManager = createMock(ObservationManager.class);
+    Node indexNode = createMock(Node.class);
+
+    VersionServiceImpl versionService = new VersionServiceImpl();
+    versionService.slingRepository = slingRepository;
+
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(
+        observationSession);
+    EasyMock.expect(observationSession.getWorkspace()).andReturn(workspace).anyTimes();
+    EasyMock.expect(workspace.getObservationManager()).andReturn(observationManager)
+        .anyTimes();
+    // Removals are only observed below the indexed paths, one listener each.
+    Capture<EventListener> sitesListener = new Capture<EventListener>();
+    Capture<EventListener> userListener = new Capture<EventListener>();
+    observationManager.addEventListener(EasyMock.capture(sitesListener), EasyMock
+        .eq(Event.NODE_REMOVED), EasyMock.eq("/sites"), EasyMock.eq(true), EasyMock
+        .<String[]> isNull(), EasyMock.<String[]> isNull(), EasyMock.eq(false));
+    EasyMock.expectLastCall();
+    observationManager.addEventListener(EasyMock.capture(userListener), EasyMock
+        .eq(Event.NODE_REMOVED), EasyMock.eq("/_user"), EasyMock.eq(true), EasyMock
+        .<String[]> isNull(), EasyMock.<String[]> isNull(), EasyMock.eq(false));
+    EasyMock.expectLastCall();
+
+    // Only the removal of the versioned node is looked at, not that of its index.
+    String indexPath = "/var/versions/01/23/45/67/0123456789abcdef";
+    Event removed = createEvent("/sites/foo", "0123456789abcdef");
+    Event indexRemoved = createEvent(indexPath, "fedcba9876543210");
+    EasyMock.expect(observationSession.itemExists(indexPath)).andReturn(true);
+    EasyMock.expect(observationSession.getNodeByIdentifier("0123456789abcdef")).andThrow(
+        new ItemNotFoundException());
+    EasyMock.expect(observationSession.getItem(indexPath)).andReturn(indexNode);
+    indexNode.remove();
+    EasyMock.expectLastCall();
+    observationSession.save();
+    EasyMock.expectLastCall();
+
+    observationManager.removeEventListener(EasyMock.isA(EventListener.class));
+    EasyMock.expectLastCall().times(2);
+    observationSession.logout();
+    EasyMock.expectLastCall();
+    ComponentContext componentContext = createComponentContext("/sites", " /_user ", "");
+    replay();
+
+    versionService.activate(componentContext);
+    assertNotSame(sitesListener.getValue(), userListener.getValue());
+    sitesListener.getValue().onEvent(
+        new EventIteratorAdapter(Arrays.asList(removed, indexRemoved)));
+    versionService.deactivate(null);
+    verify();
+  }
+
+  @Test
+  public void testIndexesOnlyBelowIndexedPaths() throws Exception {
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    Session observationSession = createNiceMock(Session.class);
+    Workspace workspace = createNiceMock(Workspace.class);
+    ObservationManager observationManager = createNiceMock(ObservationManager.class);
+    EasyMock.expect(observationSession.getWorkspace()).andReturn(workspace).anyTimes();
+    EasyMock.expect(workspace.getObservationManager()).andReturn(observationManager)
+        .anyTimes();
+    // The observation session is the only one logged in, the index is not written.
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(
+        observationSession).once();
+
+    Session session = createNiceMock(Session.class);
+    Workspace userWorkspace = createNiceMock(Workspace.class);
+    VersionManager versionManager = createNiceMock(VersionManager.class);
+    Version version = createNiceMock(Version.class);
+    Node node = createNiceMock(Node.class);
+    EasyMock.expect(node.getPath()).andReturn("/elsewhere/foo").anyTimes();
+    EasyMock.expect(node.getSession()).andReturn(session).anyTimes();
+    EasyMock.expect(session.getWorkspace()).andReturn(userWorkspace).anyTimes();
+    EasyMock.expect(userWorkspace.getVersionManager()).andReturn(versionManager)
+        .anyTimes();
+    EasyMock.expect(versionManager.checkin("/elsewhere/foo")).andReturn(version);
+    ComponentContext componentContext = createComponentContext("/sites");
+    replay();
+
+    VersionServiceImpl versionService = new VersionServiceImpl();
+    versionService.slingRepository = slingRepository;
+    versionService.activate(componentContext);
+    assertSame(version, versionService.saveNode(node, "alice"));
+    verify();
+  }
+
+  private ComponentContext createComponentContext(String... indexedPaths) {
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(VersionServiceImpl.INDEXED_PATHS, indexedPaths);
+    EasyMock.expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    return componentContext;
+  }
+
+  private Event createEvent(String path, String identifier) throws Exception {
+    Event event = createNiceMock(Event.class);
+    EasyMock.expect(event.getPath()).andReturn(path).anyTimes();
+    EasyMock.expect(event.getIdentifier()).andReturn(identifier).anyTimes();
+    return event;
+  }
+}
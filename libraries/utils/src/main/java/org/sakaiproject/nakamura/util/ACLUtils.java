@@ -24,7 +24,10 @@ import org.slf4j.LoggerFactory;
 
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -270,4 +273,94 @@ public class ACLUtils {
 
   }
 
+  /**
+   * Replace the ACL entries of several principals at a path, writing the access control
+   * policy once for all of them rather than once per principal.
+   *
+   * @param path
+   *          The path of the node.
+   * @param privilegeSpecs
+   *          The privilege specs, in the {@link #GRANTED} or {@link #DENIED} form, of each
+   *          principal. The entries are added in the iteration order of the map.
+   * @param session
+   *          The session to write the policy with.
+   * @throws RepositoryException
+   */
+  public static void addEntry(String path, Map<Principal, String[]> privilegeSpecs,
+      Session session) throws RepositoryException {
+    AccessControlManager accessControlManager = AccessControlUtil
+        .getAccessControlManager(session);
+    AccessControlList acl = null;
+    for (AccessControlPolicy policy : accessControlManager.getPolicies(path)) {
+      if (policy instanceof AccessControlList) {
+        acl = (AccessControlList) policy;
+        break;
+      }
+    }
+    if (acl == null) {
+      AccessControlPolicyIterator applicablePolicies = accessControlManager
+          .getApplicablePolicies(path);
+      while (acl == null && applicablePolicies.hasNext()) {
+        AccessControlPolicy policy = applicablePolicies.nextAccessControlPolicy();
+        if (policy instanceof AccessControlList) {
+          acl = (AccessControlList) policy;
+        }
+      }
+    }
+    if (acl == null) {
+      throw new RepositoryException("Unable to find an access control policy to update.");
+    }
+
+    // remove the old aces of the principals
+    List<String> principalNames = new ArrayList<String>();
+    for (Principal principal : privilegeSpecs.keySet()) {
+      principalNames.add(principal.getName());
+    }
+    for (AccessControlEntry ace : acl.getAccessControlEntries()) {
+      if (principalNames.contains(ace.getPrincipal().getName())) {
+        acl.removeAccessControlEntry(ace);
+      }
+    }
+
+    // add fresh aces, looking each privilege up once
+    Map<String, Privilege> privileges = new HashMap<String, Privilege>();
+    for (Entry<Principal, String[]> entry : privilegeSpecs.entrySet()) {
+      List<Privilege> granted = new ArrayList<Privilege>();
+      List<Privilege> denied = new ArrayList<Privilege>();
+      for (String spec : entry.getValue()) {
+        if (spec.startsWith(GRANTED)) {
+          granted.add(getPrivilege(accessControlManager, privileges, spec
+              .substring(GRANTED.length())));
+        } else if (spec.startsWith(DENIED)) {
+          denied.add(getPrivilege(accessControlManager, privileges, spec
+              .substring(DENIED.length())));
+        }
+      }
+      if (granted.size() > 0) {
+        AccessControlUtil.addEntry(acl, entry.getKey(), granted
+            .toArray(new Privilege[granted.size()]), true);
+      }
+      if (denied.size() > 0) {
+        AccessControlUtil.addEntry(acl, entry.getKey(), denied
+            .toArray(new Privilege[denied.size()]), false);
+      }
+    }
+
+    accessControlManager.setPolicy(path, acl);
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Replaced the ACEs of {} for resource {}", principalNames, path);
+    }
+  }
+
+  private static Privilege getPrivilege(AccessControlManager accessControlManager,
+      Map<String, Privilege> privileges, String name) throws RepositoryException {
+    Privilege privilege = privileges.get(name);
+    if (privilege == null) {
+      privilege = accessControlManager.privilegeFromName(name);
+      privileges.put(name, privilege);
+    }
+    return privilege;
+  }
+
 }
@@ -38,6 +38,11 @@ public class ResponseWrapper extends SlingHttpServletResponseWrapper {
     public void write(int b) throws IOException {
       boas.write(b);
     }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      boas.write(b, off, len);
+    }
   };
   PrintWriter pw = new PrintWriter(servletOutputStream);
   private String type;
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.same;
+import static org.easymock.EasyMock.verify;
+
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
+import org.junit.Test;
+
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlEntry;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.AccessControlPolicy;
+import javax.jcr.security.Privilege;
+
+/**
+ *
+ */
+public class ACLUtilsTest {
+
+  private static final String PATH = "/foo/bar";
+
+  @Test
+  public void testAddEntries() throws Exception {
+    Principal user = createPrincipal("jack");
+    Principal everyone = createPrincipal("everyone");
+    Principal other = createPrincipal("jill");
+
+    Privilege read = createNiceMock(Privilege.class);
+    Privilege all = createNiceMock(Privilege.class);
+    AccessControlEntry userAce = createMock(AccessControlEntry.class);
+    expect(userAce.getPrincipal()).andReturn(user).anyTimes();
+    AccessControlEntry otherAce = createMock(AccessControlEntry.class);
+    expect(otherAce.getPrincipal()).andReturn(other).anyTimes();
+
+    // The old entry of jack goes, the one of jill stays.
+    JackrabbitAccessControlList acl = createMock(JackrabbitAccessControlList.class);
+    expect(acl.getAccessControlEntries()).andReturn(
+        new AccessControlEntry[] { userAce, otherAce });
+    acl.removeAccessControlEntry(userAce);
+    expect(acl.addEntry(same(user), aryEq(new Privilege[] { read, all }), eq(true)))
+        .andReturn(true);
+    expect(acl.addEntry(same(everyone), aryEq(new Privilege[] { all }), eq(false)))
+        .andReturn(true);
+
+    // Each privilege is looked up once and the policy is written once.
+    AccessControlManager accessControlManager = createMock(AccessControlManager.class);
+    expect(accessControlManager.getPolicies(PATH)).andReturn(
+        new AccessControlPolicy[] { acl });
+    expect(accessControlManager.privilegeFromName("jcr:read")).andReturn(read);
+    expect(accessControlManager.privilegeFromName("jcr:all")).andReturn(all);
+    accessControlManager.setPolicy(PATH, acl);
+
+    Session session = createMock(Session.class);
+    expect(session.getAccessControlManager()).andReturn(accessControlManager);
+    replay(read, all, userAce, otherAce, acl, accessControlManager, session);
+
+    Map<Principal, String[]> privilegeSpecs = new LinkedHashMap<Principal, String[]>();
+    privilegeSpecs.put(user, new String[] { ACLUtils.READ_GRANTED, ACLUtils.ALL_GRANTED });
+    privilegeSpecs.put(everyone, new String[] { ACLUtils.ALL_DENIED });
+    ACLUtils.addEntry(PATH, privilegeSpecs, session);
+
+    verify(userAce, otherAce, acl, accessControlManager, session);
+  }
+
+  private Principal createPrincipal(final String name) {
+    return new Principal() {
+      public String getName() {
+        return name;
+      }
+    };
+  }
+}